@@ -80,12 +80,30 @@ public class CacheClient {
      * @return true if the key/value pair is added to the cache
      */
     public boolean add( String key, String value ){
+        return add( key, value, 0 );
+    }
+
+    /**
+     * Adds the specified key/value pair to the cache for a limited time
+     * @param key the cache key
+     * @param value the value to store in the cache
+     * @param ttlMillis how long the server keeps the pair, in milliseconds
+     *                  (0 means until it's evicted)
+     * @return true if the key/value pair is added to the cache
+     */
+    public boolean add( String key, String value, long ttlMillis ){
+
+        if( ttlMillis < 0 ) {
+            throw new IllegalArgumentException(
+                    "The time to live is negative, which is not valid."
+            );
+        }
 
         // We will use a string builder because the value data
         // could be very bulky.
         StringBuilder builder = new StringBuilder();
 
-        // +add key value\r\n
+        // +add key value [ttl]\r\n
         builder.append("+add ");
         builder.append(key);
         builder.append(" ");
@@ -95,6 +113,11 @@ public class CacheClient {
         // carriage returns/newlines
         builder.append(base64Encode(value));
 
+        if( ttlMillis > 0 ) {
+            builder.append(" ");
+            builder.append(ttlMillis);
+        }
+
         builder.append("\r\n");
 
         String request = builder.toString();
@@ -115,9 +138,129 @@ public class CacheClient {
 
         String response = rawSend(key, request);
 
+        CachedValue value = parseDataResponse(response );
+
+        return null == value ? null : value.getValue();
+    }
+
+    /**
+     * Gets a key/value pair from the cache, and whether this client
+     * should rebuild the value because it's about to expire. The
+     * server picks one client at a time, more likely the closer the
+     * value is to expiring and the longer it takes to rebuild, so the
+     * value is replaced before everyone misses at once.
+     * @param key the cache key to search for
+     * @param recomputeMillis about how long it takes to rebuild the value
+     * @return the value if found, null if the key isn't found
+     */
+    public CachedValue get(String key, long recomputeMillis){
+
+        if( recomputeMillis <= 0 ) {
+            throw new IllegalArgumentException(
+                    "The recompute time must be positive."
+            );
+        }
+
+        String request = String.format("+get %s %d%s", key, recomputeMillis, CRLF);
+
+        String response = rawSend(key, request);
+
         return parseDataResponse(response );
     }
 
+    /**
+     * Gets a key/value pair from the cache. On a miss, the first client
+     * to ask is given a lease to fill the key (with addLease()) and the
+     * others are told to wait and try again, so only one of them goes to
+     * the origin for the value.
+     * @param key the cache key to search for
+     * @return the value, the lease, or an instruction to wait
+     */
+    public CacheLease getLease(String key){
+
+        final String LEASE = "+LEASE";
+        final String STALE = "+STALE";
+        final String WAIT = "-WAIT";
+
+        String request = String.format("+getlease %s%s", key, CRLF);
+
+        String response = rawSend(key, request);
+
+        String[] s = response.trim().split(" ");
+
+        switch( s[0] ) {
+            case LEASE:
+                if( s.length < 2 ) {
+                    throw new IllegalStateException("Unexpected response to +getlease: " + response);
+                }
+
+                try {
+                    return new CacheLease(CacheLease.Status.Granted, null, Long.parseLong(s[1]));
+                }
+                catch( NumberFormatException exception ) {
+                    throw new IllegalStateException("Unexpected response to +getlease: " + response, exception);
+                }
+
+            case STALE:
+                if( s.length < 2 ) {
+                    throw new IllegalStateException("Unexpected response to +getlease: " + response);
+                }
+
+                return new CacheLease(CacheLease.Status.Wait, base64Decode(s[1]), 0);
+
+            case WAIT:
+                return new CacheLease(CacheLease.Status.Wait, null, 0);
+
+            default:
+                CachedValue value = parseDataResponse(response);
+
+                if( null == value ) {
+                    throw new IllegalStateException("Unexpected response to +getlease: " + response);
+                }
+
+                return new CacheLease(CacheLease.Status.Hit, value.getValue(), 0);
+        }
+    }
+
+    /**
+     * Fills a key this client holds the lease for
+     * @param key the cache key
+     * @param value the value to store in the cache
+     * @param token the token from getLease()
+     * @param ttlMillis how long the server keeps the pair, in milliseconds
+     *                  (0 means until it's evicted)
+     * @return true if the lease was still good and the pair was added
+     */
+    public boolean addLease( String key, String value, long token, long ttlMillis ){
+
+        if( ttlMillis < 0 ) {
+            throw new IllegalArgumentException(
+                    "The time to live is negative, which is not valid."
+            );
+        }
+
+        StringBuilder builder = new StringBuilder();
+
+        // +addlease key value token [ttl]\r\n
+        builder.append("+addlease ");
+        builder.append(key);
+        builder.append(" ");
+        builder.append(base64Encode(value));
+        builder.append(" ");
+        builder.append(token);
+
+        if( ttlMillis > 0 ) {
+            builder.append(" ");
+            builder.append(ttlMillis);
+        }
+
+        builder.append(CRLF);
+
+        String response = rawSend(key, builder.toString());
+
+        return parseServerStatusResponse( response ) == ServerResult.Ok;
+    }
+
     /**
      * Removes the key/value pair from the cache
      * @param key the key to use to find the key/value pair to remove
@@ -189,20 +332,23 @@ public class CacheClient {
         _servers = servers;
     }
 
-    private String parseDataResponse( String response ){
+    private CachedValue parseDataResponse( String response ){
+
+        final String REFRESH = "refresh";
 
         //
         // todo - needs more error handling/checking
         //
         String[] s = response.split(" ");
 
-        String value = null;
+        CachedValue value = null;
 
         if( s.length > 0 ) {
             // todo we should add a lot more bounds checking
             switch (parseServerStatusResponse(s[0])) {
                 case Ok:
-                    value = base64Decode(s[1]);
+                    boolean refresh = s.length > 2 && s[2].trim().equals(REFRESH);
+                    value = new CachedValue(base64Decode(s[1].trim()), refresh);
             }
 
         }
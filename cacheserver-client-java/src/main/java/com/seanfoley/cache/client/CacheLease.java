@@ -0,0 +1,56 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.client;
+
+/**
+ * This is a simple container class for the answer
+ * to a lease get: the value, a lease to fill the key
+ * (this client is the one that should go and get it),
+ * or an instruction to wait while someone else does.
+ *
+ */
+public class CacheLease {
+
+    public enum Status { Hit, Granted, Wait }
+
+    private final Status _status;
+    private final String _value;
+    private final long _token;
+
+    CacheLease( Status status, String value, long token ) {
+        _status = status;
+        _value = value;
+        _token = token;
+    }
+
+    /**
+     * @return what the server said
+     */
+    public Status getStatus() { return _status; }
+
+    /**
+     * @return the value on a hit; while waiting, the value that just
+     * expired if the server still had it (otherwise null)
+     */
+    public String getValue() { return _value; }
+
+    /**
+     * @return the token to pass to addLease() when the lease was granted
+     */
+    public long getToken() { return _token; }
+}
@@ -0,0 +1,47 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.client;
+
+/**
+ * This is a simple container class for a value read
+ * from the cache, along with the server's hint that
+ * the value is about to expire and this client should
+ * rebuild it and add it again.
+ *
+ */
+public class CachedValue {
+
+    private final String _value;
+    private final boolean _refresh;
+
+    CachedValue( String value, boolean refresh ) {
+        _value = value;
+        _refresh = refresh;
+    }
+
+    /**
+     * @return the cached value (still good to use)
+     */
+    public String getValue() { return _value; }
+
+    /**
+     * @return true if this client was picked to rebuild the value
+     * before it expires. Only one client at a time is picked.
+     */
+    public boolean shouldRefresh() { return _refresh; }
+}
@@ -57,6 +57,40 @@ public class CacheClientTest {
         assertTrue(result);
     }
 
+    @Test
+    public void addWithTtl() {
+
+        new Expectations() {{
+
+            // mock out the network socket call and check
+            // that the ttl made it onto the end of the command
+            transport.rawSend(withSuffix(" 60000\r\n"));
+            result = "+OK\r\n";
+        }};
+
+        List<CacheServer> servers = new ArrayList<>();
+        CacheServer server = new CacheServer("localhost", 5000);
+        servers.add( server );
+
+        CacheClient client = CacheClient.Create(servers);
+
+        boolean result = client.add("key", "value", 60000);
+
+        assertTrue(result);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addWithNegativeTtl() {
+
+        List<CacheServer> servers = new ArrayList<>();
+        CacheServer server = new CacheServer("localhost", 5000);
+        servers.add( server );
+
+        CacheClient client = CacheClient.Create(servers);
+
+        client.add("key", "value", -1);
+    }
+
     @Test
     public void addFail() {
 
@@ -143,6 +177,162 @@ public class CacheClientTest {
         assertNull(result);
     }
 
+    @Test
+    public void getWithRefresh() {
+
+        String value = "mockedvalue";
+
+        String encodedValue = CacheClient.base64Encode(value);
+
+        new Expectations() {{
+
+            // mock out the network socket call, check the
+            // recompute time went out, and simulate the server
+            // picking us to refresh the value
+            transport.rawSend(withSuffix(" 250\r\n"));
+
+            result = String.format("+OK %s refresh", encodedValue);
+        }};
+
+        List<CacheServer> servers = new ArrayList<>();
+        CacheServer server = new CacheServer("localhost", 5000);
+        servers.add( server );
+
+        CacheClient client = CacheClient.Create(servers);
+
+        CachedValue result = client.get("key", 250);
+
+        assertEquals(value, result.getValue());
+        assertTrue(result.shouldRefresh());
+    }
+
+    @Test
+    public void getWithoutRefresh() {
+
+        String value = "mockedvalue";
+
+        String encodedValue = CacheClient.base64Encode(value);
+
+        new Expectations() {{
+
+            transport.rawSend(anyString);
+
+            result = String.format("+OK %s", encodedValue);
+        }};
+
+        List<CacheServer> servers = new ArrayList<>();
+        CacheServer server = new CacheServer("localhost", 5000);
+        servers.add( server );
+
+        CacheClient client = CacheClient.Create(servers);
+
+        CachedValue result = client.get("key", 250);
+
+        assertEquals(value, result.getValue());
+        assertFalse(result.shouldRefresh());
+    }
+
+    @Test
+    public void getLeaseHit() {
+
+        String encodedValue = CacheClient.base64Encode("value");
+
+        new Expectations() {{
+            transport.rawSend("+getlease key\r\n");
+            result = String.format("+OK %s", encodedValue);
+        }};
+
+        List<CacheServer> servers = new ArrayList<>();
+        servers.add( new CacheServer("localhost", 5000) );
+
+        CacheLease lease = CacheClient.Create(servers).getLease("key");
+
+        assertEquals(CacheLease.Status.Hit, lease.getStatus());
+        assertEquals("value", lease.getValue());
+    }
+
+    @Test
+    public void getLeaseGranted() {
+
+        new Expectations() {{
+            transport.rawSend(anyString);
+            result = "+LEASE 42";
+        }};
+
+        List<CacheServer> servers = new ArrayList<>();
+        servers.add( new CacheServer("localhost", 5000) );
+
+        CacheLease lease = CacheClient.Create(servers).getLease("key");
+
+        assertEquals(CacheLease.Status.Granted, lease.getStatus());
+        assertEquals(42, lease.getToken());
+        assertNull(lease.getValue());
+    }
+
+    @Test
+    public void getLeaseRejectsAMalformedLease() {
+
+        new Expectations() {{
+            transport.rawSend(anyString);
+            returns("+LEASE", "+LEASE notanumber", "+STALE");
+        }};
+
+        List<CacheServer> servers = new ArrayList<>();
+        servers.add( new CacheServer("localhost", 5000) );
+
+        CacheClient client = CacheClient.Create(servers);
+
+        for( int i = 0; i < 3; i++ ) {
+            try {
+                client.getLease("key");
+                fail("a malformed reply should be rejected");
+            }
+            catch( IllegalStateException expected ) {
+                assertTrue(expected.getMessage().startsWith("Unexpected response to +getlease: "));
+            }
+        }
+    }
+
+    @Test
+    public void getLeaseWait() {
+
+        String encodedValue = CacheClient.base64Encode("old");
+
+        new Expectations() {{
+            transport.rawSend(anyString);
+            returns("-WAIT", String.format("+STALE %s", encodedValue));
+        }};
+
+        List<CacheServer> servers = new ArrayList<>();
+        servers.add( new CacheServer("localhost", 5000) );
+
+        CacheClient client = CacheClient.Create(servers);
+
+        CacheLease lease = client.getLease("key");
+        assertEquals(CacheLease.Status.Wait, lease.getStatus());
+        assertNull(lease.getValue());
+
+        lease = client.getLease("key");
+        assertEquals(CacheLease.Status.Wait, lease.getStatus());
+        assertEquals("old", lease.getValue());
+    }
+
+    @Test
+    public void addLease() {
+
+        new Expectations() {{
+
+            // The token (and ttl) go after the value
+            transport.rawSend(withSuffix(" 42 60000\r\n"));
+            result = "+OK\r\n";
+        }};
+
+        List<CacheServer> servers = new ArrayList<>();
+        servers.add( new CacheServer("localhost", 5000) );
+
+        assertTrue(CacheClient.Create(servers).addLease("key", "value", 42, 60000));
+    }
+
     @Test
     public void remove() {
 
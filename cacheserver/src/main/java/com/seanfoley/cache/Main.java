@@ -17,16 +17,160 @@
 
 package com.seanfoley.cache;
 
+import com.seanfoley.cache.domain.CacheManager;
+import com.seanfoley.cache.domain.CacheServerConfig;
+import com.seanfoley.cache.domain.CacheStorageProviders;
 import com.seanfoley.cache.domain.TcpSocketServerAsync;
+import com.seanfoley.cache.domain.TcpSocketServerBlocking;
+import com.seanfoley.cache.domain.TcpSocketServerPartitioned;
+import com.seanfoley.cache.domain.TcpSocketServerReactor;
+import com.seanfoley.cache.interfaces.ICacheManager;
+import com.seanfoley.cache.interfaces.ICacheServer;
+import com.seanfoley.cache.interfaces.ICacheStorageProvider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 class Main {
 
+    /**
+     * Starts the cacheserver. The settings are the ones CacheServerConfig
+     * describes, and come from a properties file, the command line or
+     * both (the command line wins):
+     *
+     * --config=PATH       read the settings from a properties file
+     * --KEY=VALUE         any setting, e.g. --server=reactor --threads=4
+     *
+     * A few settings have shorthands on the command line:
+     *
+     * --event-loops=N     same as --threads=N
+     * --namespace=NAME:STORAGE:ITEMS[:MAX_BYTES]
+     *                     same as --namespace.NAME=STORAGE:ITEMS[:MAX_BYTES],
+     *                     and can be given more than once
+     *
+     * Namespaces are picked by clients with +use NAME. A namespace's
+     * snapshot and log (if any) are the snapshot and log files with .NAME
+     * on the end, and its files go in a NAME folder under data-dir.
+     *
+     * @param args the command line arguments
+     */
     public static void main(String[] args) {
 
-        TcpSocketServerAsync server = new TcpSocketServerAsync();
+        CacheServerConfig config = config(args);
+
+        if( null == config ) {
+            return;
+        }
+
+        for( String key : config.getUnknownKeys() ) {
+            System.err.printf("Ignoring unknown setting: %s\n", key);
+        }
+
+        boolean partitioned = "partitioned".equals(config.getServer());
+
+        if( partitioned ) {
+
+            // The partitions bring their own single-threaded storage
+            if( !"lru".equals(config.getStorage()) ) {
+                System.err.printf("The partitioned server always uses lru storage, ignoring storage=%s\n",
+                        config.getStorage());
+            }
+
+            if( null != config.getSnapshotFile() || null != config.getLogFile() ) {
+                System.err.printf("The partitioned server doesn't support snapshots or the log" +
+                        " (other than for namespaces), ignoring them\n");
+            }
+        }
+        else {
+            ICacheStorageProvider storage = storage(config.getStorage());
+
+            if( null == storage ) {
+                return;
+            }
+
+            // Create the cache before the server so the connections pick it up
+            ICacheManager cache = CacheManager.Instance(storage, config.getItems(), config.getMaxBytes(),
+                    config.getDataDirectory());
+
+            // Warm the cache up before we take any connections
+            if( null != config.getSnapshotFile() ) {
+                startSnapshots(cache, config.getSnapshotFile(), config.getSnapshotSeconds());
+            }
+
+            // The log goes on top of the snapshot, since it has everything up
+            // to the last write
+            if( null != config.getLogFile() && !startLog(cache, config.getLogFile(), config) ) {
+                return;
+            }
+        }
+
+        for( CacheServerConfig.Namespace namespace : config.getNamespaces() ) {
+
+            String name = namespace.getName();
+            ICacheStorageProvider namespaceStorage = storage(namespace.getStorage());
+
+            if( null == namespaceStorage ) {
+                return;
+            }
+
+            ICacheManager namespaceCache = CacheManager.Namespace(name, namespaceStorage,
+                    namespace.getItems(), namespace.getMaxBytes(), new File(config.getDataDirectory(), name));
 
-        System.out.println("cacheserver started and ready for connections.");
+            if( null != config.getSnapshotFile() ) {
+                startSnapshots(namespaceCache, new File(config.getSnapshotFile().getPath() + "." + name),
+                        config.getSnapshotSeconds());
+            }
+
+            if( null != config.getLogFile()
+                    && !startLog(namespaceCache, new File(config.getLogFile().getPath() + "." + name), config) ) {
+                return;
+            }
+
+            System.out.printf("Namespace %s uses %s storage.\n", name, namespace.getStorage());
+        }
+
+        ICacheServer server;
+
+        switch( config.getServer() ) {
+            case "async":
+                server = new TcpSocketServerAsync(config.getPort(), config.getThreads(),
+                        config.getBufferSize(), config.getTimeoutSeconds());
+                break;
+
+            case "reactor":
+                server = new TcpSocketServerReactor(config.getPort(), config.getThreads(),
+                        config.getBufferSize(), config.getTimeoutSeconds());
+                break;
+
+            case "partitioned":
+                server = new TcpSocketServerPartitioned(config.getPort(), config.getThreads(), config.getItems(),
+                        config.getMaxBytes(), config.getBufferSize(), config.getTimeoutSeconds());
+                break;
+
+            case "blocking":
+                TcpSocketServerBlocking blocking = new TcpSocketServerBlocking(config.getPort(),
+                        config.getBufferSize(), config.getTimeoutSeconds());
+
+                System.out.printf("Serving clients on %s threads.\n",
+                        blocking.isUsingVirtualThreads() ? "virtual" : "platform");
+
+                server = blocking;
+                break;
+
+            default:
+                System.err.printf("Unknown server type: %s (expected async, reactor, partitioned or blocking)\n", config.getServer());
+                return;
+        }
+
+        System.out.printf("cacheserver (%s, %s storage) started and ready for connections.\n",
+                config.getServer(), config.getStorage());
         // TODO - add proper shutdown support, etc.
         while(true) {
             try {
@@ -41,4 +185,163 @@ class Main {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads the --config file (if there is one), then lays the rest of
+     * the arguments over the top of it
+     * @return the settings, or null (after saying why) if they're no good
+     */
+    private static CacheServerConfig config(String[] args) {
+
+        Properties properties = new Properties();
+
+        for( String arg : args ) {
+
+            if( arg.startsWith("--config=") ) {
+
+                File file = new File(arg.substring("--config=".length()));
+
+                try( InputStream in = new FileInputStream(file) ) {
+                    properties.load(in);
+                } catch (IOException exception) {
+                    System.err.printf("Couldn't read the config file %s.\n", file);
+                    exception.printStackTrace();
+                    return null;
+                }
+            }
+        }
+
+        for( String arg : args ) {
+
+            int equals = arg.indexOf('=');
+
+            if( !arg.startsWith("--") || equals < 0 ) {
+                System.err.printf("Ignoring unknown argument: %s\n", arg);
+                continue;
+            }
+
+            String key = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+
+            switch( key ) {
+                case "config":
+                    break;
+
+                case "event-loops":
+                    properties.setProperty("threads", value);
+                    break;
+
+                case "namespace":
+                    // NAME:STORAGE:ITEMS[:MAX_BYTES]
+                    int colon = value.indexOf(':');
+                    properties.setProperty("namespace." + (colon < 0 ? value : value.substring(0, colon)),
+                            colon < 0 ? "" : value.substring(colon + 1));
+                    break;
+
+                default:
+                    properties.setProperty(key, value);
+            }
+        }
+
+        try {
+            return new CacheServerConfig(properties);
+        } catch (IllegalArgumentException exception) {
+            System.err.printf("Bad setting: %s\n", exception.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the storage with that name, or null (after saying so) if
+     * there isn't one
+     */
+    private static ICacheStorageProvider storage(String name) {
+
+        ICacheStorageProvider storage = CacheStorageProviders.find(name);
+
+        if( null == storage ) {
+            System.err.printf("Unknown storage type: %s (expected one of %s)\n", name,
+                    String.join(", ", CacheStorageProviders.names()));
+        }
+
+        return storage;
+    }
+
+    /**
+     * Replays the log, then logs every add and remove to it
+     * @return false if the log couldn't be started
+     */
+    private static boolean startLog(ICacheManager cache, File file, CacheServerConfig config) {
+
+        try {
+            long start = System.nanoTime();
+            long operations = cache.startLog(file, config.getFsyncPolicy(), config.getFsyncMillis());
+
+            System.out.printf("Replayed %d operations from %s in %d ms.\n",
+                    operations, file, (System.nanoTime() - start) / 1000000);
+
+        } catch (IOException exception) {
+
+            // Unlike a snapshot, carrying on without the log would lose writes
+            System.err.printf("Couldn't start the operation log %s.\n", file);
+            exception.printStackTrace();
+
+            return false;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(cache::stopLog, "cacheserver-oplog-on-exit"));
+
+        return true;
+    }
+
+    /**
+     * Loads the snapshot if there is one, then writes a new one every
+     * so often and when the JVM shuts down
+     */
+    private static void startSnapshots(ICacheManager cache, File file, long intervalSeconds) {
+
+        if( file.exists() ) {
+            try {
+                int threads = Runtime.getRuntime().availableProcessors();
+
+                long start = System.nanoTime();
+                long items = cache.restore(file, threads);
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                System.out.printf("Loaded %d items from %s in %.0f ms (%.0f items/s on %d threads).\n",
+                        items, file, seconds * 1000, items / Math.max(seconds, 1e-9), threads);
+
+            } catch (IOException exception) {
+
+                // Start cold rather than not at all
+                System.err.printf("Couldn't load the snapshot %s, starting with an empty cache.\n", file);
+                exception.printStackTrace();
+            }
+        }
+
+        Runnable snapshot = () -> {
+            try {
+                long start = System.nanoTime();
+                long items = cache.snapshot(file);
+
+                System.out.printf("Wrote %d items to %s in %d ms.\n",
+                        items, file, (System.nanoTime() - start) / 1000000);
+
+            } catch (IOException exception) {
+
+                exception.printStackTrace();
+            }
+        };
+
+        ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "cacheserver-snapshot" );
+            thread.setDaemon( true );
+            return thread;
+        });
+
+        snapshots.scheduleWithFixedDelay(snapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+
+        // So a restart (e.g. a deploy) picks up where we left off
+        Runtime.getRuntime().addShutdownHook(new Thread(snapshot, "cacheserver-snapshot-on-exit"));
+    }
+}
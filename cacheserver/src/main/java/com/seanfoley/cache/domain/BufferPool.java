@@ -0,0 +1,273 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The BufferPool hands out direct (off-heap) ByteBuffers for network
+ * I/O and takes them back when we are done with them so they can be
+ * reused. Direct buffers are what the socket actually reads into and
+ * writes from; handing a heap buffer to a channel makes the JDK copy it
+ * into a temporary direct buffer behind the scenes. Allocating direct
+ * buffers is expensive though, hence the pool.
+ *
+ * Buffers come in power-of-two size classes (MIN_SIZE up to MAX_SIZE).
+ * A request is rounded up to the next size class. Requests bigger than
+ * MAX_SIZE get a one-off buffer that isn't pooled.
+ *
+ * Each thread keeps a small cache of buffers per size class so the
+ * common case (a connection's thread acquiring and releasing buffers)
+ * doesn't touch any shared state. Buffers that don't fit in the thread's
+ * cache go to a shared pool, which is capped at MAX_POOLED_BYTES per
+ * size class. Anything past that is dropped and left to the GC. The
+ * thread caches aren't counted in MAX_POOLED_BYTES, and a buffer in one
+ * only comes back when that thread acquires again, so they only pay off
+ * for threads that live a long time and serve many connections (the
+ * event loops). The blocking server's per-connection threads (virtual
+ * ones on Java 21+) would strand their buffers when they die, so it
+ * uses WithoutThreadCache(), which goes straight to the shared pool.
+ *
+ * The hit/miss/outstanding counters make it easy to check that the
+ * steady state allocates nothing: once things are warmed up, the miss
+ * count should stop moving.
+ */
+class BufferPool {
+
+    static final int MIN_SIZE = 256;
+    static final int MAX_SIZE = 1024 * 1024;
+
+    // How many bytes of buffers (per size class) the shared pool holds on to
+    private static final long MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    // How many buffers (per size class) each thread caches
+    private static final int THREAD_CACHE_SIZE = 8;
+
+    private static final int CLASSES =
+            Integer.numberOfTrailingZeros( MAX_SIZE ) - Integer.numberOfTrailingZeros( MIN_SIZE ) + 1;
+
+    private static final BufferPool _instance = new BufferPool();
+    private static final BufferPool _withoutThreadCache = new BufferPool( _instance );
+
+    private final SizeClass[] _classes;
+
+    // Null if this pool goes straight to the shared pool
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> _threadCache;
+
+    private final LongAdder _hits;
+    private final LongAdder _misses;
+    private final LongAdder _outstanding;
+
+    /**
+     * @return the pool shared by all of the network servers
+     */
+    static BufferPool Instance() { return _instance; }
+
+    /**
+     * @return the same pool as Instance() (the same buffers and counters),
+     * for threads that don't live long enough to make a cache worthwhile
+     */
+    static BufferPool WithoutThreadCache() { return _withoutThreadCache; }
+
+    BufferPool() {
+
+        _classes = new SizeClass[CLASSES];
+
+        for( int i = 0; i < CLASSES; i++ ) {
+            int size = MIN_SIZE << i;
+            _classes[i] = new SizeClass( size, (int) Math.max( 1, MAX_POOLED_BYTES / size ) );
+        }
+
+        _threadCache = ThreadLocal.withInitial( BufferPool::newThreadCache );
+
+        _hits = new LongAdder();
+        _misses = new LongAdder();
+        _outstanding = new LongAdder();
+    }
+
+    /**
+     * A view of another pool that skips the thread caches
+     */
+    private BufferPool( BufferPool shared ) {
+        _classes = shared._classes;
+        _threadCache = null;
+        _hits = shared._hits;
+        _misses = shared._misses;
+        _outstanding = shared._outstanding;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<ByteBuffer>[] newThreadCache() {
+
+        ArrayDeque<ByteBuffer>[] cache = new ArrayDeque[CLASSES];
+
+        for( int i = 0; i < CLASSES; i++ ) {
+            cache[i] = new ArrayDeque<>( THREAD_CACHE_SIZE );
+        }
+
+        return cache;
+    }
+
+    /**
+     * Gets a cleared buffer that can hold at least size bytes. The buffer
+     * must be given back with release() once nobody is using it anymore.
+     * @param size the number of bytes needed
+     * @return a direct buffer with a capacity of at least size
+     */
+    ByteBuffer acquire( int size ) {
+
+        _outstanding.increment();
+
+        if( size > MAX_SIZE ) {
+            _misses.increment();
+            return ByteBuffer.allocateDirect( size );
+        }
+
+        int index = classIndex( size );
+
+        ByteBuffer buffer = null;
+
+        if( null != _threadCache ) {
+            buffer = _threadCache.get()[index].poll();
+        }
+
+        if( null == buffer ) {
+            buffer = _classes[index].poll();
+        }
+
+        if( null == buffer ) {
+            _misses.increment();
+            return ByteBuffer.allocateDirect( _classes[index]._size );
+        }
+
+        _hits.increment();
+        buffer.clear();
+
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. Only pass buffers that came from
+     * acquire() (not slices or duplicates of them), and don't touch the
+     * buffer afterwards. Heap buffers are ignored, so it's safe to pass
+     * anything that was made with ByteBuffer.wrap().
+     * @param buffer the buffer to give back (null is ignored)
+     */
+    void release( ByteBuffer buffer ) {
+
+        if( null == buffer || !buffer.isDirect() ) {
+            return;
+        }
+
+        _outstanding.decrement();
+
+        int capacity = buffer.capacity();
+
+        // One-off buffers (and anything that isn't exactly one of our
+        // sizes) are left to the GC
+        if( capacity > MAX_SIZE || capacity < MIN_SIZE || Integer.bitCount( capacity ) != 1 ) {
+            return;
+        }
+
+        int index = classIndex( capacity );
+
+        if( null != _threadCache ) {
+
+            ArrayDeque<ByteBuffer> cache = _threadCache.get()[index];
+
+            if( cache.size() < THREAD_CACHE_SIZE ) {
+                cache.push( buffer );
+                return;
+            }
+        }
+
+        _classes[index].offer( buffer );
+    }
+
+    /**
+     * @return how many times acquire() was able to reuse a buffer
+     */
+    long getHits() { return _hits.sum(); }
+
+    /**
+     * @return how many times acquire() had to allocate a new buffer
+     */
+    long getMisses() { return _misses.sum(); }
+
+    /**
+     * @return the number of buffers handed out and not released yet
+     */
+    long getOutstanding() { return _outstanding.sum(); }
+
+    private static int classIndex( int size ) {
+
+        if( size <= MIN_SIZE ) {
+            return 0;
+        }
+
+        // Round up to the next power of two
+        int shift = 32 - Integer.numberOfLeadingZeros( size - 1 );
+
+        return shift - Integer.numberOfTrailingZeros( MIN_SIZE );
+    }
+
+    /**
+     * The shared pool for one size class
+     */
+    private static class SizeClass {
+
+        private final int _size;
+        private final int _maxPooled;
+
+        private final Queue<ByteBuffer> _buffers = new ConcurrentLinkedQueue<>();
+
+        // ConcurrentLinkedQueue.size() walks the whole queue, so keep our own count
+        private final AtomicInteger _count = new AtomicInteger();
+
+        SizeClass( int size, int maxPooled ) {
+            _size = size;
+            _maxPooled = maxPooled;
+        }
+
+        ByteBuffer poll() {
+
+            ByteBuffer buffer = _buffers.poll();
+
+            if( null != buffer ) {
+                _count.decrementAndGet();
+            }
+
+            return buffer;
+        }
+
+        void offer( ByteBuffer buffer ) {
+
+            if( _count.incrementAndGet() > _maxPooled ) {
+                _count.decrementAndGet();
+                return;
+            }
+
+            _buffers.offer( buffer );
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This is a compact cache key for keys that come in off the network.
+ * It holds the raw bytes of the key and their hash, which is worked out
+ * once up front. The key is its own raw key (getKey() returns this), so
+ * the storage maps hold just this object and the byte array, rather
+ * than a wrapper, a String and the String's characters.
+ *
+ * Two keys are equal when their bytes are.
+ */
+public final class ByteArrayKey implements ICacheKey {
+
+    private final byte[] _bytes;
+    private final int _hash;
+
+    /**
+     * @param bytes the key's bytes, which belong to the key from now on
+     */
+    ByteArrayKey( byte[] bytes ) {
+        _bytes = bytes;
+        _hash = Arrays.hashCode( bytes );
+    }
+
+    ByteArrayKey( String key ) { this( key.getBytes( StandardCharsets.UTF_8 ) ); }
+
+    @Override
+    public Object getKey() { return this; }
+
+    /**
+     * @return the key's bytes (don't change them)
+     */
+    public byte[] getBytes() { return _bytes; }
+
+    @Override
+    public int hashCode() { return _hash; }
+
+    @Override
+    public boolean equals( Object other ) {
+
+        if( this == other ) {
+            return true;
+        }
+
+        if( !(other instanceof ByteArrayKey) ) {
+            return false;
+        }
+
+        ByteArrayKey key = (ByteArrayKey) other;
+
+        return _hash == key._hash && Arrays.equals( _bytes, key._bytes );
+    }
+
+    @Override
+    public String toString() { return new String( _bytes, StandardCharsets.UTF_8 ); }
+}
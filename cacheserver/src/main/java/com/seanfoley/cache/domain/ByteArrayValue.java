@@ -0,0 +1,56 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This is a compact cache value for values that come in off the network.
+ * It holds the raw bytes, which the ResponseFormatter writes back to the
+ * socket as they are (no String to decode or encode on the way).
+ *
+ * The value can't be changed once it's created, since the same bytes
+ * can be going out to several clients at once.
+ */
+public final class ByteArrayValue implements ICacheValue {
+
+    private final byte[] _value;
+
+    /**
+     * @param value the value's bytes, which belong to the value from now on
+     */
+    ByteArrayValue( byte[] value ) { _value = value; }
+
+    ByteArrayValue( String value ) { this( value.getBytes( StandardCharsets.UTF_8 ) ); }
+
+    @Override
+    public void setValue( Object value ) {
+        throw new UnsupportedOperationException( "a ByteArrayValue can't be changed" );
+    }
+
+    /**
+     * @return the value's bytes (don't change them)
+     */
+    @Override
+    public Object getValue() { return _value; }
+
+    @Override
+    public String toString() { return new String( _value, StandardCharsets.UTF_8 ); }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+/**
+ * The CacheEntrySizer estimates how much heap a cache entry takes up:
+ * the key, the value and the bookkeeping around them (the hash map
+ * entry, the value wrapper, etc.). The storage uses the estimate to
+ * stay under a byte budget.
+ *
+ * The numbers assume a 64-bit JVM with compressed references, where
+ * objects have a 12 byte header and are padded to 8 bytes. Strings are
+ * counted at 2 bytes a character (newer JVMs often get away with 1), so
+ * the estimate errs on the high side. Types we don't know about are
+ * counted as a small object.
+ */
+final class CacheEntrySizer {
+
+    // A hash map entry (header, hash, key, value, next, before/after
+    // links for LinkedHashMap) plus its slot in the table
+    static final int ENTRY_OVERHEAD = 56;
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+
+    // The String object itself (header, value array reference, hash, coder)
+    private static final int STRING_OVERHEAD = 24;
+
+    // The CacheValue (or ByteArrayValue) wrapper (header and the value reference)
+    private static final int VALUE_WRAPPER = 16;
+
+    // The ByteArrayKey object itself (header, bytes reference, hash)
+    private static final int BYTE_ARRAY_KEY_OVERHEAD = 24;
+
+    private static final int SMALL_OBJECT = 16;
+
+    private CacheEntrySizer() {}
+
+    /**
+     * @param key the raw key (i.e. ICacheKey.getKey())
+     * @param value the cache value
+     * @return the estimated size of the entry in bytes
+     */
+    static long sizeOf( Object key, ICacheValue value ) {
+
+        long size = ENTRY_OVERHEAD + sizeOf( key );
+
+        if( null != value ) {
+            size += VALUE_WRAPPER + sizeOf( value.getValue() );
+        }
+
+        return size;
+    }
+
+    /**
+     * @param object a key or value
+     * @return the estimated size of the object in bytes
+     */
+    static long sizeOf( Object object ) {
+
+        if( null == object ) {
+            return 0;
+        }
+
+        if( object instanceof String ) {
+            return STRING_OVERHEAD + align( ARRAY_HEADER + 2L * ((String) object).length() );
+        }
+
+        if( object instanceof byte[] ) {
+            return align( ARRAY_HEADER + ((byte[]) object).length );
+        }
+
+        if( object instanceof ByteArrayKey ) {
+            return BYTE_ARRAY_KEY_OVERHEAD + align( ARRAY_HEADER + ((ByteArrayKey) object).getBytes().length );
+        }
+
+        if( object instanceof Long || object instanceof Double ) {
+            return align( OBJECT_HEADER + 8 );
+        }
+
+        return SMALL_OBJECT;
+    }
+
+    private static long align( long size ) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -30,6 +30,9 @@ public class CacheKey implements ICacheKey {
 
     CacheKey(String key) { _key = key; }
 
+    // For keys that come back out of a storage
+    CacheKey(Object key) { _key = key; }
+
     @Override
     public Object getKey() { return _key; }
 }
@@ -0,0 +1,52 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheLease;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+/**
+ * This is a simple container class for the answer to a lease get.
+ */
+public class CacheLease implements ICacheLease {
+
+    private final Status _status;
+    private final ICacheValue _value;
+    private final long _token;
+
+    private CacheLease( Status status, ICacheValue value, long token ) {
+        _status = status;
+        _value = value;
+        _token = token;
+    }
+
+    static CacheLease hit( ICacheValue value ) { return new CacheLease( Status.Hit, value, 0 ); }
+
+    static CacheLease granted( long token ) { return new CacheLease( Status.Granted, null, token ); }
+
+    static CacheLease waitFor( ICacheValue stale ) { return new CacheLease( Status.Wait, stale, 0 ); }
+
+    @Override
+    public Status getStatus() { return _status; }
+
+    @Override
+    public ICacheValue getValue() { return _value; }
+
+    @Override
+    public long getToken() { return _token; }
+}
@@ -18,10 +18,28 @@
 package com.seanfoley.cache.domain;
 
 import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheLease;
 import com.seanfoley.cache.interfaces.ICacheManager;
 import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheStorageProvider;
 import com.seanfoley.cache.interfaces.ICacheValue;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
 
 /**
  *
@@ -29,6 +47,38 @@ import com.seanfoley.cache.interfaces.ICacheValue;
  * to be used as the top-level object by dependent clients.  It
  * provides the basic methods to add/get/remove items to/from the cache.
  *
+ * Items can be given a time to live. The expirations are kept here
+ * rather than in the storage, in a TimerWheel plus a map from key to
+ * timer, so every kind of storage gets them. A get() checks the key's
+ * deadline and never returns an expired value, and a background task
+ * removes expired items a bounded batch at a time so they don't sit
+ * around until LRU pressure pushes them out.
+ *
+ * Callers that say how long a value takes to rebuild can be told to
+ * refresh it early (see shouldRefresh()), so a popular key that expires
+ * doesn't send every client to the database at once.
+ *
+ * A miss through getLease() hands the first caller a lease to fill the
+ * key, and tells everyone after it to wait (memcached style leases), so
+ * only one caller goes to the origin. Adding or removing the key voids
+ * the lease. Leases that are never used run out after a while.
+ *
+ * Adds and removes can be recorded in an append-only OperationLog that
+ * is replayed on startup (expirations aren't logged, the adds carry
+ * their deadlines).
+ *
+ * Adds, removes, expirations and leases of the same key are serialized
+ * on a striped lock so a timer always belongs to the value in the
+ * storage, and a lease is only good for the miss it was handed out for.
+ * A cache from SingleOwner() is only ever used by one thread, so it
+ * skips the locks.
+ *
+ * Besides the process-wide cache from Instance(), there can be any
+ * number of named caches (namespaces, see Namespace()). Each has its
+ * own storage, capacity, eviction policy, locks and timers, so one
+ * tenant filling or scanning its namespace can't evict another's
+ * items or hold up its adds.
+ *
  */
 public class CacheManager implements ICacheManager {
 
@@ -41,16 +91,142 @@ public class CacheManager implements ICacheManager {
 
     private static CacheManager _instance = null;
 
+    // What Instance() returns is also the default namespace
+    public static final String DEFAULT_NAMESPACE = "default";
+
+    // The namespaces by name, including the default once there is one
+    private static final ConcurrentHashMap<String, CacheManager> _namespaces = new ConcurrentHashMap<>();
+
+    // The timer wheel's tick, the most items a tick expires, and the key lock stripes
+    private static final long TICK_MILLIS = 10;
+    private static final int EXPIRE_BATCH = 1000;
+    private static final int LOCKS = 64;
+
+    // A monotonic clock (wall-clock time can jump)
+    private static final LongSupplier MILLIS = () -> System.nanoTime() / 1000000;
+
+    // Uniform in (0, 1]
+    private static final DoubleSupplier RANDOM = () -> 1.0 - ThreadLocalRandom.current().nextDouble();
+
+    // XFetch's beta: above 1 refreshes earlier, below 1 later
+    private static final double REFRESH_BETA = 1.0;
+
+    private final LongSupplier _clock;
+    private final DoubleSupplier _random;
+
+    // Guarded by _wheelLock
+    private final TimerWheel _wheel;
+    private final Lock _wheelLock;
+
+    // Only one thread uses this cache, so the key and timer locks are skipped
+    private final boolean _singleOwner;
+
+    // The keys that have a time to live
+    private final ConcurrentHashMap<Object, TimerWheel.Timer> _timers = new ConcurrentHashMap<>();
+
+    private final Lock[] _locks = new Lock[LOCKS];
+
+    // How long a caller has to fill a key it holds the lease for
+    private static final long LEASE_MILLIS = 10000;
+
+    // The keys someone holds the lease for
+    private final ConcurrentHashMap<Object, Lease> _leases = new ConcurrentHashMap<>();
+
+    private final AtomicLong _lastLeaseToken = new AtomicLong();
+
+    // When expire() next throws out unused leases (guarded by _wheelLock)
+    private long _nextLeaseSweepMillis = 0;
+
+    // One snapshot at a time
+    private final Object _snapshotLock = new Object();
+
+    // Where adds and removes are logged, null if they aren't
+    private volatile OperationLog _log = null;
+
+    // Rewrites the log when it gets big (guarded by _snapshotLock)
+    private ScheduledExecutorService _logRewriter = null;
+
+    // How often we check whether the log needs rewriting
+    private static final long LOG_REWRITE_CHECK_SECONDS = 10;
+
+    /**
+     * The storage implementations that come with the cacheserver. Others
+     * can be plugged in, see ICacheStorageProvider and CacheStorageProviders.
+     */
+    public enum StorageType implements ICacheStorageProvider {
+
+        // Striped LRU segments (the default)
+        Lru( "lru" ),
+
+        // A lock-free for readers CLOCK approximation of LRU
+        Clock( "clock" ),
+
+        // W-TinyLFU, which keeps scans from flushing out the hot items
+        TinyLfu( "tinylfu" ),
+
+        // Off-heap slabs, so the items never slow down the GC
+        Slab( "slab" ),
+
+        // Memory-mapped segment files, for caches bigger than RAM
+        MappedFile( "mapped" ),
+
+        // A small on-heap LRU in front of off-heap slabs
+        Tiered( "tiered" );
+
+        private final String _name;
+
+        StorageType( String name ) { _name = name; }
+
+        @Override
+        public String getName() { return _name; }
+
+        @Override
+        public ICacheStorage create( int capacity, long maxBytes, File directory ) {
+            return createStorage( this, capacity, maxBytes, directory );
+        }
+    }
+
     public static ICacheManager Instance(int capacity ) {
+        return Instance( StorageType.Lru, capacity, Long.MAX_VALUE );
+    }
+
+    /**
+     * Gets the cache, creating it with the given storage if this is the
+     * first call. Later calls get the same cache whatever they ask for.
+     * @param storage the kind of storage to create
+     * @param capacity the number of items the cache holds
+     * @param maxBytes the (estimated) bytes the items can take up. The LRU
+     *                 storage enforces this and the slab storage allocates
+     *                 this much off-heap memory; the others just report
+     *                 their bytes used.
+     * @return the cache
+     */
+    public static ICacheManager Instance(ICacheStorageProvider storage, int capacity, long maxBytes ) {
+        return Instance( storage, capacity, maxBytes, new File( System.getProperty( "java.io.tmpdir" ), "cacheserver" ) );
+    }
+
+    /**
+     * Gets the cache, creating it with the given storage if this is the
+     * first call. Later calls get the same cache whatever they ask for.
+     * @param storage the kind of storage to create
+     * @param capacity the number of items the cache holds
+     * @param maxBytes the (estimated) bytes the items can take up (the
+     *                 disk space for the mapped file storage, or the cold
+     *                 tier's off-heap memory for the tiered storage)
+     * @param directory where the mapped file storage puts its files
+     * @return the cache
+     */
+    public static ICacheManager Instance(ICacheStorageProvider storage, int capacity, long maxBytes, File directory ) {
 
-        // If we were using the concept of a namespace/cache
-        // association we would want to create a cache-per-namespace.
-        // But for our current implementation, we only have a global
-        // cache, so it's important that we only ever return one
-        // instance for the host process regardless of the thread-context.
+        // The other namespaces are created with Namespace(), but the
+        // default one is global, so it's important that we only ever
+        // return one instance for the host process regardless of the
+        // thread-context.
         synchronized (CacheManager.class) {
             if (null == _instance) {
-                _instance = new CacheManager(capacity);
+                _instance = new CacheManager( storage.create( capacity, maxBytes, directory ) );
+                _instance.startExpiring();
+                _namespaces.put( DEFAULT_NAMESPACE, _instance );
             }
         }
 
@@ -58,15 +234,156 @@ public class CacheManager implements ICacheManager {
     }
 
     /**
-     * CacheManager C-tor used to specify the capacity of
-     * the cache.
-     * @param itemCapacityCount the number of items/elements that the cache
-     *                          will store before the Least Recently Used (LRU)
-     *                          algorithm kicks in.
+     * Gets a named cache, creating it with the given storage if this is
+     * the first call for the name. Later calls get the same cache
+     * whatever they ask for. The name "default" is the cache Instance()
+     * returns.
+     * @param name the namespace
+     * @param storage the kind of storage to create
+     * @param capacity the number of items the namespace holds
+     * @param maxBytes the (estimated) bytes its items can take up (see Instance())
+     * @param directory where the mapped file storage puts its files
+     *                  (each namespace needs a directory of its own)
+     * @return the namespace's cache
      */
-    private CacheManager( int itemCapacityCount ) {
+    public static ICacheManager Namespace(String name, ICacheStorageProvider storage, int capacity, long maxBytes, File directory ) {
+
+        if( null == name || name.isEmpty() || name.indexOf( ' ' ) >= 0 ) {
+            throw new IllegalArgumentException( "a namespace needs a name without spaces" );
+        }
 
-        _storage = new LinkedHashMapCacheStorage( itemCapacityCount );
+        if( DEFAULT_NAMESPACE.equals( name ) ) {
+            return Instance( storage, capacity, maxBytes, directory );
+        }
+
+        return _namespaces.computeIfAbsent( name, unused -> {
+            CacheManager cache = new CacheManager( storage.create( capacity, maxBytes, directory ) );
+            cache.startExpiring();
+            return cache;
+        });
+    }
+
+    /**
+     * @param name the namespace
+     * @return the namespace's cache, or null if it hasn't been created
+     */
+    public static ICacheManager Namespace(String name ) {
+        return null == name ? null : _namespaces.get( name );
+    }
+
+    private static ICacheStorage createStorage( StorageType storageType, int capacity, long maxBytes, File directory ) {
+
+        switch( storageType )
+        {
+            case Clock:
+                return new ClockCacheStorage( capacity );
+
+            case TinyLfu:
+                // 16 frequency counters per item, aged every 10 x capacity adds.
+                final long SKETCH_BYTES = (long) capacity * Long.BYTES;
+                final int AGING_PERIOD = (int) Math.min( Integer.MAX_VALUE, capacity * 10L );
+
+                return new TinyLfuCacheStorage( capacity, SKETCH_BYTES, AGING_PERIOD );
+
+            case Slab:
+                return new SlabCacheStorage( capacity, maxBytes );
+
+            case MappedFile:
+                // 64 MB segments (smaller for a small cache so there are a few
+                // of them), compacted once they're half dead.
+                final int SEGMENT_SIZE = (int) Math.min( 64 << 20, maxBytes / 8 );
+                final double COMPACTION_THRESHOLD = 0.5;
+
+                return new MappedFileCacheStorage( directory, capacity, maxBytes, SEGMENT_SIZE, COMPACTION_THRESHOLD );
+
+            case Tiered:
+                // The hot tier gets a tenth of the items and bytes of the cold tier
+                final int HOT_ITEMS = Math.max( 1, capacity / 10 );
+                final long HOT_BYTES = Math.max( 1, maxBytes / 10 );
+                final int HOT_SEGMENTS = Runtime.getRuntime().availableProcessors() * 4;
+
+                return new TieredCacheStorage( HOT_ITEMS, HOT_BYTES, HOT_SEGMENTS, new SlabCacheStorage( capacity, maxBytes ) );
+
+            case Lru:
+            default:
+                // Plenty of segments per core so two busy threads rarely
+                // land on the same one.
+                final int SEGMENTS = Runtime.getRuntime().availableProcessors() * 4;
+
+                return new StripedLruCacheStorage( capacity, maxBytes, SEGMENTS );
+        }
+    }
+
+    /**
+     * CacheManager C-tor used to specify where the items are stored
+     * @param storage the storage implementation (which decides the
+     *                capacity and eviction policy)
+     */
+    CacheManager( ICacheStorage storage ) { this( storage, MILLIS ); }
+
+    /**
+     * Expired items are only removed in the background once
+     * startExpiring() is called (or by calling expire()).
+     * @param storage the storage implementation
+     * @param clock the current time in milliseconds
+     */
+    CacheManager( ICacheStorage storage, LongSupplier clock ) { this( storage, clock, RANDOM ); }
+
+    /**
+     * @param storage the storage implementation
+     * @param clock the current time in milliseconds
+     * @param random numbers in (0, 1] for deciding on early refreshes
+     */
+    CacheManager( ICacheStorage storage, LongSupplier clock, DoubleSupplier random ) {
+        this( storage, clock, random, false );
+    }
+
+    /**
+     * @param storage the storage implementation
+     * @param clock the current time in milliseconds
+     * @param random numbers in (0, 1] for deciding on early refreshes
+     * @param singleOwner true if only one thread ever uses this cache, in
+     *                    which case nothing is locked (see SingleOwner())
+     */
+    CacheManager( ICacheStorage storage, LongSupplier clock, DoubleSupplier random, boolean singleOwner ) {
+
+        _storage = storage;
+        _clock = clock;
+        _random = random;
+        _wheel = new TimerWheel( TICK_MILLIS, clock.getAsLong() );
+        _wheelLock = new ReentrantLock();
+        _singleOwner = singleOwner;
+
+        for( int i = 0; i < LOCKS; i++ ) {
+            _locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * A cache that only one thread ever touches (a partition of the
+     * TcpSocketServerPartitioned), so it skips the key and timer locks.
+     * The storage doesn't need to be thread-safe either. Nothing runs in
+     * the background: the owner calls expire() itself, and there's no
+     * operation log.
+     * @param storage the storage implementation
+     * @return the cache
+     */
+    static CacheManager SingleOwner( ICacheStorage storage ) {
+        return new CacheManager( storage, MILLIS, RANDOM, true );
+    }
+
+    /**
+     * Starts a daemon thread that removes expired items every tick
+     */
+    private void startExpiring() {
+
+        ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "cacheserver-expirer" );
+            thread.setDaemon( true );
+            return thread;
+        });
+
+        expirer.scheduleWithFixedDelay( this::expire, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS );
     }
 
     /**
@@ -79,7 +396,90 @@ public class CacheManager implements ICacheManager {
      */
     @Override
     public boolean add(ICacheKey key, ICacheValue value) {
-        return _storage.add(key, value);
+
+        Object k = key.getKey();
+
+        boolean added;
+        long logged = 0;
+
+        Lock lock = lockFor( k );
+        lock( lock );
+        try {
+
+            voidLease( k );
+
+            added = _storage.add(key, value);
+
+            // Logged under the key's lock so the log has the same order
+            if( added ) {
+
+                // The new value lives until it's evicted. A rejected add
+                // leaves the old value, so it keeps its timer
+                TimerWheel.Timer timer = _timers.remove( k );
+
+                if( null != timer ) {
+                    cancel( timer );
+                }
+
+                logged = logAdd( key, value, 0 );
+            }
+        }
+        finally {
+            unlock( lock );
+        }
+
+        return awaitLog( logged ) && added;
+    }
+
+    /**
+     * Adds a key/value pair to the cache that expires after a while.
+     * If the key already exists, the value and time to live are
+     * replaced with these.
+     * @param key The key to use for the cache item
+     * @param value The value of the item to be cached
+     * @param ttlMillis How long the item lives, in milliseconds
+     * @return true if the key/value was added (or updated)
+     */
+    @Override
+    public boolean add(ICacheKey key, ICacheValue value, long ttlMillis) {
+
+        if( ttlMillis <= 0 ) {
+            throw new IllegalArgumentException( "the time to live must be positive" );
+        }
+
+        Object k = key.getKey();
+
+        long deadline = _clock.getAsLong() + Math.min( ttlMillis, Long.MAX_VALUE / 2 );
+
+        long logged;
+
+        Lock lock = lockFor( k );
+        lock( lock );
+        try {
+
+            voidLease( k );
+
+            if( !_storage.add(key, value) ) {
+                return false;
+            }
+
+            TimerWheel.Timer timer = _timers.remove( k );
+
+            if( null != timer ) {
+                cancel( timer );
+            }
+
+            timer = schedule( k, deadline );
+
+            _timers.put( k, timer );
+
+            logged = logAdd( key, value, ttlMillis );
+        }
+        finally {
+            unlock( lock );
+        }
+
+        return awaitLog( logged );
     }
 
     /**
@@ -89,7 +489,169 @@ public class CacheManager implements ICacheManager {
      */
     @Override
     public ICacheValue get(ICacheKey key) {
-        return _storage.get(key);
+        return unlessExpired( key, _storage.get(key) );
+    }
+
+    /**
+     * Gets the value from the cache, or a lease to fill the key on a miss.
+     * @param key The key to use for the cache lookup
+     * @return The value, the lease, or an instruction to wait
+     */
+    @Override
+    public ICacheLease getLease(ICacheKey key) {
+
+        ICacheValue stored = _storage.get(key);
+        ICacheValue value = unlessExpired( key, stored );
+
+        if( null != value ) {
+            return CacheLease.hit( value );
+        }
+
+        // The value that just expired, if that's why we missed
+        ICacheValue stale = stored;
+
+        Object k = key.getKey();
+
+        Lock lock = lockFor( k );
+        lock( lock );
+        try {
+
+            // It may have been filled while we weren't looking
+            value = get(key);
+
+            if( null != value ) {
+                return CacheLease.hit( value );
+            }
+
+            long now = _clock.getAsLong();
+
+            Lease lease = _leases.get( k );
+
+            if( null != lease && now < lease._expiresMillis ) {
+                return CacheLease.waitFor( lease._stale );
+            }
+
+            // Nobody has it, or the last holder gave up
+            if( null == stale && null != lease ) {
+                stale = lease._stale;
+            }
+
+            lease = new Lease( _lastLeaseToken.incrementAndGet(), now + LEASE_MILLIS, stale );
+            _leases.put( k, lease );
+
+            return CacheLease.granted( lease._token );
+        }
+        finally {
+            unlock( lock );
+        }
+    }
+
+    /**
+     * Fills a key the caller holds the lease for.
+     * @param key The key from getLease()
+     * @param value The value of the item to be cached
+     * @param token The token from getLease()
+     * @param ttlMillis How long the item lives in milliseconds, or 0
+     *                  for as long as the cache keeps it
+     * @return true if the lease was good and the item was added
+     */
+    @Override
+    public boolean addLease(ICacheKey key, ICacheValue value, long token, long ttlMillis) {
+
+        if( ttlMillis < 0 ) {
+            throw new IllegalArgumentException( "the time to live can't be negative" );
+        }
+
+        Object k = key.getKey();
+
+        Lock lock = lockFor( k );
+        lock( lock );
+        try {
+
+            Lease lease = _leases.get( k );
+
+            // A lease that ran out is still good if nobody else got one since
+            if( null == lease || lease._token != token ) {
+                return false;
+            }
+
+            return ttlMillis > 0 ? add(key, value, ttlMillis) : add(key, value);
+        }
+        finally {
+            unlock( lock );
+        }
+    }
+
+    /**
+     * @return the value, or null if the key's time to live has run out
+     * (in which case the item is removed)
+     */
+    private ICacheValue unlessExpired(ICacheKey key, ICacheValue value) {
+
+        // Skip the lookup when nothing has a time to live
+        if( null == value || _timers.isEmpty() ) {
+            return value;
+        }
+
+        Object k = key.getKey();
+
+        TimerWheel.Timer timer = _timers.get( k );
+
+        if( null == timer || _clock.getAsLong() < timer.getDeadlineMillis() ) {
+            return value;
+        }
+
+        // The value we read has expired, whether or not someone has
+        // replaced it since; don't wait for the background task
+        Lock lock = lockFor( k );
+        lock( lock );
+        try {
+            if( _timers.remove( k, timer ) ) {
+                cancel( timer );
+                _storage.remove( key );
+            }
+        }
+        finally {
+            unlock( lock );
+        }
+
+        return null;
+    }
+
+    /**
+     * Probabilistic early expiration (XFetch, Vattani et al.): a caller
+     * is picked when now - recompute * beta * ln(random) reaches the
+     * deadline. The chance is tiny while the deadline is far off and
+     * climbs towards certainty as it gets within a few recompute times,
+     * so with many callers one of them gets picked shortly before the
+     * item expires, and the rest keep getting the cached value.
+     *
+     * Whoever is picked has recomputeMillis to add the new value before
+     * someone else can be picked. Adding it replaces the timer, which
+     * starts the whole thing over.
+     * @param key The key the caller got
+     * @param recomputeMillis About how long it takes to rebuild the value
+     * @return true if this caller should rebuild the value
+     */
+    @Override
+    public boolean shouldRefresh(ICacheKey key, long recomputeMillis) {
+
+        if( recomputeMillis <= 0 || _timers.isEmpty() ) {
+            return false;
+        }
+
+        TimerWheel.Timer timer = _timers.get( key.getKey() );
+
+        // It lives until it's evicted, so there's nothing to get ahead of
+        if( null == timer ) {
+            return false;
+        }
+
+        long now = _clock.getAsLong();
+
+        double early = -recomputeMillis * REFRESH_BETA * Math.log( _random.getAsDouble() );
+
+        return now + early >= timer.getDeadlineMillis() && timer.grantRefresh( now, recomputeMillis );
     }
 
     /**
@@ -99,6 +661,346 @@ public class CacheManager implements ICacheManager {
      */
     @Override
     public boolean remove(ICacheKey key) {
-        return _storage.remove(key);
+
+        Object k = key.getKey();
+
+        boolean removed;
+        long logged = 0;
+
+        Lock lock = lockFor( k );
+        lock( lock );
+        try {
+
+            voidLease( k );
+
+            TimerWheel.Timer timer = _timers.remove( k );
+
+            if( null != timer ) {
+                cancel( timer );
+            }
+
+            removed = _storage.remove(key);
+
+            if( removed ) {
+                logged = logRemove( key );
+            }
+        }
+        finally {
+            unlock( lock );
+        }
+
+        return awaitLog( logged ) && removed;
+    }
+
+    /**
+     * Writes a snapshot of the cache. Each item's time to live is
+     * written as the time it has left.
+     * @param file The snapshot file
+     * @return The number of items written
+     * @throws IOException if the snapshot can't be written
+     */
+    @Override
+    public long snapshot(File file) throws IOException {
+
+        synchronized( _snapshotLock ) {
+
+            return new CacheSnapshot( file ).write( this::forEachItem );
+        }
+    }
+
+    /**
+     * Loads a snapshot, adding the items to the cache
+     * @param file The snapshot file
+     * @param threads How many threads load the snapshot
+     * @return The number of items loaded
+     * @throws IOException if the snapshot can't be read
+     */
+    @Override
+    public long restore(File file, int threads) throws IOException {
+
+        return new CacheSnapshot( file ).load( threads, (key, value, ttlMillis) -> {
+
+            if( 0 == ttlMillis ) {
+                add( key, value );
+            }
+            else {
+                add( key, value, ttlMillis );
+            }
+        });
+    }
+
+    /**
+     * Replays the log and starts logging adds and removes to it
+     * @param file The log file (created if it isn't there)
+     * @param policy When the log is synced to disk
+     * @param fsyncMillis How often the log is synced with the Periodic policy
+     * @return The number of operations replayed
+     * @throws IOException if the log can't be read or opened
+     */
+    @Override
+    public long startLog(File file, FsyncPolicy policy, long fsyncMillis) throws IOException {
+
+        synchronized( _snapshotLock ) {
+
+            if( null != _log ) {
+                throw new IllegalStateException( "the cache is already logging to a file" );
+            }
+
+            // Nothing is logged yet, so the replay isn't logged again
+            long replayed = OperationLog.replay( file, System::currentTimeMillis, new OperationLog.Target() {
+
+                @Override
+                public void add(ICacheKey key, ICacheValue value, long ttlMillis) {
+
+                    if( 0 == ttlMillis ) {
+                        CacheManager.this.add( key, value );
+                    }
+                    else {
+                        CacheManager.this.add( key, value, ttlMillis );
+                    }
+                }
+
+                @Override
+                public void remove(ICacheKey key) {
+                    CacheManager.this.remove( key );
+                }
+            });
+
+            OperationLog log = new OperationLog( file, policy, fsyncMillis );
+
+            _logRewriter = Executors.newSingleThreadScheduledExecutor( runnable -> {
+                Thread thread = new Thread( runnable, "cacheserver-log-rewriter" );
+                thread.setDaemon( true );
+                return thread;
+            });
+
+            _logRewriter.scheduleWithFixedDelay( () -> {
+                try {
+                    if( log.needsRewrite() ) {
+                        log.rewrite( this::forEachItem );
+                    }
+                }
+                catch (IOException exception) {
+                    exception.printStackTrace();
+                }
+            }, LOG_REWRITE_CHECK_SECONDS, LOG_REWRITE_CHECK_SECONDS, TimeUnit.SECONDS );
+
+            _log = log;
+
+            return replayed;
+        }
+    }
+
+    /**
+     * Writes out and syncs whatever the log has queued, and stops logging
+     */
+    @Override
+    public void stopLog() {
+
+        synchronized( _snapshotLock ) {
+
+            OperationLog log = _log;
+
+            if( null == log ) {
+                return;
+            }
+
+            _log = null;
+            _logRewriter.shutdownNow();
+
+            log.close();
+        }
+    }
+
+    /**
+     * @return the log, for the tests (null if there isn't one)
+     */
+    OperationLog log() { return _log; }
+
+    /**
+     * Calls the sink for each item that hasn't expired, with the time it has left
+     */
+    private void forEachItem( CacheSnapshot.Sink sink ) {
+
+        long now = _clock.getAsLong();
+
+        _storage.forEach( (key, value) -> {
+
+            TimerWheel.Timer timer = _timers.get( key.getKey() );
+
+            if( null == timer ) {
+                sink.add( key, value, 0 );
+            }
+            else if( timer.getDeadlineMillis() > now ) {
+                sink.add( key, value, timer.getDeadlineMillis() - now );
+            }
+        });
+    }
+
+    private long logAdd( ICacheKey key, ICacheValue value, long ttlMillis ) {
+
+        OperationLog log = _log;
+
+        return null == log ? 0 : log.add( key, value, ttlMillis );
+    }
+
+    private long logRemove( ICacheKey key ) {
+
+        OperationLog log = _log;
+
+        return null == log ? 0 : log.remove( key );
+    }
+
+    /**
+     * Waits (outside the key's lock) for the log to be synced if the policy says so
+     * @return false if the log lost the record
+     */
+    private boolean awaitLog( long sequence ) {
+
+        OperationLog log = _log;
+
+        return 0 == sequence || null == log || log.await( sequence );
+    }
+
+    /**
+     * Removes a batch of items whose time to live has run out. The
+     * background task calls this every tick.
+     * @return the number of items removed
+     */
+    int expire() {
+
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+
+        long now = _clock.getAsLong();
+        boolean sweepLeases;
+
+        lock( _wheelLock );
+        try {
+            _wheel.advance( now, EXPIRE_BATCH, expired );
+
+            sweepLeases = now >= _nextLeaseSweepMillis;
+
+            if( sweepLeases ) {
+                _nextLeaseSweepMillis = now + LEASE_MILLIS;
+            }
+        }
+        finally {
+            unlock( _wheelLock );
+        }
+
+        // Callers that got a lease and never came back; there are only
+        // ever as many leases as misses in flight, so a scan is fine
+        if( sweepLeases && !_leases.isEmpty() ) {
+            for( Map.Entry<Object, Lease> entry : _leases.entrySet() ) {
+                if( now >= entry.getValue()._expiresMillis ) {
+                    _leases.remove( entry.getKey(), entry.getValue() );
+                }
+            }
+        }
+
+        int removed = 0;
+
+        for( TimerWheel.Timer timer : expired ) {
+
+            Object k = timer.getKey();
+
+            Lock lock = lockFor( k );
+            lock( lock );
+            try {
+
+                // Unless the key was added again in the meantime
+                if( _timers.remove( k, timer ) ) {
+                    _storage.remove( new CacheKey( k ) );
+                    removed++;
+                }
+            }
+            finally {
+                unlock( lock );
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * @return the number of items with a time to live
+     */
+    int expiringCount() { return _timers.size(); }
+
+    /**
+     * @return the number of outstanding leases
+     */
+    int leaseCount() { return _leases.size(); }
+
+    /**
+     * Whoever holds the lease is too late; the key has been added or removed
+     */
+    private void voidLease( Object key ) {
+
+        if( !_leases.isEmpty() ) {
+            _leases.remove( key );
+        }
+    }
+
+    private TimerWheel.Timer schedule( Object key, long deadline ) {
+
+        lock( _wheelLock );
+        try {
+            return _wheel.schedule( key, deadline );
+        }
+        finally {
+            unlock( _wheelLock );
+        }
+    }
+
+    private void cancel( TimerWheel.Timer timer ) {
+
+        lock( _wheelLock );
+        try {
+            _wheel.cancel( timer );
+        }
+        finally {
+            unlock( _wheelLock );
+        }
+    }
+
+    private void lock( Lock lock ) {
+
+        if( !_singleOwner ) {
+            lock.lock();
+        }
+    }
+
+    private void unlock( Lock lock ) {
+
+        if( !_singleOwner ) {
+            lock.unlock();
+        }
+    }
+
+    private Lock lockFor( Object key ) {
+
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+
+        return _locks[hash & (LOCKS - 1)];
+    }
+
+    /**
+     * Someone's right to fill a key that missed
+     */
+    private static final class Lease {
+
+        private final long _token;
+        private final long _expiresMillis;
+
+        // What the key held before it expired (if that's why it missed)
+        private final ICacheValue _stale;
+
+        Lease( long token, long expiresMillis, ICacheValue stale ) {
+            _token = token;
+            _expiresMillis = expiresMillis;
+            _stale = stale;
+        }
     }
 }
@@ -0,0 +1,239 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * How the cacheserver is set up: which network server and storage it
+ * runs, how big the cache is, and how many threads and how much buffer
+ * space it uses. The settings come from properties (a file, the command
+ * line or both) and anything that isn't set gets its default:
+ *
+ * server=async              async, reactor, partitioned or blocking
+ * port=5000                 the port to listen on
+ * threads=N                 the async server's completion threads, the
+ *                           reactor's event loops or the number of partitions
+ *                           (default: number of cores)
+ * buffer-size=4096          each connection's initial read buffer, in bytes
+ * timeout-seconds=20        how long a client can be idle before we hang up
+ * storage=lru               the storage's name, built in (lru, clock, tinylfu,
+ *                           slab, mapped, tiered) or an ICacheStorageProvider
+ * items=100000              the number of items the cache holds
+ * max-bytes=N               the (estimated) bytes the items can take up
+ *                           (default: half the heap)
+ * data-dir=PATH             where file based storages put their files
+ *                           (default: a cacheserver folder in the temp directory)
+ * snapshot=PATH             the snapshot file (default: no snapshots)
+ * snapshot-interval=300     seconds between snapshots
+ * log=PATH                  the operation log (default: no log)
+ * fsync=1000                always, never, or every N milliseconds
+ * namespace.NAME=STORAGE:ITEMS[:MAX_BYTES]
+ *                           a namespace besides the default one (max-bytes
+ *                           if MAX_BYTES isn't given)
+ *
+ * Bad values are an IllegalArgumentException, so a typo stops the
+ * server from starting rather than leaving it running with a default.
+ */
+public class CacheServerConfig {
+
+    private static final String NAMESPACE_PREFIX = "namespace.";
+
+    private static final Set<String> KEYS = new HashSet<>( Arrays.asList(
+            "server", "port", "threads", "buffer-size", "timeout-seconds", "storage", "items",
+            "max-bytes", "data-dir", "snapshot", "snapshot-interval", "log", "fsync" ) );
+
+    /**
+     * A namespace's settings (see CacheManager.Namespace())
+     */
+    public static final class Namespace {
+
+        private final String _name;
+        private final String _storage;
+        private final int _items;
+        private final long _maxBytes;
+
+        Namespace( String name, String storage, int items, long maxBytes ) {
+            _name = name;
+            _storage = storage;
+            _items = items;
+            _maxBytes = maxBytes;
+        }
+
+        public String getName() { return _name; }
+        public String getStorage() { return _storage; }
+        public int getItems() { return _items; }
+        public long getMaxBytes() { return _maxBytes; }
+    }
+
+    private final String _server;
+    private final int _port;
+    private final int _threads;
+    private final int _bufferSize;
+    private final int _timeoutSeconds;
+    private final String _storage;
+    private final int _items;
+    private final long _maxBytes;
+    private final File _dataDirectory;
+    private final File _snapshotFile;
+    private final long _snapshotSeconds;
+    private final File _logFile;
+    private final ICacheManager.FsyncPolicy _fsyncPolicy;
+    private final long _fsyncMillis;
+    private final List<Namespace> _namespaces = new ArrayList<>();
+    private final List<String> _unknownKeys = new ArrayList<>();
+
+    /**
+     * @param properties the settings, see above
+     */
+    public CacheServerConfig( Properties properties ) {
+
+        _server = properties.getProperty( "server", "async" );
+        _port = (int) number( properties, "port", 5000, 0, 65535 );
+        _threads = (int) number( properties, "threads", Runtime.getRuntime().availableProcessors(), 1, Integer.MAX_VALUE );
+        _bufferSize = (int) number( properties, "buffer-size", 4096, 1, BufferPool.MAX_SIZE );
+        _timeoutSeconds = (int) number( properties, "timeout-seconds", 20, 1, Integer.MAX_VALUE );
+        _storage = properties.getProperty( "storage", "lru" );
+        _items = (int) number( properties, "items", 100000, 1, Integer.MAX_VALUE );
+        _maxBytes = number( properties, "max-bytes", Runtime.getRuntime().maxMemory() / 2, 1, Long.MAX_VALUE );
+        _dataDirectory = new File( properties.getProperty( "data-dir",
+                new File( System.getProperty( "java.io.tmpdir" ), "cacheserver" ).getPath() ) );
+        _snapshotFile = file( properties, "snapshot" );
+        _snapshotSeconds = number( properties, "snapshot-interval", 300, 1, Long.MAX_VALUE );
+        _logFile = file( properties, "log" );
+
+        switch( properties.getProperty( "fsync", "" ) ) {
+            case "always":
+                _fsyncPolicy = ICacheManager.FsyncPolicy.Always;
+                _fsyncMillis = 0;
+                break;
+
+            case "never":
+                _fsyncPolicy = ICacheManager.FsyncPolicy.Never;
+                _fsyncMillis = 0;
+                break;
+
+            default:
+                _fsyncPolicy = ICacheManager.FsyncPolicy.Periodic;
+                _fsyncMillis = number( properties, "fsync", 1000, 1, Long.MAX_VALUE );
+        }
+
+        List<String> names = new ArrayList<>( properties.stringPropertyNames() );
+        Collections.sort( names );
+
+        for( String key : names ) {
+
+            if( key.startsWith( NAMESPACE_PREFIX ) ) {
+                _namespaces.add( namespace( key.substring( NAMESPACE_PREFIX.length() ), properties.getProperty( key ) ) );
+            }
+            else if( !KEYS.contains( key ) ) {
+                _unknownKeys.add( key );
+            }
+        }
+    }
+
+    public String getServer() { return _server; }
+    public int getPort() { return _port; }
+    public int getThreads() { return _threads; }
+    public int getBufferSize() { return _bufferSize; }
+    public int getTimeoutSeconds() { return _timeoutSeconds; }
+    public String getStorage() { return _storage; }
+    public int getItems() { return _items; }
+    public long getMaxBytes() { return _maxBytes; }
+    public File getDataDirectory() { return _dataDirectory; }
+    public File getSnapshotFile() { return _snapshotFile; }
+    public long getSnapshotSeconds() { return _snapshotSeconds; }
+    public File getLogFile() { return _logFile; }
+    public ICacheManager.FsyncPolicy getFsyncPolicy() { return _fsyncPolicy; }
+    public long getFsyncMillis() { return _fsyncMillis; }
+    public List<Namespace> getNamespaces() { return Collections.unmodifiableList( _namespaces ); }
+
+    /**
+     * @return the settings that were given but aren't used (likely typos)
+     */
+    public List<String> getUnknownKeys() { return Collections.unmodifiableList( _unknownKeys ); }
+
+    /**
+     * Parses STORAGE:ITEMS[:MAX_BYTES]
+     */
+    private Namespace namespace( String name, String value ) {
+
+        String[] parts = value.split( ":" );
+
+        if( name.isEmpty() || parts.length < 2 || parts.length > 3 ) {
+            throw new IllegalArgumentException( String.format(
+                    "bad namespace %s=%s (expected namespace.NAME=STORAGE:ITEMS[:MAX_BYTES])", name, value ) );
+        }
+
+        Properties settings = new Properties();
+        settings.setProperty( "items", parts[1] );
+
+        if( parts.length == 3 ) {
+            settings.setProperty( "max-bytes", parts[2] );
+        }
+
+        return new Namespace( name, parts[0],
+                (int) number( settings, "items", 0, 1, Integer.MAX_VALUE ),
+                number( settings, "max-bytes", _maxBytes, 1, Long.MAX_VALUE ) );
+    }
+
+    private static File file( Properties properties, String key ) {
+
+        String path = properties.getProperty( key );
+
+        return null == path || path.isEmpty() ? null : new File( path );
+    }
+
+    /**
+     * @return the setting, or the default if it isn't set
+     * @throws IllegalArgumentException if it isn't a number in [min, max]
+     */
+    private static long number( Properties properties, String key, long defaultValue, long min, long max ) {
+
+        String value = properties.getProperty( key );
+
+        if( null == value ) {
+            return defaultValue;
+        }
+
+        long number;
+
+        try {
+            number = Long.parseLong( value.trim() );
+        }
+        catch( NumberFormatException exception ) {
+            number = min - 1;
+        }
+
+        if( number < min || number > max ) {
+            throw new IllegalArgumentException( String.format(
+                    "bad %s: %s (expected a number from %d to %d)", key, value, min, max ) );
+        }
+
+        return number;
+    }
+}
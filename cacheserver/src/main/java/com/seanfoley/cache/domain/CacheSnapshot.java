@@ -0,0 +1,466 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+/**
+ * The CacheSnapshot writes the items in the cache to a file, and loads
+ * them back in when the server starts so it doesn't start cold.
+ *
+ * The file is a header, the items in blocks of about a megabyte, an
+ * index of where each block starts, and a footer that says where the
+ * index is (all big-endian):
+ *
+ * header: [magic][version][when it was written, wall-clock millis]
+ * block:  [length of the items][number of items][items]
+ * item:   [key type][key length][key][value type][value length][value]
+ *         [time left to live in millis, 0 if none]
+ * index:  [block offset] for each block
+ * footer: [number of blocks][index offset][magic]
+ *
+ * Keys and values are encoded with the ValueCodec. Items of other types
+ * are left out.
+ *
+ * A snapshot is written to a temporary file that replaces the old one
+ * once it's complete, so a crash part way through leaves the last good
+ * snapshot. The loader maps the file in chunks of whole blocks and
+ * loads the chunks on a pool of threads. Times to live are counted
+ * down from when the snapshot was written, and items whose time ran
+ * out are skipped.
+ */
+final class CacheSnapshot {
+
+    /**
+     * Where the items come from or go to
+     */
+    interface Sink {
+
+        /**
+         * @param key the item's key
+         * @param value the item's value
+         * @param ttlMillis how much longer the item lives, 0 if it doesn't expire
+         */
+        void add( ICacheKey key, ICacheValue value, long ttlMillis );
+    }
+
+    /**
+     * Something to take a snapshot of (e.g. the CacheManager)
+     */
+    interface Source {
+
+        /**
+         * Calls the sink for each item
+         */
+        void forEach( Sink sink );
+    }
+
+    private static final int MAGIC = 0x43534e50;  // CSNP
+    private static final int VERSION = 1;
+
+    private static final int HEADER = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int BLOCK_HEADER = Integer.BYTES + Integer.BYTES;
+    private static final int FOOTER = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    // The defaults for the block and chunk sizes
+    private static final int BLOCK_BYTES = 1 << 20;
+    private static final long CHUNK_BYTES = 64 << 20;
+
+    private final File _file;
+    private final int _blockBytes;
+    private final long _chunkBytes;
+    private final LongSupplier _wallClock;
+
+    /**
+     * @param file the snapshot file
+     */
+    CacheSnapshot( File file ) { this( file, BLOCK_BYTES, CHUNK_BYTES, System::currentTimeMillis ); }
+
+    /**
+     * @param file the snapshot file
+     * @param blockBytes roughly how many bytes of items go in a block
+     * @param chunkBytes roughly how many bytes the loader maps and loads at a time
+     * @param wallClock the wall-clock time in milliseconds, which (unlike
+     *                  the cache's clock) carries on across restarts
+     */
+    CacheSnapshot( File file, int blockBytes, long chunkBytes, LongSupplier wallClock ) {
+
+        if( blockBytes <= 0 || chunkBytes <= 0 ) {
+            throw new IllegalArgumentException( "the block and chunk sizes must be positive" );
+        }
+
+        _file = file;
+        _blockBytes = blockBytes;
+        _chunkBytes = chunkBytes;
+        _wallClock = wallClock;
+    }
+
+    /**
+     * Writes a snapshot of the source, replacing the last one
+     * @param source the items to write
+     * @return the number of items written
+     * @throws IOException if the snapshot can't be written (the last
+     * one, if any, is left alone)
+     */
+    long write( Source source ) throws IOException {
+
+        File temporary = new File( _file.getPath() + ".tmp" );
+
+        long written;
+
+        try( FileOutputStream file = new FileOutputStream( temporary );
+             Writer writer = new Writer( file ) ) {
+
+            try {
+                source.forEach( writer::add );
+            }
+            catch (UncheckedIOException exception) {
+                throw exception.getCause();
+            }
+
+            written = writer.finish();
+
+            // Make sure it's all on disk before it replaces the last one
+            file.getChannel().force( true );
+        }
+        catch (IOException exception) {
+
+            if( !temporary.delete() ) {
+                System.err.printf( "Can't delete the partial snapshot %s\n", temporary );
+            }
+
+            throw exception;
+        }
+
+        Files.move( temporary.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+        return written;
+    }
+
+    /**
+     * Loads the snapshot
+     * @param threads how many threads load it
+     * @param sink where the items go. It's called from all the threads.
+     * @return the number of items loaded
+     * @throws IOException if the file can't be read or isn't a snapshot
+     */
+    long load( int threads, Sink sink ) throws IOException {
+
+        if( threads <= 0 ) {
+            throw new IllegalArgumentException( "the number of threads must be positive" );
+        }
+
+        try( FileChannel channel = FileChannel.open( _file.toPath(), StandardOpenOption.READ ) ) {
+
+            long size = channel.size();
+
+            if( size < HEADER + FOOTER ) {
+                throw new IOException( _file + " is too short to be a snapshot" );
+            }
+
+            ByteBuffer header = read( channel, 0, HEADER );
+
+            if( MAGIC != header.getInt() || VERSION != header.getInt() ) {
+                throw new IOException( _file + " isn't a snapshot (or is from a different version)" );
+            }
+
+            // How long ago it was written (a clock that went backwards counts as no time)
+            long age = Math.max( 0, _wallClock.getAsLong() - header.getLong() );
+
+            ByteBuffer footer = read( channel, size - FOOTER, FOOTER );
+
+            int blocks = footer.getInt();
+            long indexOffset = footer.getLong();
+
+            if( MAGIC != footer.getInt() || blocks < 0 || indexOffset + (long) blocks * Long.BYTES != size - FOOTER ) {
+                throw new IOException( _file + " is incomplete or corrupt" );
+            }
+
+            ByteBuffer index = read( channel, indexOffset, blocks * Long.BYTES );
+
+            long[] offsets = new long[blocks + 1];
+            for( int i = 0; i < blocks; i++ ) {
+                offsets[i] = index.getLong();
+            }
+            offsets[blocks] = indexOffset;
+
+            ExecutorService loaders = Executors.newFixedThreadPool( threads, runnable -> {
+                Thread thread = new Thread( runnable, "cacheserver-loader" );
+                thread.setDaemon( true );
+                return thread;
+            });
+
+            try {
+                List<Future<Long>> chunks = new ArrayList<>();
+
+                // Whole blocks, up to the chunk size (or one block if it's bigger)
+                int first = 0;
+                while( first < blocks ) {
+
+                    int last = first + 1;
+                    while( last < blocks && offsets[last + 1] - offsets[first] <= _chunkBytes ) {
+                        last++;
+                    }
+
+                    long start = offsets[first];
+                    long end = offsets[last];
+
+                    chunks.add( loaders.submit( () -> loadChunk( channel, start, end, age, sink ) ) );
+
+                    first = last;
+                }
+
+                long loaded = 0;
+
+                for( Future<Long> chunk : chunks ) {
+                    loaded += chunk.get();
+                }
+
+                return loaded;
+            }
+            catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IOException( "interrupted loading " + _file, exception );
+            }
+            catch (ExecutionException exception) {
+
+                if( exception.getCause() instanceof IOException ) {
+                    throw (IOException) exception.getCause();
+                }
+
+                throw new IOException( "failed loading " + _file, exception.getCause() );
+            }
+            finally {
+                loaders.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Loads the blocks in [start, end) of the file
+     * @return the number of items loaded
+     */
+    private long loadChunk( FileChannel channel, long start, long end, long age, Sink sink ) throws IOException {
+
+        if( end - start > Integer.MAX_VALUE ) {
+            throw new IOException( _file + " has a block that's too big to map" );
+        }
+
+        MappedByteBuffer chunk = channel.map( FileChannel.MapMode.READ_ONLY, start, end - start );
+
+        long loaded = 0;
+
+        try {
+            while( chunk.hasRemaining() ) {
+
+                int length = chunk.getInt();
+                int items = chunk.getInt();
+                int blockEnd = chunk.position() + length;
+
+                for( int i = 0; i < items; i++ ) {
+
+                    byte keyType = chunk.get();
+                    byte[] key = new byte[chunk.getInt()];
+                    chunk.get( key );
+
+                    byte valueType = chunk.get();
+                    byte[] value = new byte[chunk.getInt()];
+                    chunk.get( value );
+
+                    long ttl = chunk.getLong();
+
+                    if( 0 != ttl ) {
+
+                        ttl -= age;
+
+                        if( ttl <= 0 ) {
+                            // It's expired since the snapshot was taken
+                            continue;
+                        }
+                    }
+
+                    sink.add( new CacheKey( ValueCodec.decode( keyType, key ) ), ValueCodec.decodeValue( valueType, value ), ttl );
+                    loaded++;
+                }
+
+                if( chunk.position() != blockEnd ) {
+                    throw new IOException( _file + " has a corrupt block" );
+                }
+            }
+        }
+        catch (RuntimeException exception) {
+            // A length or type that doesn't make sense
+            throw new IOException( _file + " is corrupt", exception );
+        }
+
+        return loaded;
+    }
+
+    private static ByteBuffer read( FileChannel channel, long position, int length ) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate( length );
+
+        while( buffer.hasRemaining() ) {
+            if( channel.read( buffer, position + buffer.position() ) < 0 ) {
+                throw new IOException( "unexpected end of snapshot" );
+            }
+        }
+
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Writes the items a block at a time
+     */
+    private class Writer implements AutoCloseable {
+
+        private final DataOutputStream _out;
+
+        // Where the next block starts
+        private long _position = 0;
+
+        private final List<Long> _offsets = new ArrayList<>();
+
+        // The block being filled
+        private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream();
+        private final DataOutputStream _block = new DataOutputStream( _buffer );
+        private int _blockItems = 0;
+
+        private long _items = 0;
+
+        Writer( FileOutputStream file ) throws IOException {
+
+            _out = new DataOutputStream( new BufferedOutputStream( file, 1 << 16 ) );
+
+            _out.writeInt( MAGIC );
+            _out.writeInt( VERSION );
+            _out.writeLong( _wallClock.getAsLong() );
+
+            _position = HEADER;
+        }
+
+        void add( ICacheKey key, ICacheValue value, long ttlMillis ) {
+
+            byte keyType;
+            byte[] keyBytes;
+            byte valueType;
+            byte[] valueBytes;
+
+            try
+            {
+                keyType = ValueCodec.typeOf( key.getKey() );
+                keyBytes = ValueCodec.encode( key.getKey() );
+                valueType = ValueCodec.typeOf( value.getValue() );
+                valueBytes = ValueCodec.encode( value.getValue() );
+            }
+            catch (IllegalArgumentException exception)
+            {
+                // A type the codec can't store
+                return;
+            }
+
+            try {
+                _block.writeByte( keyType );
+                _block.writeInt( keyBytes.length );
+                _block.write( keyBytes );
+                _block.writeByte( valueType );
+                _block.writeInt( valueBytes.length );
+                _block.write( valueBytes );
+                _block.writeLong( ttlMillis );
+
+                _blockItems++;
+                _items++;
+
+                if( _buffer.size() >= _blockBytes ) {
+                    writeBlock();
+                }
+            }
+            catch (IOException exception) {
+                throw new UncheckedIOException( exception );
+            }
+        }
+
+        /**
+         * Writes the last block, the index and the footer
+         * @return the number of items written
+         */
+        long finish() throws IOException {
+
+            if( _blockItems > 0 ) {
+                writeBlock();
+            }
+
+            long indexOffset = _position;
+
+            for( long offset : _offsets ) {
+                _out.writeLong( offset );
+            }
+
+            _out.writeInt( _offsets.size() );
+            _out.writeLong( indexOffset );
+            _out.writeInt( MAGIC );
+
+            _out.flush();
+
+            return _items;
+        }
+
+        private void writeBlock() throws IOException {
+
+            _offsets.add( _position );
+
+            _out.writeInt( _buffer.size() );
+            _out.writeInt( _blockItems );
+            _buffer.writeTo( _out );
+
+            _position += BLOCK_HEADER + _buffer.size();
+
+            _buffer.reset();
+            _blockItems = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _out.close();
+        }
+    }
+}
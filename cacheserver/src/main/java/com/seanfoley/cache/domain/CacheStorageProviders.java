@@ -0,0 +1,80 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheStorageProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Finds a storage by name. The built-in storages (CacheManager.StorageType)
+ * come first, then any ICacheStorageProvider on the classpath that is
+ * registered with java.util.ServiceLoader. A provider can't replace a
+ * built-in storage by using its name.
+ */
+public final class CacheStorageProviders {
+
+    private CacheStorageProviders() {}
+
+    /**
+     * @param name the storage's name, e.g. lru
+     * @return the provider, or null if there isn't one with that name
+     */
+    public static ICacheStorageProvider find( String name ) {
+
+        for( ICacheStorageProvider provider : all() ) {
+            if( provider.getName().equals( name ) ) {
+                return provider;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the names of the storages there are to choose from
+     */
+    public static List<String> names() {
+
+        List<String> names = new ArrayList<>();
+
+        for( ICacheStorageProvider provider : all() ) {
+            names.add( provider.getName() );
+        }
+
+        return names;
+    }
+
+    private static List<ICacheStorageProvider> all() {
+
+        List<ICacheStorageProvider> providers = new ArrayList<>();
+
+        for( CacheManager.StorageType storageType : CacheManager.StorageType.values() ) {
+            providers.add( storageType );
+        }
+
+        // Only looked up at startup, so there's no need to keep the loader
+        for( ICacheStorageProvider provider : ServiceLoader.load( ICacheStorageProvider.class ) ) {
+            providers.add( provider );
+        }
+
+        return providers;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Class:
+ * ClockCacheStorage
+ *
+ * Description:
+ * This class implements the ICacheStorage interface with the CLOCK
+ * eviction algorithm, an approximation of LRU that is much friendlier
+ * to concurrent readers.
+ *
+ * The items live in a ConcurrentHashMap, and each one also sits in a
+ * slot of a fixed size ring (the clock face). Every item has a
+ * "referenced" bit that get() sets. A get() is just a lock-free map
+ * lookup plus setting that bit (only if it isn't already set, so hot
+ * items don't keep dirtying the same cache line).
+ *
+ * When the ring is full, add() takes the eviction lock and sweeps the
+ * clock hand around the ring. An item with its bit set gets a second
+ * chance (the bit is cleared and the hand moves on); the first item
+ * found without the bit set is evicted and the new item takes its slot.
+ * Only adds of new keys on a full cache ever take the lock.
+ *
+ * The bytes used are tracked (see CacheEntrySizer) but not bounded;
+ * the capacity is in items. The count can drift a little if the same
+ * key is replaced and removed at the same moment.
+ */
+public class ClockCacheStorage implements ICacheStorage {
+
+    private final ConcurrentHashMap<Object, Entry> _map;
+
+    // The clock face. A slot holds the entry that owns it, or null if free.
+    private final AtomicReferenceArray<Entry> _ring;
+
+    // Slots that have never been used (handed out in order while we fill up)
+    private final AtomicInteger _nextSlot = new AtomicInteger();
+
+    // Slots given back by remove()
+    private final Queue<Integer> _freeSlots = new ConcurrentLinkedQueue<>();
+
+    // Only taken when we have to evict to make room
+    private final ReentrantLock _evictionLock = new ReentrantLock();
+
+    // Guarded by _evictionLock
+    private int _hand = 0;
+
+    private final LongAdder _bytesUsed = new LongAdder();
+
+    private final int CAPACITY;
+
+    ClockCacheStorage( int capacity ) {
+
+        if( capacity <= 0 ) {
+            throw new IllegalArgumentException( "the capacity must be positive" );
+        }
+
+        CAPACITY = capacity;
+
+        final float LOAD_FACTOR = 0.80f;
+
+        _map = new ConcurrentHashMap<>( capacity, LOAD_FACTOR );
+        _ring = new AtomicReferenceArray<>( capacity );
+    }
+
+    @Override
+    public boolean add(ICacheKey key, ICacheValue value) {
+
+        Object k = key.getKey();
+
+        Entry existing = _map.get( k );
+
+        if( null == existing ) {
+
+            Entry entry = new Entry( k, value );
+
+            existing = _map.putIfAbsent( k, entry );
+
+            if( null == existing ) {
+                _bytesUsed.add( CacheEntrySizer.sizeOf( k, value ) );
+                claimSlot( entry );
+                return true;
+            }
+        }
+
+        // Replacing the value of a key we already have
+        ICacheValue previous = VALUE.getAndSet( existing, value );
+
+        _bytesUsed.add( CacheEntrySizer.sizeOf( value.getValue() ) - CacheEntrySizer.sizeOf( previous.getValue() ) );
+
+        existing.reference();
+
+        return true;
+    }
+
+    @Override
+    public ICacheValue get(ICacheKey key) {
+
+        Entry entry = _map.get( key.getKey() );
+
+        if( null == entry ) {
+            return null;
+        }
+
+        entry.reference();
+
+        return entry._value;
+    }
+
+    @Override
+    public boolean remove(ICacheKey key) {
+
+        Entry entry = _map.remove( key.getKey() );
+
+        if( null == entry ) {
+            return false;
+        }
+
+        _bytesUsed.add( -CacheEntrySizer.sizeOf( entry._key, entry._value ) );
+
+        freeSlot( entry );
+
+        return true;
+    }
+
+    @Override
+    public int count() {
+        return _map.size();
+    }
+
+    @Override
+    public long bytesUsed() {
+        return _bytesUsed.sum();
+    }
+
+    /**
+     * Finds the new entry a slot in the ring, evicting if we have to
+     */
+    private void claimSlot( Entry entry ) {
+
+        int slot = -1;
+
+        // Still filling up
+        if( _nextSlot.get() < CAPACITY ) {
+            int next = _nextSlot.getAndIncrement();
+            if( next < CAPACITY && _ring.compareAndSet( next, null, entry ) ) {
+                slot = next;
+            }
+        }
+
+        // A slot someone removed
+        Integer free;
+        while( slot < 0 && null != (free = _freeSlots.poll()) ) {
+            if( _ring.compareAndSet( free, null, entry ) ) {
+                slot = free;
+            }
+        }
+
+        if( slot < 0 ) {
+            slot = evict( entry );
+        }
+
+        entry._slot = slot;
+
+        // A remove() can sneak in between putting the entry in the map and
+        // it getting a slot, in which case remove() couldn't free the slot
+        // (it didn't have one yet). Whoever wins the CAS in freeSlot()
+        // gives it back.
+        if( _map.get( entry._key ) != entry ) {
+            freeSlot( entry );
+        }
+    }
+
+    private void freeSlot( Entry entry ) {
+
+        int slot = entry._slot;
+
+        if( slot >= 0 && _ring.compareAndSet( slot, entry, null ) ) {
+            _freeSlots.offer( slot );
+        }
+    }
+
+    /**
+     * Sweeps the clock hand to find a victim and puts the new entry in
+     * its slot.
+     * @return the slot the new entry was put in
+     */
+    private int evict( Entry entry ) {
+
+        _evictionLock.lock();
+        try
+        {
+            while( true )
+            {
+                int slot = _hand;
+                _hand = (_hand + 1) % CAPACITY;
+
+                Entry victim = _ring.get( slot );
+
+                if( null == victim ) {
+                    // Freed by a remove() since we last came by
+                    if( _ring.compareAndSet( slot, null, entry ) ) {
+                        return slot;
+                    }
+                    continue;
+                }
+
+                if( victim._referenced ) {
+                    // Second chance
+                    victim._referenced = false;
+                    continue;
+                }
+
+                if( _ring.compareAndSet( slot, victim, entry ) ) {
+                    if( _map.remove( victim._key, victim ) ) {
+                        _bytesUsed.add( -CacheEntrySizer.sizeOf( victim._key, victim._value ) );
+                    }
+                    return slot;
+                }
+            }
+        }
+        finally
+        {
+            _evictionLock.unlock();
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Entry, ICacheValue> VALUE =
+            AtomicReferenceFieldUpdater.newUpdater( Entry.class, ICacheValue.class, "_value" );
+
+    /**
+     * Nothing is locked; the map's iterator is weakly consistent.
+     */
+    @Override
+    public void forEach(BiConsumer<ICacheKey, ICacheValue> action) {
+
+        for( Entry entry : _map.values() ) {
+            action.accept( new CacheKey( entry._key ), entry._value );
+        }
+    }
+
+    private static class Entry {
+
+        private final Object _key;
+
+        // Not private so the VALUE updater can get at it on Java 8
+        volatile ICacheValue _value;
+
+        // Set on access, cleared by the clock hand. Racy by design: losing
+        // an update only changes which item gets a second chance.
+        private volatile boolean _referenced = false;
+
+        // Where the entry sits in the ring (-1 until it has a slot)
+        private volatile int _slot = -1;
+
+        Entry( Object key, ICacheValue value ) {
+            _key = key;
+            _value = value;
+        }
+
+        void reference() {
+            if( !_referenced ) {
+                _referenced = true;
+            }
+        }
+    }
+}
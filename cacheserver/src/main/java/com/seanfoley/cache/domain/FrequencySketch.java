@@ -0,0 +1,184 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+/**
+ * The FrequencySketch estimates how often each key has been seen
+ * recently, in a small fixed amount of memory. It's a count-min sketch:
+ * every key maps to four 4-bit counters (picked by four different hash
+ * functions) and its frequency is the smallest of them. Collisions can
+ * only make an estimate too high, never too low, and taking the minimum
+ * keeps that error small.
+ *
+ * The counters are packed sixteen to a long. They top out at 15, which
+ * is plenty to tell a popular key from a one-hit wonder.
+ *
+ * To keep the history recent, every agingPeriod increments all of the
+ * counters are halved. Keys that used to be popular fade out unless
+ * they keep getting used.
+ *
+ * This class isn't thread-safe.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private static final int MAX_COUNT = 15;
+
+    // Clears the low bit of every 4-bit counter after a shift
+    private static final long HALVE_MASK = 0x7777777777777777L;
+
+    private final long[] _table;
+    private final int _mask;
+
+    private final int _agingPeriod;
+
+    // Increments since the last aging
+    private int _additions = 0;
+
+    /**
+     * @param sketchBytes the memory to use for the counters (rounded up to
+     *                    a power of two, at least 8 bytes)
+     * @param agingPeriod the number of increments between halving
+     */
+    FrequencySketch( long sketchBytes, int agingPeriod ) {
+
+        if( sketchBytes <= 0 || agingPeriod <= 0 ) {
+            throw new IllegalArgumentException( "the sketch size and aging period must be positive" );
+        }
+
+        final int MAX_LONGS = 1 << 30;
+
+        int longs = 1;
+        while( longs < MAX_LONGS && (long) longs * Long.BYTES < sketchBytes ) {
+            longs *= 2;
+        }
+
+        _table = new long[longs];
+        _mask = longs - 1;
+        _agingPeriod = agingPeriod;
+    }
+
+    /**
+     * @return the estimated number of times the key was seen (0 to 15)
+     */
+    int frequency( Object key ) {
+
+        int hash = spread( key.hashCode() );
+
+        int frequency = MAX_COUNT;
+
+        for( int i = 0; i < SEEDS.length; i++ ) {
+            frequency = Math.min( frequency, counter( hash, i ) );
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of the key
+     */
+    void increment( Object key ) {
+
+        int hash = spread( key.hashCode() );
+
+        boolean added = false;
+
+        for( int i = 0; i < SEEDS.length; i++ ) {
+            added |= incrementCounter( hash, i );
+        }
+
+        if( added && ++_additions >= _agingPeriod ) {
+            age();
+        }
+    }
+
+    /**
+     * @return the memory the counters take up in bytes
+     */
+    long getSketchBytes() { return (long) _table.length * Long.BYTES; }
+
+    int getAgingPeriod() { return _agingPeriod; }
+
+    /**
+     * Halves every counter
+     */
+    void age() {
+
+        for( int i = 0; i < _table.length; i++ ) {
+            _table[i] = (_table[i] >>> 1) & HALVE_MASK;
+        }
+
+        _additions /= 2;
+    }
+
+    private int counter( int hash, int depth ) {
+
+        long h = index( hash, depth );
+
+        int slot = (int) h & _mask;
+        int shift = nibble( h ) << 2;
+
+        return (int) ((_table[slot] >>> shift) & MAX_COUNT);
+    }
+
+    private boolean incrementCounter( int hash, int depth ) {
+
+        long h = index( hash, depth );
+
+        int slot = (int) h & _mask;
+        int shift = nibble( h ) << 2;
+
+        long mask = (long) MAX_COUNT << shift;
+
+        if( (_table[slot] & mask) == mask ) {
+            return false;
+        }
+
+        _table[slot] += 1L << shift;
+
+        return true;
+    }
+
+    /**
+     * One of the four hash functions, picking a long and a counter in it
+     */
+    private static long index( int hash, int depth ) {
+
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += (h >>> 32);
+
+        return h;
+    }
+
+    private static int nibble( long h ) {
+        return (int) (h >>> 40) & 15;
+    }
+
+    private static int spread( int hash ) {
+
+        // Mix the bits well; String hashes of similar keys are similar
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The LineFramer turns a stream of bytes read off a socket into
+ * individual \r\n terminated commands. A single socket read can hold
+ * part of a command, exactly one command, or several commands back to
+ * back, so the framer accumulates bytes across reads and hands back
+ * each command once its terminator shows up.
+ *
+ * Usage Example:
+ * 1. read from the socket into writableBuffer()
+ * 2. call next() until it returns null, handling each command
+ * 3. go back to step 1
+ *
+ * The commands returned by next() are views over the internal buffer
+ * rather than copies (the same view is reused for every command), so a
+ * command is only valid until the next call to next() or writableBuffer().
+ * The buffer comes from a BufferPool and grows to fit large commands, up
+ * to the maximum frame size. Call release() when the connection is done
+ * so the buffer goes back to the pool.
+ */
+class LineFramer {
+
+    private final BufferPool _pool;
+
+    private ByteBuffer _buffer;
+
+    // A view over _buffer that next() points at each command
+    private ByteBuffer _frame;
+
+    private final int _initialCapacity;
+    private final int _maxFrameSize;
+
+    // The bytes in the buffer from 0 to position() have been read off the
+    // socket. _start is where the next (unreturned) command begins, and
+    // _scanned is how far we have already looked for a terminator so a
+    // big command trickling in isn't rescanned from the top on every read.
+    private int _start = 0;
+    private int _scanned = 0;
+
+    /**
+     * @param pool where the buffers come from
+     * @param initialSize the starting size of the buffer in bytes
+     * @param maxFrameSize the largest command (in bytes, including the
+     *                     terminator) that the framer will accumulate
+     */
+    LineFramer( BufferPool pool, int initialSize, int maxFrameSize ) {
+
+        if( initialSize <= 0 || maxFrameSize < initialSize ) {
+            throw new IllegalArgumentException(
+                    "the initial size must be positive and no larger than the max frame size");
+        }
+
+        _pool = pool;
+        _maxFrameSize = maxFrameSize;
+
+        use( pool.acquire( initialSize ) );
+
+        // The pool rounds up, so remember what we really got
+        _initialCapacity = _buffer.capacity();
+    }
+
+    /**
+     * Gets the buffer the next socket read should fill. The bytes must be
+     * appended at the buffer's position (which is what a channel read does).
+     * Any command previously returned by next() is invalid after this call.
+     * @return a buffer with at least 1 byte remaining
+     * @throws IllegalStateException if a single command is larger than
+     * the max frame size
+     */
+    ByteBuffer writableBuffer() {
+
+        if( _start == _buffer.position() ) {
+
+            // Everything has been consumed. If a big command made us grow
+            // go back to the normal size so an idle connection doesn't
+            // hang on to a large buffer.
+            if( _buffer.capacity() > _initialCapacity ) {
+                _pool.release( _buffer );
+                use( _pool.acquire( _initialCapacity ) );
+            }
+
+            _buffer.clear();
+            _start = 0;
+            _scanned = 0;
+        }
+
+        if( !_buffer.hasRemaining() && _start > 0 ) {
+
+            // Slide the partial command down to the front of the buffer
+            _buffer.flip();
+            _buffer.position( _start );
+            _buffer.compact();
+
+            _scanned -= _start;
+            _start = 0;
+        }
+
+        if( !_buffer.hasRemaining() ) {
+
+            // The partial command fills the whole buffer, so we need a bigger one
+            if( _buffer.capacity() >= _maxFrameSize ) {
+                throw new IllegalStateException( "the command exceeds the maximum frame size" );
+            }
+
+            int size = (int) Math.min( (long) _buffer.capacity() * 2, _maxFrameSize );
+
+            ByteBuffer bigger = _pool.acquire( size );
+            _buffer.flip();
+            bigger.put( _buffer );
+
+            _pool.release( _buffer );
+            use( bigger );
+        }
+
+        return _buffer;
+    }
+
+    /**
+     * Gets the next complete command, including the \r\n terminator.
+     * @return a view of the internal buffer whose position and limit
+     * surround the command, or null if there isn't a complete command yet
+     */
+    ByteBuffer next() {
+
+        final int end = _buffer.position();
+
+        // The terminator is 2 bytes, so the earliest a \n can show up is 1 past the start
+        int i = Math.max( _scanned, _start + 1 );
+
+        for( ; i < end; i++ ) {
+
+            if( _buffer.get( i ) == '\n' && _buffer.get( i - 1 ) == '\r' ) {
+
+                _frame.limit( i + 1 );
+                _frame.position( _start );
+
+                _start = i + 1;
+                _scanned = _start;
+
+                return _frame;
+            }
+        }
+
+        _scanned = end;
+
+        return null;
+    }
+
+    /**
+     * Gives the buffer back to the pool. The framer can't be used after this.
+     */
+    void release() {
+
+        if( null != _buffer ) {
+            _pool.release( _buffer );
+            _buffer = null;
+            _frame = null;
+        }
+    }
+
+    private void use( ByteBuffer buffer ) {
+        _buffer = buffer;
+        _frame = buffer.duplicate();
+    }
+}
@@ -18,12 +18,15 @@
 package com.seanfoley.cache.domain;
 
 
+import com.seanfoley.cache.interfaces.ICacheEvictionListener;
 import com.seanfoley.cache.interfaces.ICacheKey;
 import com.seanfoley.cache.interfaces.ICacheStorage;
 import com.seanfoley.cache.interfaces.ICacheValue;
 
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 /**
  * Class:
@@ -33,9 +36,19 @@ import java.util.Map;
  * This class implements the ICacheStorage interface and uses a
  * LinkedHashMap as the underlying backing (data) store.  The
  * current implementation of this class provides for a fixed
- * maximum capacity of items (not bytes).  If item(s) are added
- * past the max capacity, the least-recently used item is evicted
- * and replaced with the new item.
+ * maximum capacity of items and, optionally, of bytes.  If item(s)
+ * are added past either limit, least-recently used items are evicted
+ * until the cache fits again.
+ *
+ * The bytes are an estimate (see CacheEntrySizer) of the key, value
+ * and bookkeeping for each item. The estimate for an item is worked
+ * out again when it leaves the cache, so values shouldn't be changed
+ * in place while they are cached.
+ *
+ * An optional ICacheEvictionListener hears about the evicted items.
+ *
+ * This class isn't thread-safe. StripedLruCacheStorage puts a set of
+ * these behind locks for concurrent use.
  *
  */
 public class LinkedHashMapCacheStorage implements ICacheStorage {
@@ -43,21 +56,48 @@ public class LinkedHashMapCacheStorage implements ICacheStorage {
     private final LinkedHashMap<Object, ICacheValue> _map;
 
     private final int CAPACITY;
+    private final long MAX_BYTES;
+
+    private final ICacheEvictionListener _listener;
+
+    private long _bytesUsed = 0;
 
-    LinkedHashMapCacheStorage( int capacity ) {
+    LinkedHashMapCacheStorage( int capacity ) { this( capacity, Long.MAX_VALUE ); }
+
+    LinkedHashMapCacheStorage( int capacity, long maxBytes ) { this( capacity, maxBytes, null ); }
+
+    /**
+     * @param capacity the maximum number of items
+     * @param maxBytes the maximum (estimated) bytes the items can take up
+     * @param listener told about evicted items (may be null)
+     */
+    LinkedHashMapCacheStorage( int capacity, long maxBytes, ICacheEvictionListener listener ) {
+
+        if( maxBytes <= 0 ) {
+            throw new IllegalArgumentException( "the byte budget must be positive" );
+        }
 
         CAPACITY = capacity;
+        MAX_BYTES = maxBytes;
+
+        _listener = listener;
 
         final float LOAD_FACTOR = 0.80f;
         final boolean ACCESS_ORDER = true;
 
         _map = new LinkedHashMap<Object, ICacheValue>(capacity, LOAD_FACTOR, ACCESS_ORDER) {
             @Override
-            protected boolean removeEldestEntry(Map.Entry entry) {
+            protected boolean removeEldestEntry(Map.Entry<Object, ICacheValue> entry) {
 
                 // If we are at capacity, then let's use a simple
                 // eviction policy of removing the last item
-                return size() > CAPACITY;
+                if( size() > CAPACITY ) {
+                    _bytesUsed -= CacheEntrySizer.sizeOf( entry.getKey(), entry.getValue() );
+                    evicted( entry );
+                    return true;
+                }
+
+                return false;
             }
         };
     }
@@ -65,8 +105,45 @@ public class LinkedHashMapCacheStorage implements ICacheStorage {
     @Override
     public boolean add(ICacheKey key, ICacheValue value) {
 
-        // todo - needs proper thread synchronization
-         _map.put(key.getKey(), value );
+        Object k = key.getKey();
+
+        long size = CacheEntrySizer.sizeOf( k, value );
+
+        // It would never fit, and we'd flush everything else trying. The
+        // old value goes though, so a get doesn't return a stale one
+        if( size > MAX_BYTES ) {
+
+            ICacheValue previous = _map.remove( k );
+
+            if( null != previous ) {
+                _bytesUsed -= CacheEntrySizer.sizeOf( k, previous );
+            }
+
+            return false;
+        }
+
+        ICacheValue previous = _map.put( k, value );
+
+        if( null != previous ) {
+            _bytesUsed -= CacheEntrySizer.sizeOf( k, previous );
+        }
+
+        _bytesUsed += size;
+
+        // The new item is the most recently used, so the least recently
+        // used items go first and it goes last (which can't happen since
+        // it fits on its own)
+        if( _bytesUsed > MAX_BYTES ) {
+
+            Iterator<Map.Entry<Object, ICacheValue>> iterator = _map.entrySet().iterator();
+
+            while( _bytesUsed > MAX_BYTES && iterator.hasNext() ) {
+                Map.Entry<Object, ICacheValue> eldest = iterator.next();
+                _bytesUsed -= CacheEntrySizer.sizeOf( eldest.getKey(), eldest.getValue() );
+                iterator.remove();
+                evicted( eldest );
+            }
+        }
 
         // The initial put() of a key could return
         // a null value. So the real way to confirm
@@ -80,20 +157,52 @@ public class LinkedHashMapCacheStorage implements ICacheStorage {
     @Override
     public ICacheValue get(ICacheKey key) {
 
-        // todo - needs proper thread synchronization
         return _map.get( key.getKey() );
     }
 
     @Override
     public boolean remove(ICacheKey key) {
 
-        // todo - needs proper thread synchronization
-        return _map.remove( key.getKey() ) != null;
+        Object k = key.getKey();
+
+        ICacheValue value = _map.remove( k );
+
+        if( null == value ) {
+            return false;
+        }
+
+        _bytesUsed -= CacheEntrySizer.sizeOf( k, value );
+
+        return true;
     }
 
     @Override
     public int count() {
-        // todo - needs proper thread synchronization
         return _map.size();
     }
+
+    @Override
+    public long bytesUsed() {
+        return _bytesUsed;
+    }
+
+    /**
+     * Like the rest of this class this isn't thread-safe; the caller
+     * needs to keep the storage from changing while it runs.
+     */
+    @Override
+    public void forEach(BiConsumer<ICacheKey, ICacheValue> action) {
+
+        // Not _map.forEach(), which would count as a use of each item
+        for( Map.Entry<Object, ICacheValue> entry : _map.entrySet() ) {
+            action.accept( new CacheKey( entry.getKey() ), entry.getValue() );
+        }
+    }
+
+    private void evicted( Map.Entry<Object, ICacheValue> entry ) {
+
+        if( null != _listener ) {
+            _listener.evicted( new CacheKey( entry.getKey() ), entry.getValue() );
+        }
+    }
 }
@@ -0,0 +1,704 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Class:
+ * MappedFileCacheStorage
+ *
+ * Description:
+ * This class implements the ICacheStorage interface with the values in
+ * memory-mapped files and only the index on the heap. The cache can be
+ * much bigger than RAM; the OS page cache keeps the hot parts of the
+ * files in memory and the rest stays on disk (local NVMe is the idea).
+ *
+ * The files are fixed size segments that are written like a log: an
+ * add (or replace) appends a record to the end of the active segment,
+ * and when that's full a new segment becomes the active one. Nothing is
+ * overwritten in place, so a replaced or removed record is just dead
+ * space in its segment. Each record is:
+ *
+ * [record length][key length][value length][key type][value type][key][value]
+ *
+ * with the keys and values encoded by the ValueCodec.
+ *
+ * A background thread compacts segments that are mostly dead: the live
+ * records are copied to the active segment and the old file is deleted.
+ * If the segments still add up to maxBytes when a new one is needed,
+ * the oldest segment is dropped along with whatever is still live in it.
+ * Past the item capacity the least-recently used item is evicted.
+ *
+ * The segments are only a cache. Files left in the directory by an
+ * earlier run are deleted when the storage is created. That's also the
+ * fallback for a file that can't be deleted while it's still mapped
+ * (which some platforms won't allow): it's deleted when the JVM exits,
+ * or failing that on the next start.
+ *
+ * Every method is synchronized. The compactor takes the lock for a
+ * batch of records at a time so it doesn't hold up requests for long.
+ */
+public class MappedFileCacheStorage implements ICacheStorage, Closeable {
+
+    // The record header
+    private static final int RECORD_LENGTH = 0;
+    private static final int KEY_LENGTH = 4;
+    private static final int VALUE_LENGTH = 8;
+    private static final int KEY_TYPE = 12;
+    private static final int VALUE_TYPE = 13;
+    private static final int HEADER = 16;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File _directory;
+
+    private final HashMap<Object, Location> _index = new HashMap<>();
+
+    // The LRU list (most recently used at the head)
+    private Location _head = null;
+    private Location _tail = null;
+
+    // Oldest first; the last one is the active segment
+    private final ArrayList<Segment> _segments = new ArrayList<>();
+    private Segment _active = null;
+    private long _nextSegmentId = 0;
+
+    private final ScheduledExecutorService _compactor;
+
+    private final int CAPACITY;
+    private final int SEGMENT_SIZE;
+    private final int MAX_SEGMENTS;
+    private final double COMPACTION_THRESHOLD;
+
+    private long _bytesUsed = 0;
+
+    /**
+     * @param directory where the segment files go (created if needed)
+     * @param capacity the maximum number of items
+     * @param maxBytes the most disk space the segments can take up (room
+     *                 for at least two segments)
+     * @param segmentSize the size of each segment file (up to 1 GB)
+     * @param compactionThreshold a segment is compacted once less than
+     *                            this fraction of it is live
+     */
+    MappedFileCacheStorage( File directory, int capacity, long maxBytes, int segmentSize, double compactionThreshold ) {
+
+        final int MAX_SEGMENT_SIZE = 1 << 30;
+
+        if( capacity <= 0 ) {
+            throw new IllegalArgumentException( "the capacity must be positive" );
+        }
+
+        if( segmentSize <= HEADER || segmentSize > MAX_SEGMENT_SIZE ) {
+            throw new IllegalArgumentException( "the segment size must be at most 1 GB" );
+        }
+
+        if( maxBytes / segmentSize < 2 ) {
+            throw new IllegalArgumentException( "maxBytes must leave room for at least two segments" );
+        }
+
+        if( compactionThreshold < 0 || compactionThreshold >= 1 ) {
+            throw new IllegalArgumentException( "the compaction threshold must be between 0 and 1" );
+        }
+
+        if( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IllegalArgumentException( "can't create the directory " + directory );
+        }
+
+        _directory = directory;
+
+        CAPACITY = capacity;
+        SEGMENT_SIZE = segmentSize;
+        MAX_SEGMENTS = (int) Math.min( Integer.MAX_VALUE, maxBytes / segmentSize );
+        COMPACTION_THRESHOLD = compactionThreshold;
+
+        deleteSegmentFiles();
+
+        _compactor = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "cacheserver-compactor" );
+            thread.setDaemon( true );
+            return thread;
+        });
+
+        // How often the compactor looks for mostly dead segments
+        final long COMPACTION_MILLIS = 1000;
+
+        _compactor.scheduleWithFixedDelay( this::compact, COMPACTION_MILLIS, COMPACTION_MILLIS, TimeUnit.MILLISECONDS );
+    }
+
+    @Override
+    public boolean add(ICacheKey key, ICacheValue value) {
+
+        Object k = key.getKey();
+
+        byte keyType;
+        byte[] keyBytes;
+        byte valueType;
+        byte[] valueBytes;
+
+        try
+        {
+            keyType = ValueCodec.typeOf( k );
+            keyBytes = ValueCodec.encode( k );
+            valueType = ValueCodec.typeOf( value.getValue() );
+            valueBytes = ValueCodec.encode( value.getValue() );
+        }
+        catch (IllegalArgumentException exception)
+        {
+            // Not a type we can write to a file
+            return false;
+        }
+
+        long length = (long) HEADER + keyBytes.length + valueBytes.length;
+
+        if( length > SEGMENT_SIZE ) {
+            return false;
+        }
+
+        // Encode the whole record before taking the lock
+        ByteBuffer record = ByteBuffer.allocate( (int) length );
+        record.putInt( RECORD_LENGTH, (int) length );
+        record.putInt( KEY_LENGTH, keyBytes.length );
+        record.putInt( VALUE_LENGTH, valueBytes.length );
+        record.put( KEY_TYPE, keyType );
+        record.put( VALUE_TYPE, valueType );
+        record.position( HEADER );
+        record.put( keyBytes );
+        record.put( valueBytes );
+        record.flip();
+
+        synchronized (this) {
+
+            if( !reserve( (int) length ) ) {
+                return false;
+            }
+
+            Location location = _index.get( k );
+
+            if( null == location ) {
+
+                if( _index.size() >= CAPACITY ) {
+                    evict( _tail );
+                }
+
+                location = new Location( k );
+                _index.put( k, location );
+                linkFront( location );
+            }
+            else {
+                kill( location );
+                moveToFront( location );
+            }
+
+            append( record, location );
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized ICacheValue get(ICacheKey key) {
+
+        Location location = _index.get( key.getKey() );
+
+        if( null == location ) {
+            return null;
+        }
+
+        moveToFront( location );
+
+        return readValue( location );
+    }
+
+    @Override
+    public synchronized boolean remove(ICacheKey key) {
+
+        Location location = _index.get( key.getKey() );
+
+        if( null == location ) {
+            return false;
+        }
+
+        evict( location );
+
+        return true;
+    }
+
+    @Override
+    public synchronized int count() {
+        return _index.size();
+    }
+
+    /**
+     * @return the size of the live records (the segment files take up
+     * more, see segmentCount())
+     */
+    @Override
+    public synchronized long bytesUsed() {
+        return _bytesUsed;
+    }
+
+    /**
+     * Copies the keys with the lock held, then reads the values a
+     * batch at a time (each batch under the lock, so the compactor
+     * can't move a record while we're reading it).
+     */
+    @Override
+    public void forEach(BiConsumer<ICacheKey, ICacheValue> action) {
+
+        final int BATCH = 256;
+
+        List<Object> keys;
+
+        synchronized (this) {
+            keys = new ArrayList<>( _index.keySet() );
+        }
+
+        List<Map.Entry<ICacheKey, ICacheValue>> items = new ArrayList<>();
+
+        for( int start = 0; start < keys.size(); start += BATCH ) {
+
+            items.clear();
+
+            synchronized (this) {
+
+                for( Object key : keys.subList( start, Math.min( start + BATCH, keys.size() ) ) ) {
+
+                    Location location = _index.get( key );
+
+                    if( null != location ) {
+                        items.add( new AbstractMap.SimpleImmutableEntry<>( new CacheKey( key ), readValue( location ) ) );
+                    }
+                }
+            }
+
+            for( Map.Entry<ICacheKey, ICacheValue> item : items ) {
+                action.accept( item.getKey(), item.getValue() );
+            }
+        }
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    synchronized int segmentCount() {
+        return _segments.size();
+    }
+
+    /**
+     * Stops the compactor and deletes the segment files
+     */
+    @Override
+    public void close() {
+
+        _compactor.shutdownNow();
+
+        synchronized (this) {
+            _index.clear();
+            _head = null;
+            _tail = null;
+            _bytesUsed = 0;
+
+            for( Segment segment : _segments ) {
+                segment._dropped = true;
+                delete( segment._file );
+            }
+
+            _segments.clear();
+            _active = null;
+        }
+    }
+
+    /**
+     * Compacts every segment (other than the active one) that has less
+     * than the threshold live. The compactor thread calls this.
+     * @return the number of segments compacted
+     */
+    int compact() {
+
+        int compacted = 0;
+
+        Segment segment;
+
+        while( null != (segment = nextToCompact()) ) {
+
+            if( compact( segment ) ) {
+                compacted++;
+            }
+            else if( !dropped( segment ) ) {
+                // No room to copy the records to, so leave the rest for
+                // the next pass rather than trying the same segment again
+                break;
+            }
+        }
+
+        return compacted;
+    }
+
+    private synchronized boolean dropped( Segment segment ) {
+        return segment._dropped;
+    }
+
+    private synchronized Segment nextToCompact() {
+
+        Segment best = null;
+
+        for( Segment segment : _segments ) {
+
+            if( segment == _active || segment._liveBytes >= segment._end * COMPACTION_THRESHOLD ) {
+                continue;
+            }
+
+            if( null == best || segment._liveBytes * best._end < best._liveBytes * segment._end ) {
+                best = segment;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Copies the live records out of a segment and deletes it
+     * @return false if the segment was dropped while we were at it, or
+     * there was nowhere to copy the records to
+     */
+    private boolean compact( Segment segment ) {
+
+        final int BATCH = 256;
+
+        int offset = 0;
+
+        while( true )
+        {
+            synchronized (this) {
+
+                if( segment._dropped ) {
+                    return false;
+                }
+
+                for( int i = 0; i < BATCH && offset < segment._end; i++ ) {
+
+                    MappedByteBuffer buffer = segment._buffer;
+                    int length = buffer.getInt( offset + RECORD_LENGTH );
+
+                    Location location = _index.get( readKey( buffer, offset ) );
+
+                    if( null != location && location._segment == segment && location._offset == offset ) {
+
+                        ByteBuffer record = buffer.duplicate();
+                        record.position( offset );
+                        record.limit( offset + length );
+
+                        // Rolling over to a new segment can drop this one
+                        if( !reserve( length ) || segment._dropped ) {
+                            return false;
+                        }
+
+                        kill( location );
+                        append( record, location );
+                    }
+
+                    offset += length;
+                }
+
+                if( offset >= segment._end ) {
+                    drop( segment );
+                    return true;
+                }
+            }
+        }
+    }
+
+    //
+    // Segments
+    //
+
+    /**
+     * Makes sure the active segment has room for a record, rolling over
+     * to a new segment (and dropping the oldest) if need be
+     * @return false if no segment could be created
+     */
+    private boolean reserve( int length ) {
+
+        if( null != _active && _active._end + length <= SEGMENT_SIZE ) {
+            return true;
+        }
+
+        while( _segments.size() >= MAX_SEGMENTS ) {
+            drop( _segments.get( 0 ) );
+        }
+
+        try
+        {
+            File file = new File( _directory, SEGMENT_PREFIX + _nextSegmentId++ + SEGMENT_SUFFIX );
+
+            _active = new Segment( file, map( file ) );
+
+            _segments.add( _active );
+
+            return true;
+        }
+        catch (IOException exception)
+        {
+            exception.printStackTrace();
+
+            _active = null;
+
+            return false;
+        }
+    }
+
+    /**
+     * Creates and maps a segment file (tests override this to fail)
+     */
+    MappedByteBuffer map( File file ) throws IOException {
+
+        // The mapping stays valid after the file is closed
+        try( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+            return raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE );
+        }
+    }
+
+    private void append( ByteBuffer record, Location location ) {
+
+        int length = record.remaining();
+
+        ByteBuffer target = _active._buffer.duplicate();
+        target.position( _active._end );
+        target.put( record );
+
+        location._segment = _active;
+        location._offset = _active._end;
+        location._length = length;
+
+        _active._end += length;
+        _active._liveBytes += length;
+        _bytesUsed += length;
+    }
+
+    /**
+     * Deletes a segment, evicting whatever is still live in it
+     */
+    private void drop( Segment segment ) {
+
+        MappedByteBuffer buffer = segment._buffer;
+
+        for( int offset = 0; offset < segment._end && segment._liveBytes > 0; offset += buffer.getInt( offset + RECORD_LENGTH ) ) {
+
+            Location location = _index.get( readKey( buffer, offset ) );
+
+            if( null != location && location._segment == segment && location._offset == offset ) {
+                evict( location );
+            }
+        }
+
+        _segments.remove( segment );
+
+        if( segment == _active ) {
+            _active = null;
+        }
+
+        segment._dropped = true;
+
+        delete( segment._file );
+    }
+
+    /**
+     * Deletes a segment file. The pages are only unmapped when the buffer
+     * is garbage collected, and some platforms won't delete a file that's
+     * still mapped, so one that can't be deleted now goes when the JVM
+     * exits (or on the next start, if the JVM doesn't get to it).
+     */
+    private static void delete( File file ) {
+
+        try
+        {
+            Files.delete( file.toPath() );
+        }
+        catch (IOException exception)
+        {
+            exception.printStackTrace();
+
+            file.deleteOnExit();
+        }
+    }
+
+    private void deleteSegmentFiles() {
+
+        File[] files = _directory.listFiles();
+
+        if( null == files ) {
+            return;
+        }
+
+        for( File file : files ) {
+
+            String name = file.getName();
+
+            if( name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) && !file.delete() ) {
+                throw new IllegalArgumentException( "can't delete the old segment " + file );
+            }
+        }
+    }
+
+    private static ICacheValue readValue( Location location ) {
+
+        MappedByteBuffer buffer = location._segment._buffer;
+        int offset = location._offset;
+
+        byte[] value = new byte[buffer.getInt( offset + VALUE_LENGTH )];
+
+        ByteBuffer source = buffer.duplicate();
+        source.position( offset + HEADER + buffer.getInt( offset + KEY_LENGTH ) );
+        source.get( value );
+
+        return ValueCodec.decodeValue( buffer.get( offset + VALUE_TYPE ), value );
+    }
+
+    private static Object readKey( ByteBuffer buffer, int offset ) {
+
+        byte[] key = new byte[buffer.getInt( offset + KEY_LENGTH )];
+
+        ByteBuffer source = buffer.duplicate();
+        source.position( offset + HEADER );
+        source.get( key );
+
+        return ValueCodec.decode( buffer.get( offset + KEY_TYPE ), key );
+    }
+
+    //
+    // Items
+    //
+
+    /**
+     * Marks an item's current record as dead space in its segment
+     */
+    private void kill( Location location ) {
+
+        location._segment._liveBytes -= location._length;
+        _bytesUsed -= location._length;
+    }
+
+    private void evict( Location location ) {
+
+        kill( location );
+        unlink( location );
+        _index.remove( location._key );
+    }
+
+    private void linkFront( Location location ) {
+
+        location._previous = null;
+        location._next = _head;
+
+        if( null == _head ) {
+            _tail = location;
+        }
+        else {
+            _head._previous = location;
+        }
+
+        _head = location;
+    }
+
+    private void unlink( Location location ) {
+
+        if( null == location._previous ) {
+            _head = location._next;
+        }
+        else {
+            location._previous._next = location._next;
+        }
+
+        if( null == location._next ) {
+            _tail = location._previous;
+        }
+        else {
+            location._next._previous = location._previous;
+        }
+    }
+
+    private void moveToFront( Location location ) {
+
+        if( _head != location ) {
+            unlink( location );
+            linkFront( location );
+        }
+    }
+
+    /**
+     * One segment file
+     */
+    private static class Segment {
+
+        private final File _file;
+        private final MappedByteBuffer _buffer;
+
+        // Where the next record goes
+        private int _end = 0;
+
+        private long _liveBytes = 0;
+
+        // Deleted, possibly while the compactor was working on it
+        private boolean _dropped = false;
+
+        Segment( File file, MappedByteBuffer buffer ) {
+            _file = file;
+            _buffer = buffer;
+        }
+    }
+
+    /**
+     * Where an item's current record is, and its place in the LRU list
+     */
+    private static class Location {
+
+        private final Object _key;
+
+        private Segment _segment;
+        private int _offset;
+        private int _length;
+
+        private Location _previous;
+        private Location _next;
+
+        Location( Object key ) { _key = key; }
+    }
+}
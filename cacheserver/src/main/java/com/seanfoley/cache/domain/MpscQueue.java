@@ -0,0 +1,110 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A lock-free, unbounded multi-producer single-consumer queue (Dmitry
+ * Vyukov's linked list queue). Any number of threads can offer() at
+ * once, each with a single atomic swap of the tail, but only one thread
+ * may ever poll(). Neither side waits on the other or takes a lock.
+ *
+ * Everything a producer wrote before offer() is visible to the consumer
+ * once poll() returns the item.
+ *
+ * A producer that is between swapping the tail and linking in its node
+ * hides the items behind it for that moment, so poll() can come back
+ * empty even though offer() has returned for a later item. The consumer
+ * just gets it on its next poll().
+ */
+final class MpscQueue<E> {
+
+    // Not private, or the field updater can't get at _next
+    static final class Node<E> {
+
+        E _value;
+        volatile Node<E> _next;
+
+        Node( E value ) { _value = value; }
+    }
+
+    @SuppressWarnings( "rawtypes" )
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater( Node.class, Node.class, "_next" );
+
+    // The last node, swapped by the producers
+    private final AtomicReference<Node<E>> _tail;
+
+    // The node before the first item (only the consumer touches it)
+    private Node<E> _head;
+
+    MpscQueue() {
+        _head = new Node<>( null );
+        _tail = new AtomicReference<>( _head );
+    }
+
+    /**
+     * Adds an item to the end of the queue. Any thread can call this.
+     * @param value the item (not null)
+     */
+    void offer( E value ) {
+
+        if( null == value ) {
+            throw new IllegalArgumentException( "the queue can't hold nulls" );
+        }
+
+        Node<E> node = new Node<>( value );
+        Node<E> previous = _tail.getAndSet( node );
+
+        // The swap already ordered us, so the consumer only has to see
+        // the link eventually
+        NEXT.lazySet( previous, node );
+    }
+
+    /**
+     * Takes the item at the front of the queue. Only the consumer
+     * thread can call this.
+     * @return the item, or null if the queue is empty
+     */
+    E poll() {
+
+        Node<E> next = _head._next;
+
+        if( null == next ) {
+            return null;
+        }
+
+        E value = next._value;
+
+        // The node is the new stub, so let go of the item
+        next._value = null;
+        _head = next;
+
+        return value;
+    }
+
+    /**
+     * Only the consumer thread can call this.
+     * @return true if poll() would return null
+     */
+    boolean isEmpty() {
+        return null == _head._next;
+    }
+}
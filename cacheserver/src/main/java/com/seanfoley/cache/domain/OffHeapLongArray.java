@@ -0,0 +1,70 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size array of longs that lives outside the Java heap. A
+ * single direct buffer tops out at 2 GB, so the array is split into
+ * pages. The heap only holds one small ByteBuffer object per page no
+ * matter how big the array is.
+ *
+ * The longs start out as zero. This class isn't thread-safe.
+ */
+class OffHeapLongArray {
+
+    // 2^27 longs (1 GB) per page
+    private static final int PAGE_SHIFT = 27;
+    private static final long PAGE_MASK = (1L << PAGE_SHIFT) - 1;
+
+    private final ByteBuffer[] _pages;
+    private final long _length;
+
+    OffHeapLongArray( long length ) {
+
+        if( length <= 0 ) {
+            throw new IllegalArgumentException( "the length must be positive" );
+        }
+
+        _length = length;
+
+        int pages = (int) ((length + PAGE_MASK) >>> PAGE_SHIFT);
+        _pages = new ByteBuffer[pages];
+
+        for( int i = 0; i < pages; i++ ) {
+            long longs = Math.min( PAGE_MASK + 1, length - ((long) i << PAGE_SHIFT) );
+            _pages[i] = ByteBuffer.allocateDirect( (int) (longs * Long.BYTES) );
+        }
+    }
+
+    long get( long index ) {
+        return _pages[(int) (index >>> PAGE_SHIFT)].getLong( (int) (index & PAGE_MASK) * Long.BYTES );
+    }
+
+    void set( long index, long value ) {
+        _pages[(int) (index >>> PAGE_SHIFT)].putLong( (int) (index & PAGE_MASK) * Long.BYTES, value );
+    }
+
+    long length() { return _length; }
+
+    /**
+     * @return the memory the array takes up in bytes
+     */
+    long bytes() { return _length * Long.BYTES; }
+}
@@ -0,0 +1,768 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheManager;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * The OperationLog records every add and remove in an append-only file,
+ * so the cache can be rebuilt after a restart (or a crash) by replaying
+ * it.
+ *
+ * Callers don't write to the file themselves. They queue their records
+ * and a single writer thread takes everything that's queued, writes it
+ * with one FileChannel.write() and then syncs according to the policy:
+ *
+ * Always:   sync after every write, and add() callers wait for it (see
+ *           await()). Callers that arrive while a sync is going on are
+ *           written and synced together next time (group commit).
+ * Periodic: sync every so often in the background; a crash loses at
+ *           most that much.
+ * Never:    leave it to the OS.
+ *
+ * If a write fails the log stops there: that record and every one after
+ * it are lost, and await() says so, so the adds and removes that
+ * waited for them fail rather than claim they're on disk.
+ *
+ * The file is a header ([magic][version]) followed by records:
+ *
+ * record: [length of the rest][CRC32 of the rest][op][key type][key length][key]
+ *         and for an add: [value type][value length][value]
+ *                         [when it expires, wall-clock millis, 0 if never]
+ *
+ * Keys and values are encoded with the ValueCodec; items of other types
+ * aren't logged. Expirations aren't logged either, since the add says
+ * when the item expires. A replay stops at the first record that's cut
+ * short or fails its CRC (a crash part way through a write) and cuts
+ * the file off there.
+ *
+ * The log grows with every write, so it's rewritten now and then: the
+ * items in the cache are written to a new file as adds, the records
+ * written in the meantime are added to the end, and the new file
+ * replaces the old one.
+ */
+final class OperationLog implements Closeable {
+
+    /**
+     * Where a replay sends the operations
+     */
+    interface Target extends CacheSnapshot.Sink {
+
+        /**
+         * @param key the key that was removed
+         */
+        void remove( ICacheKey key );
+    }
+
+    private static final int MAGIC = 0x43534f4c;  // CSOL
+    private static final int VERSION = 1;
+    private static final int HEADER = Integer.BYTES + Integer.BYTES;
+
+    private static final int RECORD_HEADER = Integer.BYTES + Integer.BYTES;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    // Rewrite once the log is at least this big and has doubled since the last rewrite
+    private static final long MIN_REWRITE_BYTES = 64 << 20;
+    private static final int REWRITE_GROWTH = 2;
+
+    private final File _file;
+    private final ICacheManager.FsyncPolicy _policy;
+    private final LongSupplier _wallClock;
+    private final long _minRewriteBytes;
+
+    // The queue, guarded by _lock
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _queued = _lock.newCondition();
+    private final Condition _committed = _lock.newCondition();
+    private List<byte[]> _pending = new ArrayList<>();
+    private long _lastQueued = 0;
+    private long _lastCommitted = 0;
+    private boolean _closed = false;
+
+    // Set once a write fails. That record and everything after it is
+    // lost (replay stops at a torn record), so nothing more is written.
+    private boolean _failed = false;
+
+    // Set when the writer thread has finished for good
+    private boolean _stopped = false;
+
+    // The file, guarded by _writeLock (held by the writer while it
+    // writes a batch, and by a rewrite while it swaps the files)
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    private FileChannel _channel;
+    private boolean _dirty = false;
+
+    // Records written while a rewrite is going on, null if there isn't one
+    private ByteArrayOutputStream _rewriteBuffer = null;
+
+    private volatile long _size;
+    private volatile long _rewrittenSize;
+
+    private final ExecutorService _writer;
+    private final ScheduledExecutorService _syncer;
+
+    /**
+     * Opens the log for appending (replay() it first)
+     * @param file the log file, which is created if it isn't there
+     * @param policy when the log is synced to disk
+     * @param fsyncMillis how often a Periodic log is synced
+     * @throws IOException if the file can't be opened or isn't a log
+     */
+    OperationLog( File file, ICacheManager.FsyncPolicy policy, long fsyncMillis ) throws IOException {
+        this( file, policy, fsyncMillis, System::currentTimeMillis, MIN_REWRITE_BYTES );
+    }
+
+    /**
+     * @param file the log file, which is created if it isn't there
+     * @param policy when the log is synced to disk
+     * @param fsyncMillis how often a Periodic log is synced
+     * @param wallClock the wall-clock time in milliseconds, which (unlike
+     *                  the cache's clock) carries on across restarts
+     * @param minRewriteBytes the smallest log that's worth rewriting
+     * @throws IOException if the file can't be opened or isn't a log
+     */
+    OperationLog( File file, ICacheManager.FsyncPolicy policy, long fsyncMillis, LongSupplier wallClock, long minRewriteBytes ) throws IOException {
+
+        if( ICacheManager.FsyncPolicy.Periodic == policy && fsyncMillis <= 0 ) {
+            throw new IllegalArgumentException( "the sync interval must be positive" );
+        }
+
+        _file = file;
+        _policy = policy;
+        _wallClock = wallClock;
+        _minRewriteBytes = minRewriteBytes;
+
+        _channel = open( file );
+        _size = _channel.size();
+        _rewrittenSize = _size;
+
+        _writer = Executors.newSingleThreadExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "cacheserver-oplog" );
+            thread.setDaemon( true );
+            return thread;
+        });
+
+        _writer.execute( this::writeBatches );
+
+        if( ICacheManager.FsyncPolicy.Periodic == policy ) {
+
+            _syncer = Executors.newSingleThreadScheduledExecutor( runnable -> {
+                Thread thread = new Thread( runnable, "cacheserver-oplog-sync" );
+                thread.setDaemon( true );
+                return thread;
+            });
+
+            _syncer.scheduleWithFixedDelay( this::sync, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS );
+        }
+        else {
+            _syncer = null;
+        }
+    }
+
+    /**
+     * Replays a log, cutting off a record that was only partly written
+     * @param file the log file (it's fine if it isn't there)
+     * @param wallClock the wall-clock time in milliseconds
+     * @param target where the operations go
+     * @return the number of operations replayed
+     * @throws IOException if the file can't be read or isn't a log
+     */
+    static long replay( File file, LongSupplier wallClock, Target target ) throws IOException {
+
+        if( !file.exists() || 0 == file.length() ) {
+            return 0;
+        }
+
+        try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+
+            DataInputStream in = new DataInputStream( new BufferedInputStream( Channels.newInputStream( channel ), 1 << 16 ) );
+
+            if( channel.size() < HEADER || MAGIC != in.readInt() || VERSION != in.readInt() ) {
+                throw new IOException( file + " isn't an operation log (or is from a different version)" );
+            }
+
+            long size = channel.size();
+            long good = HEADER;
+            long replayed = 0;
+
+            CRC32 crc = new CRC32();
+
+            try {
+                while( good < size ) {
+
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+
+                    if( length <= 0 || length > size - good - RECORD_HEADER ) {
+                        break;
+                    }
+
+                    byte[] record = new byte[length];
+                    in.readFully( record );
+
+                    crc.reset();
+                    crc.update( record, 0, length );
+
+                    if( checksum != (int) crc.getValue() || !apply( record, wallClock.getAsLong(), target ) ) {
+                        break;
+                    }
+
+                    good += RECORD_HEADER + length;
+                    replayed++;
+                }
+            }
+            catch (EOFException exception) {
+                // Cut short, we'll drop it below
+            }
+
+            if( good < size ) {
+                System.err.printf( "Dropping %d bytes of partly written records from the end of %s\n", size - good, file );
+                channel.truncate( good );
+            }
+
+            return replayed;
+        }
+    }
+
+    /**
+     * @return false if the record doesn't make sense
+     */
+    private static boolean apply( byte[] bytes, long now, Target target ) {
+
+        ByteBuffer record = ByteBuffer.wrap( bytes );
+
+        try {
+            byte op = record.get();
+            byte keyType = record.get();
+            byte[] key = new byte[record.getInt()];
+            record.get( key );
+
+            ICacheKey k = new CacheKey( ValueCodec.decode( keyType, key ) );
+
+            switch( op )
+            {
+                case ADD:
+                    byte valueType = record.get();
+                    byte[] value = new byte[record.getInt()];
+                    record.get( value );
+
+                    long expires = record.getLong();
+
+                    if( 0 == expires ) {
+                        target.add( k, ValueCodec.decodeValue( valueType, value ), 0 );
+                    }
+                    else if( expires > now ) {
+                        target.add( k, ValueCodec.decodeValue( valueType, value ), expires - now );
+                    }
+                    else {
+                        // It's expired since, so whatever it replaced is gone too
+                        target.remove( k );
+                    }
+
+                    return true;
+
+                case REMOVE:
+                    target.remove( k );
+                    return true;
+
+                default:
+                    return false;
+            }
+        }
+        catch (BufferUnderflowException | NegativeArraySizeException | IllegalArgumentException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Queues an add
+     * @param key the key
+     * @param value the value
+     * @param ttlMillis how long the item lives, 0 if it doesn't expire
+     * @return the record's sequence number for await(), or 0 if the key
+     * or value can't be logged (or the log is closed)
+     */
+    long add( ICacheKey key, ICacheValue value, long ttlMillis ) {
+
+        byte[] record = record( ADD, key, value, ttlMillis );
+
+        return null == record ? 0 : queue( record );
+    }
+
+    /**
+     * Queues a remove
+     * @param key the key
+     * @return the record's sequence number for await(), or 0 if the key
+     * can't be logged (or the log is closed)
+     */
+    long remove( ICacheKey key ) {
+
+        byte[] record = record( REMOVE, key, null, 0 );
+
+        return null == record ? 0 : queue( record );
+    }
+
+    /**
+     * Waits until a record is on disk if the policy is Always (the other
+     * policies don't wait)
+     * @param sequence the record's sequence number from add() or remove()
+     * @return false if the record was lost because writing the log
+     * failed (with the other policies, if the log has failed at all)
+     */
+    boolean await( long sequence ) {
+
+        if( 0 == sequence ) {
+            return true;
+        }
+
+        _lock.lock();
+
+        try {
+            if( ICacheManager.FsyncPolicy.Always != _policy ) {
+                return !_failed;
+            }
+
+            while( _lastCommitted < sequence && !_failed && !_stopped ) {
+                _committed.awaitUninterruptibly();
+            }
+
+            return _lastCommitted >= sequence;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of the log file
+     */
+    long size() { return _size; }
+
+    /**
+     * @return the file's channel (tests close it to make the writes fail)
+     */
+    FileChannel channel() { return _channel; }
+
+    /**
+     * @return true once the log is big enough, and has grown enough since
+     * the last rewrite, to be worth rewriting
+     */
+    boolean needsRewrite() {
+
+        long size = _size;
+
+        return size >= _minRewriteBytes && size >= _rewrittenSize * REWRITE_GROWTH;
+    }
+
+    /**
+     * Replaces the log with the items in the cache, plus whatever is
+     * logged while that's being written. Adds and removes carry on as
+     * normal in the meantime.
+     * @param items the items in the cache
+     * @throws IOException if the new log can't be written (the old one
+     * carries on)
+     */
+    synchronized void rewrite( CacheSnapshot.Source items ) throws IOException {
+
+        File temporary = new File( _file.getPath() + ".rewrite" );
+
+        // Records written from now on go in the new log too. Anything
+        // written before this is already in the cache.
+        _writeLock.lock();
+        try {
+            _rewriteBuffer = new ByteArrayOutputStream();
+        }
+        finally {
+            _writeLock.unlock();
+        }
+
+        boolean rewritten = false;
+
+        try( FileOutputStream file = new FileOutputStream( temporary ) ) {
+
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( file, 1 << 16 ) );
+
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+
+            try {
+                items.forEach( (key, value, ttlMillis) -> {
+
+                    byte[] record = record( ADD, key, value, ttlMillis );
+
+                    if( null != record ) {
+                        try {
+                            out.write( record );
+                        }
+                        catch (IOException exception) {
+                            throw new UncheckedIOException( exception );
+                        }
+                    }
+                });
+            }
+            catch (UncheckedIOException exception) {
+                throw exception.getCause();
+            }
+
+            _writeLock.lock();
+
+            try {
+                _rewriteBuffer.writeTo( out );
+                out.flush();
+                file.getChannel().force( true );
+
+                Files.move( temporary.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+                _channel.close();
+                _channel = open( _file );
+                _size = _channel.size();
+                _rewrittenSize = _size;
+                _dirty = false;
+
+                rewritten = true;
+            }
+            finally {
+                _writeLock.unlock();
+            }
+        }
+        finally {
+            _writeLock.lock();
+            try {
+                _rewriteBuffer = null;
+            }
+            finally {
+                _writeLock.unlock();
+            }
+
+            if( !rewritten && temporary.exists() && !temporary.delete() ) {
+                System.err.printf( "Can't delete the partial log rewrite %s\n", temporary );
+            }
+        }
+    }
+
+    /**
+     * Writes whatever is queued, syncs and closes the file
+     */
+    @Override
+    public void close() {
+
+        _lock.lock();
+        try {
+            if( _closed ) {
+                return;
+            }
+
+            _closed = true;
+            _queued.signalAll();
+        }
+        finally {
+            _lock.unlock();
+        }
+
+        _writer.shutdown();
+
+        if( null != _syncer ) {
+            _syncer.shutdownNow();
+        }
+
+        try {
+            _writer.awaitTermination( 10, TimeUnit.SECONDS );
+        }
+        catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        _writeLock.lock();
+        try {
+            // Not if a failed write left it closed
+            if( _channel.isOpen() ) {
+                _channel.force( true );
+                _channel.close();
+            }
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+        finally {
+            _writeLock.unlock();
+        }
+    }
+
+    private long queue( byte[] record ) {
+
+        _lock.lock();
+
+        try {
+            // Shutting down; it's too late to log anything
+            if( _closed ) {
+                return 0;
+            }
+
+            // The writer has given up, so don't let the queue grow (await()
+            // still says the record was lost)
+            if( !_failed ) {
+                _pending.add( record );
+                _queued.signal();
+            }
+
+            return ++_lastQueued;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * The writer thread: takes whatever is queued and writes it in one go
+     */
+    private void writeBatches() {
+
+        ByteBuffer buffer = ByteBuffer.allocate( 1 << 16 );
+
+        while( true ) {
+
+            List<byte[]> batch;
+            long last;
+
+            _lock.lock();
+
+            try {
+                while( _pending.isEmpty() && !_closed ) {
+                    _queued.awaitUninterruptibly();
+                }
+
+                // Once a write has failed everything queued is lost too
+                if( _pending.isEmpty() || _failed ) {
+                    _pending.clear();
+                    _stopped = true;
+                    _committed.signalAll();
+                    return;
+                }
+
+                batch = _pending;
+                _pending = new ArrayList<>();
+                last = _lastQueued;
+            }
+            finally {
+                _lock.unlock();
+            }
+
+            int length = 0;
+            for( byte[] record : batch ) {
+                length += record.length;
+            }
+
+            if( buffer.capacity() < length ) {
+                buffer = ByteBuffer.allocate( Math.max( length, buffer.capacity() * 2 ) );
+            }
+
+            buffer.clear();
+            for( byte[] record : batch ) {
+                buffer.put( record );
+            }
+            buffer.flip();
+
+            boolean written = write( buffer );
+
+            _lock.lock();
+
+            try {
+                if( written ) {
+                    _lastCommitted = last;
+                }
+                else {
+                    _failed = true;
+                }
+
+                _committed.signalAll();
+            }
+            finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return false if the batch couldn't be written (or synced)
+     */
+    private boolean write( ByteBuffer batch ) {
+
+        _writeLock.lock();
+
+        try {
+            int length = batch.remaining();
+
+            while( batch.hasRemaining() ) {
+                _channel.write( batch );
+            }
+
+            _size += length;
+
+            if( null != _rewriteBuffer ) {
+                _rewriteBuffer.write( batch.array(), 0, length );
+            }
+
+            if( ICacheManager.FsyncPolicy.Always == _policy ) {
+                _channel.force( false );
+            }
+            else {
+                _dirty = true;
+            }
+
+            return true;
+        }
+        catch (IOException exception) {
+            System.err.printf( "Can't write the operation log %s, no more adds or removes will be logged: %s\n",
+                    _file, exception.getMessage() );
+            return false;
+        }
+        finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /**
+     * The Periodic policy's background sync
+     */
+    private void sync() {
+
+        _writeLock.lock();
+
+        try {
+            if( _dirty ) {
+                _channel.force( false );
+                _dirty = false;
+            }
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+        finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the record, or null if the key or value is a type the codec can't store
+     */
+    private byte[] record( byte op, ICacheKey key, ICacheValue value, long ttlMillis ) {
+
+        byte keyType;
+        byte[] keyBytes;
+        byte valueType = 0;
+        byte[] valueBytes = null;
+
+        try
+        {
+            keyType = ValueCodec.typeOf( key.getKey() );
+            keyBytes = ValueCodec.encode( key.getKey() );
+
+            if( ADD == op ) {
+                valueType = ValueCodec.typeOf( value.getValue() );
+                valueBytes = ValueCodec.encode( value.getValue() );
+            }
+        }
+        catch (IllegalArgumentException exception)
+        {
+            return null;
+        }
+
+        int length = 1 + 1 + Integer.BYTES + keyBytes.length;
+
+        if( ADD == op ) {
+            length += 1 + Integer.BYTES + valueBytes.length + Long.BYTES;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate( RECORD_HEADER + length );
+
+        record.position( RECORD_HEADER );
+        record.put( op );
+        record.put( keyType );
+        record.putInt( keyBytes.length );
+        record.put( keyBytes );
+
+        if( ADD == op ) {
+            record.put( valueType );
+            record.putInt( valueBytes.length );
+            record.put( valueBytes );
+            record.putLong( 0 == ttlMillis ? 0 : _wallClock.getAsLong() + ttlMillis );
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( record.array(), RECORD_HEADER, length );
+
+        record.putInt( 0, length );
+        record.putInt( Integer.BYTES, (int) crc.getValue() );
+
+        return record.array();
+    }
+
+    /**
+     * Opens the log for appending, writing the header if it's new
+     */
+    private static FileChannel open( File file ) throws IOException {
+
+        FileChannel channel = FileChannel.open( file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+
+        if( 0 == channel.size() ) {
+
+            ByteBuffer header = ByteBuffer.allocate( HEADER );
+            header.putInt( MAGIC ).putInt( VERSION ).flip();
+
+            while( header.hasRemaining() ) {
+                channel.write( header );
+            }
+        }
+
+        return channel;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * The OutboundQueue holds the responses waiting to be written to a
+ * client, in the order they need to go out. It hands them to the socket
+ * in batches so they can be sent with a single gathering write, and it
+ * tracks how many bytes are waiting so the connection can apply
+ * backpressure: once the queue grows past the high-water mark the
+ * connection should stop reading (and handling) requests until the
+ * client catches up and the queue drains below the low-water mark.
+ *
+ * Responses are copied into buffers from a BufferPool and the buffers
+ * go back to the pool as soon as they have been written. Small responses
+ * are packed into the last buffer in the queue while it has room (and a
+ * write hasn't picked it up yet), so a burst of pipelined replies only
+ * takes a few buffers.
+ *
+ * This class isn't thread-safe; the owning connection is expected to
+ * guard it.
+ */
+class OutboundQueue {
+
+    private final BufferPool _pool;
+
+    private final ArrayDeque<ByteBuffer> _queue = new ArrayDeque<>();
+
+    // Reused for every gathering write
+    private final ByteBuffer[] _batch;
+    private int _batchCount = 0;
+
+    private final long _highWaterMark;
+    private final long _lowWaterMark;
+
+    // The number of bytes queued up that haven't been written yet
+    private long _size = 0;
+
+    // The last buffer in the queue, if we filled it and no write has
+    // seen it yet (so more responses can be packed into it)
+    private ByteBuffer _tail = null;
+
+    // How much of the tail has been filled. No write has touched the
+    // tail, so its bytes always start at zero.
+    private int _tailEnd = 0;
+
+    /**
+     * @param pool where the response buffers come from
+     * @param maxBatch the most buffers handed to a single gathering write
+     * @param highWaterMark stop reading once this many bytes are queued
+     * @param lowWaterMark resume reading once the queue drains to this many bytes
+     */
+    OutboundQueue( BufferPool pool, int maxBatch, long highWaterMark, long lowWaterMark ) {
+
+        if( maxBatch <= 0 ) {
+            throw new IllegalArgumentException( "the batch size must be positive" );
+        }
+
+        if( lowWaterMark > highWaterMark ) {
+            throw new IllegalArgumentException( "the low-water mark can't be above the high-water mark" );
+        }
+
+        _pool = pool;
+        _batch = new ByteBuffer[maxBatch];
+        _highWaterMark = highWaterMark;
+        _lowWaterMark = lowWaterMark;
+    }
+
+    /**
+     * Queues up a response to be written. Once it has been written the
+     * buffer is released to the pool (heap buffers are just dropped).
+     * @param buffer the response, ready to be read (i.e. flipped)
+     */
+    void add( ByteBuffer buffer ) {
+        _queue.add( buffer );
+        _size += buffer.remaining();
+        _tail = null;
+    }
+
+    /**
+     * Copies a response into a pooled buffer and queues it up
+     * @param response the response bytes
+     */
+    void add( byte[] response ) {
+
+        ByteBuffer buffer = reserve( response.length );
+        buffer.put( response );
+        commit( buffer );
+    }
+
+    /**
+     * Formats a response straight into a pooled buffer and queues it up
+     * @param response the response to write
+     */
+    void add( ResponseFormatter response ) {
+
+        ByteBuffer buffer = reserve( response.encodedLength() );
+        response.format( buffer );
+        commit( buffer );
+    }
+
+    boolean isEmpty() { return _queue.isEmpty(); }
+
+    /**
+     * @return the number of bytes waiting to be written
+     */
+    long size() { return _size; }
+
+    boolean isAboveHighWater() { return _size > _highWaterMark; }
+
+    boolean isBelowLowWater() { return _size <= _lowWaterMark; }
+
+    /**
+     * Fills the batch with the buffers at the head of the queue.
+     * @return the number of buffers in the batch
+     */
+    int gather() {
+
+        // The write owns these buffers now
+        _tail = null;
+        _batchCount = 0;
+
+        Iterator<ByteBuffer> iterator = _queue.iterator();
+        while( _batchCount < _batch.length && iterator.hasNext() ) {
+            _batch[_batchCount++] = iterator.next();
+        }
+
+        return _batchCount;
+    }
+
+    /**
+     * @return the buffers filled in by the last call to gather()
+     */
+    ByteBuffer[] batch() { return _batch; }
+
+    /**
+     * Drops the buffers that have been completely written from the head
+     * of the queue. Call this when a gathering write completes.
+     * @param bytesWritten the number of bytes the write took
+     */
+    void written( long bytesWritten ) {
+
+        _size -= bytesWritten;
+
+        while( !_queue.isEmpty() && !_queue.peek().hasRemaining() ) {
+            _pool.release( _queue.poll() );
+        }
+
+        // Don't hang on to the responses while we wait on the client
+        Arrays.fill( _batch, 0, _batchCount, null );
+        _batchCount = 0;
+    }
+
+    /**
+     * Throws away anything that hasn't been written and gives the buffers
+     * back to the pool. Only call this when no write is in progress.
+     */
+    void clear() {
+
+        ByteBuffer buffer;
+        while( null != (buffer = _queue.poll()) ) {
+            _pool.release( buffer );
+        }
+
+        Arrays.fill( _batch, 0, _batchCount, null );
+        _batchCount = 0;
+        _size = 0;
+        _tail = null;
+    }
+
+    /**
+     * Gets a buffer with room for length more bytes, positioned where
+     * they should be written. Either the tail buffer or a new one.
+     */
+    private ByteBuffer reserve( int length ) {
+
+        if( null != _tail && _tail.capacity() - _tail.limit() >= length ) {
+            _tail.position( _tailEnd );
+            _tail.limit( _tail.capacity() );
+            return _tail;
+        }
+
+        _tail = _pool.acquire( length );
+        _tailEnd = 0;
+        _queue.add( _tail );
+
+        return _tail;
+    }
+
+    /**
+     * Makes what was written into the reserved buffer ready to be read
+     */
+    private void commit( ByteBuffer buffer ) {
+
+        int end = buffer.position();
+
+        _size += end - _tailEnd;
+        _tailEnd = end;
+
+        buffer.limit( end );
+        buffer.position( 0 );
+    }
+}
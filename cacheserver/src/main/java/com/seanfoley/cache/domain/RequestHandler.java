@@ -0,0 +1,234 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheLease;
+import com.seanfoley.cache.interfaces.ICacheManager;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * The RequestHandler executes client requests against the cache.
+ * It is the piece every network server has in common: the servers
+ * deal with sockets and framing, then hand each complete command
+ * to a RequestHandler and send back whatever it returns.
+ *
+ * A connection starts out in the default namespace and +use switches
+ * it to another one for the rest of the connection (or until the next
+ * +use).
+ *
+ * A handler isn't thread-safe. Each connection should use its own.
+ */
+class RequestHandler {
+
+    // Sent to a client when it connects and right before we hang up
+    static final byte[] GREETING = "Cache Server - let's store some stuff\r\n".getBytes();
+    static final byte[] GOOD_BYE = "Good Bye\n".getBytes();
+
+    // Only used if nothing has created the cache yet (Main creates it
+    // from the CacheServerConfig before it starts a server)
+    private static final int ITEMS = 100000;
+
+    // The replies that never change, encoded once
+    private static final ResponseFormatter OK = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Ok );
+    private static final ResponseFormatter ADD_FAILED = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Err, "error adding key to cache" );
+    private static final ResponseFormatter KEY_NOT_FOUND = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Err, "key not found" );
+    private static final ResponseFormatter REMOVE_NOT_FOUND = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Err, "removing key not found" );
+    private static final ResponseFormatter UNKNOWN_COMMAND = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Err, "unknown or unexpected command" );
+    private static final ResponseFormatter LEASE_FAILED = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Err, "lease not held" );
+    private static final ResponseFormatter WAIT = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Wait );
+    private static final ResponseFormatter UNKNOWN_NAMESPACE = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Err, "unknown namespace" );
+
+    // The default namespace, and the one the connection is using
+    private final ICacheManager _defaultCacheManager;
+    private ICacheManager _cacheManager;
+
+    // Looks up the other namespaces by name (null if there isn't one)
+    private final Function<String, ICacheManager> _namespaces;
+
+    // Reused for every request on the connection
+    private final RequestParser _parser = new RequestParser();
+    private final ResponseFormatter _valueResponse = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Ok, (ICacheValue) null );
+    private final ResponseFormatter _staleResponse = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Stale, (ICacheValue) null );
+    private final ResponseFormatter _leaseResponse = new ResponseFormatter(
+            ResponseFormatter.ServerResult.Lease, 0 );
+
+    RequestHandler() { this( CacheManager.Instance( ITEMS ) ); }
+
+    RequestHandler( ICacheManager cacheManager ) { this( cacheManager, CacheManager::Namespace ); }
+
+    RequestHandler( ICacheManager cacheManager, Function<String, ICacheManager> namespaces ) {
+
+        _defaultCacheManager = cacheManager;
+        _cacheManager = cacheManager;
+        _namespaces = namespaces;
+    }
+
+    /**
+     * The method will parse the raw byte buffer into a request,
+     * execute the requested operation, and build response for the
+     * client.
+     * @param request the raw byte buffer received over the socket
+     * @return the response to the request
+     */
+    String handle(byte[] request)
+    {
+        return handle( ByteBuffer.wrap( request ) ).format();
+    }
+
+    /**
+     * Same as handle(byte[]), but parses the request in place (e.g. a
+     * frame straight out of the connection's read buffer) and leaves the
+     * response unformatted so it can be written straight into an
+     * outbound buffer. The response is only good until the next call.
+     * @param request the request between the buffer's position and limit
+     * @return the response to the request
+     */
+    ResponseFormatter handle(ByteBuffer request)
+    {
+        RequestParser parser = _parser;
+        parser.parse(request);
+
+        int token = parser.getToken();
+
+        ICacheKey key = null;
+        ICacheValue value = null;
+
+        ResponseFormatter response;
+
+        switch( token )
+        {
+            case RequestParser.TOKEN_ADD:
+
+                key = parser.getCacheKey();
+                value = parser.getCacheValue();
+
+                long ttl = parser.getTtl();
+
+                boolean ok = ttl > 0
+                        ? _cacheManager.add(key, value, ttl )
+                        : _cacheManager.add(key, value );
+
+                response = ok ? OK : ADD_FAILED;
+
+                break;
+
+            case RequestParser.TOKEN_GET:
+                key = parser.getCacheKey();
+                value = _cacheManager.get(key);
+
+                if( null != value) {
+                    response = _valueResponse;
+                    response.setCacheValue( value );
+
+                    long recompute = parser.getRecomputeMillis();
+
+                    response.setRefresh( recompute > 0 && _cacheManager.shouldRefresh( key, recompute ) );
+                }
+                else {
+                    response = KEY_NOT_FOUND;
+                }
+
+                break;
+
+            case RequestParser.TOKEN_GETLEASE:
+                key = parser.getCacheKey();
+
+                ICacheLease lease = _cacheManager.getLease(key);
+
+                switch( lease.getStatus() )
+                {
+                    case Hit:
+                        response = _valueResponse;
+                        response.setCacheValue( lease.getValue() );
+                        response.setRefresh( false );
+                        break;
+
+                    case Granted:
+                        response = _leaseResponse;
+                        response.setLeaseToken( lease.getToken() );
+                        break;
+
+                    case Wait:
+                    default:
+                        if( null != lease.getValue() ) {
+                            response = _staleResponse;
+                            response.setCacheValue( lease.getValue() );
+                        }
+                        else {
+                            response = WAIT;
+                        }
+                }
+
+                break;
+
+            case RequestParser.TOKEN_ADDLEASE:
+                key = parser.getCacheKey();
+                value = parser.getCacheValue();
+
+                response = _cacheManager.addLease(key, value, parser.getLeaseToken(), parser.getTtl() )
+                        ? OK : LEASE_FAILED;
+
+                break;
+
+            case RequestParser.TOKEN_REMOVE:
+                key = parser.getCacheKey();
+
+                response = _cacheManager.remove(key) ? OK : REMOVE_NOT_FOUND;
+
+                break;
+
+            case RequestParser.TOKEN_USE:
+                String namespace = parser.getNamespace();
+
+                ICacheManager cacheManager = CacheManager.DEFAULT_NAMESPACE.equals( namespace )
+                        ? _defaultCacheManager
+                        : _namespaces.apply( namespace );
+
+                if( null != cacheManager ) {
+                    _cacheManager = cacheManager;
+                    response = OK;
+                }
+                else {
+                    response = UNKNOWN_NAMESPACE;
+                }
+
+                break;
+
+            case RequestParser.TOKEN_UNKNOWN:
+            default:
+
+                response = UNKNOWN_COMMAND;
+        }
+
+        return response;
+    }
+}
@@ -20,12 +20,16 @@ package com.seanfoley.cache.domain;
 import com.seanfoley.cache.interfaces.ICacheKey;
 import com.seanfoley.cache.interfaces.ICacheValue;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 /**
  * This class implements the server protocol that clients
  * can use to interact with the cache remotely. The protocol
  * follows a request/response pattern and is extremely simple:
  *
- * <command><space><key><space>|<value><terminator>
+ * <command><space><key><space>|<value>[<space><ttl>]<terminator>
  *
  * command: a string prefixed with a +
  * key: a string representing the cache key. it cannot contain spaces
@@ -35,12 +39,25 @@ import com.seanfoley.cache.interfaces.ICacheValue;
  *        For instance, based64 encoding the string will solve this problem
  *        at the expense of encoding/decoding overhead and a bigger
  *        value object.
+ * ttl: optional (+add only), how long the item lives in milliseconds
+ * token: the lease token from +getlease (+addlease only)
+ * recompute: optional (+get only), roughly how long the client takes to
+ *        rebuild the value, in milliseconds. The server uses it to tell
+ *        one client to refresh the value a little before it expires.
+ * namespace: (+use only) the namespace the connection's later commands
+ *        go to, in place of a key
  * terminator: A carriage-return/line-feed (\r\n) is used to terminate the command.
  *
  * Example Commands:
  * +add key value\r\n
+ * +add key value 60000\r\n
+ * +addlease key value 42\r\n
+ * +addlease key value 42 60000\r\n
  * +get key\r\n
+ * +get key 250\r\n
+ * +getlease key\r\n
  * +remove key\r\n
+ * +use namespace\r\n
  *
  * The server responds with:
  * <status><space>|<value>|<message><terminator>
@@ -54,109 +71,352 @@ import com.seanfoley.cache.interfaces.ICacheValue;
  * +OK some-cache-value\r\n
  * -ERR key not found\r\n
  *
+ * The parser works directly on the bytes of a command (usually a view
+ * over the connection's read buffer) without building any intermediate
+ * Strings. It matches the command bytes and records where the key and
+ * value are as offset/length pairs within the buffer. The key and value
+ * are only created when someone asks for them, as a ByteArrayKey and a
+ * ByteArrayValue holding a copy of their bytes.
+ *
+ * A parser can (and should) be reused for every command on a connection.
+ * The offsets are only valid while the buffer that was parsed is.
  */
 class RequestParser {
 
-    private static final String COMMAND_ADD = "+add";
-    private static final String COMMAND_GET = "+get";
-    private static final String COMMAND_REMOVE = "+remove";
+    private static final byte[] COMMAND_ADD = "+add".getBytes();
+    private static final byte[] COMMAND_GET = "+get".getBytes();
+    private static final byte[] COMMAND_ADDLEASE = "+addlease".getBytes();
+    private static final byte[] COMMAND_GETLEASE = "+getlease".getBytes();
+    private static final byte[] COMMAND_REMOVE = "+remove".getBytes();
+    private static final byte[] COMMAND_USE = "+use".getBytes();
 
     public static final int TOKEN_ADD = 0;
     public static final int TOKEN_GET = 1;
     public static final int TOKEN_REMOVE = 2;
+    public static final int TOKEN_ADDLEASE = 3;
+    public static final int TOKEN_GETLEASE = 4;
+    public static final int TOKEN_USE = 5;
     public static final int TOKEN_UNKNOWN = -1;
 
-    private static final String[] COMMANDS = {
-            COMMAND_ADD,
-            COMMAND_GET,
-            COMMAND_REMOVE
-    };
+    private static final byte SPACE = ' ';
+
+    // The command that was parsed
+    private ByteBuffer _buffer = null;
+
+    // Where the key and value are in the buffer (absolute indexes)
+    private int _keyOffset = 0;
+    private int _keyLength = 0;
+    private int _valueOffset = 0;
+    private int _valueLength = 0;
 
-    private static final int[] TOKENS = {
-            TOKEN_ADD,
-            TOKEN_GET,
-            TOKEN_REMOVE,
-            TOKEN_UNKNOWN
-    };
+    // The +add time to live, 0 if none was given
+    private long _ttl = 0;
 
-    private CacheKey _key = null;
-    private CacheValue _value = null;
+    // The +get recompute time, 0 if none was given
+    private long _recompute = 0;
+
+    // The +addlease token
+    private long _leaseToken = 0;
+
+    // Built on demand from the offsets above
+    private ByteArrayKey _key = null;
+    private ByteArrayValue _value = null;
 
     // Default is we don't know what type of command (token)
     // was given.
     private int _token = TOKEN_UNKNOWN;
 
     public int getToken() { return _token; }
-    public ICacheKey getCacheKey() { return _key; }
-    public ICacheValue getCacheValue() { return _value; }
+
+    public int getKeyOffset() { return _keyOffset; }
+    public int getKeyLength() { return _keyLength; }
+    public int getValueOffset() { return _valueOffset; }
+    public int getValueLength() { return _valueLength; }
+    public long getTtl() { return _ttl; }
+    public long getRecomputeMillis() { return _recompute; }
+    public long getLeaseToken() { return _leaseToken; }
+
+    public ICacheKey getCacheKey() {
+
+        if( null == _key && _keyLength > 0 ) {
+            _key = new ByteArrayKey( bytes( _keyOffset, _keyLength ) );
+        }
+
+        return _key;
+    }
+
+    /**
+     * @return the +use namespace, which is where the key would be
+     */
+    public String getNamespace() {
+        return _keyLength > 0 ? new String( bytes( _keyOffset, _keyLength ), StandardCharsets.UTF_8 ) : null;
+    }
+
+    public ICacheValue getCacheValue() {
+
+        if( null == _value && _valueLength > 0 ) {
+            _value = new ByteArrayValue( bytes( _valueOffset, _valueLength ) );
+        }
+
+        return _value;
+    }
 
     public void parse(byte[] bytes) {
+        parse( ByteBuffer.wrap( bytes ) );
+    }
 
-        String buffer = new String( bytes );
+    /**
+     * Parses the command between the buffer's position and limit. The
+     * buffer's position and limit aren't changed.
+     * @param buffer the command, with or without the \r\n terminator
+     */
+    public void parse(ByteBuffer buffer) {
 
-        String[] s = buffer.split(" ");
+        _buffer = buffer;
+        _token = TOKEN_UNKNOWN;
+        _key = null;
+        _value = null;
+        _keyOffset = _keyLength = 0;
+        _valueOffset = _valueLength = 0;
+        _ttl = 0;
+        _recompute = 0;
+        _leaseToken = 0;
 
-        if( s.length > 0 )
-        {
-            _token = tokenize(s[ 0 ] );
+        int start = buffer.position();
+        int end = buffer.limit();
+
+        // Drop the terminator
+        if( end - start >= 2 && buffer.get( end - 2 ) == '\r' && buffer.get( end - 1 ) == '\n' ) {
+            end -= 2;
+        }
+
+        int commandEnd = indexOf( SPACE, start, end );
+
+        // Every command has at least a key
+        if( commandEnd == end ) {
+            return;
         }
 
+        int token = tokenize( start, commandEnd );
 
-        final String CRLF = "\r\n";
-        final String EMPTY = "";
+        int keyStart = commandEnd + 1;
+        int keyEnd = indexOf( SPACE, keyStart, end );
 
-        switch( _token )
+        if( keyEnd == keyStart ) {
+            return;
+        }
+
+        switch( token )
         {
             case TOKEN_ADD:
-                if( s.length == 3 ) {
-                    _key   = new CacheKey(s[1]);
-                    _value = new CacheValue(s[2].replace(CRLF, EMPTY));
+                int valueStart = keyEnd + 1;
+
+                // Exactly one value, and it can't have spaces in it
+                if( valueStart >= end ) {
+                    return;
                 }
 
+                int valueEnd = indexOf( SPACE, valueStart, end );
+
+                if( valueEnd == valueStart ) {
+                    return;
+                }
+
+                // Then maybe a time to live
+                if( valueEnd != end ) {
+
+                    long ttl = number( valueEnd + 1, end );
+
+                    if( ttl <= 0 ) {
+                        return;
+                    }
+
+                    _ttl = ttl;
+                }
+
+                _valueOffset = valueStart;
+                _valueLength = valueEnd - valueStart;
                 break;
 
             case TOKEN_GET:
-                if( s.length == 2 )
-                {
-                    _key   = new CacheKey(s[1].replace(CRLF, EMPTY));
+                // Maybe a recompute time
+                if( keyEnd != end ) {
+
+                    long recompute = number( keyEnd + 1, end );
+
+                    if( recompute <= 0 ) {
+                        return;
+                    }
+
+                    _recompute = recompute;
                 }
+                break;
 
+            case TOKEN_ADDLEASE:
+                if( !parseAddLease( keyEnd + 1, end ) ) {
+                    return;
+                }
                 break;
 
+            case TOKEN_GETLEASE:
             case TOKEN_REMOVE:
-                if( s.length == 2 )
-                {
-                    _key   = new CacheKey(s[1].replace(CRLF, EMPTY));
+            case TOKEN_USE:
+                if( keyEnd != end ) {
+                    return;
                 }
                 break;
 
             case TOKEN_UNKNOWN:
             default:
+                return;
         }
 
+        _token = token;
+        _keyOffset = keyStart;
+        _keyLength = keyEnd - keyStart;
     }
 
-    private int tokenize( String s ) {
+    private int tokenize( int start, int end ) {
 
-        // The tokenizer isn't super efficient. If we had a
-        // big knarly string of 10KB that wasn't formatted how we
-        // expect it to be, the tokenizer would search
-        // through all of that. Since we know the maximum length
-        // of a command, we can truncate the string and only
-        // search a portion.
-        final int MAX_CMD_LENGTH = 10;
-        int offset = s.length() >= MAX_CMD_LENGTH ? MAX_CMD_LENGTH: s.length();
-
-        String cmd = s.substring(0, offset );
+        // The commands all start with + and differ by their second
+        // byte, so we only ever compare against one of them
+        if( end - start < 2 || _buffer.get( start ) != '+' ) {
+            return TOKEN_UNKNOWN;
+        }
 
-        for( int i = 0; i < COMMANDS.length; i++ )
+        switch( _buffer.get( start + 1 ) )
         {
-            if( cmd.contains(COMMANDS[i] ) ) {
-                return TOKENS[i];
+            case 'a':
+                return matches( COMMAND_ADD, start, end ) ? TOKEN_ADD
+                        : matches( COMMAND_ADDLEASE, start, end ) ? TOKEN_ADDLEASE : TOKEN_UNKNOWN;
+
+            case 'g':
+                return matches( COMMAND_GET, start, end ) ? TOKEN_GET
+                        : matches( COMMAND_GETLEASE, start, end ) ? TOKEN_GETLEASE : TOKEN_UNKNOWN;
+
+            case 'r':
+                return matches( COMMAND_REMOVE, start, end ) ? TOKEN_REMOVE : TOKEN_UNKNOWN;
+
+            case 'u':
+                return matches( COMMAND_USE, start, end ) ? TOKEN_USE : TOKEN_UNKNOWN;
+
+            default:
+                return TOKEN_UNKNOWN;
+        }
+    }
+
+    /**
+     * Parses what follows the key of an +addlease: value token [ttl]
+     * @return false if it's malformed
+     */
+    private boolean parseAddLease( int valueStart, int end ) {
+
+        if( valueStart >= end ) {
+            return false;
+        }
+
+        int valueEnd = indexOf( SPACE, valueStart, end );
+
+        if( valueEnd == valueStart || valueEnd == end ) {
+            return false;
+        }
+
+        int tokenEnd = indexOf( SPACE, valueEnd + 1, end );
+
+        long token = number( valueEnd + 1, tokenEnd );
+
+        if( token <= 0 ) {
+            return false;
+        }
+
+        if( tokenEnd != end ) {
+
+            long ttl = number( tokenEnd + 1, end );
+
+            if( ttl <= 0 ) {
+                return false;
+            }
+
+            _ttl = ttl;
+        }
+
+        _leaseToken = token;
+        _valueOffset = valueStart;
+        _valueLength = valueEnd - valueStart;
+
+        return true;
+    }
+
+    private boolean matches( byte[] command, int start, int end ) {
+
+        if( end - start != command.length ) {
+            return false;
+        }
+
+        for( int i = 0; i < command.length; i++ ) {
+            if( _buffer.get( start + i ) != command[i] ) {
+                return false;
             }
         }
 
-        return TOKEN_UNKNOWN;
+        return true;
     }
 
+    /**
+     * @return the decimal number in [start, end), or -1 if it isn't one
+     * (or is too big to bother with)
+     */
+    private long number( int start, int end ) {
+
+        final int MAX_DIGITS = 18;
+
+        if( start >= end || end - start > MAX_DIGITS ) {
+            return -1;
+        }
+
+        long number = 0;
+
+        for( int i = start; i < end; i++ ) {
+
+            byte b = _buffer.get( i );
+
+            if( b < '0' || b > '9' ) {
+                return -1;
+            }
+
+            number = number * 10 + (b - '0');
+        }
+
+        return number;
+    }
+
+    /**
+     * @return the index of the first b in [start, end), or end if there isn't one
+     */
+    private int indexOf( byte b, int start, int end ) {
+
+        for( int i = start; i < end; i++ ) {
+            if( _buffer.get( i ) == b ) {
+                return i;
+            }
+        }
+
+        return end;
+    }
+
+    private byte[] bytes( int offset, int length ) {
+
+        if( _buffer.hasArray() ) {
+            int start = _buffer.arrayOffset() + offset;
+            return Arrays.copyOfRange( _buffer.array(), start, start + length );
+        }
+
+        byte[] bytes = new byte[length];
+
+        for( int i = 0; i < length; i++ ) {
+            bytes[i] = _buffer.get( offset + i );
+        }
+
+        return bytes;
+    }
 }
@@ -2,6 +2,8 @@ package com.seanfoley.cache.domain;
 
 import com.seanfoley.cache.interfaces.ICacheValue;
 
+import java.nio.ByteBuffer;
+
 /**
  * This class implements the server protocol that clients
  * can use to interact with the cache remotely. The protocol
@@ -9,31 +11,59 @@ import com.seanfoley.cache.interfaces.ICacheValue;
  * the response protocol, which is extremely simple:
  *
  * The server responds with:
- * <status><space>|<value>|<message><terminator>
- * status: +OK or -ERR
+ * <status><space>|<value>[<space>refresh]|<token>|<message><terminator>
+ * status: +OK or -ERR, and for +getlease +LEASE, +STALE or -WAIT
  * value: The cache value (only if the command returns a value)
+ * token: The lease token (+LEASE only)
+ * refresh: The value is about to expire and this client should fetch
+ *          a new one (only if the +get asked, see RequestParser)
  * <message> a message, usually related to an error.
  * terminator: A carriage-return/line-feed (\r\n) is used to terminate the response.
  *
  * Example Responses:
  * +OK\r\n
  * +OK some-cache-value\r\n
+ * +OK some-cache-value refresh\r\n
  * -ERR key not found\r\n
+ * +LEASE 42\r\n
+ * +STALE some-old-cache-value\r\n
+ * -WAIT\r\n
  *
+ * The network servers don't use format(); they call encodedLength() and
+ * format(ByteBuffer), which write the response straight into an outbound
+ * buffer. Responses without a value are encoded once and the bytes are
+ * kept, so a formatter that is reused for a canned reply (e.g. +OK) costs
+ * a single copy. Values are copied straight in: byte[] values as is and
+ * ASCII strings character by character.
  */
 public class ResponseFormatter {
 
-    public enum ServerResult { Ok, Err }
+    public enum ServerResult { Ok, Err, Lease, Stale, Wait }
+
+    private static final byte[] OK = "+OK".getBytes();
+    private static final byte[] STALE = "+STALE".getBytes();
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] REFRESH = " refresh".getBytes();
+    private static final byte SPACE = ' ';
 
     private ServerResult _serverResult;
     private String _errorMessage = null;
     private ICacheValue _cacheValue = null;
+    private boolean _refresh = false;
+    private long _leaseToken = 0;
+
+    // The whole response when there isn't a value (built on demand)
+    private byte[] _encoded = null;
 
-    ResponseFormatter(ServerResult result){ _serverResult = result; }
+    // The value being written, and its bytes if it isn't plain ASCII
+    private Object _value = null;
+    private byte[] _valueBytes = null;
+
+    ResponseFormatter(ServerResult result){ _serverResult = result; _encoded = format().getBytes(); }
     ResponseFormatter(ServerResult result, ICacheValue value ) {
 
         // Let's enforce some correctness
-        if( ServerResult.Ok == result ) {
+        if( ServerResult.Ok == result || ServerResult.Stale == result ) {
 
             _serverResult = result;
             _cacheValue = value;
@@ -48,25 +78,46 @@ public class ResponseFormatter {
         if( ServerResult.Err == result) {
             _serverResult = result;
             _errorMessage = errorMessage;
+
+            // Canned replies are shared between connections, so encode
+            // them now rather than lazily
+            _encoded = format().getBytes();
         }
         else {
             throw new IllegalArgumentException("the server result is ok, but you are trying to set an error message");
         }
     }
 
+    ResponseFormatter(ServerResult result, long leaseToken){
+
+        if( ServerResult.Lease == result) {
+            _serverResult = result;
+            _leaseToken = leaseToken;
+        }
+        else {
+            throw new IllegalArgumentException("a lease token can only be set when the server result is lease");
+        }
+    }
+
 
     //
     // Accessors/mutators
     //
-    public void setServerResult(ServerResult value){ _serverResult = value; }
+    public void setServerResult(ServerResult value){ _serverResult = value; _encoded = null; }
     public ServerResult getServerResult(){ return _serverResult; }
 
-    public void setErrorMessage(String value){ _errorMessage = value; }
+    public void setErrorMessage(String value){ _errorMessage = value; _encoded = null; }
     public String getErrorMessage(){ return _errorMessage; }
 
-    public void setCacheValue(ICacheValue value){ _cacheValue = value; }
+    public void setCacheValue(ICacheValue value){ _cacheValue = value; _encoded = null; }
     public ICacheValue getCacheValue(){ return _cacheValue; }
 
+    public void setRefresh(boolean value){ _refresh = value; }
+    public boolean getRefresh(){ return _refresh; }
+
+    public void setLeaseToken(long value){ _leaseToken = value; _encoded = null; }
+    public long getLeaseToken(){ return _leaseToken; }
+
     /**
      * This method will use the object's state to format a
      * response to a client's request.
@@ -89,11 +140,31 @@ public class ResponseFormatter {
                 else {
                     // We have a cache value payload, so
                     // add that to the response
-                    response = String.format("+OK %s%s", _cacheValue.getValue().toString(), CRLF);
+                    Object value = _cacheValue.getValue();
+
+                    String text = value instanceof byte[] ? new String( (byte[]) value ) : value.toString();
+
+                    response = String.format("+OK %s%s%s", text, _refresh ? " refresh" : "", CRLF);
                 }
 
                 break;
 
+            case Stale:
+                Object stale = _cacheValue.getValue();
+
+                response = String.format("+STALE %s%s",
+                        stale instanceof byte[] ? new String( (byte[]) stale ) : stale.toString(), CRLF);
+
+                break;
+
+            case Lease:
+                response = String.format("+LEASE %d%s", _leaseToken, CRLF);
+                break;
+
+            case Wait:
+                response = String.format("-WAIT%s", CRLF);
+                break;
+
             case Err:
 
                 if( null == _errorMessage ){
@@ -115,4 +186,107 @@ public class ResponseFormatter {
         return response;
     }
 
+    /**
+     * @return the number of bytes format(ByteBuffer) will write
+     */
+    public int encodedLength() {
+
+        if( !hasValue() ) {
+            return encoded().length;
+        }
+
+        prepareValue();
+
+        int length = _valueBytes != null
+                ? _valueBytes.length
+                : _value instanceof byte[] ? ((byte[]) _value).length : ((String) _value).length();
+
+        return status().length + 1 + length + (_refresh ? REFRESH.length : 0) + CRLF.length;
+    }
+
+    /**
+     * Writes the response into a buffer, which needs at least
+     * encodedLength() bytes remaining.
+     * @param out the buffer to write the response to
+     */
+    public void format(ByteBuffer out) {
+
+        if( !hasValue() ) {
+            out.put( encoded() );
+            return;
+        }
+
+        prepareValue();
+
+        out.put( status() );
+        out.put( SPACE );
+
+        if( null != _valueBytes ) {
+            out.put( _valueBytes );
+        }
+        else if( _value instanceof byte[] ) {
+            out.put( (byte[]) _value );
+        }
+        else {
+            String text = (String) _value;
+            for( int i = 0; i < text.length(); i++ ) {
+                out.put( (byte) text.charAt( i ) );
+            }
+        }
+
+        if( _refresh ) {
+            out.put( REFRESH );
+        }
+
+        out.put( CRLF );
+    }
+
+    private boolean hasValue() {
+        return (ServerResult.Ok == _serverResult || ServerResult.Stale == _serverResult) && null != _cacheValue;
+    }
+
+    private byte[] status() {
+        return ServerResult.Stale == _serverResult ? STALE : OK;
+    }
+
+    private byte[] encoded() {
+
+        if( null == _encoded ) {
+            _encoded = format().getBytes();
+        }
+
+        return _encoded;
+    }
+
+    /**
+     * Works out how the current value gets written. Only strings that
+     * aren't plain ASCII have to be encoded up front.
+     */
+    private void prepareValue() {
+
+        Object value = _cacheValue.getValue();
+
+        if( value == _value ) {
+            return;
+        }
+
+        _value = value;
+        _valueBytes = null;
+
+        if( value instanceof byte[] ) {
+            return;
+        }
+
+        if( !(value instanceof String) ) {
+            _value = value.toString();
+        }
+
+        String text = (String) _value;
+        for( int i = 0; i < text.length(); i++ ) {
+            if( text.charAt( i ) >= 0x80 ) {
+                _valueBytes = text.getBytes();
+                break;
+            }
+        }
+    }
 }
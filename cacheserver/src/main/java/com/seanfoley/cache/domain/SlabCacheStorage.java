@@ -0,0 +1,720 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Class:
+ * SlabCacheStorage
+ *
+ * Description:
+ * This class implements the ICacheStorage interface entirely outside
+ * of the Java heap, so the garbage collector never has to look at the
+ * cached items. Millions of small key/value objects on the heap make
+ * for long GC pauses; here the heap only holds a handful of objects per
+ * megabyte of cache.
+ *
+ * Memory comes in 1 MB slabs (direct ByteBuffers) that are allocated as
+ * needed, up to maxBytes. Each slab belongs to a slab class and is cut
+ * into equal sized chunks. The chunk sizes start at 64 bytes and grow
+ * by 25% per class up to a whole slab. An item goes in the smallest
+ * chunk it fits in, so at most ~20% of a chunk is wasted. Items bigger
+ * than a slab aren't stored.
+ *
+ * Each chunk holds one item:
+ *
+ * [prev][next][hash][key length][value length][key type][value type][key][value]
+ *
+ * prev/next link the chunk into its slab class's LRU list (or the free
+ * list). The keys and values are encoded with the ValueCodec.
+ *
+ * The index is an open-addressing hash table (linear probing) in an
+ * OffHeapLongArray. Each slot holds the chunk's address plus a few
+ * bits of the key's hash, so most probes that don't match are ruled
+ * out without touching the chunk.
+ *
+ * When a slab class needs a chunk and the memory budget is used up,
+ * the least-recently used item in that class is evicted (the way
+ * memcached does it). Memory isn't moved between slab classes, so if
+ * the mix of item sizes changes a lot, a class that never got a slab
+ * can't store anything. Adding past the item capacity evicts the
+ * least-recently used item of the same class.
+ *
+ * Like direct buffers in general, the slabs count against
+ * -XX:MaxDirectMemorySize, which needs to be at least maxBytes plus the
+ * index (8 bytes per slot).
+ *
+ * Every method is synchronized.
+ */
+public class SlabCacheStorage implements ICacheStorage {
+
+    static final int SLAB_SHIFT = 20;
+    static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    private static final long OFFSET_MASK = SLAB_SIZE - 1;
+
+    private static final int MIN_CHUNK = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    // The chunk header
+    private static final int PREV = 0;
+    private static final int NEXT = 8;
+    private static final int HASH = 16;
+    private static final int KEY_LENGTH = 20;
+    private static final int VALUE_LENGTH = 24;
+    private static final int KEY_TYPE = 28;
+    private static final int VALUE_TYPE = 29;
+    private static final int DATA = 32;
+
+    private static final long NIL = -1;
+
+    // An index slot: [24 bits of hash][40 bits of address + 1], 0 if empty
+    private static final int ADDRESS_BITS = 40;
+    private static final long ADDRESS_MASK = (1L << ADDRESS_BITS) - 1;
+
+    private final ArrayList<ByteBuffer> _slabs = new ArrayList<>();
+
+    // The slab class each slab belongs to
+    private final int[] _slabClasses;
+
+    private final SlabClass[] _classes;
+
+    private final OffHeapLongArray _index;
+    private final long _indexMask;
+
+    private final int CAPACITY;
+
+    private int _count = 0;
+    private long _bytesUsed = 0;
+
+    /**
+     * @param capacity the maximum number of items
+     * @param maxBytes the memory for the slabs (at least one slab; the
+     *                 index is on top of this)
+     */
+    SlabCacheStorage( int capacity, long maxBytes ) {
+
+        if( capacity <= 0 ) {
+            throw new IllegalArgumentException( "the capacity must be positive" );
+        }
+
+        if( maxBytes < SLAB_SIZE || (maxBytes >>> SLAB_SHIFT) > (ADDRESS_MASK >>> SLAB_SHIFT) ) {
+            throw new IllegalArgumentException( "the memory must be between 1 MB and 1 TB" );
+        }
+
+        CAPACITY = capacity;
+
+        _slabClasses = new int[(int) (maxBytes >>> SLAB_SHIFT)];
+
+        ArrayList<SlabClass> classes = new ArrayList<>();
+        for( long size = MIN_CHUNK; size < SLAB_SIZE; size = align( (long) (size * GROWTH_FACTOR) ) ) {
+            classes.add( new SlabClass( (int) size ) );
+        }
+        classes.add( new SlabClass( SLAB_SIZE ) );
+
+        _classes = classes.toArray( new SlabClass[0] );
+
+        // Keep the index at most 3/4 full so probes stay short
+        final double LOAD_FACTOR = 0.75;
+
+        long slots = 16;
+        while( slots * LOAD_FACTOR < capacity ) {
+            slots *= 2;
+        }
+
+        _index = new OffHeapLongArray( slots );
+        _indexMask = slots - 1;
+    }
+
+    @Override
+    public synchronized boolean add(ICacheKey key, ICacheValue value) {
+
+        byte keyType;
+        byte valueType;
+        byte[] keyBytes;
+        byte[] valueBytes;
+
+        try
+        {
+            keyType = ValueCodec.typeOf( key.getKey() );
+            keyBytes = ValueCodec.encode( key.getKey() );
+            valueType = ValueCodec.typeOf( value.getValue() );
+            valueBytes = ValueCodec.encode( value.getValue() );
+        }
+        catch (IllegalArgumentException exception)
+        {
+            // Not a type we can store off-heap
+            return false;
+        }
+
+        int slabClass = classFor( DATA + (long) keyBytes.length + valueBytes.length );
+
+        if( slabClass < 0 ) {
+            return false;
+        }
+
+        int hash = hash( keyType, keyBytes );
+
+        long slot = findSlot( hash, keyType, keyBytes );
+
+        if( slot >= 0 ) {
+
+            long address = address( _index.get( slot ) );
+
+            // Same size class, so overwrite the value where it is
+            if( _slabClasses[slab( address )] == slabClass ) {
+                writeValue( address, keyBytes.length, valueType, valueBytes );
+                moveToFront( _classes[slabClass], address );
+                return true;
+            }
+
+            deleteSlot( slot );
+            release( address );
+        }
+
+        if( _count >= CAPACITY ) {
+            evictFor( slabClass );
+        }
+
+        long address = allocate( slabClass );
+
+        if( NIL == address ) {
+            return false;
+        }
+
+        ByteBuffer slab = _slabs.get( slab( address ) );
+        int offset = offset( address );
+
+        slab.putInt( offset + HASH, hash );
+        slab.putInt( offset + KEY_LENGTH, keyBytes.length );
+        slab.put( offset + KEY_TYPE, keyType );
+        write( slab, offset + DATA, keyBytes );
+        writeValue( address, keyBytes.length, valueType, valueBytes );
+
+        linkFront( _classes[slabClass], address );
+        insertSlot( hash, address );
+
+        _count++;
+        _bytesUsed += _classes[slabClass]._chunkSize;
+
+        return true;
+    }
+
+    @Override
+    public synchronized ICacheValue get(ICacheKey key) {
+
+        long slot = findSlot( key.getKey() );
+
+        if( slot < 0 ) {
+            return null;
+        }
+
+        long address = address( _index.get( slot ) );
+
+        moveToFront( _classes[_slabClasses[slab( address )]], address );
+
+        ByteBuffer slab = _slabs.get( slab( address ) );
+        int offset = offset( address );
+
+        int keyLength = slab.getInt( offset + KEY_LENGTH );
+        byte[] value = new byte[slab.getInt( offset + VALUE_LENGTH )];
+
+        read( slab, offset + DATA + keyLength, value );
+
+        return ValueCodec.decodeValue( slab.get( offset + VALUE_TYPE ), value );
+    }
+
+    @Override
+    public synchronized boolean remove(ICacheKey key) {
+
+        long slot = findSlot( key.getKey() );
+
+        if( slot < 0 ) {
+            return false;
+        }
+
+        long address = address( _index.get( slot ) );
+
+        deleteSlot( slot );
+        release( address );
+
+        return true;
+    }
+
+    @Override
+    public synchronized int count() {
+        return _count;
+    }
+
+    /**
+     * @return the size of the chunks holding items (the slabs themselves
+     * can be bigger, see slabBytes())
+     */
+    @Override
+    public synchronized long bytesUsed() {
+        return _bytesUsed;
+    }
+
+    /**
+     * Walks the index a few thousand slots at a time, holding the lock
+     * while each batch of items is copied onto the heap. An item that a
+     * remove shifts back into a part of the index we've already walked
+     * is missed.
+     */
+    @Override
+    public void forEach(BiConsumer<ICacheKey, ICacheValue> action) {
+
+        final long BATCH = 4096;
+
+        List<Map.Entry<ICacheKey, ICacheValue>> items = new ArrayList<>();
+
+        for( long start = 0; start <= _indexMask; start += BATCH ) {
+
+            items.clear();
+
+            synchronized( this ) {
+
+                long end = Math.min( start + BATCH, _indexMask + 1 );
+
+                for( long slot = start; slot < end; slot++ ) {
+
+                    long entry = _index.get( slot );
+
+                    if( 0 != entry ) {
+                        items.add( item( address( entry ) ) );
+                    }
+                }
+            }
+
+            for( Map.Entry<ICacheKey, ICacheValue> item : items ) {
+                action.accept( item.getKey(), item.getValue() );
+            }
+        }
+    }
+
+    /**
+     * @return the memory allocated for slabs so far
+     */
+    synchronized long slabBytes() { return (long) _slabs.size() * SLAB_SIZE; }
+
+    /**
+     * @return the memory taken by the index
+     */
+    long indexBytes() { return _index.bytes(); }
+
+    //
+    // Slab classes and chunks
+    //
+
+    /**
+     * @return the smallest slab class that fits the item, or -1 if it's too big
+     */
+    private int classFor( long itemSize ) {
+
+        if( itemSize > SLAB_SIZE ) {
+            return -1;
+        }
+
+        int low = 0;
+        int high = _classes.length - 1;
+
+        while( low < high ) {
+            int middle = (low + high) >>> 1;
+            if( _classes[middle]._chunkSize < itemSize ) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Finds a chunk for the slab class: a free one, a new one from the
+     * class's current slab, a new slab, or as a last resort by evicting
+     * the class's least recently used item.
+     * @return the chunk's address, or NIL if there's no memory for this class
+     */
+    private long allocate( int slabClass ) {
+
+        SlabClass c = _classes[slabClass];
+
+        if( NIL == c._free && c._slab >= 0 && c._nextOffset + c._chunkSize <= SLAB_SIZE ) {
+            long address = address( c._slab, c._nextOffset );
+            c._nextOffset += c._chunkSize;
+            return address;
+        }
+
+        if( NIL == c._free && _slabs.size() < _slabClasses.length ) {
+            c._slab = _slabs.size();
+            c._nextOffset = c._chunkSize;
+
+            _slabs.add( ByteBuffer.allocateDirect( SLAB_SIZE ) );
+            _slabClasses[c._slab] = slabClass;
+
+            return address( c._slab, 0 );
+        }
+
+        if( NIL == c._free && NIL != c._tail ) {
+            evict( c._tail );
+        }
+
+        long address = c._free;
+
+        if( NIL != address ) {
+            c._free = getLong( address, NEXT );
+        }
+
+        return address;
+    }
+
+    /**
+     * Makes room for one more item, preferably from the same slab class
+     */
+    private void evictFor( int slabClass ) {
+
+        if( NIL != _classes[slabClass]._tail ) {
+            evict( _classes[slabClass]._tail );
+            return;
+        }
+
+        for( SlabClass c : _classes ) {
+            if( NIL != c._tail ) {
+                evict( c._tail );
+                return;
+            }
+        }
+    }
+
+    private void evict( long address ) {
+
+        ByteBuffer slab = _slabs.get( slab( address ) );
+        int hash = slab.getInt( offset( address ) + HASH );
+
+        // Find the index slot pointing at this chunk
+        long slot = hash & _indexMask;
+        while( address( _index.get( slot ) ) != address ) {
+            slot = (slot + 1) & _indexMask;
+        }
+
+        deleteSlot( slot );
+        release( address );
+    }
+
+    /**
+     * Takes an item (already out of the index) off its LRU list and puts
+     * the chunk on the free list
+     */
+    private void release( long address ) {
+
+        SlabClass c = _classes[_slabClasses[slab( address )]];
+
+        unlink( c, address );
+
+        putLong( address, NEXT, c._free );
+        c._free = address;
+
+        _count--;
+        _bytesUsed -= c._chunkSize;
+    }
+
+    private void writeValue( long address, int keyLength, byte valueType, byte[] valueBytes ) {
+
+        ByteBuffer slab = _slabs.get( slab( address ) );
+        int offset = offset( address );
+
+        slab.putInt( offset + VALUE_LENGTH, valueBytes.length );
+        slab.put( offset + VALUE_TYPE, valueType );
+        write( slab, offset + DATA + keyLength, valueBytes );
+    }
+
+    //
+    // LRU lists (most recently used at the head)
+    //
+
+    private void linkFront( SlabClass c, long address ) {
+
+        putLong( address, PREV, NIL );
+        putLong( address, NEXT, c._head );
+
+        if( NIL == c._head ) {
+            c._tail = address;
+        }
+        else {
+            putLong( c._head, PREV, address );
+        }
+
+        c._head = address;
+    }
+
+    private void unlink( SlabClass c, long address ) {
+
+        long previous = getLong( address, PREV );
+        long next = getLong( address, NEXT );
+
+        if( NIL == previous ) {
+            c._head = next;
+        }
+        else {
+            putLong( previous, NEXT, next );
+        }
+
+        if( NIL == next ) {
+            c._tail = previous;
+        }
+        else {
+            putLong( next, PREV, previous );
+        }
+    }
+
+    private void moveToFront( SlabClass c, long address ) {
+
+        if( c._head != address ) {
+            unlink( c, address );
+            linkFront( c, address );
+        }
+    }
+
+    //
+    // The index
+    //
+
+    private long findSlot( Object key ) {
+
+        byte keyType;
+        byte[] keyBytes;
+
+        try
+        {
+            keyType = ValueCodec.typeOf( key );
+            keyBytes = ValueCodec.encode( key );
+        }
+        catch (IllegalArgumentException exception)
+        {
+            // We could never have stored it
+            return -1;
+        }
+
+        return findSlot( hash( keyType, keyBytes ), keyType, keyBytes );
+    }
+
+    /**
+     * @return the index slot for the key, or -1 if it isn't there
+     */
+    private long findSlot( int hash, byte keyType, byte[] keyBytes ) {
+
+        long tag = tag( hash );
+        long slot = hash & _indexMask;
+
+        while( true )
+        {
+            long entry = _index.get( slot );
+
+            if( 0 == entry ) {
+                return -1;
+            }
+
+            if( (entry >>> ADDRESS_BITS) == tag && keyEquals( address( entry ), hash, keyType, keyBytes ) ) {
+                return slot;
+            }
+
+            slot = (slot + 1) & _indexMask;
+        }
+    }
+
+    private void insertSlot( int hash, long address ) {
+
+        long slot = hash & _indexMask;
+
+        while( 0 != _index.get( slot ) ) {
+            slot = (slot + 1) & _indexMask;
+        }
+
+        _index.set( slot, (tag( hash ) << ADDRESS_BITS) | (address + 1) );
+    }
+
+    /**
+     * Empties a slot, shifting later entries of the same probe run back
+     * so lookups don't stop early at the hole (no tombstones needed)
+     */
+    private void deleteSlot( long slot ) {
+
+        long hole = slot;
+        long next = slot;
+
+        while( true )
+        {
+            next = (next + 1) & _indexMask;
+
+            long entry = _index.get( next );
+
+            if( 0 == entry ) {
+                break;
+            }
+
+            long address = address( entry );
+            long home = _slabs.get( slab( address ) ).getInt( offset( address ) + HASH ) & _indexMask;
+
+            // The entry can fill the hole if its home slot isn't
+            // (cyclically) between the hole and where it is now
+            boolean movable = next > hole
+                    ? (home <= hole || home > next)
+                    : (home <= hole && home > next);
+
+            if( movable ) {
+                _index.set( hole, entry );
+                hole = next;
+            }
+        }
+
+        _index.set( hole, 0 );
+    }
+
+    private boolean keyEquals( long address, int hash, byte keyType, byte[] keyBytes ) {
+
+        ByteBuffer slab = _slabs.get( slab( address ) );
+        int offset = offset( address );
+
+        if( slab.getInt( offset + HASH ) != hash
+                || slab.get( offset + KEY_TYPE ) != keyType
+                || slab.getInt( offset + KEY_LENGTH ) != keyBytes.length ) {
+            return false;
+        }
+
+        for( int i = 0; i < keyBytes.length; i++ ) {
+            if( slab.get( offset + DATA + i ) != keyBytes[i] ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int hash( byte keyType, byte[] keyBytes ) {
+
+        int hash = 31 * Arrays.hashCode( keyBytes ) + keyType;
+
+        // Spread the bits; we use the low bits for the slot and the high
+        // bits for the tag
+        hash *= 0x9E3779B9;
+
+        return hash ^ (hash >>> 16);
+    }
+
+    private static long tag( int hash ) {
+        return (hash >>> 8) & 0xFFFFFF;
+    }
+
+    //
+    // Addresses: [slab number][offset in the slab]
+    //
+
+    private static long address( int slab, int offset ) {
+        return ((long) slab << SLAB_SHIFT) | offset;
+    }
+
+    private static long address( long indexEntry ) {
+        return (indexEntry & ADDRESS_MASK) - 1;
+    }
+
+    private static int slab( long address ) {
+        return (int) (address >>> SLAB_SHIFT);
+    }
+
+    private static int offset( long address ) {
+        return (int) (address & OFFSET_MASK);
+    }
+
+    private long getLong( long address, int field ) {
+        return _slabs.get( slab( address ) ).getLong( offset( address ) + field );
+    }
+
+    private void putLong( long address, int field, long value ) {
+        _slabs.get( slab( address ) ).putLong( offset( address ) + field, value );
+    }
+
+    private static void write( ByteBuffer slab, int offset, byte[] bytes ) {
+
+        ByteBuffer target = slab.duplicate();
+        target.position( offset );
+        target.put( bytes );
+    }
+
+    /**
+     * @return a copy of the key and value in a chunk
+     */
+    private Map.Entry<ICacheKey, ICacheValue> item( long address ) {
+
+        ByteBuffer slab = _slabs.get( slab( address ) );
+        int offset = offset( address );
+
+        byte[] key = new byte[slab.getInt( offset + KEY_LENGTH )];
+        byte[] value = new byte[slab.getInt( offset + VALUE_LENGTH )];
+
+        read( slab, offset + DATA, key );
+        read( slab, offset + DATA + key.length, value );
+
+        return new AbstractMap.SimpleImmutableEntry<>(
+                new CacheKey( ValueCodec.decode( slab.get( offset + KEY_TYPE ), key ) ),
+                ValueCodec.decodeValue( slab.get( offset + VALUE_TYPE ), value ) );
+    }
+
+    private static void read( ByteBuffer slab, int offset, byte[] bytes ) {
+
+        ByteBuffer source = slab.duplicate();
+        source.position( offset );
+        source.get( bytes );
+    }
+
+    private static long align( long size ) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * The bookkeeping for one chunk size
+     */
+    private static class SlabClass {
+
+        private final int _chunkSize;
+
+        // The LRU list
+        private long _head = NIL;
+        private long _tail = NIL;
+
+        // Chunks that were used and given back
+        private long _free = NIL;
+
+        // The slab we're currently cutting new chunks from
+        private int _slab = -1;
+        private int _nextOffset = 0;
+
+        SlabClass( int chunkSize ) { _chunkSize = chunkSize; }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheEvictionListener;
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Class:
+ * StripedLruCacheStorage
+ *
+ * Description:
+ * This class implements the ICacheStorage interface as a set of
+ * independent LRU segments. A key always lives in the same segment
+ * (picked by its hash) and each segment has its own lock, so threads
+ * working on keys in different segments don't wait on each other.
+ *
+ * A single lock around one LinkedHashMap wouldn't scale: in access
+ * order even a get() moves the entry to the back of the list, so every
+ * read is a write and all of them would queue up on the lock.
+ *
+ * The capacity (items and bytes) is split evenly across the segments
+ * and each segment evicts its own least-recently used items when it's
+ * full. That makes
+ * eviction approximately LRU for the cache as a whole: the item evicted
+ * is the oldest in its segment, not necessarily the oldest overall.
+ */
+public class StripedLruCacheStorage implements ICacheStorage {
+
+    private final LinkedHashMapCacheStorage[] _segments;
+
+    // The segment count is a power of two so we can mask instead of mod
+    private final int _mask;
+
+    StripedLruCacheStorage( int capacity, int segments ) { this( capacity, Long.MAX_VALUE, segments ); }
+
+    StripedLruCacheStorage( int capacity, long maxBytes, int segments ) { this( capacity, maxBytes, segments, null ); }
+
+    /**
+     * @param capacity the total number of items across all of the segments
+     * @param maxBytes the total (estimated) bytes across all of the segments
+     * @param segments the number of segments (rounded up to a power of two,
+     *                 and never more than the capacity)
+     * @param listener told about evicted items (may be null). It's called
+     *                 with the evicting segment's lock held.
+     */
+    StripedLruCacheStorage( int capacity, long maxBytes, int segments, ICacheEvictionListener listener ) {
+
+        if( capacity <= 0 || maxBytes <= 0 || segments <= 0 ) {
+            throw new IllegalArgumentException( "the capacity, byte budget and segment count must be positive" );
+        }
+
+        int count = 1;
+        while( count < segments && count * 2 <= capacity ) {
+            count *= 2;
+        }
+
+        _segments = new LinkedHashMapCacheStorage[count];
+        _mask = count - 1;
+
+        // Hand out the remainder one item at a time so the segments add
+        // up to exactly the capacity we were asked for
+        for( int i = 0; i < count; i++ ) {
+            int segmentCapacity = capacity / count + (i < capacity % count ? 1 : 0);
+            long segmentBytes = maxBytes == Long.MAX_VALUE
+                    ? Long.MAX_VALUE
+                    : Math.max( 1, maxBytes / count + (i < maxBytes % count ? 1 : 0) );
+
+            _segments[i] = new LinkedHashMapCacheStorage( segmentCapacity, segmentBytes, listener );
+        }
+    }
+
+    @Override
+    public boolean add(ICacheKey key, ICacheValue value) {
+
+        LinkedHashMapCacheStorage segment = segmentFor( key );
+
+        synchronized( segment ) {
+            return segment.add( key, value );
+        }
+    }
+
+    @Override
+    public ICacheValue get(ICacheKey key) {
+
+        LinkedHashMapCacheStorage segment = segmentFor( key );
+
+        synchronized( segment ) {
+            return segment.get( key );
+        }
+    }
+
+    @Override
+    public boolean remove(ICacheKey key) {
+
+        LinkedHashMapCacheStorage segment = segmentFor( key );
+
+        synchronized( segment ) {
+            return segment.remove( key );
+        }
+    }
+
+    /**
+     * The count isn't a snapshot; segments can change while we add them up.
+     */
+    @Override
+    public int count() {
+
+        int count = 0;
+
+        for( LinkedHashMapCacheStorage segment : _segments ) {
+            synchronized( segment ) {
+                count += segment.count();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Like count(), this isn't a snapshot.
+     */
+    @Override
+    public long bytesUsed() {
+
+        long bytes = 0;
+
+        for( LinkedHashMapCacheStorage segment : _segments ) {
+            synchronized( segment ) {
+                bytes += segment.bytesUsed();
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Copies one segment at a time, so only that segment is locked
+     */
+    @Override
+    public void forEach(BiConsumer<ICacheKey, ICacheValue> action) {
+
+        List<Map.Entry<ICacheKey, ICacheValue>> items = new ArrayList<>();
+
+        for( LinkedHashMapCacheStorage segment : _segments ) {
+
+            items.clear();
+
+            synchronized( segment ) {
+                segment.forEach( (key, value) -> items.add( new AbstractMap.SimpleImmutableEntry<>( key, value ) ) );
+            }
+
+            for( Map.Entry<ICacheKey, ICacheValue> item : items ) {
+                action.accept( item.getKey(), item.getValue() );
+            }
+        }
+    }
+
+    int segmentCount() { return _segments.length; }
+
+    private LinkedHashMapCacheStorage segmentFor( ICacheKey key ) {
+
+        int hash = key.getKey().hashCode();
+
+        // Mix the high bits into the low bits we mask with, in case
+        // a key type's hash only varies up high
+        hash ^= (hash >>> 16);
+
+        return _segments[hash & _mask];
+    }
+}
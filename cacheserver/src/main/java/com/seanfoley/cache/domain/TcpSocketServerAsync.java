@@ -17,19 +17,19 @@
 
 package com.seanfoley.cache.domain;
 
-import com.seanfoley.cache.interfaces.ICacheKey;
-import com.seanfoley.cache.interfaces.ICacheValue;
-import com.seanfoley.cache.interfaces.ICacheManager;
+import com.seanfoley.cache.interfaces.ICacheServer;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
-import java.util.concurrent.ExecutionException;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 /**
  * The TcpSocketServerAsync class provides network-level socket
@@ -45,203 +45,434 @@ import java.util.concurrent.TimeoutException;
  * +remove key\r\n
  *
  */
-public class TcpSocketServerAsync
+public class TcpSocketServerAsync implements ICacheServer
 {
-    // todo externalize the port to a config file
-    private final int PORT = 5000;
+    // The defaults (see CacheServerConfig to change them)
+    private static final int PORT = 5000;
+    private static final int BUFFER_SIZE = 4096;
 
-    public TcpSocketServerAsync()
-    {
-        try
-        {
-            // Create an AsynchronousServerSocketChannel that will listen on a port
-            final AsynchronousServerSocketChannel listener =
-                    AsynchronousServerSocketChannel.open().bind(new InetSocketAddress(PORT));
-
-            // Start the socket and listen for connections
-            listener.accept( null, new CompletionHandler<AsynchronousSocketChannel,Void>() {
+    // The timeout value of the socket if there is no activity
+    private static final int TIMEOUT_SECONDS = 20;
 
-                @Override
-                public void completed(AsynchronousSocketChannel channel, Void att)
-                {
-                    // Accept the next connection
-                    listener.accept( null, this );
+    // The biggest command (including the value) we are willing to buffer
+    // for a client before giving up on them.
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
 
-                    System.out.println( "New inbound client connection accepted" );
+    // The most responses we'll hand the socket in one gathering write
+    private static final int MAX_GATHER = 256;
 
-                    // Greet the client
-                    channel.write( ByteBuffer.wrap( "Cache Server - let's store some stuff\r\n".getBytes() ) );
+    // Backpressure limits for each client's queue of unwritten responses.
+    // We stop reading from a client above the high-water mark and start
+    // again once it drains below the low-water mark.
+    private static final long HIGH_WATER_MARK = 1024 * 1024;
+    private static final long LOW_WATER_MARK = 256 * 1024;
 
-                    // todo - the buffer should be externally configurable/tunable
-                    final int BUFFER_SIZE = 4096;
+    private final int _bufferSize;
+    private final int _timeoutSeconds;
 
-                    // todo - the timeout value of the socket if there is no activity
-                    final int TIMEOUT_SECONDS = 20;
+    private AsynchronousChannelGroup _group;
+    private AsynchronousServerSocketChannel _listener;
 
-                    // todo and hack/hack - Because we only have only one buffer
-                    // and are not accumulating bytes until we see the termination
-                    // we can only accept up to BUFFER_SIZE amount of data to cache.
-                    ByteBuffer byteBuffer = ByteBuffer.allocate( BUFFER_SIZE );
+    public TcpSocketServerAsync()
+    {
+        this( PORT );
+    }
 
-                    try
-                    {
-                        // Read the first line
-                        int bytesRead = channel.read( byteBuffer ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+    /**
+     * Starts listening for connections on the given port.
+     * @param port the port to listen on, or 0 to let the OS pick
+     *             a free port (handy for tests)
+     */
+    public TcpSocketServerAsync( int port )
+    {
+        this( port, Runtime.getRuntime().availableProcessors(), BUFFER_SIZE, TIMEOUT_SECONDS );
+    }
 
-                        boolean running = true;
-                        while( bytesRead != -1 && running )
-                        {
-                            if( byteBuffer.position() >= 0 )
-                            {
-                                // Make the buffer ready to read
-                                byteBuffer.flip();
+    /**
+     * Starts listening for connections on the given port.
+     * @param port the port to listen on, or 0 to let the OS pick
+     *             a free port (handy for tests)
+     * @param threads the number of threads that run the completion handlers
+     *                (one per core is plenty, since none of them block)
+     * @param bufferSize the size of each connection's read buffer
+     * @param timeoutSeconds how long a read or write can take before
+     *                       we hang up on the client
+     */
+    public TcpSocketServerAsync( int port, int threads, int bufferSize, int timeoutSeconds )
+    {
+        if( threads <= 0 || bufferSize <= 0 || timeoutSeconds <= 0 ) {
+            throw new IllegalArgumentException( "the threads, buffer size and timeout must be positive" );
+        }
 
-                                // Convert the buffer into a line
-                                byte[] request = new byte[bytesRead];
-                                byteBuffer.get(request, 0, bytesRead);
+        _bufferSize = bufferSize;
+        _timeoutSeconds = timeoutSeconds;
 
-                                // Do we have terminating characters?
-                                boolean terminated = request[bytesRead - 2] == '\r';
-                                terminated &= request[bytesRead - 1] == '\n';
+        try
+        {
+            // None of the completion handlers below ever block on a Future,
+            // so a small fixed pool of threads is enough to service tens of
+            // thousands of mostly idle connections.
+            _group = AsynchronousChannelGroup.withFixedThreadPool( threads, Executors.defaultThreadFactory() );
 
-                                if (terminated) {
-                                    String response = handleRequest(request);
+            // The OS queues up connections we haven't accepted yet. The
+            // default backlog is tiny, which stalls clients during a burst
+            // of new connections.
+            final int BACKLOG = 1024;
 
-                                    channel.write(ByteBuffer.wrap(response.getBytes()));
-                                }
-                            }
+            // Create an AsynchronousServerSocketChannel that will listen on a port
+            _listener = AsynchronousServerSocketChannel.open( _group ).bind( new InetSocketAddress( port ), BACKLOG );
 
-                            // Clear to get ready for the next round of data
-                            byteBuffer.clear();
+            // Start the socket and listen for connections
+            _listener.accept( null, new AcceptHandler() );
+        }
+        catch (IOException exception)
+        {
+            exception.printStackTrace();
+        }
+    }
 
-                            // Read more data
-                            bytesRead = channel.read( byteBuffer ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
-                        }
+    @Override
+    public int getPort()
+    {
+        try
+        {
+            return ((InetSocketAddress) _listener.getLocalAddress()).getPort();
+        }
+        catch (IOException exception)
+        {
+            throw new IllegalStateException( "the server is not listening", exception );
+        }
+    }
 
-                    }
-                    catch (InterruptedException | ExecutionException exception)
-                    {
-                        exception.printStackTrace();
-                    }
-                    catch (TimeoutException e)
-                    {
-                        System.out.println( "Connection timed out, closing connection" );
-                    }
+    @Override
+    public void close()
+    {
+        try
+        {
+            _listener.close();
+            _group.shutdownNow();
+        }
+        catch (IOException exception)
+        {
+            exception.printStackTrace();
+        }
+    }
 
-                    channel.write( ByteBuffer.wrap( "Good Bye\n".getBytes() ) );
+    /**
+     * Accepts a client connection, hands it off to its own Connection
+     * state machine, then immediately waits for the next client.
+     */
+    private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Void>
+    {
+        @Override
+        public void completed( AsynchronousSocketChannel channel, Void att )
+        {
+            // Accept the next connection
+            _listener.accept( null, this );
 
-                    System.out.println( "Closing client connection" );
-                    try
-                    {
-                        // Close the connection if we need to
-                        if( channel.isOpen() )
-                        {
-                            channel.close();
-                        }
-                    }
-                    catch (IOException exception)
-                    {
-                        exception.printStackTrace();
-                    }
-                }
+            System.out.println( "New inbound client connection accepted" );
 
-                @Override
-                public void failed(Throwable exc, Void att) {
-                    ///...
-                }
-            });
+            new Connection( channel ).start();
         }
-        catch (IOException exception)
+
+        @Override
+        public void failed( Throwable exc, Void att )
         {
-            exception.printStackTrace();
+            // The listener was closed out from under us (i.e. shutdown)
+            if( !_listener.isOpen() ) {
+                return;
+            }
+
+            // Something like running out of file handles. Don't give
+            // up on every future client because of one bad accept.
+            exc.printStackTrace();
+            _listener.accept( null, this );
         }
     }
 
     /**
-     * The method will parse the raw byte buffer into a request,
-     * execute the requested operation, and build response for the
-     * client.
-     * @param request the raw byte buffer received over the socket
-     * @return the response to the request
+     * A Connection drives one client through a chain of callbacks. Reads
+     * and writes run independently of each other:
+     *
+     * read -> handle requests -> queue responses -> read -> ...
+     * write queued responses -> write -> ...
+     *
+     * Each step starts the next I/O operation and returns, so no thread
+     * is ever parked waiting on a client. At most one read and one write
+     * are outstanding at a time, and the responses go out in the order
+     * the requests came in.
+     *
+     * Clients can pipeline commands (send several without waiting for
+     * the replies). Whatever responses have piled up are written with a
+     * single gathering write. If a client stops reading its responses,
+     * the outbound queue passes the high-water mark and we stop reading
+     * (and handling) its requests until the queue drains, so a slow
+     * client can't make us buffer an unbounded amount of data.
      */
-    private String handleRequest(byte[] request)
+    private class Connection
     {
-        RequestParser parser = new RequestParser();
-        parser.parse(request);
+        private final AsynchronousSocketChannel _channel;
+        private final LineFramer _framer = new LineFramer( BufferPool.Instance(), _bufferSize, MAX_FRAME_SIZE );
+        private final OutboundQueue _outbound = new OutboundQueue(
+                BufferPool.Instance(), MAX_GATHER, HIGH_WATER_MARK, LOW_WATER_MARK );
+        private final RequestHandler _handler = new RequestHandler();
 
-        int token = parser.getToken();
+        private final ReadHandler _readHandler = new ReadHandler();
+        private final WriteHandler _writeHandler = new WriteHandler();
 
-        // todo the number of items needs to be refactored to a config file
-        final int ITEMS = 100000;
+        // All of the state below is guarded by synchronizing on the
+        // connection since the read and write completions can run on
+        // different threads at the same time.
+        private boolean _reading = false;
+        private boolean _writing = false;
 
-        ICacheManager cacheManager = CacheManager.Instance(ITEMS);
+        // Reading was stopped because of backpressure
+        private boolean _readPaused = false;
 
-        ICacheKey key = null;
-        ICacheValue value = null;
+        // Once set, we stop reading and close after the queue drains
+        private boolean _closing = false;
+        private boolean _closed = false;
 
-        String response;
+        Connection( AsynchronousSocketChannel channel ) { _channel = channel; }
 
-        switch( token )
+        synchronized void start()
         {
-            case RequestParser.TOKEN_ADD:
+            // Greet the client
+            _outbound.add( ByteBuffer.wrap( RequestHandler.GREETING ) );
+            flush();
 
-                key = parser.getCacheKey();
-                value = parser.getCacheValue();
+            read();
+        }
 
-                boolean ok = cacheManager.add(key, value );
+        private void read()
+        {
+            if( _reading || _closing ) {
+                return;
+            }
+
+            ByteBuffer buffer;
+
+            try
+            {
+                buffer = _framer.writableBuffer();
+            }
+            catch (IllegalStateException exception)
+            {
+                // The client sent more than MAX_FRAME_SIZE without a terminator
+                _outbound.add( new ResponseFormatter(
+                        ResponseFormatter.ServerResult.Err,
+                        "command too large") );
+                closeAfterFlush();
+                return;
+            }
 
-                if(ok) {
-                    response = new ResponseFormatter(
-                            ResponseFormatter.ServerResult.Ok).format();
+            _reading = true;
+            _channel.read( buffer, _timeoutSeconds, TimeUnit.SECONDS, null, _readHandler );
+        }
+
+        /**
+         * Handles the complete commands we have buffered and queues up the
+         * responses. If the client is too far behind on reading responses,
+         * the leftover commands stay in the framer until the queue drains;
+         * otherwise we go back to reading the socket.
+         */
+        private void handleRequests()
+        {
+            boolean drained = false;
+
+            while( !_outbound.isAboveHighWater() )
+            {
+                ByteBuffer frame = _framer.next();
+
+                if( null == frame ) {
+                    drained = true;
+                    break;
                 }
-                else {
-                    response = new ResponseFormatter(
-                            ResponseFormatter.ServerResult.Err,
-                            "error adding key to cache").format();
+
+                _outbound.add( _handler.handle( frame ) );
+            }
+
+            if( drained ) {
+                flush();
+                read();
+            }
+            else {
+                // Mark ourselves paused before writing. A write can complete
+                // right away on this thread, and the completion is what
+                // picks the leftover commands back up.
+                _readPaused = true;
+                flush();
+            }
+        }
+
+        /**
+         * Starts writing the queued responses if a write isn't already going
+         */
+        private void flush()
+        {
+            if( _writing || _closed || _outbound.isEmpty() ) {
+                return;
+            }
+
+            _writing = true;
+
+            int count = _outbound.gather();
+            _channel.write( _outbound.batch(), 0, count,
+                    _timeoutSeconds, TimeUnit.SECONDS, null, _writeHandler );
+        }
+
+        private void closeAfterFlush()
+        {
+            _closing = true;
+
+            if( _outbound.isEmpty() && !_writing ) {
+                close();
+            }
+            else {
+                flush();
+            }
+        }
+
+        private void goodBye()
+        {
+            _outbound.add( ByteBuffer.wrap( RequestHandler.GOOD_BYE ) );
+            closeAfterFlush();
+        }
+
+        private void close()
+        {
+            if( _closed ) {
+                return;
+            }
+
+            _closed = true;
+            _closing = true;
+
+            System.out.println( "Closing client connection" );
+            try
+            {
+                // Close the connection if we need to
+                if( _channel.isOpen() )
+                {
+                    _channel.close();
                 }
+            }
+            catch (IOException exception)
+            {
+                exception.printStackTrace();
+            }
 
-                break;
+            releaseBuffers();
+        }
 
-            case RequestParser.TOKEN_GET:
-                key = parser.getCacheKey();
-                value = cacheManager.get(key);
+        /**
+         * Gives the buffers back to the pool once the connection is closed.
+         * The buffer of a read or write that is still in flight can't be
+         * reused yet, so its completion calls this again.
+         */
+        private void releaseBuffers()
+        {
+            if( !_closed ) {
+                return;
+            }
 
-                if( null != value) {
+            if( !_reading ) {
+                _framer.release();
+            }
 
-                    response = new ResponseFormatter(
-                            ResponseFormatter.ServerResult.Ok, value ).format();
+            if( !_writing ) {
+                _outbound.clear();
+            }
+        }
+
+        private class ReadHandler implements CompletionHandler<Integer, Void>
+        {
+            @Override
+            public void completed( Integer bytesRead, Void att )
+            {
+                synchronized( Connection.this )
+                {
+                    _reading = false;
+
+                    if( _closing ) {
+                        releaseBuffers();
+                        return;
+                    }
+
+                    // The client hung up
+                    if( bytesRead == -1 ) {
+                        goodBye();
+                        return;
+                    }
 
+                    handleRequests();
                 }
-                else {
-                    response = new ResponseFormatter(
-                            ResponseFormatter.ServerResult.Err,
-                            "key not found").format();
+            }
+
+            @Override
+            public void failed( Throwable exc, Void att )
+            {
+                synchronized( Connection.this )
+                {
+                    _reading = false;
+
+                    if( exc instanceof InterruptedByTimeoutException ) {
+                        System.out.println( "Connection timed out, closing connection" );
+                        goodBye();
+                    }
+                    else {
+                        if( !(exc instanceof ClosedChannelException) ) {
+                            exc.printStackTrace();
+                        }
+                        close();
+                    }
                 }
+            }
+        }
 
-                break;
+        private class WriteHandler implements CompletionHandler<Long, Void>
+        {
+            @Override
+            public void completed( Long bytesWritten, Void att )
+            {
+                synchronized( Connection.this )
+                {
+                    _writing = false;
+                    _outbound.written( bytesWritten );
 
-            case RequestParser.TOKEN_REMOVE:
-                key = parser.getCacheKey();
+                    if( _closed ) {
+                        releaseBuffers();
+                        return;
+                    }
 
-                if( cacheManager.remove(key) ) {
-                    response = new ResponseFormatter(
-                            ResponseFormatter.ServerResult.Ok).format();
-                }
-                else {
-                    response = new ResponseFormatter(
-                            ResponseFormatter.ServerResult.Err,
-                            "removing key not found").format();
+                    if( _closing && _outbound.isEmpty() ) {
+                        close();
+                        return;
+                    }
+
+                    // Keep draining (this also picks up a partial write)
+                    flush();
+
+                    if( _readPaused && !_closing && _outbound.isBelowLowWater() ) {
+                        _readPaused = false;
+                        handleRequests();
+                    }
                 }
-                break;
+            }
 
-            case RequestParser.TOKEN_UNKNOWN:
-            default:
+            @Override
+            public void failed( Throwable exc, Void att )
+            {
+                synchronized( Connection.this )
+                {
+                    _writing = false;
 
-                response = new ResponseFormatter(
-                        ResponseFormatter.ServerResult.Err,
-                        "unknown or unexpected command").format();
+                    if( !(exc instanceof ClosedChannelException) && !(exc instanceof InterruptedByTimeoutException) ) {
+                        exc.printStackTrace();
+                    }
+                    close();
+                }
+            }
         }
-
-        return response;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,459 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheServer;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The TcpSocketServerBlocking class is the simplest of the network
+ * servers: every client gets its own thread that reads a request,
+ * handles it and writes the response using plain blocking I/O.
+ *
+ * A platform thread per client doesn't scale past a few thousand
+ * clients, but on Java 21+ the clients run on virtual threads, which
+ * are cheap enough to have hundreds of thousands of them. On older
+ * JDKs we fall back to a platform thread per client. The virtual
+ * thread executor is looked up by reflection so the project still
+ * builds for Java 8.
+ *
+ * Examples:
+ *
+ * telnet localhost 5000
+ * +add key somevalue\r\n
+ * +get key\r\n
+ * +remove key\r\n
+ *
+ */
+public class TcpSocketServerBlocking implements ICacheServer
+{
+    // The defaults (see CacheServerConfig to change them)
+    private static final int PORT = 5000;
+    private static final int BUFFER_SIZE = 4096;
+
+    // The timeout value of the socket if there is no activity
+    private static final int TIMEOUT_SECONDS = 20;
+
+    // The biggest command (including the value) we are willing to buffer
+    // for a client before giving up on them.
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // The most responses we'll hand the socket in one gathering write
+    private static final int MAX_GATHER = 256;
+
+    // How often we look for idle clients
+    private static final long SWEEP_MILLIS = 1000;
+
+    private final int _bufferSize;
+    private final int _timeoutSeconds;
+
+    private ServerSocketChannel _listener;
+
+    private final ExecutorService _executor;
+    private final boolean _virtualThreads;
+
+    private final ScheduledExecutorService _sweeper;
+    private final Set<Connection> _connections = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean _running = true;
+
+    public TcpSocketServerBlocking()
+    {
+        this( PORT );
+    }
+
+    /**
+     * Starts listening for connections on the given port.
+     * @param port the port to listen on, or 0 to let the OS pick
+     *             a free port (handy for tests)
+     */
+    public TcpSocketServerBlocking( int port )
+    {
+        this( port, BUFFER_SIZE, TIMEOUT_SECONDS );
+    }
+
+    /**
+     * Starts listening for connections on the given port.
+     * @param port the port to listen on, or 0 to let the OS pick
+     *             a free port (handy for tests)
+     * @param bufferSize the size of each connection's read buffer
+     * @param timeoutSeconds how long a client can be idle before we
+     *                       hang up on it
+     */
+    public TcpSocketServerBlocking( int port, int bufferSize, int timeoutSeconds )
+    {
+        if( bufferSize <= 0 || timeoutSeconds <= 0 ) {
+            throw new IllegalArgumentException( "the buffer size and timeout must be positive" );
+        }
+
+        _bufferSize = bufferSize;
+        _timeoutSeconds = timeoutSeconds;
+
+        ExecutorService executor;
+        boolean virtualThreads;
+
+        try
+        {
+            // Java 21+: a new virtual thread for every task
+            Method factory = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+            executor = (ExecutorService) factory.invoke( null );
+            virtualThreads = true;
+        }
+        catch (ReflectiveOperationException exception)
+        {
+            executor = Executors.newCachedThreadPool();
+            virtualThreads = false;
+        }
+
+        _executor = executor;
+        _virtualThreads = virtualThreads;
+
+        _sweeper = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "cacheserver-idle-sweeper" );
+            thread.setDaemon( true );
+            return thread;
+        });
+
+        try
+        {
+            // The OS queues up connections we haven't accepted yet. The
+            // default backlog is tiny, which stalls clients during a burst
+            // of new connections.
+            final int BACKLOG = 1024;
+
+            _listener = ServerSocketChannel.open();
+            _listener.bind( new InetSocketAddress( port ), BACKLOG );
+
+            new Thread( this::accept, "cacheserver-acceptor" ).start();
+
+            _sweeper.scheduleWithFixedDelay( this::sweep, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS );
+        }
+        catch (IOException exception)
+        {
+            exception.printStackTrace();
+        }
+    }
+
+    /**
+     * @return true if clients are served on virtual threads, false if
+     * they are on platform threads
+     */
+    public boolean isUsingVirtualThreads()
+    {
+        return _virtualThreads;
+    }
+
+    @Override
+    public int getPort()
+    {
+        return _listener.socket().getLocalPort();
+    }
+
+    @Override
+    public void close()
+    {
+        _running = false;
+
+        try
+        {
+            _listener.close();
+        }
+        catch (IOException exception)
+        {
+            exception.printStackTrace();
+        }
+
+        _sweeper.shutdownNow();
+
+        for( Connection connection : _connections ) {
+            connection.close();
+        }
+
+        _executor.shutdownNow();
+    }
+
+    /**
+     * The acceptor thread. Blocks waiting for clients and starts a
+     * thread for each one.
+     */
+    private void accept()
+    {
+        while( _running )
+        {
+            try
+            {
+                SocketChannel channel = _listener.accept();
+
+                System.out.println( "New inbound client connection accepted" );
+
+                Connection connection = new Connection( channel );
+                _connections.add( connection );
+                _executor.execute( connection );
+            }
+            catch (ClosedChannelException exception)
+            {
+                // The listener was closed out from under us (i.e. shutdown)
+                return;
+            }
+            catch (IOException exception)
+            {
+                // Something like running out of file handles. Don't give
+                // up on every future client because of one bad accept.
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A blocking read has no timeout, so instead we periodically look for
+     * clients that haven't done anything in a while and hang up on them.
+     * Closing the channel kicks the client's thread out of its read.
+     */
+    private void sweep()
+    {
+        final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos( _timeoutSeconds );
+        final long GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos( SWEEP_MILLIS );
+
+        long now = System.nanoTime();
+
+        for( Connection connection : _connections )
+        {
+            long idle = now - connection._lastActivity;
+
+            if( connection._timedOut ) {
+                // We tried to say goodbye and couldn't, so just hang up
+                if( idle > TIMEOUT_NANOS + GRACE_NANOS ) {
+                    connection.close();
+                }
+            }
+            else if( idle > TIMEOUT_NANOS ) {
+                connection._timedOut = true;
+
+                // Saying goodbye is a (possibly blocking) write, so
+                // don't do it on the sweeper thread
+                try
+                {
+                    _executor.execute( connection::timeout );
+                }
+                catch (RuntimeException exception)
+                {
+                    // The server is shutting down
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A Connection is the thread that serves one client:
+     *
+     * greet -> read -> handle requests -> write responses -> read -> ...
+     *
+     * Clients can pipeline commands (send several without waiting for
+     * the replies). Every complete command framed out of a read is
+     * handled in order and the responses go back to the client in a
+     * single gathering write. The blocking write is our backpressure: if
+     * the client stops reading responses, we stop reading requests.
+     */
+    private class Connection implements Runnable
+    {
+        private final SocketChannel _channel;
+        private final LineFramer _framer = new LineFramer( BufferPool.WithoutThreadCache(), _bufferSize, MAX_FRAME_SIZE );
+        private final RequestHandler _handler = new RequestHandler();
+
+        // The blocking write is our backpressure, so the water marks don't matter
+        private final OutboundQueue _outbound = new OutboundQueue(
+                BufferPool.WithoutThreadCache(), MAX_GATHER, Long.MAX_VALUE, Long.MAX_VALUE );
+
+        // The sweeper thread can write the goodbye, so writes are locked
+        private final ReentrantLock _writeLock = new ReentrantLock();
+
+        private volatile long _lastActivity = System.nanoTime();
+        private volatile boolean _timedOut = false;
+
+        Connection( SocketChannel channel ) { _channel = channel; }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                // Greet the client
+                write( ByteBuffer.wrap( RequestHandler.GREETING ) );
+
+                while( true )
+                {
+                    ByteBuffer buffer;
+
+                    try
+                    {
+                        buffer = _framer.writableBuffer();
+                    }
+                    catch (IllegalStateException exception)
+                    {
+                        // The client sent more than MAX_FRAME_SIZE without a terminator
+                        _outbound.add( new ResponseFormatter(
+                                ResponseFormatter.ServerResult.Err,
+                                "command too large") );
+                        flush();
+                        break;
+                    }
+
+                    // The client hung up
+                    if( _channel.read( buffer ) == -1 ) {
+                        write( ByteBuffer.wrap( RequestHandler.GOOD_BYE ) );
+                        break;
+                    }
+
+                    _lastActivity = System.nanoTime();
+
+                    handleRequests();
+                }
+            }
+            catch (IOException exception)
+            {
+                // The client reset the connection or we closed it because
+                // it was idle. Either way, there is nothing left to do.
+            }
+            finally
+            {
+                close();
+
+                // Only this thread touches the framer and queue (the
+                // sweeper's goodbye bypasses them), so this is safe
+                _framer.release();
+                _outbound.clear();
+            }
+        }
+
+        /**
+         * Handles every complete command we have buffered and writes the
+         * responses MAX_GATHER at a time.
+         */
+        private void handleRequests() throws IOException
+        {
+            int count = 0;
+
+            ByteBuffer frame;
+            while( null != (frame = _framer.next()) )
+            {
+                _outbound.add( _handler.handle( frame ) );
+
+                if( MAX_GATHER == ++count ) {
+                    flush();
+                    count = 0;
+                }
+            }
+
+            if( count > 0 ) {
+                flush();
+            }
+        }
+
+        private void write( ByteBuffer buffer ) throws IOException
+        {
+            _outbound.add( buffer );
+            flush();
+        }
+
+        /**
+         * Writes everything that is queued up, blocking until the socket
+         * has taken all of it.
+         */
+        private void flush() throws IOException
+        {
+            _writeLock.lock();
+            try
+            {
+                while( !_outbound.isEmpty() )
+                {
+                    int count = _outbound.gather();
+                    _outbound.written( _channel.write( _outbound.batch(), 0, count ) );
+                }
+
+                _lastActivity = System.nanoTime();
+            }
+            finally
+            {
+                _writeLock.unlock();
+            }
+        }
+
+        /**
+         * Runs on its own thread when the sweeper finds the client idle
+         */
+        void timeout()
+        {
+            // If the client's thread is in the middle of writing, the
+            // client isn't reading and there's no point saying goodbye
+            if( _writeLock.tryLock() )
+            {
+                try
+                {
+                    System.out.println( "Connection timed out, closing connection" );
+
+                    ByteBuffer goodBye = ByteBuffer.wrap( RequestHandler.GOOD_BYE );
+                    while( goodBye.hasRemaining() ) {
+                        _channel.write( goodBye );
+                    }
+                }
+                catch (IOException exception)
+                {
+                    // We're hanging up anyway
+                }
+                finally
+                {
+                    _writeLock.unlock();
+                }
+            }
+
+            close();
+        }
+
+        void close()
+        {
+            if( !_connections.remove( this ) ) {
+                return;
+            }
+
+            System.out.println( "Closing client connection" );
+            try
+            {
+                _channel.close();
+            }
+            catch (IOException exception)
+            {
+                exception.printStackTrace();
+            }
+        }
+    }
+}
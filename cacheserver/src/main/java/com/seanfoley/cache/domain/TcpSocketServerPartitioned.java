@@ -0,0 +1,854 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The TcpSocketServerPartitioned class speaks the same protocol as the
+ * other servers, but nothing in it is shared between threads. Like the
+ * TcpSocketServerReactor, an acceptor thread deals clients out to N
+ * event-loop threads. The difference is the cache: instead of every
+ * event loop using one concurrent storage, the keys are split into N
+ * partitions and each event loop owns one of them outright, with its
+ * own single-threaded LRU storage (LinkedHashMapCacheStorage) and its
+ * own CacheManager for expirations and leases, which doesn't lock
+ * anything (CacheManager.SingleOwner()).
+ *
+ * A command for a key in the event loop's own partition is handled
+ * right there. Any other command is copied and sent to the owning event
+ * loop through that loop's lock-free MpscQueue, and the response comes
+ * back through the sender's queue. So the only thread that ever touches
+ * a partition is the one that owns it, and the only thing the threads
+ * share is the queues.
+ *
+ * A client's commands can be spread across several partitions, so the
+ * responses can come back out of order. Each connection keeps its
+ * commands in flight in order and only writes a response once every
+ * response before it has been written.
+ *
+ * Unlike the other servers it doesn't print a line per connection:
+ * System.out's lock would be one more thing the event loops share.
+ *
+ * Connections that +use a namespace other than the default one go to
+ * that namespace's (shared, thread-safe) CacheManager, as with the
+ * other servers. Snapshots and the operation log aren't supported for
+ * the partitions.
+ *
+ * Examples:
+ *
+ * telnet localhost 5000
+ * +add key somevalue\r\n
+ * +get key\r\n
+ * +remove key\r\n
+ *
+ */
+public class TcpSocketServerPartitioned implements ICacheServer
+{
+    // The defaults (see CacheServerConfig to change them)
+    private static final int PORT = 5000;
+    private static final int BUFFER_SIZE = 4096;
+    private static final int ITEMS = 100000;
+
+    // The timeout value of the socket if there is no activity
+    private static final int TIMEOUT_SECONDS = 20;
+
+    // The biggest command (including the value) we are willing to buffer
+    // for a client before giving up on them.
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // The most responses we'll hand the socket in one gathering write
+    private static final int MAX_GATHER = 256;
+
+    // Backpressure limits for each client's queue of unwritten responses
+    private static final long HIGH_WATER_MARK = 1024 * 1024;
+    private static final long LOW_WATER_MARK = 256 * 1024;
+
+    // The most commands a client can have waiting on other partitions.
+    // Past that we stop reading from it, like the high-water mark.
+    private static final int MAX_IN_FLIGHT = 1024;
+
+    // How often we look for idle clients
+    private static final long SWEEP_MILLIS = 1000;
+
+    // How often a partition throws out its expired items
+    private static final long EXPIRE_MILLIS = 10;
+
+    private ServerSocketChannel _listener;
+    private final int _bufferSize;
+    private final int _timeoutSeconds;
+
+    private EventLoop[] _eventLoops;
+
+    private volatile boolean _running = true;
+
+    /**
+     * Starts a server on the default port with one partition per core
+     */
+    public TcpSocketServerPartitioned()
+    {
+        this( PORT, Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Starts listening for connections on the given port.
+     * @param port the port to listen on, or 0 to let the OS pick
+     *             a free port (handy for tests)
+     * @param partitions the number of partitions (and event-loop threads)
+     */
+    public TcpSocketServerPartitioned( int port, int partitions )
+    {
+        this( port, partitions, ITEMS, Long.MAX_VALUE, BUFFER_SIZE, TIMEOUT_SECONDS );
+    }
+
+    /**
+     * Starts listening for connections on the given port.
+     * @param port the port to listen on, or 0 to let the OS pick
+     *             a free port (handy for tests)
+     * @param partitions the number of partitions (and event-loop threads)
+     * @param capacity the number of items the cache holds, split evenly
+     *                 between the partitions
+     * @param maxBytes the (estimated) bytes the items can take up, split
+     *                 evenly between the partitions
+     * @param bufferSize the size of each connection's read buffer
+     * @param timeoutSeconds how long a client can be idle before we
+     *                       hang up on it
+     */
+    public TcpSocketServerPartitioned( int port, int partitions, int capacity, long maxBytes,
+                                       int bufferSize, int timeoutSeconds )
+    {
+        if( partitions <= 0 ) {
+            throw new IllegalArgumentException( "there must be at least 1 partition" );
+        }
+
+        if( capacity < partitions || maxBytes < partitions ) {
+            throw new IllegalArgumentException( "every partition needs room for at least 1 item" );
+        }
+
+        if( bufferSize <= 0 || timeoutSeconds <= 0 ) {
+            throw new IllegalArgumentException( "the buffer size and timeout must be positive" );
+        }
+
+        _bufferSize = bufferSize;
+        _timeoutSeconds = timeoutSeconds;
+
+        try
+        {
+            // The OS queues up connections we haven't accepted yet. The
+            // default backlog is tiny, which stalls clients during a burst
+            // of new connections.
+            final int BACKLOG = 1024;
+
+            _listener = ServerSocketChannel.open();
+            _listener.bind( new InetSocketAddress( port ), BACKLOG );
+
+            _eventLoops = new EventLoop[partitions];
+            for( int i = 0; i < partitions; i++ ) {
+                _eventLoops[i] = new EventLoop( i, new LinkedHashMapCacheStorage(
+                        capacity / partitions, maxBytes / partitions ) );
+            }
+
+            // Only start them once they're all there to send to
+            for( int i = 0; i < partitions; i++ ) {
+                new Thread( _eventLoops[i], "cacheserver-partition-" + i ).start();
+            }
+
+            new Thread( this::accept, "cacheserver-acceptor" ).start();
+        }
+        catch (IOException exception)
+        {
+            exception.printStackTrace();
+        }
+    }
+
+    @Override
+    public int getPort()
+    {
+        return _listener.socket().getLocalPort();
+    }
+
+    @Override
+    public void close()
+    {
+        _running = false;
+
+        try
+        {
+            _listener.close();
+        }
+        catch (IOException exception)
+        {
+            exception.printStackTrace();
+        }
+
+        for( EventLoop eventLoop : _eventLoops ) {
+            eventLoop.wakeup();
+        }
+    }
+
+    /**
+     * @return the partition that owns the key between offset and
+     * offset + length in the buffer
+     */
+    static int partition( ByteBuffer buffer, int offset, int length, int partitions )
+    {
+        int hash = 0;
+
+        for( int i = offset; i < offset + length; i++ ) {
+            hash = 31 * hash + buffer.get( i );
+        }
+
+        // Mix the high bits in so similar keys spread out
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+
+        return (hash & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * The acceptor thread. Blocks waiting for clients and deals each
+     * one out to the next event loop.
+     */
+    private void accept()
+    {
+        int next = 0;
+
+        while( _running )
+        {
+            try
+            {
+                SocketChannel channel = _listener.accept();
+
+                _eventLoops[next].register( channel );
+                next = (next + 1) % _eventLoops.length;
+            }
+            catch (ClosedChannelException exception)
+            {
+                // The listener was closed out from under us (i.e. shutdown)
+                return;
+            }
+            catch (IOException exception)
+            {
+                // Something like running out of file handles. Don't give
+                // up on every future client because of one bad accept.
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A command on its way to the partition that owns its key, and then
+     * its response on the way back to the connection that sent it
+     */
+    private static final class Request
+    {
+        private final Connection _connection;
+        private byte[] _request;
+        private byte[] _response;
+
+        // Set by the connection's event loop once the response is back
+        private boolean _done;
+
+        Request( Connection connection, byte[] request )
+        {
+            _connection = connection;
+            _request = request;
+        }
+    }
+
+    /**
+     * An EventLoop is a single thread that services the clients it has
+     * been handed and owns one partition of the cache. New clients,
+     * commands for the partition and responses for the clients all come
+     * in through lock-free queues, so nothing else ever waits on it.
+     */
+    private class EventLoop implements Runnable
+    {
+        private final int _partition;
+        private final Selector _selector;
+        private final CacheManager _cache;
+
+        // Only ever used by this thread. Namespaces are looked up by
+        // each connection, so this one never leaves the partition.
+        private final RequestHandler _handler;
+
+        private final MpscQueue<SocketChannel> _pending = new MpscQueue<>();
+        private final MpscQueue<Request> _inbound = new MpscQueue<>();
+
+        // False while we're (about to be) blocked in select()
+        private final AtomicBoolean _awake = new AtomicBoolean( true );
+
+        EventLoop( int partition, LinkedHashMapCacheStorage storage ) throws IOException
+        {
+            _partition = partition;
+            _selector = Selector.open();
+            _cache = CacheManager.SingleOwner( storage );
+            _handler = new RequestHandler( _cache, namespace -> null );
+        }
+
+        void register( SocketChannel channel )
+        {
+            _pending.offer( channel );
+            wakeup();
+        }
+
+        void send( Request request )
+        {
+            _inbound.offer( request );
+
+            // Only pay for a wakeup if the loop is (about to be) asleep
+            if( !_awake.getAndSet( true ) ) {
+                _selector.wakeup();
+            }
+        }
+
+        void wakeup()
+        {
+            _awake.set( true );
+            _selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            long lastSweep = System.nanoTime();
+            long lastExpire = lastSweep;
+
+            while( _running )
+            {
+                try
+                {
+                    // A send() after this sees _awake false and wakes the
+                    // selector, and one before it set _awake true, which
+                    // the swap reads, so its request shows up below.
+                    // Either way the select can't sleep through it.
+                    _awake.getAndSet( false );
+                    if( _inbound.isEmpty() ) {
+                        _selector.select( EXPIRE_MILLIS );
+                    }
+                    else {
+                        _selector.selectNow();
+                    }
+
+                    _awake.set( true );
+
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                    while( keys.hasNext() )
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        Connection connection = (Connection) key.attachment();
+
+                        try
+                        {
+                            if( key.isValid() && key.isWritable() ) {
+                                connection.onWritable();
+                            }
+
+                            if( key.isValid() && key.isReadable() ) {
+                                connection.onReadable();
+                            }
+                        }
+                        catch (IOException exception)
+                        {
+                            // Usually the client resetting the connection
+                            connection.close();
+                        }
+                    }
+
+                    drainInbound();
+
+                    long now = System.nanoTime();
+
+                    if( TimeUnit.NANOSECONDS.toMillis( now - lastExpire ) >= EXPIRE_MILLIS ) {
+                        _cache.expire();
+                        lastExpire = now;
+                    }
+
+                    if( TimeUnit.NANOSECONDS.toMillis( now - lastSweep ) >= SWEEP_MILLIS ) {
+                        sweep( now );
+                        lastSweep = now;
+                    }
+                }
+                catch (IOException exception)
+                {
+                    exception.printStackTrace();
+                }
+            }
+
+            shutdown();
+        }
+
+        /**
+         * Runs the commands sent to this partition, and hands the
+         * responses that came back to their connections
+         */
+        private void drainInbound()
+        {
+            Request request;
+            while( null != (request = _inbound.poll()) )
+            {
+                if( null == request._response ) {
+
+                    request._response = encode( _handler.handle( ByteBuffer.wrap( request._request ) ) );
+                    request._request = null;
+
+                    request._connection._eventLoop.send( request );
+                }
+                else {
+                    request._done = true;
+                    request._connection.onCompleted();
+                }
+            }
+        }
+
+        private void registerPending()
+        {
+            SocketChannel channel;
+            while( null != (channel = _pending.poll()) )
+            {
+                try
+                {
+                    channel.configureBlocking( false );
+
+                    Connection connection = new Connection( channel, this );
+                    connection.start( channel.register( _selector, SelectionKey.OP_READ, connection ) );
+                }
+                catch (IOException exception)
+                {
+                    exception.printStackTrace();
+                    closeQuietly( channel );
+                }
+            }
+        }
+
+        /**
+         * Says goodbye to clients that haven't done anything in a while
+         */
+        private void sweep( long now )
+        {
+            final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos( _timeoutSeconds );
+
+            // Copy the keys since timing out a connection can cancel its key
+            List<SelectionKey> keys = new ArrayList<>( _selector.keys() );
+
+            for( SelectionKey key : keys )
+            {
+                Connection connection = (Connection) key.attachment();
+
+                if( key.isValid() && now - connection._lastActivity > TIMEOUT_NANOS ) {
+                    connection.timeout();
+                }
+            }
+        }
+
+        private void shutdown()
+        {
+            for( SelectionKey key : new ArrayList<>( _selector.keys() ) ) {
+                ((Connection) key.attachment()).close();
+            }
+
+            SocketChannel channel;
+            while( null != (channel = _pending.poll()) ) {
+                closeQuietly( channel );
+            }
+
+            try
+            {
+                _selector.close();
+            }
+            catch (IOException exception)
+            {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    private static byte[] encode( ResponseFormatter response )
+    {
+        byte[] bytes = new byte[response.encodedLength()];
+        response.format( ByteBuffer.wrap( bytes ) );
+        return bytes;
+    }
+
+    private static void closeQuietly( Channel channel )
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException exception)
+        {
+            // Nothing more we can do
+        }
+    }
+
+    /**
+     * A Connection holds the state for one client. It is only ever
+     * touched by the event loop thread that owns it, so it doesn't
+     * need any synchronization.
+     *
+     * While none of the client's commands are waiting on another
+     * partition, the responses go straight into the outbound queue as
+     * with the TcpSocketServerReactor. Otherwise they wait their turn in
+     * _inFlight.
+     */
+    private class Connection
+    {
+        private final SocketChannel _channel;
+        private final EventLoop _eventLoop;
+        private final LineFramer _framer;
+        private final OutboundQueue _outbound = new OutboundQueue(
+                BufferPool.Instance(), MAX_GATHER, HIGH_WATER_MARK, LOW_WATER_MARK );
+
+        // Finds the key (and so the partition) of each command
+        private final RequestParser _parser = new RequestParser();
+
+        // The commands waiting for their turn to respond, in order
+        private final ArrayDeque<Request> _inFlight = new ArrayDeque<>();
+
+        // Set once the client has +use'd a namespace other than the default
+        private RequestHandler _namespaceHandler = null;
+
+        private SelectionKey _key;
+        private long _lastActivity = System.nanoTime();
+
+        // Reading was stopped because of backpressure
+        private boolean _readPaused = false;
+
+        // Once set, we stop reading and close after the queue drains
+        private boolean _closing = false;
+
+        Connection( SocketChannel channel, EventLoop eventLoop )
+        {
+            _channel = channel;
+            _eventLoop = eventLoop;
+            _framer = new LineFramer( BufferPool.Instance(), _bufferSize, MAX_FRAME_SIZE );
+        }
+
+        void start( SelectionKey key )
+        {
+            _key = key;
+
+            // Greet the client
+            _outbound.add( ByteBuffer.wrap( RequestHandler.GREETING ) );
+            flush();
+        }
+
+        void onReadable() throws IOException
+        {
+            _lastActivity = System.nanoTime();
+
+            ByteBuffer buffer;
+
+            try
+            {
+                buffer = _framer.writableBuffer();
+            }
+            catch (IllegalStateException exception)
+            {
+                // The client sent more than MAX_FRAME_SIZE without a terminator
+                respond( encode( new ResponseFormatter(
+                        ResponseFormatter.ServerResult.Err,
+                        "command too large") ) );
+                closeAfterFlush();
+                return;
+            }
+
+            // The client hung up
+            if( _channel.read( buffer ) == -1 ) {
+                goodBye();
+                return;
+            }
+
+            handleRequests();
+        }
+
+        void onWritable() throws IOException
+        {
+            _lastActivity = System.nanoTime();
+
+            flush();
+            resume();
+        }
+
+        /**
+         * A response came back from another partition
+         */
+        void onCompleted()
+        {
+            if( !_channel.isOpen() ) {
+                return;
+            }
+
+            while( !_inFlight.isEmpty() && _inFlight.peekFirst()._done ) {
+                _outbound.add( _inFlight.pollFirst()._response );
+            }
+
+            flush();
+            resume();
+        }
+
+        void timeout()
+        {
+            if( _closing ) {
+                // We already said goodbye and the client still isn't reading
+                close();
+            }
+            else {
+                goodBye();
+            }
+        }
+
+        /**
+         * Handles the complete commands we have buffered. If the client is
+         * too far behind on reading responses, or has too many commands
+         * waiting on other partitions, the leftover commands stay in the
+         * framer and we stop reading until it catches up.
+         */
+        private void handleRequests()
+        {
+            while( true )
+            {
+                boolean drained = false;
+
+                while( !_outbound.isAboveHighWater() && _inFlight.size() < MAX_IN_FLIGHT )
+                {
+                    ByteBuffer frame = _framer.next();
+
+                    if( null == frame ) {
+                        drained = true;
+                        break;
+                    }
+
+                    handle( frame );
+                }
+
+                flush();
+
+                if( drained || _closing ) {
+                    return;
+                }
+
+                if( !_outbound.isBelowLowWater() || _inFlight.size() >= MAX_IN_FLIGHT ) {
+                    // onWritable() or onCompleted() picks things back up
+                    _readPaused = true;
+                    interest( SelectionKey.OP_READ, false );
+                    return;
+                }
+
+                // The socket took everything right away, so keep going
+            }
+        }
+
+        private void handle( ByteBuffer frame )
+        {
+            RequestParser parser = _parser;
+            parser.parse( frame );
+
+            int token = parser.getToken();
+
+            if( RequestParser.TOKEN_USE == token ) {
+
+                if( CacheManager.DEFAULT_NAMESPACE.equals( parser.getNamespace() ) ) {
+                    _namespaceHandler = null;
+                    respond( _eventLoop._handler.handle( frame ) );
+                }
+                else {
+                    // The default namespace is the partitions, which this
+                    // handler never sees
+                    RequestHandler handler = new RequestHandler( null );
+                    ResponseFormatter response = handler.handle( frame );
+
+                    if( ResponseFormatter.ServerResult.Ok == response.getServerResult() ) {
+                        _namespaceHandler = handler;
+                    }
+
+                    respond( response );
+                }
+
+                return;
+            }
+
+            if( null != _namespaceHandler ) {
+                respond( _namespaceHandler.handle( frame ) );
+                return;
+            }
+
+            int partition = RequestParser.TOKEN_UNKNOWN == token
+                    ? _eventLoop._partition
+                    : partition( frame, parser.getKeyOffset(), parser.getKeyLength(), _eventLoops.length );
+
+            if( partition == _eventLoop._partition ) {
+                respond( _eventLoop._handler.handle( frame ) );
+                return;
+            }
+
+            // The frame is only good until the next read, so it goes as a copy
+            byte[] request = new byte[frame.remaining()];
+            frame.duplicate().get( request );
+
+            Request inFlight = new Request( this, request );
+            _inFlight.addLast( inFlight );
+
+            _eventLoops[partition].send( inFlight );
+        }
+
+        /**
+         * Queues up a response handled on this thread, behind any that
+         * are still waiting on other partitions
+         */
+        private void respond( ResponseFormatter response )
+        {
+            if( _inFlight.isEmpty() ) {
+                _outbound.add( response );
+            }
+            else {
+                respond( encode( response ) );
+            }
+        }
+
+        private void respond( byte[] response )
+        {
+            if( _inFlight.isEmpty() ) {
+                _outbound.add( response );
+                return;
+            }
+
+            Request done = new Request( this, null );
+            done._response = response;
+            done._done = true;
+
+            _inFlight.addLast( done );
+        }
+
+        /**
+         * Starts reading again if we stopped and the client has caught up
+         */
+        private void resume()
+        {
+            if( _readPaused && !_closing && _outbound.isBelowLowWater() && _inFlight.size() < MAX_IN_FLIGHT ) {
+                _readPaused = false;
+                interest( SelectionKey.OP_READ, true );
+
+                handleRequests();
+            }
+        }
+
+        /**
+         * Writes as much of the queue as the socket will take. If the socket
+         * is full we ask the selector to tell us when it's writable again.
+         */
+        private void flush()
+        {
+            try
+            {
+                while( !_outbound.isEmpty() )
+                {
+                    int count = _outbound.gather();
+                    long written = _channel.write( _outbound.batch(), 0, count );
+                    _outbound.written( written );
+
+                    if( 0 == written ) {
+                        break;
+                    }
+                }
+            }
+            catch (IOException exception)
+            {
+                close();
+                return;
+            }
+
+            if( _outbound.isEmpty() ) {
+                // Anything still in flight is written when it comes back
+                if( _closing && _inFlight.isEmpty() ) {
+                    close();
+                }
+                else {
+                    interest( SelectionKey.OP_WRITE, false );
+                }
+            }
+            else {
+                interest( SelectionKey.OP_WRITE, true );
+            }
+        }
+
+        private void closeAfterFlush()
+        {
+            _closing = true;
+            interest( SelectionKey.OP_READ, false );
+
+            flush();
+        }
+
+        private void goodBye()
+        {
+            respond( RequestHandler.GOOD_BYE );
+            closeAfterFlush();
+        }
+
+        private void interest( int op, boolean on )
+        {
+            if( !_key.isValid() ) {
+                return;
+            }
+
+            int ops = _key.interestOps();
+            _key.interestOps( on ? ops | op : ops & ~op );
+        }
+
+        void close()
+        {
+            if( !_channel.isOpen() ) {
+                return;
+            }
+
+            _closing = true;
+            _key.cancel();
+            closeQuietly( _channel );
+
+            // Only the event loop thread touches the buffers, so they
+            // can go straight back to the pool. Responses still on their
+            // way back are dropped by onCompleted().
+            _framer.release();
+            _outbound.clear();
+            _inFlight.clear();
+        }
+    }
+}
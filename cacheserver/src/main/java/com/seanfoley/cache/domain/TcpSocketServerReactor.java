@@ -0,0 +1,592 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TcpSocketServerReactor class is an alternative to the
+ * TcpSocketServerAsync class. It speaks the exact same protocol, but
+ * instead of letting the JDK's async channel group bounce each
+ * completion to whatever pool thread is free, it follows the classic
+ * multi-reactor pattern:
+ *
+ * - one acceptor thread accepts new clients
+ * - each client is handed (round-robin) to one of N event-loop threads
+ * - an event loop owns its clients for their whole lifetime and uses a
+ *   Selector to find out which of them are ready to read or write
+ *
+ * Since a client never moves between threads, the per-connection state
+ * needs no locking and stays warm in that core's cache, which makes the
+ * latency a lot more predictable under load. For the same reason it
+ * doesn't print a line per connection: System.out's lock would be one
+ * more thing the event loops share.
+ *
+ * Examples:
+ *
+ * telnet localhost 5000
+ * +add key somevalue\r\n
+ * +get key\r\n
+ * +remove key\r\n
+ *
+ */
+public class TcpSocketServerReactor implements ICacheServer
+{
+    // The defaults (see CacheServerConfig to change them)
+    private static final int PORT = 5000;
+    private static final int BUFFER_SIZE = 4096;
+
+    // The timeout value of the socket if there is no activity
+    private static final int TIMEOUT_SECONDS = 20;
+
+    // The biggest command (including the value) we are willing to buffer
+    // for a client before giving up on them.
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // The most responses we'll hand the socket in one gathering write
+    private static final int MAX_GATHER = 256;
+
+    // Backpressure limits for each client's queue of unwritten responses.
+    // We stop reading from a client above the high-water mark and start
+    // again once it drains below the low-water mark.
+    private static final long HIGH_WATER_MARK = 1024 * 1024;
+    private static final long LOW_WATER_MARK = 256 * 1024;
+
+    // How long an event loop waits in select() before it checks
+    // for idle clients
+    private static final long SWEEP_MILLIS = 1000;
+
+    private ServerSocketChannel _listener;
+    private final int _bufferSize;
+    private final int _timeoutSeconds;
+
+    private EventLoop[] _eventLoops;
+
+    private volatile boolean _running = true;
+
+    /**
+     * Starts a server on the default port with one event loop per core
+     */
+    public TcpSocketServerReactor()
+    {
+        this( PORT, Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Starts listening for connections on the given port.
+     * @param port the port to listen on, or 0 to let the OS pick
+     *             a free port (handy for tests)
+     * @param eventLoops the number of event-loop threads
+     */
+    public TcpSocketServerReactor( int port, int eventLoops )
+    {
+        this( port, eventLoops, BUFFER_SIZE, TIMEOUT_SECONDS );
+    }
+
+    /**
+     * Starts listening for connections on the given port.
+     * @param port the port to listen on, or 0 to let the OS pick
+     *             a free port (handy for tests)
+     * @param eventLoops the number of event-loop threads
+     * @param bufferSize the size of each connection's read buffer
+     * @param timeoutSeconds how long a client can be idle before we
+     *                       hang up on it
+     */
+    public TcpSocketServerReactor( int port, int eventLoops, int bufferSize, int timeoutSeconds )
+    {
+        if( eventLoops <= 0 ) {
+            throw new IllegalArgumentException( "there must be at least 1 event loop" );
+        }
+
+        if( bufferSize <= 0 || timeoutSeconds <= 0 ) {
+            throw new IllegalArgumentException( "the buffer size and timeout must be positive" );
+        }
+
+        _bufferSize = bufferSize;
+        _timeoutSeconds = timeoutSeconds;
+
+        try
+        {
+            // The OS queues up connections we haven't accepted yet. The
+            // default backlog is tiny, which stalls clients during a burst
+            // of new connections.
+            final int BACKLOG = 1024;
+
+            _listener = ServerSocketChannel.open();
+            _listener.bind( new InetSocketAddress( port ), BACKLOG );
+
+            _eventLoops = new EventLoop[eventLoops];
+            for( int i = 0; i < eventLoops; i++ )
+            {
+                _eventLoops[i] = new EventLoop();
+
+                Thread thread = new Thread( _eventLoops[i], "cacheserver-event-loop-" + i );
+                thread.start();
+            }
+
+            new Thread( this::accept, "cacheserver-acceptor" ).start();
+        }
+        catch (IOException exception)
+        {
+            exception.printStackTrace();
+        }
+    }
+
+    @Override
+    public int getPort()
+    {
+        return _listener.socket().getLocalPort();
+    }
+
+    @Override
+    public void close()
+    {
+        _running = false;
+
+        try
+        {
+            _listener.close();
+        }
+        catch (IOException exception)
+        {
+            exception.printStackTrace();
+        }
+
+        for( EventLoop eventLoop : _eventLoops ) {
+            eventLoop.wakeup();
+        }
+    }
+
+    /**
+     * The acceptor thread. Blocks waiting for clients and deals each
+     * one out to the next event loop.
+     */
+    private void accept()
+    {
+        int next = 0;
+
+        while( _running )
+        {
+            try
+            {
+                SocketChannel channel = _listener.accept();
+
+                _eventLoops[next].register( channel );
+                next = (next + 1) % _eventLoops.length;
+            }
+            catch (ClosedChannelException exception)
+            {
+                // The listener was closed out from under us (i.e. shutdown)
+                return;
+            }
+            catch (IOException exception)
+            {
+                // Something like running out of file handles. Don't give
+                // up on every future client because of one bad accept.
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * An EventLoop is a single thread that services every client it
+     * has been handed. New clients are passed over from the acceptor
+     * through a queue since a Selector can't safely be registered with
+     * from another thread while it is selecting.
+     */
+    private class EventLoop implements Runnable
+    {
+        private final Selector _selector;
+        private final Queue<SocketChannel> _pending = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException
+        {
+            _selector = Selector.open();
+        }
+
+        void register( SocketChannel channel )
+        {
+            _pending.add( channel );
+            _selector.wakeup();
+        }
+
+        void wakeup()
+        {
+            _selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            long lastSweep = System.nanoTime();
+
+            while( _running )
+            {
+                try
+                {
+                    _selector.select( SWEEP_MILLIS );
+
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                    while( keys.hasNext() )
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        Connection connection = (Connection) key.attachment();
+
+                        try
+                        {
+                            if( key.isValid() && key.isWritable() ) {
+                                connection.onWritable();
+                            }
+
+                            if( key.isValid() && key.isReadable() ) {
+                                connection.onReadable();
+                            }
+                        }
+                        catch (IOException exception)
+                        {
+                            // Usually the client resetting the connection
+                            connection.close();
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    if( TimeUnit.NANOSECONDS.toMillis( now - lastSweep ) >= SWEEP_MILLIS ) {
+                        sweep( now );
+                        lastSweep = now;
+                    }
+                }
+                catch (IOException exception)
+                {
+                    exception.printStackTrace();
+                }
+            }
+
+            shutdown();
+        }
+
+        private void registerPending()
+        {
+            SocketChannel channel;
+            while( null != (channel = _pending.poll()) )
+            {
+                try
+                {
+                    channel.configureBlocking( false );
+
+                    Connection connection = new Connection( channel, _bufferSize );
+                    connection.start( channel.register( _selector, SelectionKey.OP_READ, connection ) );
+                }
+                catch (IOException exception)
+                {
+                    exception.printStackTrace();
+                    closeQuietly( channel );
+                }
+            }
+        }
+
+        /**
+         * Says goodbye to clients that haven't done anything in a while
+         */
+        private void sweep( long now )
+        {
+            final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos( _timeoutSeconds );
+
+            // Copy the keys since timing out a connection can cancel its key
+            List<SelectionKey> keys = new ArrayList<>( _selector.keys() );
+
+            for( SelectionKey key : keys )
+            {
+                Connection connection = (Connection) key.attachment();
+
+                if( key.isValid() && now - connection._lastActivity > TIMEOUT_NANOS ) {
+                    connection.timeout();
+                }
+            }
+        }
+
+        private void shutdown()
+        {
+            for( SelectionKey key : new ArrayList<>( _selector.keys() ) ) {
+                ((Connection) key.attachment()).close();
+            }
+
+            SocketChannel channel;
+            while( null != (channel = _pending.poll()) ) {
+                closeQuietly( channel );
+            }
+
+            try
+            {
+                _selector.close();
+            }
+            catch (IOException exception)
+            {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    private static void closeQuietly( Channel channel )
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException exception)
+        {
+            // Nothing more we can do
+        }
+    }
+
+    /**
+     * A Connection holds the state for one client. It is only ever
+     * touched by the event loop thread that owns it, so it doesn't
+     * need any synchronization.
+     *
+     * Clients can pipeline commands (send several without waiting for
+     * the replies). Whatever responses have piled up are written with a
+     * single gathering write. If a client stops reading its responses,
+     * the outbound queue passes the high-water mark and we stop reading
+     * (and handling) its requests until the queue drains.
+     */
+    private static class Connection
+    {
+        private final SocketChannel _channel;
+        private final LineFramer _framer;
+        private final OutboundQueue _outbound = new OutboundQueue(
+                BufferPool.Instance(), MAX_GATHER, HIGH_WATER_MARK, LOW_WATER_MARK );
+        private final RequestHandler _handler = new RequestHandler();
+
+        private SelectionKey _key;
+        private long _lastActivity = System.nanoTime();
+
+        // Reading was stopped because of backpressure
+        private boolean _readPaused = false;
+
+        // Once set, we stop reading and close after the queue drains
+        private boolean _closing = false;
+
+        Connection( SocketChannel channel, int bufferSize )
+        {
+            _channel = channel;
+            _framer = new LineFramer( BufferPool.Instance(), bufferSize, MAX_FRAME_SIZE );
+        }
+
+        void start( SelectionKey key )
+        {
+            _key = key;
+
+            // Greet the client
+            _outbound.add( ByteBuffer.wrap( RequestHandler.GREETING ) );
+            flush();
+        }
+
+        void onReadable() throws IOException
+        {
+            _lastActivity = System.nanoTime();
+
+            ByteBuffer buffer;
+
+            try
+            {
+                buffer = _framer.writableBuffer();
+            }
+            catch (IllegalStateException exception)
+            {
+                // The client sent more than MAX_FRAME_SIZE without a terminator
+                _outbound.add( new ResponseFormatter(
+                        ResponseFormatter.ServerResult.Err,
+                        "command too large") );
+                closeAfterFlush();
+                return;
+            }
+
+            // The client hung up
+            if( _channel.read( buffer ) == -1 ) {
+                goodBye();
+                return;
+            }
+
+            handleRequests();
+        }
+
+        void onWritable() throws IOException
+        {
+            _lastActivity = System.nanoTime();
+
+            flush();
+
+            if( _readPaused && !_closing && _outbound.isBelowLowWater() ) {
+                _readPaused = false;
+                interest( SelectionKey.OP_READ, true );
+
+                handleRequests();
+            }
+        }
+
+        void timeout()
+        {
+            if( _closing ) {
+                // We already said goodbye and the client still isn't reading
+                close();
+            }
+            else {
+                goodBye();
+            }
+        }
+
+        /**
+         * Handles the complete commands we have buffered and queues up the
+         * responses. If the client is too far behind on reading responses,
+         * the leftover commands stay in the framer and we stop reading until
+         * the queue drains.
+         */
+        private void handleRequests()
+        {
+            while( true )
+            {
+                boolean drained = false;
+
+                while( !_outbound.isAboveHighWater() )
+                {
+                    ByteBuffer frame = _framer.next();
+
+                    if( null == frame ) {
+                        drained = true;
+                        break;
+                    }
+
+                    _outbound.add( _handler.handle( frame ) );
+                }
+
+                flush();
+
+                if( drained || _closing ) {
+                    return;
+                }
+
+                if( !_outbound.isBelowLowWater() ) {
+                    // onWritable() picks things back up
+                    _readPaused = true;
+                    interest( SelectionKey.OP_READ, false );
+                    return;
+                }
+
+                // The socket took everything right away, so keep going
+            }
+        }
+
+        /**
+         * Writes as much of the queue as the socket will take. If the socket
+         * is full we ask the selector to tell us when it's writable again.
+         */
+        private void flush()
+        {
+            try
+            {
+                while( !_outbound.isEmpty() )
+                {
+                    int count = _outbound.gather();
+                    long written = _channel.write( _outbound.batch(), 0, count );
+                    _outbound.written( written );
+
+                    if( 0 == written ) {
+                        break;
+                    }
+                }
+            }
+            catch (IOException exception)
+            {
+                close();
+                return;
+            }
+
+            if( _outbound.isEmpty() ) {
+                if( _closing ) {
+                    close();
+                }
+                else {
+                    interest( SelectionKey.OP_WRITE, false );
+                }
+            }
+            else {
+                interest( SelectionKey.OP_WRITE, true );
+            }
+        }
+
+        private void closeAfterFlush()
+        {
+            _closing = true;
+            interest( SelectionKey.OP_READ, false );
+
+            flush();
+        }
+
+        private void goodBye()
+        {
+            _outbound.add( ByteBuffer.wrap( RequestHandler.GOOD_BYE ) );
+            closeAfterFlush();
+        }
+
+        private void interest( int op, boolean on )
+        {
+            if( !_key.isValid() ) {
+                return;
+            }
+
+            int ops = _key.interestOps();
+            _key.interestOps( on ? ops | op : ops & ~op );
+        }
+
+        void close()
+        {
+            if( !_channel.isOpen() ) {
+                return;
+            }
+
+            _closing = true;
+            _key.cancel();
+            closeQuietly( _channel );
+
+            // Only the event loop thread touches the buffers, so they
+            // can go straight back to the pool
+            _framer.release();
+            _outbound.clear();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Class:
+ * TieredCacheStorage
+ *
+ * Description:
+ * This class implements the ICacheStorage interface as two tiers: a
+ * small, fast striped LRU on the heap for the working set in front of
+ * a much bigger, compact cold tier (off-heap slabs or mapped files).
+ *
+ * New items go in the hot tier. Items the hot tier evicts are demoted
+ * to the cold tier instead of being dropped, and a hit in the cold tier
+ * promotes the item back to the hot tier. An item is only ever in one
+ * of the tiers, except for a moment when an older value is demoted
+ * while a newer one is being added (the hot one is the one found, and
+ * it replaces the cold one when it's demoted). The cold tier evicts
+ * for good.
+ *
+ * Promotion is a get, remove and add across the two tiers, so adds,
+ * removes and promotions of the same key are serialized on a striped
+ * lock. Demotion happens under the hot segment's lock (from the
+ * eviction listener), which also covers the key being demoted.
+ */
+public class TieredCacheStorage implements ICacheStorage {
+
+    private final StripedLruCacheStorage _hot;
+    private final ICacheStorage _cold;
+
+    private final Object[] _locks;
+
+    // The lock count is a power of two so we can mask instead of mod
+    private final int _mask;
+
+    /**
+     * @param hotCapacity the number of items in the hot tier
+     * @param hotMaxBytes the (estimated) bytes the hot tier can take up
+     * @param segments the number of hot tier segments (and key locks)
+     * @param cold the cold tier; it sets its own capacity
+     */
+    TieredCacheStorage( int hotCapacity, long hotMaxBytes, int segments, ICacheStorage cold ) {
+
+        _cold = cold;
+        _hot = new StripedLruCacheStorage( hotCapacity, hotMaxBytes, segments, this::demote );
+
+        int count = 1;
+        while( count < segments ) {
+            count *= 2;
+        }
+
+        _locks = new Object[count];
+        _mask = count - 1;
+
+        for( int i = 0; i < count; i++ ) {
+            _locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public boolean add(ICacheKey key, ICacheValue value) {
+
+        synchronized( lockFor( key ) ) {
+
+            // An older value could have been demoted. It goes first: if we
+            // removed it after the add, another thread's add could evict
+            // (demote) the new value in between and we'd remove that.
+            _cold.remove( key );
+
+            return _hot.add( key, value );
+        }
+    }
+
+    @Override
+    public ICacheValue get(ICacheKey key) {
+
+        ICacheValue value = _hot.get( key );
+
+        if( null != value ) {
+            return value;
+        }
+
+        synchronized( lockFor( key ) ) {
+
+            // Someone may have beaten us to it
+            value = _hot.get( key );
+
+            if( null != value ) {
+                return value;
+            }
+
+            value = _cold.get( key );
+
+            if( null != value ) {
+                _cold.remove( key );
+
+                // Makes room by demoting the hot tier's LRU item
+                _hot.add( key, value );
+            }
+
+            return value;
+        }
+    }
+
+    @Override
+    public boolean remove(ICacheKey key) {
+
+        synchronized( lockFor( key ) ) {
+
+            boolean hot = _hot.remove( key );
+            boolean cold = _cold.remove( key );
+
+            return hot || cold;
+        }
+    }
+
+    /**
+     * Like the striped storage, this isn't a snapshot.
+     */
+    @Override
+    public int count() {
+        return _hot.count() + _cold.count();
+    }
+
+    /**
+     * The hot tier's estimate plus the cold tier's bytes; also not a snapshot.
+     */
+    @Override
+    public long bytesUsed() {
+        return _hot.bytesUsed() + _cold.bytesUsed();
+    }
+
+    int hotCount() { return _hot.count(); }
+
+    int coldCount() { return _cold.count(); }
+
+    /**
+     * Visits the cold tier and then the hot one. An item that moves
+     * between the tiers while this runs can be visited twice (the hot,
+     * more recent, copy last) or not at all.
+     */
+    @Override
+    public void forEach(BiConsumer<ICacheKey, ICacheValue> action) {
+
+        _cold.forEach( action );
+        _hot.forEach( action );
+    }
+
+    /**
+     * Called by the hot tier (holding a segment lock) for each item it evicts
+     */
+    private void demote( ICacheKey key, ICacheValue value ) {
+
+        // A value the cold tier can't store (an unsupported type, or too
+        // big) is simply gone, as it would be without the cold tier
+        _cold.add( key, value );
+    }
+
+    private Object lockFor( ICacheKey key ) {
+
+        int hash = key.getKey().hashCode();
+        hash ^= (hash >>> 16);
+
+        return _locks[hash & _mask];
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Class:
+ * TimerWheel
+ *
+ * Description:
+ * A hierarchical timing wheel (Varghese and Lauck) that keeps track of
+ * when keys expire. Scheduling and cancelling a timer are O(1): a timer
+ * is linked into (or out of) a slot's list and nothing is sorted.
+ *
+ * Time is counted in ticks. The first level has a slot for each of the
+ * next 64 ticks, the second level a slot for each of the next 64 spans
+ * of 64 ticks, and so on for five levels (2^30 ticks; with 10 ms ticks
+ * that's over 120 days). Each time the wheel moves into a new span of a
+ * higher level, the timers in that span's slot are cascaded down to
+ * the levels below. Only the first level's timers actually expire, and
+ * they do on exactly their tick. A timer past the end of the wheel is
+ * parked in the top level and placed again when it's cascaded.
+ *
+ * Advancing steps through the ticks one at a time, but jumps over the
+ * stretches where the levels that could cascade or expire are empty.
+ *
+ * A timer's tick is its deadline rounded up, so it never expires early.
+ *
+ * This class isn't thread-safe.
+ */
+final class TimerWheel {
+
+    // 64 slots per level, so each level is 6 bits of the tick count
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 5;
+
+    private final long TICK_MILLIS;
+
+    // The sentinel of each slot's circular list
+    private final Timer[][] _wheel = new Timer[LEVELS][SLOTS];
+
+    // The number of timers in each level
+    private final int[] _counts = new int[LEVELS];
+
+    // The last tick we've moved to
+    private long _currentTick;
+
+    private int _size = 0;
+
+    /**
+     * @param tickMillis the length of a tick
+     * @param nowMillis the current time
+     */
+    TimerWheel( long tickMillis, long nowMillis ) {
+
+        if( tickMillis <= 0 ) {
+            throw new IllegalArgumentException( "the tick must be positive" );
+        }
+
+        TICK_MILLIS = tickMillis;
+        _currentTick = nowMillis / tickMillis;
+
+        for( Timer[] level : _wheel ) {
+            for( int slot = 0; slot < SLOTS; slot++ ) {
+                Timer sentinel = new Timer( null, 0 );
+                sentinel._previous = sentinel;
+                sentinel._next = sentinel;
+                level[slot] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * @param key what the timer is for
+     * @param deadlineMillis when it expires
+     * @return the timer, for cancel()
+     */
+    Timer schedule( Object key, long deadlineMillis ) {
+
+        Timer timer = new Timer( key, deadlineMillis );
+
+        place( timer );
+
+        return timer;
+    }
+
+    /**
+     * Takes the timer off the wheel. Does nothing if it has already
+     * expired or been cancelled.
+     */
+    void cancel( Timer timer ) {
+
+        if( null != timer._next ) {
+            unlink( timer );
+        }
+    }
+
+    /**
+     * Moves the wheel up to now and collects the timers that expired,
+     * at most limit of them. The rest are collected by the next call.
+     * @param nowMillis the current time
+     * @param limit the most timers to collect
+     * @param expired where the expired timers go (they're off the wheel)
+     * @return the number of timers collected
+     */
+    int advance( long nowMillis, int limit, List<Timer> expired ) {
+
+        long target = nowMillis / TICK_MILLIS;
+
+        // What was left over from the last call
+        int count = expire( _currentTick, limit, expired );
+
+        while( count < limit && _currentTick < target ) {
+
+            skipEmptyTicks( target );
+
+            long tick = ++_currentTick;
+
+            // Entering a new span at a level brings its timers down a level
+            for( int level = LEVELS - 1; level > 0; level-- ) {
+                if( 0 == (tick & ((1L << (SLOT_BITS * level)) - 1)) ) {
+                    cascade( level, tick );
+                }
+            }
+
+            count += expire( tick, limit - count, expired );
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of timers on the wheel
+     */
+    int size() { return _size; }
+
+    private int expire( long tick, int limit, List<Timer> expired ) {
+
+        Timer sentinel = _wheel[0][(int) (tick & SLOT_MASK)];
+
+        int count = 0;
+
+        while( count < limit && sentinel._next != sentinel ) {
+
+            Timer timer = sentinel._next;
+
+            unlink( timer );
+
+            expired.add( timer );
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Jumps over the ticks where nothing can happen: with the lower
+     * levels empty, the next thing is the next lowest non-empty level
+     * cascading, or nothing at all if the wheel is empty
+     */
+    private void skipEmptyTicks( long target ) {
+
+        int level = 0;
+
+        while( level < LEVELS && 0 == _counts[level] ) {
+            level++;
+        }
+
+        if( 0 == level ) {
+            return;
+        }
+
+        long next = target;
+
+        if( level < LEVELS ) {
+            int shift = SLOT_BITS * level;
+            next = Math.min( target, ((_currentTick >>> shift) + 1) << shift );
+        }
+
+        if( next - 1 > _currentTick ) {
+            _currentTick = next - 1;
+        }
+    }
+
+    private void cascade( int level, long tick ) {
+
+        Timer sentinel = _wheel[level][(int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+
+        // Detach the list first; a parked timer can land in this slot again
+        Timer timer = sentinel._next;
+        sentinel._next = sentinel;
+        sentinel._previous = sentinel;
+
+        while( timer != sentinel ) {
+            Timer next = timer._next;
+            _counts[level]--;
+            _size--;
+            place( timer );
+            timer = next;
+        }
+    }
+
+    private void place( Timer timer ) {
+
+        // Round up so we never expire early, and never schedule in the past
+        long tick = Math.max( (timer._deadlineMillis + TICK_MILLIS - 1) / TICK_MILLIS, _currentTick + 1 );
+
+        // The lowest level where the tick is in the current span
+        for( int level = 0; level < LEVELS; level++ ) {
+
+            int shift = SLOT_BITS * (level + 1);
+
+            if( (tick >>> shift) == (_currentTick >>> shift) ) {
+                link( level, _wheel[level][(int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK)], timer );
+                return;
+            }
+        }
+
+        // Past the end of the wheel: park it in the top level's first
+        // slot. Nothing else goes there (it would be in a lower level),
+        // and it cascades right as the wheel starts its next rotation.
+        link( LEVELS - 1, _wheel[LEVELS - 1][0], timer );
+    }
+
+    private void link( int level, Timer sentinel, Timer timer ) {
+
+        timer._level = level;
+        _counts[level]++;
+        _size++;
+
+        timer._previous = sentinel._previous;
+        timer._next = sentinel;
+        sentinel._previous._next = timer;
+        sentinel._previous = timer;
+    }
+
+    private void unlink( Timer timer ) {
+
+        _counts[timer._level]--;
+        _size--;
+
+        timer._previous._next = timer._next;
+        timer._next._previous = timer._previous;
+        timer._previous = null;
+        timer._next = null;
+    }
+
+    /**
+     * A key's expiration, linked into one of the wheel's slots
+     */
+    static final class Timer {
+
+        private static final AtomicLongFieldUpdater<Timer> REFRESH_UNTIL =
+                AtomicLongFieldUpdater.newUpdater( Timer.class, "_refreshUntilMillis" );
+
+        private final Object _key;
+        private final long _deadlineMillis;
+
+        // Someone has been told to refresh the key and has until then to
+        // do it. Unlike the rest of the timer this is used without the
+        // wheel's lock.
+        private volatile long _refreshUntilMillis = Long.MIN_VALUE;
+
+        private Timer _previous;
+        private Timer _next;
+        private int _level;
+
+        private Timer( Object key, long deadlineMillis ) {
+            _key = key;
+            _deadlineMillis = deadlineMillis;
+        }
+
+        Object getKey() { return _key; }
+
+        long getDeadlineMillis() { return _deadlineMillis; }
+
+        /**
+         * Hands out the job of refreshing the key to one caller at a time
+         * @param nowMillis the current time
+         * @param leaseMillis how long the caller has before someone else
+         *                    can be given the job
+         * @return true if the caller got the job
+         */
+        boolean grantRefresh( long nowMillis, long leaseMillis ) {
+
+            long until = _refreshUntilMillis;
+
+            return nowMillis >= until && REFRESH_UNTIL.compareAndSet( this, until, nowMillis + leaseMillis );
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Class:
+ * TinyLfuCacheStorage
+ *
+ * Description:
+ * This class implements the ICacheStorage interface with the W-TinyLFU
+ * policy. Plain LRU admits everything, so a scan of keys that are only
+ * used once (e.g. a nightly batch job) pushes the whole hot set out.
+ * W-TinyLFU only lets a new item in if it looks more popular than the
+ * item it would replace.
+ *
+ * The capacity is split into three LRU lists:
+ *
+ * window:    ~1% of the items. Every new item starts here, so a burst
+ *            of new keys gets a chance to build up some history.
+ * probation: ~20% of the rest. Items that made it out of the window.
+ * protected: ~80% of the rest. Items that were used again while on
+ *            probation.
+ *
+ * When the window overflows, its least-recently used item (the
+ * candidate) competes with the least-recently used item on probation
+ * (the victim). A FrequencySketch estimates how often each has been
+ * seen lately, and the more popular one stays. A hit on probation moves
+ * the item to protected; when protected overflows its least-recently
+ * used item drops back to probation.
+ *
+ * The sketch counts every add and get, hits or misses, and it ages
+ * (halves all of its counts) every agingPeriod adds so the popularity
+ * is recent. The sketch's memory footprint and the aging period are
+ * both tunable.
+ *
+ * The bytes used are tracked (see CacheEntrySizer) but not bounded;
+ * the capacity is in items.
+ *
+ * Every method is synchronized: even get() moves items between lists
+ * and updates the sketch.
+ */
+public class TinyLfuCacheStorage implements ICacheStorage {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final HashMap<Object, Node> _map;
+
+    private final Region[] _regions = { new Region(), new Region(), new Region() };
+
+    private final FrequencySketch _sketch;
+
+    private final int _windowCapacity;
+    private final int _protectedCapacity;
+    private final int _mainCapacity;
+
+    private long _bytesUsed = 0;
+
+    /**
+     * Uses a sketch of 8 bytes (16 counters) per item that ages every
+     * 10 x capacity increments
+     * @param capacity the number of items to hold
+     */
+    TinyLfuCacheStorage( int capacity ) {
+        this( capacity, (long) capacity * Long.BYTES, (int) Math.min( Integer.MAX_VALUE, capacity * 10L ) );
+    }
+
+    /**
+     * @param capacity the number of items to hold
+     * @param sketchBytes the memory used to count how often keys are seen
+     * @param agingPeriod the number of increments between the sketch halving
+     *                    its counts
+     */
+    TinyLfuCacheStorage( int capacity, long sketchBytes, int agingPeriod ) {
+
+        if( capacity <= 0 ) {
+            throw new IllegalArgumentException( "the capacity must be positive" );
+        }
+
+        final double WINDOW_PERCENT = 0.01;
+        final double PROTECTED_PERCENT = 0.80;
+
+        _windowCapacity = Math.max( 1, (int) (capacity * WINDOW_PERCENT) );
+        _mainCapacity = Math.max( 0, capacity - _windowCapacity );
+        _protectedCapacity = (int) (_mainCapacity * PROTECTED_PERCENT);
+
+        final float LOAD_FACTOR = 0.80f;
+
+        _map = new HashMap<>( (int) (capacity / LOAD_FACTOR) + 1, LOAD_FACTOR );
+        _sketch = new FrequencySketch( sketchBytes, agingPeriod );
+    }
+
+    @Override
+    public synchronized boolean add(ICacheKey key, ICacheValue value) {
+
+        Object k = key.getKey();
+
+        _sketch.increment( k );
+
+        Node node = _map.get( k );
+
+        if( null != node ) {
+            _bytesUsed += CacheEntrySizer.sizeOf( value.getValue() ) - CacheEntrySizer.sizeOf( node._value.getValue() );
+            node._value = value;
+            onHit( node );
+            return true;
+        }
+
+        _bytesUsed += CacheEntrySizer.sizeOf( k, value );
+
+        node = new Node( k, value );
+        _map.put( k, node );
+        _regions[WINDOW].addLast( node, WINDOW );
+
+        if( _regions[WINDOW]._size > _windowCapacity ) {
+            admit( _regions[WINDOW].removeFirst() );
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized ICacheValue get(ICacheKey key) {
+
+        Object k = key.getKey();
+
+        _sketch.increment( k );
+
+        Node node = _map.get( k );
+
+        if( null == node ) {
+            return null;
+        }
+
+        onHit( node );
+
+        return node._value;
+    }
+
+    @Override
+    public synchronized boolean remove(ICacheKey key) {
+
+        Node node = _map.remove( key.getKey() );
+
+        if( null == node ) {
+            return false;
+        }
+
+        _regions[node._region].remove( node );
+        _bytesUsed -= CacheEntrySizer.sizeOf( node._key, node._value );
+
+        return true;
+    }
+
+    @Override
+    public synchronized int count() {
+        return _map.size();
+    }
+
+    @Override
+    public synchronized long bytesUsed() {
+        return _bytesUsed;
+    }
+
+    long getSketchBytes() { return _sketch.getSketchBytes(); }
+
+    int getAgingPeriod() { return _sketch.getAgingPeriod(); }
+
+    /**
+     * The map can't be walked a piece at a time, so the lock is held
+     * while the items are copied out (which is just a copy of the
+     * references), but not while the action runs.
+     */
+    @Override
+    public void forEach(BiConsumer<ICacheKey, ICacheValue> action) {
+
+        List<Map.Entry<ICacheKey, ICacheValue>> items;
+
+        synchronized( this ) {
+
+            items = new ArrayList<>( _map.size() );
+
+            for( Node node : _map.values() ) {
+                items.add( new AbstractMap.SimpleImmutableEntry<>( new CacheKey( node._key ), node._value ) );
+            }
+        }
+
+        for( Map.Entry<ICacheKey, ICacheValue> item : items ) {
+            action.accept( item.getKey(), item.getValue() );
+        }
+    }
+
+    private void onHit( Node node ) {
+
+        switch( node._region )
+        {
+            case WINDOW:
+            case PROTECTED:
+                _regions[node._region].moveToLast( node );
+                break;
+
+            case PROBATION:
+                // Used again, so it earned a spot in protected
+                _regions[PROBATION].remove( node );
+                _regions[PROTECTED].addLast( node, PROTECTED );
+
+                if( _regions[PROTECTED]._size > _protectedCapacity ) {
+                    _regions[PROBATION].addLast( _regions[PROTECTED].removeFirst(), PROBATION );
+                }
+                break;
+        }
+    }
+
+    /**
+     * Decides whether an item leaving the window gets into the main
+     * region, evicting either it or the probation victim
+     */
+    private void admit( Node candidate ) {
+
+        if( _regions[PROBATION]._size + _regions[PROTECTED]._size < _mainCapacity ) {
+            _regions[PROBATION].addLast( candidate, PROBATION );
+            return;
+        }
+
+        Node victim = _regions[PROBATION]._head;
+        int victimRegion = PROBATION;
+
+        if( null == victim ) {
+            victim = _regions[PROTECTED]._head;
+            victimRegion = PROTECTED;
+        }
+
+        // Nothing in the main region at all (a tiny cache)
+        if( null == victim ) {
+            evict( candidate );
+            return;
+        }
+
+        // Ties go to the victim, which has already proven itself
+        if( _sketch.frequency( candidate._key ) > _sketch.frequency( victim._key ) ) {
+            _regions[victimRegion].remove( victim );
+            evict( victim );
+            _regions[PROBATION].addLast( candidate, PROBATION );
+        }
+        else {
+            evict( candidate );
+        }
+    }
+
+    /**
+     * Drops a node that has already been taken off its list
+     */
+    private void evict( Node node ) {
+        _map.remove( node._key );
+        _bytesUsed -= CacheEntrySizer.sizeOf( node._key, node._value );
+    }
+
+    private static class Node {
+
+        private final Object _key;
+        private ICacheValue _value;
+
+        private int _region;
+        private Node _previous;
+        private Node _next;
+
+        Node( Object key, ICacheValue value ) {
+            _key = key;
+            _value = value;
+        }
+    }
+
+    /**
+     * A doubly linked LRU list: least recently used at the head, most
+     * recently used at the tail
+     */
+    private static class Region {
+
+        private Node _head;
+        private Node _tail;
+        private int _size;
+
+        void addLast( Node node, int region ) {
+
+            node._region = region;
+            node._previous = _tail;
+            node._next = null;
+
+            if( null == _tail ) {
+                _head = node;
+            }
+            else {
+                _tail._next = node;
+            }
+
+            _tail = node;
+            _size++;
+        }
+
+        Node removeFirst() {
+
+            Node node = _head;
+            remove( node );
+
+            return node;
+        }
+
+        void remove( Node node ) {
+
+            if( null == node._previous ) {
+                _head = node._next;
+            }
+            else {
+                node._previous._next = node._next;
+            }
+
+            if( null == node._next ) {
+                _tail = node._previous;
+            }
+            else {
+                node._next._previous = node._previous;
+            }
+
+            node._previous = null;
+            node._next = null;
+            _size--;
+        }
+
+        void moveToLast( Node node ) {
+
+            if( _tail != node ) {
+                remove( node );
+                addLast( node, node._region );
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The ValueCodec turns cache keys and values into bytes (and back) for
+ * storage that doesn't live on the Java heap. Each encoded object has
+ * a one byte type tag so it comes back as the same type it went in as.
+ *
+ * Supported types: String (as UTF-8), byte[], Integer, Long and
+ * ByteArrayKey (as its bytes).
+ */
+final class ValueCodec {
+
+    static final byte STRING = 0;
+    static final byte BYTES = 1;
+    static final byte INTEGER = 2;
+    static final byte LONG = 3;
+    static final byte KEY = 4;
+
+    private ValueCodec() {}
+
+    /**
+     * @param object the key or value
+     * @return the type tag for the object
+     * @throws IllegalArgumentException if the type isn't supported
+     */
+    static byte typeOf( Object object ) {
+
+        if( object instanceof String ) {
+            return STRING;
+        }
+
+        if( object instanceof byte[] ) {
+            return BYTES;
+        }
+
+        if( object instanceof Integer ) {
+            return INTEGER;
+        }
+
+        if( object instanceof Long ) {
+            return LONG;
+        }
+
+        if( object instanceof ByteArrayKey ) {
+            return KEY;
+        }
+
+        throw new IllegalArgumentException( "can't store a " +
+                (null == object ? "null" : object.getClass().getName()) );
+    }
+
+    /**
+     * @param object the key or value
+     * @return the object's bytes (without the type tag)
+     * @throws IllegalArgumentException if the type isn't supported
+     */
+    static byte[] encode( Object object ) {
+
+        switch( typeOf( object ) )
+        {
+            case STRING:
+                return ((String) object).getBytes( StandardCharsets.UTF_8 );
+
+            case BYTES:
+                return (byte[]) object;
+
+            case INTEGER:
+                return ByteBuffer.allocate( Integer.BYTES ).putInt( (Integer) object ).array();
+
+            case KEY:
+                return ((ByteArrayKey) object).getBytes();
+
+            case LONG:
+            default:
+                return ByteBuffer.allocate( Long.BYTES ).putLong( (Long) object ).array();
+        }
+    }
+
+    /**
+     * @param type the type tag from typeOf()
+     * @param bytes the bytes from encode()
+     * @return the original object
+     */
+    static Object decode( byte type, byte[] bytes ) {
+
+        switch( type )
+        {
+            case STRING:
+                return new String( bytes, StandardCharsets.UTF_8 );
+
+            case BYTES:
+                return bytes;
+
+            case INTEGER:
+                return ByteBuffer.wrap( bytes ).getInt();
+
+            case LONG:
+                return ByteBuffer.wrap( bytes ).getLong();
+
+            case KEY:
+                return new ByteArrayKey( bytes );
+
+            default:
+                throw new IllegalArgumentException( "unknown type tag " + type );
+        }
+    }
+
+    /**
+     * @param type the value's type tag from typeOf()
+     * @param bytes the value's bytes from encode()
+     * @return the original value, as a cache value (byte[] values come
+     * back as a ByteArrayValue)
+     */
+    static ICacheValue decodeValue( byte type, byte[] bytes ) {
+
+        if( BYTES == type ) {
+            return new ByteArrayValue( bytes );
+        }
+
+        return new CacheValue( decode( type, bytes ) );
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.interfaces;
+
+/**
+ * The ICacheLease interface is the answer to a lease get: either
+ * the value, or (on a miss) whether the caller has been given the
+ * job of filling the key. Only one caller at a time gets a lease,
+ * so a miss on a popular key means one trip to the origin rather
+ * than one per caller.
+ *
+ */
+public interface ICacheLease {
+
+    enum Status {
+
+        // The key was in the cache; see getValue()
+        Hit,
+
+        // A miss, and the caller holds the lease; see getToken()
+        Granted,
+
+        // A miss, and someone else holds the lease. getValue() may
+        // have the value that just expired, which is better than nothing.
+        Wait
+    }
+
+    /**
+     * @return what happened
+     */
+    Status getStatus();
+
+    /**
+     * @return the value on a hit, a stale value (or null) while waiting,
+     * null when the lease was granted
+     */
+    ICacheValue getValue();
+
+    /**
+     * @return the token to fill the key with, when the lease was granted
+     */
+    long getToken();
+}
@@ -17,6 +17,9 @@
 
 package com.seanfoley.cache.interfaces;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * The ICacheManager interface is intended to be called
  * by the client that is utilizing the cache. This should
@@ -25,6 +28,22 @@ package com.seanfoley.cache.interfaces;
  */
 public interface ICacheManager {
 
+    /**
+     * When the operation log is synced to disk (see startLog())
+     */
+    enum FsyncPolicy {
+
+        // Before an add or remove returns (which then fails if the
+        // log couldn't be written)
+        Always,
+
+        // Every so often in the background
+        Periodic,
+
+        // Whenever the OS gets round to it
+        Never
+    }
+
     /**
      * Adds the key/value pair to the cache.
      * @param key The key to use for the cache item
@@ -34,6 +53,18 @@ public interface ICacheManager {
      */
     boolean add(ICacheKey key, ICacheValue value );
 
+    /**
+     * Adds the key/value pair to the cache for a limited time.
+     * After that the item is gone, as if it had been removed.
+     * @param key The key to use for the cache item
+     * @param value The value of the item to be cached
+     * @param ttlMillis How long the item lives, in milliseconds
+     *                  (must be positive)
+     * @return true if the item was successfully added to
+     * the cache.
+     */
+    boolean add(ICacheKey key, ICacheValue value, long ttlMillis );
+
     /**
      * Gets a value from the cache based on the cache key.
      * @param key The key to use for the cache lookup
@@ -41,10 +72,82 @@ public interface ICacheManager {
      */
     ICacheValue get( ICacheKey key );
 
+    /**
+     * Decides whether a caller that just got a value should rebuild it
+     * before it expires, so that not everyone misses at once when it
+     * does. The closer the item is to expiring (and the longer it takes
+     * to rebuild), the more likely the answer is yes, but only one
+     * caller at a time is told to.
+     * @param key The key the caller got
+     * @param recomputeMillis About how long it takes to rebuild the value
+     * @return true if this caller should rebuild the value
+     */
+    boolean shouldRefresh( ICacheKey key, long recomputeMillis );
+
+    /**
+     * Gets a value from the cache, and on a miss hands the first
+     * caller a lease to fill the key with addLease(). Until it does
+     * (or the lease runs out), other callers are told to wait.
+     * @param key The key to use for the cache lookup
+     * @return The value, the lease, or an instruction to wait
+     */
+    ICacheLease getLease( ICacheKey key );
+
+    /**
+     * Fills a key the caller holds the lease for. The lease is used
+     * up, and it's no good if the key has been added or removed since
+     * it was handed out (the value may be out of date by then).
+     * @param key The key from getLease()
+     * @param value The value of the item to be cached
+     * @param token The token from getLease()
+     * @param ttlMillis How long the item lives in milliseconds, or 0
+     *                  for as long as the cache keeps it
+     * @return true if the lease was good and the item was added
+     */
+    boolean addLease( ICacheKey key, ICacheValue value, long token, long ttlMillis );
+
     /**
      * Removes the key (and value) from the cache
      * @param key The key to remove from the cache
      * @return True if the item was removed successfully
      */
     boolean remove( ICacheKey key );
+
+    /**
+     * Writes the items in the cache (and how long they have left to
+     * live) to a file, replacing the last snapshot once it's done. The
+     * cache carries on serving requests while this runs, so the file
+     * isn't an exact point in time.
+     * @param file The snapshot file
+     * @return The number of items written
+     * @throws IOException if the snapshot can't be written
+     */
+    long snapshot( File file ) throws IOException;
+
+    /**
+     * Adds the items in a snapshot to the cache
+     * @param file The snapshot file
+     * @param threads How many threads load the snapshot
+     * @return The number of items loaded (items that have expired
+     * since the snapshot was written are skipped)
+     * @throws IOException if the snapshot can't be read
+     */
+    long restore( File file, int threads ) throws IOException;
+
+    /**
+     * Replays an operation log, then records every add and remove in
+     * it from now on. The log is rewritten in the background when it
+     * gets big.
+     * @param file The log file (created if it isn't there)
+     * @param policy When the log is synced to disk
+     * @param fsyncMillis How often the log is synced with the Periodic policy
+     * @return The number of operations replayed
+     * @throws IOException if the log can't be read or opened
+     */
+    long startLog( File file, FsyncPolicy policy, long fsyncMillis ) throws IOException;
+
+    /**
+     * Writes out and syncs anything the log has queued, then stops logging
+     */
+    void stopLog();
 }
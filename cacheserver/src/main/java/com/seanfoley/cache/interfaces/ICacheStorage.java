@@ -17,6 +17,8 @@
 
 package com.seanfoley.cache.interfaces;
 
+import java.util.function.BiConsumer;
+
 /**
  * The ICacheStorage interface is used internally to
  * provide the cache storage.  The intent is for the
@@ -55,4 +57,22 @@ public interface ICacheStorage {
      */
     int count();
 
+    /**
+     * The estimated memory used by the items in the cache, including
+     * the keys, values and per-item bookkeeping
+     * @return The number of bytes used
+     */
+    long bytesUsed();
+
+    /**
+     * Calls the action for each item in the cache (e.g. to take a
+     * snapshot of it). Other callers aren't held up for long: the items
+     * are copied out a batch at a time and the action is called without
+     * the storage's locks held, so items that are added, replaced or
+     * removed meanwhile may or may not be visited. Visiting an item
+     * doesn't count as a use of it.
+     * @param action called with each item's key and value
+     */
+    void forEach( BiConsumer<ICacheKey, ICacheValue> action );
+
 }
@@ -0,0 +1,49 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.interfaces;
+
+import java.io.File;
+
+/**
+ * The ICacheStorageProvider interface lets a storage implementation
+ * be plugged into the cacheserver without changing it. Providers are
+ * found with java.util.ServiceLoader, so a jar on the classpath with a
+ * META-INF/services/com.seanfoley.cache.interfaces.ICacheStorageProvider
+ * file naming the provider class is all it takes. The provider is then
+ * picked by name, e.g. --storage=NAME.
+ */
+public interface ICacheStorageProvider {
+
+    /**
+     * The name the storage is picked by (the built-in ones are lru,
+     * clock, tinylfu, slab, mapped and tiered)
+     * @return The storage's name
+     */
+    String getName();
+
+    /**
+     * Creates the storage for a cache
+     * @param capacity The number of items the cache holds
+     * @param maxBytes The (estimated) bytes the items can take up, or
+     *                 whatever the storage takes it to mean (e.g. the
+     *                 disk space for a file based storage)
+     * @param directory Where the storage can put any files it needs
+     * @return The storage
+     */
+    ICacheStorage create( int capacity, long maxBytes, File directory );
+}
@@ -0,0 +1,337 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The network servers all speak the same protocol, so they all get
+ * the same tests. Each server's test class just says how to create it.
+ */
+public abstract class AbstractCacheServerTest {
+
+    private ICacheServer _server = null;
+
+    /**
+     * @param port the port to listen on (0 means any free port)
+     * @return a running server
+     */
+    protected abstract ICacheServer createServer(int port);
+
+    /**
+     * @return how many idle clients connectionScaling() parks on the server
+     */
+    protected int idleConnections() {
+        return 2000;
+    }
+
+    @Before
+    public void beforeEachTest() {
+        // Port 0 lets the OS pick a free port
+        _server = createServer(0);
+    }
+
+    @After
+    public void afterEachTest() {
+        _server.close();
+        _server = null;
+    }
+
+    @Test
+    public void greeting() throws IOException {
+
+        try( Socket socket = new Socket("localhost", _server.getPort()) ) {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            assertEquals("Cache Server - let's store some stuff", reader.readLine());
+        }
+    }
+
+    @Test
+    public void addGetRemove() throws IOException {
+
+        try( Socket socket = new Socket("localhost", _server.getPort()) ) {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream writer = socket.getOutputStream();
+
+            // Get the greeting out of the way
+            reader.readLine();
+
+            assertEquals("+OK", send(reader, writer, "+add asyncKey asyncValue\r\n"));
+            assertEquals("+OK asyncValue", send(reader, writer, "+get asyncKey\r\n"));
+            assertEquals("+OK", send(reader, writer, "+remove asyncKey\r\n"));
+            assertEquals("-ERR key not found", send(reader, writer, "+get asyncKey\r\n"));
+        }
+    }
+
+    @Test
+    public void useNamespace() throws IOException {
+
+        CacheManager.Namespace("serverTest", CacheManager.StorageType.Lru, 100, Long.MAX_VALUE,
+                new File(System.getProperty("java.io.tmpdir")));
+
+        try( Socket tenant = new Socket("localhost", _server.getPort());
+             Socket other = new Socket("localhost", _server.getPort()) ) {
+
+            BufferedReader tenantReader = new BufferedReader(new InputStreamReader(tenant.getInputStream()));
+            BufferedReader otherReader = new BufferedReader(new InputStreamReader(other.getInputStream()));
+
+            tenantReader.readLine();
+            otherReader.readLine();
+
+            assertEquals("+OK", send(tenantReader, tenant.getOutputStream(), "+use serverTest\r\n"));
+            assertEquals("+OK", send(tenantReader, tenant.getOutputStream(), "+add useKey useValue\r\n"));
+
+            // The other connection is still in the default namespace
+            assertEquals("-ERR key not found", send(otherReader, other.getOutputStream(), "+get useKey\r\n"));
+            assertEquals("-ERR unknown namespace", send(otherReader, other.getOutputStream(), "+use nobody\r\n"));
+            assertEquals("+OK", send(otherReader, other.getOutputStream(), "+use serverTest\r\n"));
+            assertEquals("+OK useValue", send(otherReader, other.getOutputStream(), "+get useKey\r\n"));
+
+            assertEquals("+OK", send(tenantReader, tenant.getOutputStream(), "+remove useKey\r\n"));
+            assertEquals("+OK", send(tenantReader, tenant.getOutputStream(), "+use default\r\n"));
+            assertEquals("-ERR key not found", send(tenantReader, tenant.getOutputStream(), "+get useKey\r\n"));
+        }
+    }
+
+    @Test
+    public void multipleCommandsInOneWrite() throws IOException {
+
+        try( Socket socket = new Socket("localhost", _server.getPort()) ) {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream writer = socket.getOutputStream();
+
+            reader.readLine();
+
+            writer.write("+add batchKey batchValue\r\n+get batchKey\r\n+remove batchKey\r\n".getBytes());
+            writer.flush();
+
+            assertEquals("+OK", reader.readLine());
+            assertEquals("+OK batchValue", reader.readLine());
+            assertEquals("+OK", reader.readLine());
+        }
+    }
+
+    @Test
+    public void pipelining() throws IOException {
+
+        // More than the server answers in one write, so it has to
+        // come back for the rest
+        final int COMMANDS = 1000;
+
+        try( Socket socket = new Socket("localhost", _server.getPort()) ) {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream writer = socket.getOutputStream();
+
+            reader.readLine();
+
+            StringBuilder batch = new StringBuilder();
+            for( int i = 0; i < COMMANDS; i++ ) {
+                batch.append("+add pipe:").append(i).append(" value:").append(i).append("\r\n");
+                batch.append("+get pipe:").append(i).append("\r\n");
+            }
+
+            // Fire everything without waiting for a single reply
+            writer.write(batch.toString().getBytes());
+            writer.flush();
+
+            // The replies should come back in request order
+            for( int i = 0; i < COMMANDS; i++ ) {
+                assertEquals("+OK", reader.readLine());
+                assertEquals("+OK value:" + i, reader.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void largeValue() throws IOException {
+
+        // Way bigger than a single read buffer
+        char[] chars = new char[200 * 1024];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+
+        try( Socket socket = new Socket("localhost", _server.getPort()) ) {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream writer = socket.getOutputStream();
+
+            reader.readLine();
+
+            assertEquals("+OK", send(reader, writer, "+add largeKey " + value + "\r\n"));
+            assertEquals("+OK " + value, send(reader, writer, "+get largeKey\r\n"));
+        }
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocateBuffers() throws IOException {
+
+        final int REQUESTS = 1000;
+
+        try( Socket socket = new Socket("localhost", _server.getPort()) ) {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream writer = socket.getOutputStream();
+
+            reader.readLine();
+
+            // Warm up the pool (and every thread's cache in it)
+            for( int i = 0; i < REQUESTS; i++ ) {
+                send(reader, writer, "+add steadyKey steadyValue\r\n");
+                send(reader, writer, "+get steadyKey\r\n");
+            }
+
+            long misses = BufferPool.Instance().getMisses();
+
+            for( int i = 0; i < REQUESTS; i++ ) {
+                assertEquals("+OK", send(reader, writer, "+add steadyKey steadyValue\r\n"));
+                assertEquals("+OK steadyValue", send(reader, writer, "+get steadyKey\r\n"));
+            }
+
+            assertEquals(misses, BufferPool.Instance().getMisses());
+        }
+    }
+
+    @Test
+    public void slowReader() throws IOException {
+
+        // Ask for way more data than the server will queue up for a
+        // client before it stops reading, and don't read any of it until
+        // all the requests are sent.
+        final int GETS = 100;
+
+        char[] chars = new char[100 * 1024];
+        Arrays.fill(chars, 'y');
+        String value = new String(chars);
+
+        try( Socket socket = new Socket("localhost", _server.getPort()) ) {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream writer = socket.getOutputStream();
+
+            reader.readLine();
+
+            assertEquals("+OK", send(reader, writer, "+add slowKey " + value + "\r\n"));
+
+            StringBuilder batch = new StringBuilder();
+            for( int i = 0; i < GETS; i++ ) {
+                batch.append("+get slowKey\r\n");
+            }
+
+            writer.write(batch.toString().getBytes());
+            writer.flush();
+
+            // Nothing should have been dropped or reordered while the
+            // server was holding off
+            for( int i = 0; i < GETS; i++ ) {
+                assertEquals("+OK " + value, reader.readLine());
+            }
+
+            assertEquals("+OK", send(reader, writer, "+remove slowKey\r\n"));
+        }
+    }
+
+    @Test
+    public void connectionScaling() throws IOException {
+
+        // Park a lot of idle clients and make sure an active client still
+        // gets about the same throughput. A server with a thread pool
+        // smaller than that would be starved by them.
+        final int IDLE_CONNECTIONS = idleConnections();
+        final int REQUESTS = 2000;
+
+        try( Socket active = new Socket("localhost", _server.getPort()) ) {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(active.getInputStream()));
+            OutputStream writer = active.getOutputStream();
+
+            reader.readLine();
+
+            // Warm up, then take a baseline
+            requestsPerSecond(reader, writer, REQUESTS);
+            double baseline = requestsPerSecond(reader, writer, REQUESTS);
+
+            List<Socket> idle = new ArrayList<>();
+            try {
+                for( int i = 0; i < IDLE_CONNECTIONS; i++ ) {
+                    idle.add(new Socket("localhost", _server.getPort()));
+                }
+
+                // Every idle client should have been accepted and greeted
+                for( Socket socket : idle ) {
+                    BufferedReader idleReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    assertEquals("Cache Server - let's store some stuff", idleReader.readLine());
+                }
+
+                double loaded = requestsPerSecond(reader, writer, REQUESTS);
+
+                // Generous bound so a noisy build box doesn't flake the test
+                assertTrue(String.format("baseline %.0f req/s, loaded %.0f req/s", baseline, loaded),
+                        loaded > baseline / 4);
+            }
+            finally {
+                for( Socket socket : idle ) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private double requestsPerSecond(BufferedReader reader, OutputStream writer, int requests) throws IOException {
+
+        send(reader, writer, "+add scalingKey scalingValue\r\n");
+
+        long start = System.nanoTime();
+
+        for( int i = 0; i < requests; i++ ) {
+            assertEquals("+OK scalingValue", send(reader, writer, "+get scalingKey\r\n"));
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        return requests / (elapsed / 1e9);
+    }
+
+    private String send(BufferedReader reader, OutputStream writer, String request) throws IOException {
+
+        writer.write(request.getBytes());
+        writer.flush();
+
+        return reader.readLine();
+    }
+}
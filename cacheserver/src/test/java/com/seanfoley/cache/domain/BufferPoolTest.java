@@ -0,0 +1,131 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void roundsUpToSizeClass() {
+
+        BufferPool pool = new BufferPool();
+
+        assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).capacity());
+        assertEquals(1024, pool.acquire(1000).capacity());
+        assertEquals(1024, pool.acquire(1024).capacity());
+        assertEquals(2048, pool.acquire(1025).capacity());
+    }
+
+    @Test
+    public void buffersAreDirectAndCleared() {
+
+        BufferPool pool = new BufferPool();
+
+        ByteBuffer buffer = pool.acquire(100);
+        assertTrue(buffer.isDirect());
+
+        buffer.put("dirty".getBytes());
+        pool.release(buffer);
+
+        ByteBuffer again = pool.acquire(100);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+
+        BufferPool pool = new BufferPool();
+
+        ByteBuffer first = pool.acquire(512);
+        ByteBuffer second = pool.acquire(512);
+
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertEquals(2, pool.getOutstanding());
+
+        pool.release(first);
+        pool.release(second);
+        assertEquals(0, pool.getOutstanding());
+
+        // The steady state shouldn't allocate anything
+        for( int i = 0; i < 100; i++ ) {
+            pool.release(pool.acquire(512));
+        }
+
+        assertEquals(100, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void sharedAcrossThreads() throws InterruptedException {
+
+        BufferPool pool = new BufferPool();
+
+        // Fill up this thread's cache so the rest spill to the shared pool
+        ByteBuffer[] buffers = new ByteBuffer[32];
+        for( int i = 0; i < buffers.length; i++ ) {
+            buffers[i] = pool.acquire(256);
+        }
+        for( ByteBuffer buffer : buffers ) {
+            pool.release(buffer);
+        }
+
+        long misses = pool.getMisses();
+
+        Thread other = new Thread(() -> pool.release(pool.acquire(256)));
+        other.start();
+        other.join();
+
+        assertEquals(misses, pool.getMisses());
+    }
+
+    @Test
+    public void oversizedBuffersAreNotPooled() {
+
+        BufferPool pool = new BufferPool();
+
+        ByteBuffer big = pool.acquire(BufferPool.MAX_SIZE + 1);
+        assertEquals(BufferPool.MAX_SIZE + 1, big.capacity());
+
+        pool.release(big);
+        assertEquals(0, pool.getOutstanding());
+
+        assertNotSame(big, pool.acquire(BufferPool.MAX_SIZE + 1));
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void heapBuffersAreIgnored() {
+
+        BufferPool pool = new BufferPool();
+
+        pool.release(ByteBuffer.wrap(new byte[256]));
+        pool.release(null);
+
+        assertEquals(0, pool.getOutstanding());
+        pool.acquire(256);
+        assertEquals(1, pool.getMisses());
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ByteArrayKeyTest {
+
+    @Test
+    public void getKey() {
+
+        ByteArrayKey key = new ByteArrayKey("key name");
+
+        // The key is its own raw key, so storage holds no wrapper
+        assertSame( key, key.getKey());
+        assertEquals( "key name", key.toString());
+    }
+
+    @Test
+    public void equalBytesAreEqualKeys() {
+
+        ByteArrayKey key = new ByteArrayKey(new byte[] { 'k', 'e', 'y' });
+        ByteArrayKey same = new ByteArrayKey("key");
+
+        assertEquals( key, same );
+        assertEquals( key.hashCode(), same.hashCode() );
+
+        assertNotEquals( key, new ByteArrayKey("kez") );
+        assertNotEquals( key, "key" );
+
+        Map<Object, String> map = new HashMap<>();
+        map.put( key.getKey(), "value" );
+
+        assertEquals( "value", map.get( same.getKey() ) );
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CacheEntrySizerTest {
+
+    @Test
+    public void stringsGrowWithLength() {
+
+        long empty = CacheEntrySizer.sizeOf("");
+        long longer = CacheEntrySizer.sizeOf("0123456789012345");
+
+        assertTrue(empty > 0);
+        assertEquals(32, longer - empty);
+    }
+
+    @Test
+    public void byteArraysAreAligned() {
+
+        assertEquals(16, CacheEntrySizer.sizeOf(new byte[0]));
+        assertEquals(24, CacheEntrySizer.sizeOf(new byte[1]));
+        assertEquals(24, CacheEntrySizer.sizeOf(new byte[8]));
+        assertEquals(32, CacheEntrySizer.sizeOf(new byte[9]));
+    }
+
+    @Test
+    public void byteArrayKeysAreSmallerThanStrings() {
+
+        long key = CacheEntrySizer.sizeOf(new ByteArrayKey("0123456789abcdef"));
+
+        assertEquals(24 + 32, key);
+        assertTrue(key < CacheEntrySizer.sizeOf("0123456789abcdef"));
+    }
+
+    @Test
+    public void entryIncludesOverhead() {
+
+        long key = CacheEntrySizer.sizeOf("key");
+        long value = CacheEntrySizer.sizeOf("value");
+
+        long entry = CacheEntrySizer.sizeOf("key", new CacheValue("value"));
+
+        assertTrue(entry > key + value + CacheEntrySizer.ENTRY_OVERHEAD);
+    }
+
+    @Test
+    public void nullsAreFree() {
+
+        assertEquals(0, CacheEntrySizer.sizeOf(null));
+        assertEquals(CacheEntrySizer.ENTRY_OVERHEAD + CacheEntrySizer.sizeOf("key"),
+                CacheEntrySizer.sizeOf("key", null));
+    }
+}
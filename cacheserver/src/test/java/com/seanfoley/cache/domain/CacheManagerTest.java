@@ -0,0 +1,454 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheLease;
+import com.seanfoley.cache.interfaces.ICacheManager;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CacheManagerTest {
+
+    private final int ITEM_CAPACITY = 100;
+
+    private final AtomicLong _now = new AtomicLong(1000);
+
+    private final ICacheStorage _storage = new LinkedHashMapCacheStorage(ITEM_CAPACITY);
+    private final CacheManager _cache = new CacheManager(_storage, _now::get);
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    @Test
+    public void itemsWithoutATtlStay() {
+
+        ICacheKey key = new CacheKey("key");
+
+        _cache.add(key, new CacheValue("value"));
+        _now.addAndGet(24 * 3600 * 1000);
+
+        assertEquals(0, _cache.expire());
+        assertEquals("value", _cache.get(key).getValue());
+    }
+
+    @Test
+    public void getRejectsExpiredItems() {
+
+        ICacheKey key = new CacheKey("key");
+
+        assertTrue(_cache.add(key, new CacheValue("value"), 100));
+
+        _now.addAndGet(99);
+        assertEquals("value", _cache.get(key).getValue());
+
+        // No background task here, so this is the get noticing by itself
+        _now.addAndGet(1);
+        assertNull(_cache.get(key));
+
+        assertEquals(0, _storage.count());
+        assertEquals(0, _cache.expiringCount());
+    }
+
+    @Test
+    public void expireRemovesExpiredItems() {
+
+        for( int i = 0; i < 10; i++ ) {
+            _cache.add(new CacheKey("key:" + i), new CacheValue("value"), 100 * (i + 1));
+        }
+
+        _now.addAndGet(500);
+
+        assertEquals(5, _cache.expire());
+        assertEquals(5, _storage.count());
+        assertEquals(5, _cache.expiringCount());
+
+        _now.addAndGet(500);
+
+        assertEquals(5, _cache.expire());
+        assertEquals(0, _storage.count());
+    }
+
+    @Test
+    public void addReplacesTheTtl() {
+
+        ICacheKey key = new CacheKey("key");
+
+        _cache.add(key, new CacheValue("first"), 100);
+        _cache.add(key, new CacheValue("second"), 1000);
+
+        _now.addAndGet(500);
+
+        assertEquals(0, _cache.expire());
+        assertEquals("second", _cache.get(key).getValue());
+
+        // And an add without a ttl clears it
+        _cache.add(key, new CacheValue("third"));
+        _now.addAndGet(1000);
+
+        assertEquals(0, _cache.expire());
+        assertEquals("third", _cache.get(key).getValue());
+        assertEquals(0, _cache.expiringCount());
+    }
+
+    @Test
+    public void removeCancelsTheTtl() {
+
+        ICacheKey key = new CacheKey("key");
+
+        _cache.add(key, new CacheValue("value"), 100);
+        assertTrue(_cache.remove(key));
+        assertEquals(0, _cache.expiringCount());
+
+        _now.addAndGet(200);
+        assertEquals(0, _cache.expire());
+    }
+
+    @Test
+    public void aRejectedAddKeepsTheTtl() {
+
+        // The slab storage keeps the old value when a new one doesn't fit
+        ICacheStorage storage = new SlabCacheStorage(ITEM_CAPACITY, SlabCacheStorage.SLAB_SIZE);
+        CacheManager cache = new CacheManager(storage, _now::get);
+
+        ICacheKey key = new CacheKey("key");
+        byte[] oversize = new byte[SlabCacheStorage.SLAB_SIZE];
+
+        assertTrue(cache.add(key, new CacheValue("value"), 100));
+        assertFalse(cache.add(key, new CacheValue((Object) oversize), 1000));
+        assertFalse(cache.add(key, new CacheValue((Object) oversize)));
+
+        assertEquals("value", cache.get(key).getValue());
+        assertEquals(1, cache.expiringCount());
+
+        _now.addAndGet(100);
+
+        assertEquals(1, cache.expire());
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void singleOwnerWorksWithoutLocks() {
+
+        CacheManager cache = new CacheManager(new LinkedHashMapCacheStorage(ITEM_CAPACITY), _now::get, () -> 1.0, true);
+
+        ICacheKey key = new CacheKey("key");
+
+        assertTrue(cache.add(key, new CacheValue("value"), 100));
+        assertEquals("value", cache.get(key).getValue());
+
+        _now.addAndGet(100);
+        assertEquals(1, cache.expire());
+
+        ICacheLease lease = cache.getLease(key);
+        assertEquals(ICacheLease.Status.Granted, lease.getStatus());
+        assertTrue(cache.addLease(key, new CacheValue("filled"), lease.getToken(), 0));
+        assertEquals("filled", cache.get(key).getValue());
+
+        assertTrue(cache.remove(key));
+        assertNull(cache.get(key));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ttlMustBePositive() {
+        _cache.add(new CacheKey("key"), new CacheValue("value"), 0);
+    }
+
+    @Test
+    public void noRefreshWithoutATtl() {
+
+        ICacheKey key = new CacheKey("key");
+
+        _cache.add(key, new CacheValue("value"));
+
+        assertFalse(_cache.shouldRefresh(key, 1000));
+    }
+
+    @Test
+    public void refreshGetsLikelierNearTheDeadline() {
+
+        final int CALLS = 10000;
+        final long TTL = 10000;
+        final long RECOMPUTE = 100;
+
+        CacheManager cache = new CacheManager(_storage, _now::get);
+
+        // Ask again and again without anyone taking the job, and count
+        // how often the job would have been handed out
+        int far = 0;
+        int near = 0;
+
+        for( int i = 0; i < CALLS; i++ ) {
+
+            ICacheKey key = new CacheKey("key:" + i);
+            cache.add(key, new CacheValue("value"), TTL);
+
+            if( cache.shouldRefresh(key, RECOMPUTE) ) {
+                far++;
+            }
+        }
+
+        _now.addAndGet(TTL - RECOMPUTE);
+
+        for( int i = 0; i < CALLS; i++ ) {
+            if( cache.shouldRefresh(new CacheKey("key:" + i), RECOMPUTE) ) {
+                near++;
+            }
+        }
+
+        // e^-100 and e^-1 of the time
+        assertEquals(0, far);
+        assertTrue(near > CALLS / 4 && near < CALLS / 2);
+    }
+
+    @Test
+    public void onlyOneCallerAtATimeIsToldToRefresh() {
+
+        // ln(0.5) makes the early expiration ~0.7 x the recompute time
+        CacheManager cache = new CacheManager(_storage, _now::get, () -> 0.5);
+
+        ICacheKey key = new CacheKey("key");
+
+        cache.add(key, new CacheValue("value"), 1000);
+
+        _now.addAndGet(500);
+        assertFalse(cache.shouldRefresh(key, 100));
+
+        _now.addAndGet(450);
+        assertTrue(cache.shouldRefresh(key, 100));
+        assertFalse(cache.shouldRefresh(key, 100));
+
+        // The first one never came back, so someone else gets a go
+        _now.addAndGet(100);
+        assertTrue(cache.shouldRefresh(key, 100));
+
+        // A new value starts the whole thing over
+        cache.add(key, new CacheValue("newer"), 1000);
+        assertFalse(cache.shouldRefresh(key, 100));
+    }
+
+    @Test
+    public void getLeaseHit() {
+
+        ICacheKey key = new CacheKey("key");
+        _cache.add(key, new CacheValue("value"));
+
+        ICacheLease lease = _cache.getLease(key);
+
+        assertEquals(ICacheLease.Status.Hit, lease.getStatus());
+        assertEquals("value", lease.getValue().getValue());
+        assertEquals(0, _cache.leaseCount());
+    }
+
+    @Test
+    public void onlyTheFirstMissGetsTheLease() {
+
+        ICacheKey key = new CacheKey("key");
+
+        ICacheLease first = _cache.getLease(key);
+        ICacheLease second = _cache.getLease(key);
+
+        assertEquals(ICacheLease.Status.Granted, first.getStatus());
+        assertEquals(ICacheLease.Status.Wait, second.getStatus());
+        assertNull(second.getValue());
+
+        // Someone with the wrong token can't fill it
+        assertFalse(_cache.addLease(key, new CacheValue("value"), first.getToken() + 1, 0));
+
+        assertTrue(_cache.addLease(key, new CacheValue("value"), first.getToken(), 0));
+        assertEquals(0, _cache.leaseCount());
+
+        ICacheLease third = _cache.getLease(key);
+        assertEquals(ICacheLease.Status.Hit, third.getStatus());
+        assertEquals("value", third.getValue().getValue());
+
+        // The lease is used up
+        assertFalse(_cache.addLease(key, new CacheValue("again"), first.getToken(), 0));
+    }
+
+    @Test
+    public void addOrRemoveVoidsTheLease() {
+
+        ICacheKey key = new CacheKey("key");
+
+        ICacheLease lease = _cache.getLease(key);
+
+        _cache.add(key, new CacheValue("newer"));
+        assertFalse(_cache.addLease(key, new CacheValue("older"), lease.getToken(), 0));
+        assertEquals("newer", _cache.get(key).getValue());
+
+        _cache.remove(key);
+        lease = _cache.getLease(key);
+
+        _cache.remove(key);
+        assertFalse(_cache.addLease(key, new CacheValue("older"), lease.getToken(), 0));
+        assertNull(_cache.get(key));
+    }
+
+    @Test
+    public void waitersGetTheExpiredValue() {
+
+        ICacheKey key = new CacheKey("key");
+
+        _cache.add(key, new CacheValue("old"), 100);
+        _now.addAndGet(100);
+
+        assertEquals(ICacheLease.Status.Granted, _cache.getLease(key).getStatus());
+
+        ICacheLease waiting = _cache.getLease(key);
+
+        assertEquals(ICacheLease.Status.Wait, waiting.getStatus());
+        assertEquals("old", waiting.getValue().getValue());
+    }
+
+    @Test
+    public void leasesRunOut() {
+
+        ICacheKey key = new CacheKey("key");
+
+        ICacheLease first = _cache.getLease(key);
+
+        _now.addAndGet(60 * 1000);
+
+        // The first holder took too long, so someone else gets a go
+        ICacheLease second = _cache.getLease(key);
+        assertEquals(ICacheLease.Status.Granted, second.getStatus());
+        assertFalse(_cache.addLease(key, new CacheValue("value"), first.getToken(), 0));
+
+        // Abandoned leases are thrown out in the background
+        _now.addAndGet(60 * 1000);
+        _cache.expire();
+        assertEquals(0, _cache.leaseCount());
+    }
+
+    @Test
+    public void addLeaseWithTtl() {
+
+        ICacheKey key = new CacheKey("key");
+
+        ICacheLease lease = _cache.getLease(key);
+        assertTrue(_cache.addLease(key, new CacheValue("value"), lease.getToken(), 100));
+
+        _now.addAndGet(100);
+        assertNull(_cache.get(key));
+    }
+
+    @Test
+    public void snapshotAndRestore() throws IOException {
+
+        File file = _folder.newFile("snapshot");
+
+        _cache.add(new CacheKey("forever"), new CacheValue("value"));
+        _cache.add(new CacheKey("expiring"), new CacheValue("value"), 60 * 1000);
+        _cache.add(new CacheKey("expired"), new CacheValue("value"), 100);
+
+        _now.addAndGet(100);
+
+        // The expired item hasn't been removed yet, but isn't written
+        assertEquals(2, _cache.snapshot(file));
+
+        CacheManager restored = new CacheManager(new LinkedHashMapCacheStorage(10), _now::get);
+
+        assertEquals(2, restored.restore(file, 2));
+
+        assertEquals("value", restored.get(new CacheKey("forever")).getValue());
+        assertEquals("value", restored.get(new CacheKey("expiring")).getValue());
+        assertNull(restored.get(new CacheKey("expired")));
+
+        // It still expires (the time to live carried over)
+        assertEquals(1, restored.expiringCount());
+
+        _now.addAndGet(60 * 1000);
+        assertNull(restored.get(new CacheKey("expiring")));
+    }
+
+    @Test
+    public void logAndReplay() throws IOException {
+
+        File file = new File(_folder.getRoot(), "log");
+
+        assertEquals(0, _cache.startLog(file, ICacheManager.FsyncPolicy.Always, 0));
+
+        _cache.add(new CacheKey("forever"), new CacheValue("value"));
+        _cache.add(new CacheKey("expiring"), new CacheValue("value"), 60 * 1000);
+        _cache.add(new CacheKey("removed"), new CacheValue("value"));
+        _cache.remove(new CacheKey("removed"));
+
+        _cache.stopLog();
+
+        // Not logged once it's stopped
+        _cache.add(new CacheKey("late"), new CacheValue("value"));
+
+        CacheManager restarted = new CacheManager(new LinkedHashMapCacheStorage(10), _now::get);
+
+        assertEquals(4, restarted.startLog(file, ICacheManager.FsyncPolicy.Never, 0));
+
+        assertEquals("value", restarted.get(new CacheKey("forever")).getValue());
+        assertEquals("value", restarted.get(new CacheKey("expiring")).getValue());
+        assertEquals(1, restarted.expiringCount());
+        assertNull(restarted.get(new CacheKey("removed")));
+        assertNull(restarted.get(new CacheKey("late")));
+
+        restarted.stopLog();
+    }
+
+    @Test
+    public void namespacesAreSeparateCaches() {
+
+        File directory = _folder.getRoot();
+
+        ICacheManager tenant = CacheManager.Namespace("tenant", CacheManager.StorageType.Lru, 10, Long.MAX_VALUE, directory);
+        ICacheManager other = CacheManager.Namespace("other", CacheManager.StorageType.Clock, 10, Long.MAX_VALUE, directory);
+
+        // Created once, then looked up
+        assertSame(tenant, CacheManager.Namespace("tenant"));
+        assertSame(tenant, CacheManager.Namespace("tenant", CacheManager.StorageType.Slab, 1, 1, directory));
+        assertNull(CacheManager.Namespace("nobody"));
+
+        assertSame(CacheManager.Instance(ITEM_CAPACITY), CacheManager.Namespace(CacheManager.DEFAULT_NAMESPACE));
+
+        tenant.add(new CacheKey("namespacedKey"), new CacheValue("tenant"));
+
+        assertEquals("tenant", tenant.get(new CacheKey("namespacedKey")).getValue());
+        assertNull(other.get(new CacheKey("namespacedKey")));
+        assertNull(CacheManager.Instance(ITEM_CAPACITY).get(new CacheKey("namespacedKey")));
+
+        // Filling one namespace doesn't evict anything from another
+        for( int i = 0; i < 100; i++ ) {
+            other.add(new CacheKey("scan:" + i), new CacheValue("value"));
+        }
+
+        assertEquals("tenant", tenant.get(new CacheKey("namespacedKey")).getValue());
+
+        tenant.remove(new CacheKey("namespacedKey"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void namespaceNamesCantHaveSpaces() {
+        CacheManager.Namespace("two words", CacheManager.StorageType.Lru, 10, Long.MAX_VALUE, _folder.getRoot());
+    }
+}
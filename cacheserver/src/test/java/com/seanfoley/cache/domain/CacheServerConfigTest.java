@@ -0,0 +1,144 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheManager;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class CacheServerConfigTest {
+
+    @Test
+    public void defaults() {
+
+        CacheServerConfig config = new CacheServerConfig(new Properties());
+
+        assertEquals("async", config.getServer());
+        assertEquals(5000, config.getPort());
+        assertEquals(Runtime.getRuntime().availableProcessors(), config.getThreads());
+        assertEquals(4096, config.getBufferSize());
+        assertEquals(20, config.getTimeoutSeconds());
+        assertEquals("lru", config.getStorage());
+        assertEquals(100000, config.getItems());
+        assertEquals(Runtime.getRuntime().maxMemory() / 2, config.getMaxBytes());
+        assertNull(config.getSnapshotFile());
+        assertEquals(300, config.getSnapshotSeconds());
+        assertNull(config.getLogFile());
+        assertEquals(ICacheManager.FsyncPolicy.Periodic, config.getFsyncPolicy());
+        assertEquals(1000, config.getFsyncMillis());
+        assertTrue(config.getNamespaces().isEmpty());
+        assertTrue(config.getUnknownKeys().isEmpty());
+    }
+
+    @Test
+    public void settings() {
+
+        Properties properties = new Properties();
+        properties.setProperty("server", "reactor");
+        properties.setProperty("port", "6000");
+        properties.setProperty("threads", "3");
+        properties.setProperty("buffer-size", "65536");
+        properties.setProperty("timeout-seconds", "60");
+        properties.setProperty("storage", "slab");
+        properties.setProperty("items", "5000000");
+        properties.setProperty("max-bytes", "4294967296");
+        properties.setProperty("data-dir", "/mnt/nvme");
+        properties.setProperty("log", "/var/lib/cacheserver/cache.log");
+        properties.setProperty("fsync", "always");
+
+        CacheServerConfig config = new CacheServerConfig(properties);
+
+        assertEquals("reactor", config.getServer());
+        assertEquals(6000, config.getPort());
+        assertEquals(3, config.getThreads());
+        assertEquals(65536, config.getBufferSize());
+        assertEquals(60, config.getTimeoutSeconds());
+        assertEquals("slab", config.getStorage());
+        assertEquals(5000000, config.getItems());
+        assertEquals(4294967296L, config.getMaxBytes());
+        assertEquals(new File("/mnt/nvme"), config.getDataDirectory());
+        assertEquals(new File("/var/lib/cacheserver/cache.log"), config.getLogFile());
+        assertEquals(ICacheManager.FsyncPolicy.Always, config.getFsyncPolicy());
+    }
+
+    @Test
+    public void namespaces() {
+
+        Properties properties = new Properties();
+        properties.setProperty("max-bytes", "1000000");
+        properties.setProperty("namespace.sessions", "tinylfu:10000");
+        properties.setProperty("namespace.pages", "clock:100000:67108864");
+
+        CacheServerConfig config = new CacheServerConfig(properties);
+
+        // In name order
+        assertEquals(2, config.getNamespaces().size());
+
+        CacheServerConfig.Namespace pages = config.getNamespaces().get(0);
+        assertEquals("pages", pages.getName());
+        assertEquals("clock", pages.getStorage());
+        assertEquals(100000, pages.getItems());
+        assertEquals(67108864, pages.getMaxBytes());
+
+        CacheServerConfig.Namespace sessions = config.getNamespaces().get(1);
+        assertEquals("sessions", sessions.getName());
+        assertEquals(10000, sessions.getItems());
+        assertEquals(1000000, sessions.getMaxBytes());
+    }
+
+    @Test
+    public void unknownKeys() {
+
+        Properties properties = new Properties();
+        properties.setProperty("buffer-sise", "8192");
+
+        assertEquals("buffer-sise", new CacheServerConfig(properties).getUnknownKeys().get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badNumber() {
+
+        Properties properties = new Properties();
+        properties.setProperty("threads", "lots");
+
+        new CacheServerConfig(properties);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void numberOutOfRange() {
+
+        Properties properties = new Properties();
+        properties.setProperty("port", "70000");
+
+        new CacheServerConfig(properties);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badNamespace() {
+
+        Properties properties = new Properties();
+        properties.setProperty("namespace.sessions", "tinylfu");
+
+        new CacheServerConfig(properties);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CacheSnapshotTest {
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private final AtomicLong _now = new AtomicLong(1000000);
+
+    @Test
+    public void roundTrip() throws IOException {
+
+        File file = _folder.newFile("snapshot");
+
+        // Tiny blocks and chunks, so the loader has plenty to do in parallel
+        CacheSnapshot snapshot = new CacheSnapshot(file, 256, 1024, _now::get);
+
+        long written = snapshot.write(sink -> {
+            for( int i = 0; i < 1000; i++ ) {
+                sink.add(new ByteArrayKey("key:" + i), new ByteArrayValue("value:" + i), 0);
+            }
+
+            sink.add(new CacheKey("string"), new CacheValue("caf\u00e9"), 0);
+            sink.add(new CacheKey("number"), new CacheValue(42), 0);
+        });
+
+        assertEquals(1002, written);
+
+        Map<Object, Object> loaded = new ConcurrentHashMap<>();
+
+        assertEquals(1002, snapshot.load(4, (key, value, ttl) -> loaded.put(key.getKey(), value)));
+        assertEquals(1002, loaded.size());
+
+        for( int i = 0; i < 1000; i++ ) {
+            ICacheValue value = (ICacheValue) loaded.get(new ByteArrayKey("key:" + i));
+            assertEquals("value:" + i, value.toString());
+        }
+
+        assertEquals("caf\u00e9", ((ICacheValue) loaded.get("string")).getValue());
+        assertEquals(42, ((ICacheValue) loaded.get("number")).getValue());
+    }
+
+    @Test
+    public void timeToLiveCountsDownFromTheSnapshot() throws IOException {
+
+        CacheSnapshot snapshot = new CacheSnapshot(_folder.newFile("snapshot"), 256, 1024, _now::get);
+
+        snapshot.write(sink -> {
+            sink.add(new CacheKey("forever"), new CacheValue("value"), 0);
+            sink.add(new CacheKey("long"), new CacheValue("value"), 1000);
+            sink.add(new CacheKey("short"), new CacheValue("value"), 100);
+        });
+
+        // The server was down for half a second
+        _now.addAndGet(500);
+
+        Map<Object, Long> ttls = new ConcurrentHashMap<>();
+
+        assertEquals(2, snapshot.load(1, (key, value, ttl) -> ttls.put(key.getKey(), ttl)));
+
+        assertEquals(0, (long) ttls.get("forever"));
+        assertEquals(500, (long) ttls.get("long"));
+        assertFalse(ttls.containsKey("short"));
+    }
+
+    @Test
+    public void emptySnapshot() throws IOException {
+
+        CacheSnapshot snapshot = new CacheSnapshot(_folder.newFile("snapshot"));
+
+        assertEquals(0, snapshot.write(sink -> {}));
+        assertEquals(0, snapshot.load(2, (key, value, ttl) -> fail()));
+    }
+
+    @Test
+    public void typesTheCodecCantStoreAreLeftOut() throws IOException {
+
+        CacheSnapshot snapshot = new CacheSnapshot(_folder.newFile("snapshot"));
+
+        assertEquals(1, snapshot.write(sink -> {
+            sink.add(new CacheKey("object"), new CacheValue(new Object()), 0);
+            sink.add(new CacheKey("string"), new CacheValue("value"), 0);
+        }));
+    }
+
+    @Test(expected = IOException.class)
+    public void notASnapshot() throws IOException {
+
+        File file = _folder.newFile("snapshot");
+        Files.write(file.toPath(), new byte[100]);
+
+        new CacheSnapshot(file).load(1, (key, value, ttl) -> fail());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSnapshot() throws IOException {
+
+        File file = _folder.newFile("snapshot");
+        CacheSnapshot snapshot = new CacheSnapshot(file);
+
+        snapshot.write(sink -> sink.add(new CacheKey("key"), new CacheValue("value"), 0));
+
+        try( RandomAccessFile raf = new RandomAccessFile(file, "rw") ) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        snapshot.load(1, (key, value, ttl) -> {});
+    }
+
+    @Test
+    public void failedSnapshotKeepsTheLastOne() throws IOException {
+
+        File file = _folder.newFile("snapshot");
+        CacheSnapshot snapshot = new CacheSnapshot(file);
+
+        snapshot.write(sink -> sink.add(new CacheKey("key"), new CacheValue("value"), 0));
+
+        try {
+            snapshot.write(sink -> {
+                sink.add(new CacheKey("other"), new CacheValue("value"), 0);
+                throw new UncheckedIOException(new IOException("disk full"));
+            });
+
+            fail();
+        }
+        catch (IOException exception) {
+            assertEquals("disk full", exception.getMessage());
+        }
+
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertEquals(1, snapshot.load(1, (key, value, ttl) -> assertEquals("key", key.getKey())));
+    }
+}
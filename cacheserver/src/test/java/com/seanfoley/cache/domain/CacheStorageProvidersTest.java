@@ -0,0 +1,74 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheStorageProvider;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class CacheStorageProvidersTest {
+
+    /**
+     * Registered in src/test/resources/META-INF/services
+     */
+    public static class TestStorageProvider implements ICacheStorageProvider {
+
+        @Override
+        public String getName() { return "test"; }
+
+        @Override
+        public ICacheStorage create(int capacity, long maxBytes, File directory) {
+            return new LinkedHashMapCacheStorage(capacity);
+        }
+    }
+
+    @Test
+    public void findsTheBuiltInStorages() {
+
+        assertSame(CacheManager.StorageType.Lru, CacheStorageProviders.find("lru"));
+        assertSame(CacheManager.StorageType.MappedFile, CacheStorageProviders.find("mapped"));
+
+        for( CacheManager.StorageType storageType : CacheManager.StorageType.values() ) {
+            assertTrue(CacheStorageProviders.names().contains(storageType.getName()));
+        }
+    }
+
+    @Test
+    public void findsProvidersOnTheClasspath() {
+
+        ICacheStorageProvider provider = CacheStorageProviders.find("test");
+
+        assertTrue(provider instanceof TestStorageProvider);
+        assertTrue(CacheStorageProviders.names().contains("test"));
+
+        ICacheStorage storage = provider.create(10, Long.MAX_VALUE, null);
+        storage.add(new CacheKey("key"), new CacheValue("value"));
+
+        assertEquals("value", storage.get(new CacheKey("key")).getValue());
+    }
+
+    @Test
+    public void unknownStorage() {
+        assertNull(CacheStorageProviders.find("nosuchstorage"));
+    }
+}
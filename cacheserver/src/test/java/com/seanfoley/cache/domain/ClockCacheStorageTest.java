@@ -0,0 +1,254 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ClockCacheStorageTest {
+
+    private final int ITEM_CAPACITY = 100;
+
+    @Test
+    public void addGetRemove() {
+
+        ICacheStorage storage = new ClockCacheStorage(ITEM_CAPACITY);
+
+        ICacheKey key = new CacheKey("key");
+
+        assertTrue(storage.add(key, new CacheValue("value")));
+        assertEquals(1, storage.count());
+        assertEquals("value", storage.get(new CacheKey("key")).getValue());
+
+        // Replacing the value doesn't add another item
+        assertTrue(storage.add(key, new CacheValue("other")));
+        assertEquals(1, storage.count());
+        assertEquals("other", storage.get(key).getValue());
+
+        assertTrue(storage.remove(key));
+        assertFalse(storage.remove(key));
+        assertNull(storage.get(key));
+        assertEquals(0, storage.count());
+    }
+
+    @Test
+    public void neverHoldsMoreThanCapacity() {
+
+        ICacheStorage storage = new ClockCacheStorage(ITEM_CAPACITY);
+
+        for( int i = 0; i < ITEM_CAPACITY * 10; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+            assertTrue(storage.count() <= ITEM_CAPACITY);
+        }
+
+        assertEquals(ITEM_CAPACITY, storage.count());
+    }
+
+    @Test
+    public void referencedItemsGetASecondChance() {
+
+        ICacheStorage storage = new ClockCacheStorage(3);
+
+        storage.add(new CacheKey("a"), new CacheValue("a"));
+        storage.add(new CacheKey("b"), new CacheValue("b"));
+        storage.add(new CacheKey("c"), new CacheValue("c"));
+
+        // a is the oldest, but it has been used
+        storage.get(new CacheKey("a"));
+
+        storage.add(new CacheKey("d"), new CacheValue("d"));
+
+        assertNotNull(storage.get(new CacheKey("a")));
+        assertNull(storage.get(new CacheKey("b")));
+        assertNotNull(storage.get(new CacheKey("c")));
+        assertNotNull(storage.get(new CacheKey("d")));
+    }
+
+    @Test
+    public void removedSlotsAreReused() {
+
+        ICacheStorage storage = new ClockCacheStorage(3);
+
+        storage.add(new CacheKey("a"), new CacheValue("a"));
+        storage.add(new CacheKey("b"), new CacheValue("b"));
+        storage.add(new CacheKey("c"), new CacheValue("c"));
+
+        storage.remove(new CacheKey("b"));
+
+        // There is room now, so nothing should get evicted
+        storage.add(new CacheKey("d"), new CacheValue("d"));
+
+        assertEquals(3, storage.count());
+        assertNotNull(storage.get(new CacheKey("a")));
+        assertNotNull(storage.get(new CacheKey("c")));
+        assertNotNull(storage.get(new CacheKey("d")));
+    }
+
+    @Test
+    public void hitRatioCloseToLru() {
+
+        final int CAPACITY = 1000;
+        final int KEYS = 10000;
+        final int REQUESTS = 200000;
+
+        ICacheStorage lru = new LinkedHashMapCacheStorage(CAPACITY);
+        ICacheStorage clock = new ClockCacheStorage(CAPACITY);
+
+        // A skewed workload: a few keys are hot, most are not
+        Random random = new Random(42);
+
+        int lruHits = 0;
+        int clockHits = 0;
+
+        for( int i = 0; i < REQUESTS; i++ ) {
+
+            double u = random.nextDouble();
+            int k = (int) (KEYS * u * u * u);
+
+            ICacheKey key = new CacheKey("key:" + k);
+
+            lruHits += hitOrAdd(lru, key);
+            clockHits += hitOrAdd(clock, key);
+        }
+
+        double lruRatio = (double) lruHits / REQUESTS;
+        double clockRatio = (double) clockHits / REQUESTS;
+
+        assertEquals("lru " + lruRatio + " clock " + clockRatio, lruRatio, clockRatio, 0.03);
+    }
+
+    @Test
+    public void concurrentAccess() throws InterruptedException {
+
+        final int THREADS = 8;
+        final int OPERATIONS = 20000;
+
+        ClockCacheStorage storage = new ClockCacheStorage(ITEM_CAPACITY);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for( int t = 0; t < THREADS; t++ ) {
+
+            final int id = t;
+
+            Thread thread = new Thread(() -> {
+                try {
+                    for( int i = 0; i < OPERATIONS; i++ ) {
+
+                        String name = "key:" + ((i * 31 + id) % (ITEM_CAPACITY * 2));
+
+                        storage.add(new CacheKey(name), new CacheValue(name));
+
+                        ICacheValue value = storage.get(new CacheKey(name));
+                        if( null != value ) {
+                            assertEquals(name, value.getValue());
+                        }
+
+                        if( i % 7 == 0 ) {
+                            storage.remove(new CacheKey(name));
+                        }
+                    }
+                }
+                catch (Throwable throwable) {
+                    failure.compareAndSet(null, throwable);
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertTrue(storage.count() <= ITEM_CAPACITY);
+
+        // No slot was lost along the way: we can still fill right up
+        for( int i = 0; i < ITEM_CAPACITY * 2; i++ ) {
+            storage.add(new CacheKey("after:" + i), new CacheValue("after"));
+        }
+
+        assertEquals(ITEM_CAPACITY, storage.count());
+    }
+
+    private int hitOrAdd(ICacheStorage storage, ICacheKey key) {
+
+        if( null != storage.get(key) ) {
+            return 1;
+        }
+
+        storage.add(key, new CacheValue("value"));
+        return 0;
+    }
+
+    @Test
+    public void bytesUsed() {
+
+        ICacheStorage storage = new ClockCacheStorage(3);
+
+        ICacheValue value = new CacheValue("value");
+
+        storage.add(new CacheKey("a"), value);
+        storage.add(new CacheKey("b"), value);
+        assertEquals(CacheEntrySizer.sizeOf("a", value) * 2, storage.bytesUsed());
+
+        storage.add(new CacheKey("a"), new CacheValue("a longer value"));
+        storage.remove(new CacheKey("a"));
+        assertEquals(CacheEntrySizer.sizeOf("b", value), storage.bytesUsed());
+
+        // Evictions are taken off too
+        for( int i = 0; i < 10; i++ ) {
+            storage.add(new CacheKey(Integer.toString(i)), value);
+        }
+        assertEquals(CacheEntrySizer.sizeOf("0", value) * 3, storage.bytesUsed());
+    }
+
+    @Test
+    public void forEachVisitsEveryItem() {
+
+        ICacheStorage storage = new ClockCacheStorage(ITEM_CAPACITY);
+
+        for( int i = 0; i < 50; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        Map<Object, Object> visited = new HashMap<>();
+        storage.forEach((key, value) -> visited.put(key.getKey(), value.getValue()));
+
+        assertEquals(50, visited.size());
+
+        for( int i = 0; i < 50; i++ ) {
+            assertEquals("value:" + i, visited.get("key:" + i));
+        }
+    }
+}
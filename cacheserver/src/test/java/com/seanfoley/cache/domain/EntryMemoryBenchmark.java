@@ -0,0 +1,124 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * A quick and dirty benchmark that measures how much heap each cache
+ * entry takes up, with the String keys/values the server used to store
+ * and with the ByteArrayKey/ByteArrayValue it stores now. Like the
+ * ServerBenchmark it isn't a unit test, so run it by hand:
+ *
+ * ./gradlew memoryBenchmark
+ *
+ * The entries go into an LRU storage the way the server adds them (a
+ * 16 byte key and a 100 byte value, both ASCII), and the heap is measured
+ * after a few full GCs before and after. Run it with a fixed heap (e.g.
+ * -Xms1g -Xmx1g) for steadier numbers.
+ */
+public class EntryMemoryBenchmark {
+
+    private static final int ENTRIES = 500000;
+    private static final int KEY_LENGTH = 16;
+    private static final int VALUE_LENGTH = 100;
+
+    public static void main(String[] args) throws Exception {
+
+        System.out.printf("%d entries, %d byte keys, %d byte values (java %s)%n",
+                ENTRIES, KEY_LENGTH, VALUE_LENGTH, System.getProperty("java.version"));
+        System.out.printf("%-8s %14s %14s%n", "layout", "bytes/entry", "estimated");
+
+        measure("string",
+                bytes -> new CacheKey(new String(bytes)),
+                bytes -> new CacheValue(new String(bytes)));
+
+        measure("bytes",
+                ByteArrayKey::new,
+                ByteArrayValue::new);
+    }
+
+    private static void measure(String name,
+                                Function<byte[], ICacheKey> keys,
+                                Function<byte[], ICacheValue> values) throws Exception {
+
+        long before = usedHeap();
+
+        LinkedHashMapCacheStorage storage = new LinkedHashMapCacheStorage(ENTRIES, Long.MAX_VALUE);
+
+        for( int i = 0; i < ENTRIES; i++ ) {
+            storage.add(keys.apply(key(i)), values.apply(value(i)));
+        }
+
+        long after = usedHeap();
+
+        System.out.printf("%-8s %14.1f %14.1f%n", name,
+                (after - before) / (double) ENTRIES,
+                storage.bytesUsed() / (double) ENTRIES);
+
+        // Keep the storage alive until we've measured it
+        check(storage);
+    }
+
+    private static byte[] key(int i) {
+
+        byte[] key = new byte[KEY_LENGTH];
+        Arrays.fill(key, (byte) '0');
+
+        String digits = Integer.toString(i);
+        for( int d = 0; d < digits.length(); d++ ) {
+            key[KEY_LENGTH - digits.length() + d] = (byte) digits.charAt(d);
+        }
+
+        return key;
+    }
+
+    private static byte[] value(int i) {
+
+        byte[] value = new byte[VALUE_LENGTH];
+        Arrays.fill(value, (byte) ('a' + i % 26));
+
+        return value;
+    }
+
+    private static void check(ICacheStorage storage) {
+
+        if( storage.count() != ENTRIES ) {
+            throw new IllegalStateException("the storage evicted something: " + storage.count());
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        for( int i = 0; i < 5; i++ ) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
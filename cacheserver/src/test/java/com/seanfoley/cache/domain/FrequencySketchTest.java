@@ -0,0 +1,121 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void countsOccurrences() {
+
+        FrequencySketch sketch = new FrequencySketch(1024, 1000000);
+
+        assertEquals(0, sketch.frequency("key"));
+
+        for( int i = 0; i < 5; i++ ) {
+            sketch.increment("key");
+        }
+
+        assertEquals(5, sketch.frequency("key"));
+        assertEquals(0, sketch.frequency("other"));
+    }
+
+    @Test
+    public void countersTopOutAtFifteen() {
+
+        FrequencySketch sketch = new FrequencySketch(1024, 1000000);
+
+        for( int i = 0; i < 100; i++ ) {
+            sketch.increment("key");
+        }
+
+        assertEquals(15, sketch.frequency("key"));
+    }
+
+    @Test
+    public void agingHalvesTheCounts() {
+
+        FrequencySketch sketch = new FrequencySketch(1024, 1000000);
+
+        for( int i = 0; i < 10; i++ ) {
+            sketch.increment("key");
+        }
+
+        sketch.age();
+        assertEquals(5, sketch.frequency("key"));
+
+        sketch.age();
+        assertEquals(2, sketch.frequency("key"));
+    }
+
+    @Test
+    public void agesEveryPeriod() {
+
+        final int AGING_PERIOD = 100;
+
+        FrequencySketch sketch = new FrequencySketch(64 * 1024, AGING_PERIOD);
+
+        for( int i = 0; i < 8; i++ ) {
+            sketch.increment("old");
+        }
+
+        // Enough traffic to trigger an aging
+        for( int i = 0; i < AGING_PERIOD; i++ ) {
+            sketch.increment("key:" + i);
+        }
+
+        assertEquals(4, sketch.frequency("old"));
+    }
+
+    @Test
+    public void sizeIsRoundedToAPowerOfTwo() {
+
+        assertEquals(8, new FrequencySketch(1, 10).getSketchBytes());
+        assertEquals(1024, new FrequencySketch(1000, 10).getSketchBytes());
+        assertEquals(1024, new FrequencySketch(1024, 10).getSketchBytes());
+    }
+
+    @Test
+    public void fewCollisions() {
+
+        final int KEYS = 1000;
+
+        // 16 counters per key
+        FrequencySketch sketch = new FrequencySketch(KEYS * 8, 1000000);
+
+        for( int i = 0; i < KEYS; i++ ) {
+            sketch.increment("key:" + i);
+        }
+
+        // Every key was seen once, and collisions can only push the
+        // estimate up, so nearly all of them should say exactly 1
+        int exact = 0;
+        for( int i = 0; i < KEYS; i++ ) {
+            int frequency = sketch.frequency("key:" + i);
+            assertTrue(frequency >= 1);
+            if( frequency == 1 ) {
+                exact++;
+            }
+        }
+
+        assertTrue("exact " + exact, exact > KEYS * 0.95);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class LineFramerTest {
+
+    private final int INITIAL_SIZE = 16;
+    private final int MAX_FRAME_SIZE = 1024;
+
+    @Test
+    public void singleCommand() {
+
+        LineFramer framer = new LineFramer(new BufferPool(), INITIAL_SIZE, MAX_FRAME_SIZE);
+
+        feed(framer, "+get key\r\n");
+
+        assertEquals("+get key\r\n", text(framer.next()));
+        assertNull(framer.next());
+    }
+
+    @Test
+    public void partialCommand() {
+
+        LineFramer framer = new LineFramer(new BufferPool(), INITIAL_SIZE, MAX_FRAME_SIZE);
+
+        // The terminator itself is split across reads
+        feed(framer, "+get ke");
+        assertNull(framer.next());
+
+        feed(framer, "y\r");
+        assertNull(framer.next());
+
+        feed(framer, "\n");
+        assertEquals("+get key\r\n", text(framer.next()));
+        assertNull(framer.next());
+    }
+
+    @Test
+    public void multipleCommandsInOneRead() {
+
+        LineFramer framer = new LineFramer(new BufferPool(), 64, MAX_FRAME_SIZE);
+
+        feed(framer, "+add a 1\r\n+get a\r\n+remove a\r\n+get");
+
+        assertEquals("+add a 1\r\n", text(framer.next()));
+        assertEquals("+get a\r\n", text(framer.next()));
+        assertEquals("+remove a\r\n", text(framer.next()));
+        assertNull(framer.next());
+
+        // The leftover partial command is kept for the next read
+        feed(framer, " b\r\n");
+        assertEquals("+get b\r\n", text(framer.next()));
+    }
+
+    @Test
+    public void bareNewlineIsNotATerminator() {
+
+        LineFramer framer = new LineFramer(new BufferPool(), INITIAL_SIZE, MAX_FRAME_SIZE);
+
+        feed(framer, "+add k a\nb\r\n");
+
+        assertEquals("+add k a\nb\r\n", text(framer.next()));
+    }
+
+    @Test
+    public void growsForLargeCommands() {
+
+        LineFramer framer = new LineFramer(new BufferPool(), INITIAL_SIZE, MAX_FRAME_SIZE);
+
+        char[] value = new char[500];
+        Arrays.fill(value, 'v');
+
+        String command = "+add big " + new String(value) + "\r\n";
+
+        feed(framer, command);
+
+        assertEquals(command, text(framer.next()));
+        assertNull(framer.next());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsCommandsOverMaxFrameSize() {
+
+        LineFramer framer = new LineFramer(new BufferPool(), INITIAL_SIZE, MAX_FRAME_SIZE);
+
+        char[] value = new char[MAX_FRAME_SIZE + 1];
+        Arrays.fill(value, 'v');
+
+        feed(framer, new String(value));
+    }
+
+    @Test
+    public void framesAreSlicesNotCopies() {
+
+        LineFramer framer = new LineFramer(new BufferPool(), 64, MAX_FRAME_SIZE);
+
+        ByteBuffer buffer = framer.writableBuffer();
+        buffer.put("+get a\r\n".getBytes());
+
+        ByteBuffer frame = framer.next();
+
+        // The frame should be a view over the same memory, so a change to
+        // the buffer shows through
+        buffer.put(0, (byte) '*');
+        assertEquals('*', frame.get(frame.position()));
+    }
+
+    @Test
+    public void releasesBuffersToThePool() {
+
+        BufferPool pool = new BufferPool();
+        LineFramer framer = new LineFramer(pool, INITIAL_SIZE, MAX_FRAME_SIZE);
+
+        char[] value = new char[500];
+        Arrays.fill(value, 'v');
+
+        // Growing swaps the buffer for a bigger one; the old one goes back
+        feed(framer, "+add big " + new String(value) + "\r\n");
+        assertNotNull(framer.next());
+        assertEquals(1, pool.getOutstanding());
+
+        framer.release();
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    /**
+     * Simulates socket reads, only ever filling what the framer has room for
+     */
+    private void feed(LineFramer framer, String data) {
+
+        ByteBuffer source = ByteBuffer.wrap(data.getBytes());
+
+        while( source.hasRemaining() ) {
+
+            ByteBuffer buffer = framer.writableBuffer();
+
+            int count = Math.min(buffer.remaining(), source.remaining());
+
+            ByteBuffer chunk = source.duplicate();
+            chunk.limit(source.position() + count);
+            buffer.put(chunk);
+            source.position(source.position() + count);
+        }
+    }
+
+    private String text(ByteBuffer frame) {
+
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+
+        return new String(bytes);
+    }
+}
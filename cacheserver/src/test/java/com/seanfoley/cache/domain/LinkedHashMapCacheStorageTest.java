@@ -23,6 +23,10 @@ import com.seanfoley.cache.interfaces.ICacheValue;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class LinkedHashMapCacheStorageTest {
@@ -176,4 +180,152 @@ public class LinkedHashMapCacheStorageTest {
         ICacheValue val = storage.get(kickedYouToTheCurbKey);
         assertEquals(kickedYouToTheCurbValue.getValue(), val.getValue() );
     }
-}
\ No newline at end of file
+
+    @Test
+    public void bytesUsed() {
+
+        LinkedHashMapCacheStorage storage = new LinkedHashMapCacheStorage(ITEM_CAPACITY);
+
+        assertEquals(0, storage.bytesUsed());
+
+        ICacheKey key = new CacheKey("key");
+        ICacheValue value = new CacheValue("value");
+
+        storage.add(key, value);
+        assertEquals(CacheEntrySizer.sizeOf("key", value), storage.bytesUsed());
+
+        // Replacing the value swaps its size for the new one
+        ICacheValue bigger = new CacheValue("a much bigger value");
+        storage.add(key, bigger);
+        assertEquals(CacheEntrySizer.sizeOf("key", bigger), storage.bytesUsed());
+
+        storage.remove(key);
+        assertEquals(0, storage.bytesUsed());
+    }
+
+    @Test
+    public void byteBudgetEviction() {
+
+        ICacheValue value = new CacheValue("0123456789");
+        long entrySize = CacheEntrySizer.sizeOf("0", value);
+
+        // Plenty of room by count, but only 3 items by bytes
+        ICacheStorage storage = new LinkedHashMapCacheStorage(ITEM_CAPACITY, entrySize * 3);
+
+        for( int i = 0; i < 5; i++ ) {
+            storage.add(new CacheKey(Integer.toString(i)), value);
+            assertTrue(storage.bytesUsed() <= entrySize * 3);
+        }
+
+        assertEquals(3, storage.count());
+
+        // The least recently used went first
+        assertNull(storage.get(new CacheKey("0")));
+        assertNull(storage.get(new CacheKey("1")));
+        assertNotNull(storage.get(new CacheKey("4")));
+    }
+
+    @Test
+    public void oneBigValueEvictsManySmallOnes() {
+
+        ICacheValue small = new CacheValue("x");
+        long smallSize = CacheEntrySizer.sizeOf("0", small);
+
+        ICacheStorage storage = new LinkedHashMapCacheStorage(ITEM_CAPACITY, smallSize * 10);
+
+        for( int i = 0; i < 10; i++ ) {
+            storage.add(new CacheKey(Integer.toString(i)), small);
+        }
+
+        assertEquals(10, storage.count());
+
+        char[] chars = new char[(int) (smallSize * 2)];
+        storage.add(new CacheKey("big"), new CacheValue(new String(chars)));
+
+        assertNotNull(storage.get(new CacheKey("big")));
+        assertTrue(storage.count() < 10);
+        assertTrue(storage.bytesUsed() <= smallSize * 10);
+    }
+
+    @Test
+    public void valueBiggerThanTheBudgetIsRejected() {
+
+        ICacheStorage storage = new LinkedHashMapCacheStorage(ITEM_CAPACITY, 1024);
+
+        storage.add(new CacheKey("small"), new CacheValue("small"));
+
+        char[] chars = new char[1024];
+        assertFalse(storage.add(new CacheKey("huge"), new CacheValue(new String(chars))));
+
+        // Nothing else was thrown out trying to make room
+        assertNotNull(storage.get(new CacheKey("small")));
+        assertNull(storage.get(new CacheKey("huge")));
+
+        // Replacing a value with one that's too big drops the old one
+        long bytesUsed = storage.bytesUsed();
+
+        storage.add(new CacheKey("replaced"), new CacheValue("old"));
+        assertFalse(storage.add(new CacheKey("replaced"), new CacheValue(new String(chars))));
+
+        assertNull(storage.get(new CacheKey("replaced")));
+        assertEquals(bytesUsed, storage.bytesUsed());
+        assertNotNull(storage.get(new CacheKey("small")));
+    }
+
+    @Test
+    public void evictionListenerHearsAboutEvictionsOnly() {
+
+        List<Object> evicted = new ArrayList<>();
+
+        ICacheStorage storage = new LinkedHashMapCacheStorage(2, Long.MAX_VALUE,
+                (key, value) -> evicted.add(key.getKey()));
+
+        storage.add(new CacheKey("a"), new CacheValue("a"));
+        storage.add(new CacheKey("b"), new CacheValue("b"));
+
+        // Neither a replace nor a remove counts
+        storage.add(new CacheKey("a"), new CacheValue("again"));
+        storage.remove(new CacheKey("b"));
+        assertTrue(evicted.isEmpty());
+
+        storage.add(new CacheKey("c"), new CacheValue("c"));
+        storage.add(new CacheKey("d"), new CacheValue("d"));
+
+        assertEquals(Collections.singletonList("a"), evicted);
+    }
+
+    @Test
+    public void evictionListenerHearsAboutByteBudgetEvictions() {
+
+        List<Object> evicted = new ArrayList<>();
+
+        long size = CacheEntrySizer.sizeOf("key:0", new CacheValue("value"));
+
+        ICacheStorage storage = new LinkedHashMapCacheStorage(ITEM_CAPACITY, size * 2,
+                (key, value) -> evicted.add(key.getKey()));
+
+        storage.add(new CacheKey("key:0"), new CacheValue("value"));
+        storage.add(new CacheKey("key:1"), new CacheValue("value"));
+        storage.add(new CacheKey("key:2"), new CacheValue("value"));
+
+        assertEquals(Collections.singletonList("key:0"), evicted);
+    }
+
+    @Test
+    public void forEachDoesNotCountAsAUse() {
+
+        ICacheStorage storage = new LinkedHashMapCacheStorage(2);
+
+        storage.add(new CacheKey("a"), new CacheValue("a"));
+        storage.add(new CacheKey("b"), new CacheValue("b"));
+
+        List<Object> visited = new ArrayList<>();
+        storage.forEach((key, value) -> visited.add(key.getKey()));
+
+        assertEquals(2, visited.size());
+
+        // a is still the least recently used
+        storage.add(new CacheKey("c"), new CacheValue("c"));
+        assertNull(storage.get(new CacheKey("a")));
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MappedFileCacheStorageTest {
+
+    private final int ITEM_CAPACITY = 1000;
+    private final int SEGMENT_SIZE = 4096;
+    private final long MAX_BYTES = 16 * SEGMENT_SIZE;
+    private final double COMPACTION_THRESHOLD = 0.5;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private File _directory;
+    private MappedFileCacheStorage _storage;
+
+    @Before
+    public void setUp() throws Exception {
+        _directory = _folder.newFolder();
+        _storage = new MappedFileCacheStorage( _directory, ITEM_CAPACITY, MAX_BYTES, SEGMENT_SIZE, COMPACTION_THRESHOLD );
+    }
+
+    @After
+    public void tearDown() {
+        _storage.close();
+    }
+
+    @Test
+    public void addGetRemove() {
+
+        ICacheKey key = new CacheKey("key");
+
+        assertTrue(_storage.add(key, new CacheValue("value")));
+        assertEquals(1, _storage.count());
+        assertEquals("value", _storage.get(new CacheKey("key")).getValue());
+        assertTrue(_storage.bytesUsed() > 0);
+
+        assertTrue(_storage.remove(key));
+        assertFalse(_storage.remove(key));
+        assertNull(_storage.get(key));
+        assertEquals(0, _storage.count());
+        assertEquals(0, _storage.bytesUsed());
+    }
+
+    @Test
+    public void valueTypesSurviveTheRoundTrip() {
+
+        _storage.add(new CacheKey("bytes"), new CacheValue((Object) new byte[] { 1, 2, 3 }));
+        _storage.add(new CacheKey("int"), new CacheValue(42));
+        _storage.add(new CacheKey("long"), new CacheValue((Object) 42L));
+
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) _storage.get(new CacheKey("bytes")).getValue());
+        assertEquals(42, _storage.get(new CacheKey("int")).getValue());
+        assertEquals(42L, _storage.get(new CacheKey("long")).getValue());
+
+        assertFalse(_storage.add(new CacheKey("object"), new CacheValue(new Object())));
+    }
+
+    @Test
+    public void replaceLeavesOnlyTheNewRecordLive() {
+
+        ICacheKey key = new CacheKey("key");
+
+        _storage.add(key, new CacheValue("first"));
+        long bytesUsed = _storage.bytesUsed();
+
+        _storage.add(key, new CacheValue("again"));
+
+        assertEquals("again", _storage.get(key).getValue());
+        assertEquals(1, _storage.count());
+        assertEquals(bytesUsed, _storage.bytesUsed());
+    }
+
+    @Test
+    public void itemCapacityEvictsLeastRecentlyUsed() {
+
+        MappedFileCacheStorage storage = new MappedFileCacheStorage( _directory, 3, MAX_BYTES, SEGMENT_SIZE, COMPACTION_THRESHOLD );
+
+        try {
+            storage.add(new CacheKey("a"), new CacheValue("a"));
+            storage.add(new CacheKey("b"), new CacheValue("b"));
+            storage.add(new CacheKey("c"), new CacheValue("c"));
+
+            storage.get(new CacheKey("a"));
+
+            storage.add(new CacheKey("d"), new CacheValue("d"));
+
+            assertEquals(3, storage.count());
+            assertNull(storage.get(new CacheKey("b")));
+            assertNotNull(storage.get(new CacheKey("a")));
+        }
+        finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void fullDiskDropsTheOldestSegment() {
+
+        String value = new String(new char[1000]);
+
+        // Four records to a segment, and far more than 16 segments' worth
+        for( int i = 0; i < 200; i++ ) {
+            assertTrue(_storage.add(new CacheKey("key:" + i), new CacheValue(value)));
+        }
+
+        assertTrue(_storage.segmentCount() <= MAX_BYTES / SEGMENT_SIZE);
+        assertTrue(_storage.count() < 200);
+        assertNull(_storage.get(new CacheKey("key:0")));
+        assertEquals(value, _storage.get(new CacheKey("key:199")).getValue());
+        assertTrue(_storage.bytesUsed() <= MAX_BYTES);
+    }
+
+    @Test
+    public void compactionReclaimsDeadSegments() {
+
+        String value = new String(new char[500]);
+
+        // Keep replacing the same few keys so the older segments are all dead
+        for( int i = 0; i < 100; i++ ) {
+            _storage.add(new CacheKey("key:" + (i % 4)), new CacheValue(value + i));
+        }
+
+        // Whatever the compactor thread hasn't got to yet
+        _storage.compact();
+
+        assertTrue(_storage.segmentCount() <= 2);
+        assertEquals(4, _storage.count());
+
+        for( int i = 96; i < 100; i++ ) {
+            assertEquals(value + i, _storage.get(new CacheKey("key:" + (i % 4))).getValue());
+        }
+    }
+
+    @Test
+    public void compactionMovesLiveRecords() {
+
+        String value = new String(new char[500]);
+
+        for( int i = 0; i < 40; i++ ) {
+            _storage.add(new CacheKey("key:" + i), new CacheValue(value + i));
+        }
+
+        // Kill most of every segment, leaving every fourth key
+        for( int i = 0; i < 40; i++ ) {
+            if( i % 4 != 0 ) {
+                _storage.remove(new CacheKey("key:" + i));
+            }
+        }
+
+        int segments = _storage.segmentCount();
+
+        _storage.compact();
+
+        assertTrue(_storage.segmentCount() < segments);
+        assertEquals(10, _storage.count());
+
+        for( int i = 0; i < 40; i += 4 ) {
+            assertEquals(value + i, _storage.get(new CacheKey("key:" + i)).getValue());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void compactionStopsWhenThereIsNoNewSegment() throws Exception {
+
+        AtomicBoolean failing = new AtomicBoolean(false);
+
+        MappedFileCacheStorage storage = new MappedFileCacheStorage( _folder.newFolder(), ITEM_CAPACITY, MAX_BYTES, SEGMENT_SIZE, COMPACTION_THRESHOLD ) {
+            @Override
+            MappedByteBuffer map(File file) throws IOException {
+                if( failing.get() ) {
+                    throw new IOException("no room for " + file);
+                }
+                return super.map(file);
+            }
+        };
+
+        try {
+            String value = new String(new char[500]);
+
+            for( int i = 0; i < 40; i++ ) {
+                storage.add(new CacheKey("key:" + i), new CacheValue(value + i));
+            }
+
+            for( int i = 0; i < 40; i++ ) {
+                if( i % 4 != 0 ) {
+                    storage.remove(new CacheKey("key:" + i));
+                }
+            }
+
+            int segments = storage.segmentCount();
+
+            // The live records need more than what's left of the active
+            // segment, and a new one can't be created
+            failing.set(true);
+            storage.compact();
+
+            assertEquals(10, storage.count());
+
+            for( int i = 0; i < 40; i += 4 ) {
+                assertEquals(value + i, storage.get(new CacheKey("key:" + i)).getValue());
+            }
+
+            // And it picks up again once it can
+            failing.set(false);
+            storage.compact();
+
+            assertTrue(storage.segmentCount() < segments);
+            assertEquals(10, storage.count());
+        }
+        finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void itemsBiggerThanASegmentAreRejected() {
+        assertFalse(_storage.add(new CacheKey("huge"), new CacheValue(new String(new char[SEGMENT_SIZE]))));
+    }
+
+    @Test
+    public void oldSegmentFilesAreDeleted() {
+
+        _storage.add(new CacheKey("key"), new CacheValue("value"));
+        assertEquals(1, segmentFiles());
+
+        MappedFileCacheStorage storage = new MappedFileCacheStorage( _directory, ITEM_CAPACITY, MAX_BYTES, SEGMENT_SIZE, COMPACTION_THRESHOLD );
+
+        try {
+            assertEquals(0, segmentFiles());
+            assertNull(storage.get(new CacheKey("key")));
+        }
+        finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void closeDeletesTheFiles() {
+
+        _storage.add(new CacheKey("key"), new CacheValue("value"));
+        _storage.close();
+
+        assertEquals(0, segmentFiles());
+    }
+
+    @Test
+    public void matchesAHashMap() throws Exception {
+
+        final int KEYS = 200;
+        final int OPERATIONS = 20000;
+
+        // Plenty of disk so nothing is dropped, and compaction along the way
+        MappedFileCacheStorage storage = new MappedFileCacheStorage( _folder.newFolder(), KEYS, 64L * SEGMENT_SIZE, SEGMENT_SIZE, COMPACTION_THRESHOLD );
+        Map<String, String> expected = new HashMap<>();
+
+        Random random = new Random(7);
+
+        try {
+            for( int i = 0; i < OPERATIONS; i++ ) {
+
+                String key = "key:" + random.nextInt(KEYS);
+
+                switch( random.nextInt(3) ) {
+                    case 0:
+                        String value = "value:" + i;
+                        storage.add(new CacheKey(key), new CacheValue(value));
+                        expected.put(key, value);
+                        break;
+
+                    case 1:
+                        ICacheValue found = storage.get(new CacheKey(key));
+                        assertEquals(expected.get(key), null == found ? null : found.getValue());
+                        break;
+
+                    default:
+                        assertEquals(null != expected.remove(key), storage.remove(new CacheKey(key)));
+                }
+
+                if( i % 1000 == 0 ) {
+                    storage.compact();
+                }
+            }
+
+            assertEquals(expected.size(), storage.count());
+
+            for( Map.Entry<String, String> entry : expected.entrySet() ) {
+                assertEquals(entry.getValue(), storage.get(new CacheKey(entry.getKey())).getValue());
+            }
+        }
+        finally {
+            storage.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsRoomForTwoSegments() {
+        new MappedFileCacheStorage( _directory, ITEM_CAPACITY, SEGMENT_SIZE, SEGMENT_SIZE, COMPACTION_THRESHOLD );
+    }
+
+    private int segmentFiles() {
+
+        File[] files = _directory.listFiles();
+
+        return null == files ? 0 : files.length;
+    }
+
+    @Test
+    public void forEachVisitsEveryItem() {
+
+        for( int i = 0; i < 500; i++ ) {
+            _storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        Map<Object, Object> visited = new HashMap<>();
+        _storage.forEach((key, value) -> visited.put(key.getKey(), value.getValue()));
+
+        assertEquals(500, visited.size());
+
+        for( int i = 0; i < 500; i++ ) {
+            assertEquals("value:" + i, visited.get("key:" + i));
+        }
+    }
+}
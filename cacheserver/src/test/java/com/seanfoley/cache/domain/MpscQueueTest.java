@@ -0,0 +1,104 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MpscQueueTest {
+
+    @Test
+    public void firstInFirstOut() {
+
+        MpscQueue<Integer> queue = new MpscQueue<>();
+
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        queue.offer(1);
+        queue.offer(2);
+        assertFalse(queue.isEmpty());
+
+        assertEquals(Integer.valueOf(1), queue.poll());
+
+        queue.offer(3);
+
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noNulls() {
+        new MpscQueue<Integer>().offer(null);
+    }
+
+    @Test
+    public void manyProducers() throws InterruptedException {
+
+        final int PRODUCERS = 4;
+        final int ITEMS = 100000;
+
+        MpscQueue<long[]> queue = new MpscQueue<>();
+
+        List<Thread> producers = new ArrayList<>();
+
+        for( int p = 0; p < PRODUCERS; p++ ) {
+
+            final int producer = p;
+
+            Thread thread = new Thread(() -> {
+                for( int i = 0; i < ITEMS; i++ ) {
+                    queue.offer(new long[] { producer, i });
+                }
+            });
+
+            producers.add(thread);
+            thread.start();
+        }
+
+        // Every item arrives exactly once, and each producer's items
+        // arrive in the order it offered them
+        long[] next = new long[PRODUCERS];
+        int received = 0;
+
+        while( received < PRODUCERS * ITEMS ) {
+
+            long[] item = queue.poll();
+
+            if( null == item ) {
+                Thread.yield();
+                continue;
+            }
+
+            assertEquals(next[(int) item[0]]++, item[1]);
+            received++;
+        }
+
+        for( Thread thread : producers ) {
+            thread.join();
+        }
+
+        assertNull(queue.poll());
+    }
+}
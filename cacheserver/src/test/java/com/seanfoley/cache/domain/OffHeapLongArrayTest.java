@@ -0,0 +1,57 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OffHeapLongArrayTest {
+
+    @Test
+    public void startsAtZero() {
+
+        OffHeapLongArray array = new OffHeapLongArray(100);
+
+        for( int i = 0; i < 100; i++ ) {
+            assertEquals(0, array.get(i));
+        }
+    }
+
+    @Test
+    public void getAndSet() {
+
+        OffHeapLongArray array = new OffHeapLongArray(100);
+
+        array.set(0, Long.MIN_VALUE);
+        array.set(99, Long.MAX_VALUE);
+        array.set(50, 42);
+
+        assertEquals(Long.MIN_VALUE, array.get(0));
+        assertEquals(Long.MAX_VALUE, array.get(99));
+        assertEquals(42, array.get(50));
+
+        assertEquals(100, array.length());
+        assertEquals(800, array.bytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmpty() {
+        new OffHeapLongArray(0);
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheManager;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class OperationLogTest {
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private final AtomicLong _now = new AtomicLong(1000000);
+
+    /**
+     * Replays into a map, like a cache with no capacity limit
+     */
+    private class Replayed implements OperationLog.Target {
+
+        final Map<Object, Object> _items = new HashMap<>();
+        final Map<Object, Long> _ttls = new HashMap<>();
+
+        @Override
+        public void add(ICacheKey key, ICacheValue value, long ttlMillis) {
+            Object v = value.getValue();
+            _items.put(key.getKey(), v instanceof byte[] ? new String((byte[]) v) : v);
+            _ttls.put(key.getKey(), ttlMillis);
+        }
+
+        @Override
+        public void remove(ICacheKey key) {
+            _items.remove(key.getKey());
+            _ttls.remove(key.getKey());
+        }
+    }
+
+    private OperationLog open(File file, ICacheManager.FsyncPolicy policy) throws IOException {
+        return new OperationLog(file, policy, 10, _now::get, 0);
+    }
+
+    private Replayed replay(File file) throws IOException {
+
+        Replayed replayed = new Replayed();
+        OperationLog.replay(file, _now::get, replayed);
+
+        return replayed;
+    }
+
+    @Test
+    public void replaysAddsAndRemoves() throws IOException {
+
+        File file = new File(_folder.getRoot(), "log");
+
+        OperationLog log = open(file, ICacheManager.FsyncPolicy.Never);
+
+        log.add(new ByteArrayKey("a"), new ByteArrayValue("1"), 0);
+        log.add(new ByteArrayKey("b"), new ByteArrayValue("2"), 0);
+        log.add(new ByteArrayKey("a"), new ByteArrayValue("3"), 0);
+        log.remove(new ByteArrayKey("b"));
+        log.close();
+
+        Replayed replayed = new Replayed();
+        assertEquals(4, OperationLog.replay(file, _now::get, replayed));
+
+        assertEquals(1, replayed._items.size());
+        assertEquals("3", replayed._items.get(new ByteArrayKey("a")));
+    }
+
+    @Test
+    public void timeToLiveCountsDownAcrossRestarts() throws IOException {
+
+        File file = new File(_folder.getRoot(), "log");
+
+        OperationLog log = open(file, ICacheManager.FsyncPolicy.Never);
+
+        log.add(new CacheKey("long"), new CacheValue("value"), 1000);
+        log.add(new CacheKey("short"), new CacheValue("value"), 100);
+        log.close();
+
+        _now.addAndGet(500);
+
+        Replayed replayed = replay(file);
+
+        assertEquals(500, (long) replayed._ttls.get("long"));
+        assertFalse(replayed._items.containsKey("short"));
+    }
+
+    @Test
+    public void aPartlyWrittenRecordIsCutOff() throws IOException {
+
+        File file = new File(_folder.getRoot(), "log");
+
+        OperationLog log = open(file, ICacheManager.FsyncPolicy.Never);
+        log.add(new CacheKey("a"), new CacheValue("1"), 0);
+        log.add(new CacheKey("b"), new CacheValue("2"), 0);
+        log.close();
+
+        // The crash happened part way through the second record
+        try( RandomAccessFile raf = new RandomAccessFile(file, "rw") ) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        Replayed replayed = replay(file);
+        assertEquals(1, replayed._items.size());
+
+        // New records go after the last good one
+        log = open(file, ICacheManager.FsyncPolicy.Never);
+        log.add(new CacheKey("c"), new CacheValue("3"), 0);
+        log.close();
+
+        replayed = replay(file);
+        assertEquals("1", replayed._items.get("a"));
+        assertEquals("3", replayed._items.get("c"));
+        assertEquals(2, replayed._items.size());
+    }
+
+    @Test
+    public void aCorruptRecordStopsTheReplay() throws IOException {
+
+        File file = new File(_folder.getRoot(), "log");
+
+        OperationLog log = open(file, ICacheManager.FsyncPolicy.Never);
+        log.add(new CacheKey("a"), new CacheValue("1"), 0);
+        log.add(new CacheKey("b"), new CacheValue("2"), 0);
+        log.close();
+
+        // Flip a bit in the last value
+        try( RandomAccessFile raf = new RandomAccessFile(file, "rw") ) {
+            raf.seek(raf.length() - 9);
+            raf.write(raf.read() ^ 1);
+        }
+
+        Replayed replayed = replay(file);
+
+        assertEquals(1, replayed._items.size());
+        assertEquals("1", replayed._items.get("a"));
+    }
+
+    @Test(expected = IOException.class)
+    public void notALog() throws IOException {
+
+        File file = _folder.newFile("log");
+        Files.write(file.toPath(), "not a log".getBytes());
+
+        replay(file);
+    }
+
+    @Test
+    public void alwaysWaitsForTheWrite() throws IOException {
+
+        File file = new File(_folder.getRoot(), "log");
+
+        OperationLog log = open(file, ICacheManager.FsyncPolicy.Always);
+
+        long size = log.size();
+
+        assertTrue(log.await(log.add(new CacheKey("a"), new CacheValue("1"), 0)));
+
+        // It's in the file before await() returns
+        assertTrue(log.size() > size);
+        assertEquals(log.size(), file.length());
+
+        log.close();
+    }
+
+    @Test
+    public void aFailedWriteIsReported() throws IOException {
+
+        File file = new File(_folder.getRoot(), "log");
+
+        OperationLog log = open(file, ICacheManager.FsyncPolicy.Always);
+
+        assertTrue(log.await(log.add(new CacheKey("a"), new CacheValue("1"), 0)));
+
+        // Every write from now on fails
+        log.channel().close();
+
+        assertFalse(log.await(log.add(new CacheKey("b"), new CacheValue("2"), 0)));
+        assertFalse(log.await(log.remove(new CacheKey("a"))));
+
+        log.close();
+
+        // Only what made it to disk is replayed
+        Replayed replayed = replay(file);
+        assertEquals(1, replayed._items.size());
+        assertEquals("1", replayed._items.get("a"));
+        assertFalse(replayed._items.containsKey("b"));
+    }
+
+    @Test
+    public void manyWritersAllGetLogged() throws Exception {
+
+        File file = new File(_folder.getRoot(), "log");
+
+        OperationLog log = open(file, ICacheManager.FsyncPolicy.Always);
+
+        List<Thread> threads = new ArrayList<>();
+
+        for( int t = 0; t < 8; t++ ) {
+
+            final int thread = t;
+
+            threads.add(new Thread(() -> {
+                for( int i = 0; i < 200; i++ ) {
+                    log.await(log.add(new CacheKey(thread + ":" + i), new CacheValue("value"), 0));
+                }
+            }));
+        }
+
+        for( Thread thread : threads ) {
+            thread.start();
+        }
+
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+
+        log.close();
+
+        assertEquals(8 * 200, replay(file)._items.size());
+    }
+
+    @Test
+    public void rewriteKeepsWhatsLoggedMeanwhile() throws IOException {
+
+        File file = new File(_folder.getRoot(), "log");
+
+        OperationLog log = open(file, ICacheManager.FsyncPolicy.Always);
+
+        for( int i = 0; i < 100; i++ ) {
+            log.await(log.add(new CacheKey("key"), new CacheValue("value:" + i), 0));
+        }
+
+        long size = log.size();
+        assertTrue(log.needsRewrite());
+
+        // The cache only holds the last value, and someone adds another
+        // key while the rewrite is going on
+        log.rewrite(sink -> {
+            sink.add(new CacheKey("key"), new CacheValue("value:99"), 0);
+            log.await(log.add(new CacheKey("other"), new CacheValue("value"), 0));
+        });
+
+        assertTrue(log.size() < size);
+        assertFalse(log.needsRewrite());
+        assertFalse(new File(file.getPath() + ".rewrite").exists());
+
+        // And logging carries on in the new file
+        log.await(log.remove(new CacheKey("key")));
+        log.close();
+
+        Replayed replayed = replay(file);
+
+        assertEquals(1, replayed._items.size());
+        assertEquals("value", replayed._items.get("other"));
+    }
+
+    @Test
+    public void rewriteNeedsTheLogToHaveGrown() throws IOException {
+
+        OperationLog log = new OperationLog(new File(_folder.getRoot(), "log"),
+                ICacheManager.FsyncPolicy.Never, 10, _now::get, 1 << 20);
+
+        log.add(new CacheKey("a"), new CacheValue("1"), 0);
+
+        assertFalse(log.needsRewrite());
+
+        log.close();
+    }
+}
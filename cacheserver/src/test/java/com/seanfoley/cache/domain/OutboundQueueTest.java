@@ -0,0 +1,171 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    @Test
+    public void gatherInOrder() {
+
+        OutboundQueue queue = new OutboundQueue(new BufferPool(), 2, 100, 10);
+
+        ByteBuffer first = ByteBuffer.wrap("first".getBytes());
+        ByteBuffer second = ByteBuffer.wrap("second".getBytes());
+        ByteBuffer third = ByteBuffer.wrap("third".getBytes());
+
+        queue.add(first);
+        queue.add(second);
+        queue.add(third);
+
+        // The batch is capped at 2 buffers
+        assertEquals(2, queue.gather());
+        assertSame(first, queue.batch()[0]);
+        assertSame(second, queue.batch()[1]);
+    }
+
+    @Test
+    public void partialWrite() {
+
+        OutboundQueue queue = new OutboundQueue(new BufferPool(), 4, 100, 10);
+
+        ByteBuffer first = ByteBuffer.wrap("first".getBytes());
+        ByteBuffer second = ByteBuffer.wrap("second".getBytes());
+
+        queue.add(first);
+        queue.add(second);
+
+        assertEquals(11, queue.size());
+
+        // Simulate the socket taking all of the first buffer
+        // and part of the second
+        queue.gather();
+        first.position(first.limit());
+        second.position(2);
+        queue.written(7);
+
+        assertEquals(4, queue.size());
+
+        // The partially written buffer is still at the head
+        assertEquals(1, queue.gather());
+        assertSame(second, queue.batch()[0]);
+
+        second.position(second.limit());
+        queue.written(4);
+
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void waterMarks() {
+
+        OutboundQueue queue = new OutboundQueue(new BufferPool(), 4, 10, 5);
+
+        queue.add(ByteBuffer.wrap(new byte[4]));
+        assertFalse(queue.isAboveHighWater());
+        assertTrue(queue.isBelowLowWater());
+
+        queue.add(ByteBuffer.wrap(new byte[8]));
+        assertTrue(queue.isAboveHighWater());
+        assertFalse(queue.isBelowLowWater());
+    }
+
+    @Test
+    public void pooledResponses() {
+
+        BufferPool pool = new BufferPool();
+        OutboundQueue queue = new OutboundQueue(pool, 4, 100, 10);
+
+        queue.add("first".getBytes());
+
+        // A write has the first buffer, so the next response needs another
+        assertEquals(1, queue.gather());
+        queue.add("second".getBytes());
+
+        assertEquals(11, queue.size());
+        assertEquals(2, pool.getOutstanding());
+
+        // Written buffers go straight back to the pool
+        queue.batch()[0].position(queue.batch()[0].limit());
+        queue.written(5);
+
+        assertEquals(1, pool.getOutstanding());
+
+        queue.clear();
+
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test
+    public void smallResponsesShareABuffer() {
+
+        BufferPool pool = new BufferPool();
+        OutboundQueue queue = new OutboundQueue(pool, 4, 1000, 10);
+
+        queue.add("+OK\r\n".getBytes());
+        queue.add(new ResponseFormatter(ResponseFormatter.ServerResult.Ok, new CacheValue("value")));
+        queue.add(new ResponseFormatter(ResponseFormatter.ServerResult.Err, "key not found"));
+
+        assertEquals(1, pool.getOutstanding());
+
+        String expected = "+OK\r\n+OK value\r\n-ERR key not found\r\n";
+        assertEquals(expected.length(), queue.size());
+
+        assertEquals(1, queue.gather());
+        assertEquals(expected, text(queue.batch()[0]));
+    }
+
+    @Test
+    public void noPackingBehindAHeapBuffer() {
+
+        BufferPool pool = new BufferPool();
+        OutboundQueue queue = new OutboundQueue(pool, 4, 1000, 10);
+
+        queue.add("first".getBytes());
+        queue.add(ByteBuffer.wrap("second".getBytes()));
+        queue.add("third".getBytes());
+
+        // The order has to be kept, so third can't go in with first
+        assertEquals(3, queue.gather());
+        assertEquals("first", text(queue.batch()[0]));
+        assertEquals("second", text(queue.batch()[1]));
+        assertEquals("third", text(queue.batch()[2]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lowWaterAboveHighWater() {
+
+        new OutboundQueue(new BufferPool(), 4, 5, 10);
+    }
+
+    private String text(ByteBuffer buffer) {
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+
+        return new String(bytes);
+    }
+}
@@ -19,6 +19,8 @@ package com.seanfoley.cache.domain;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+
 import static org.junit.Assert.*;
 
 public class RequestParserTest {
@@ -82,7 +84,7 @@ public class RequestParserTest {
 
         assertTrue(RequestParser.TOKEN_REMOVE == parser.getToken() );
 
-        assertEquals( "key", parser.getCacheKey().getKey());
+        assertEquals( "key", parser.getCacheKey().toString());
     }
 
     @Test
@@ -96,7 +98,7 @@ public class RequestParserTest {
 
         assertTrue(RequestParser.TOKEN_GET == parser.getToken() );
 
-        assertEquals( "key", parser.getCacheKey().getKey());
+        assertEquals( "key", parser.getCacheKey().toString());
 
         // Note - there won't be a value because that gets *returned* and the
         // CommandParser is only parsing what is sent from a client
@@ -114,8 +116,205 @@ public class RequestParserTest {
 
         assertTrue(RequestParser.TOKEN_ADD == parser.getToken() );
 
-        assertEquals( "key", parser.getCacheKey().getKey());
+        assertEquals( "key", parser.getCacheKey().toString());
+
+        assertEquals( "value", parser.getCacheValue().toString());
+    }
+
+    @Test
+    public void commandInDirectBuffer() {
+
+        // Like a frame out of the connection's read buffer: the command
+        // doesn't start at zero and there is more after it
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        buffer.put("junk+add key value\r\n+get".getBytes());
+        buffer.position(4);
+        buffer.limit(4 + "+add key value\r\n".length());
+
+        RequestParser parser = new RequestParser();
+
+        parser.parse( buffer );
+
+        assertTrue(RequestParser.TOKEN_ADD == parser.getToken() );
+
+        assertEquals( 9, parser.getKeyOffset());
+        assertEquals( 3, parser.getKeyLength());
+        assertEquals( 13, parser.getValueOffset());
+        assertEquals( 5, parser.getValueLength());
+
+        assertEquals( "key", parser.getCacheKey().toString());
+        assertEquals( "value", parser.getCacheValue().toString());
+
+        // Parsing doesn't move the buffer
+        assertEquals( 4, buffer.position());
+    }
+
+    @Test
+    public void commandPrefixIsNotACommand() {
+
+        RequestParser parser = new RequestParser();
+
+        parser.parse( "+getter key\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+ge key\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+    }
+
+    @Test
+    public void commandWrongNumberOfArguments() {
+
+        RequestParser parser = new RequestParser();
+
+        parser.parse( "+add key\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+add key value extra\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+get key extra\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+remove\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        assertNull(parser.getCacheKey());
+    }
+
+    @Test
+    public void parserIsReusable() {
+
+        RequestParser parser = new RequestParser();
+
+        parser.parse( "+add key value\r\n".getBytes() );
+        assertEquals( "value", parser.getCacheValue().toString());
+
+        parser.parse( "+get other\r\n".getBytes() );
+
+        assertTrue(RequestParser.TOKEN_GET == parser.getToken() );
+        assertEquals( "other", parser.getCacheKey().toString());
+        assertNull(parser.getCacheValue());
+    }
+
+    @Test
+    public void commandAddWithTtl() {
+
+        RequestParser parser = new RequestParser();
+
+        parser.parse( "+add key value 60000\r\n".getBytes() );
+
+        assertTrue(RequestParser.TOKEN_ADD == parser.getToken() );
+        assertEquals( "key", parser.getCacheKey().toString());
+        assertEquals( "value", parser.getCacheValue().toString());
+        assertEquals( 60000, parser.getTtl());
+
+        // The next command doesn't inherit it
+        parser.parse( "+add key value\r\n".getBytes() );
+        assertEquals( 0, parser.getTtl());
+    }
+
+    @Test
+    public void commandAddWithBadTtl() {
+
+        RequestParser parser = new RequestParser();
+
+        parser.parse( "+add key value 0\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+add key value -5\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+add key value 10s\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+add key value \r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+add key value 1234567890123456789\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+add key value 10 20\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+    }
+
+    @Test
+    public void commandGetWithRecomputeTime() {
+
+        RequestParser parser = new RequestParser();
+
+        parser.parse( "+get key 250\r\n".getBytes() );
+
+        assertTrue(RequestParser.TOKEN_GET == parser.getToken() );
+        assertEquals( "key", parser.getCacheKey().toString());
+        assertEquals( 250, parser.getRecomputeMillis());
+
+        parser.parse( "+get key\r\n".getBytes() );
+        assertEquals( 0, parser.getRecomputeMillis());
+
+        parser.parse( "+get key soon\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+get key 0\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+    }
 
-        assertEquals( "value", parser.getCacheValue().getValue());
+    @Test
+    public void commandLeases() {
+
+        RequestParser parser = new RequestParser();
+
+        parser.parse( "+getlease key\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_GETLEASE == parser.getToken() );
+        assertEquals( "key", parser.getCacheKey().toString());
+
+        parser.parse( "+addlease key value 42\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_ADDLEASE == parser.getToken() );
+        assertEquals( "key", parser.getCacheKey().toString());
+        assertEquals( "value", parser.getCacheValue().toString());
+        assertEquals( 42, parser.getLeaseToken());
+        assertEquals( 0, parser.getTtl());
+
+        parser.parse( "+addlease key value 42 60000\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_ADDLEASE == parser.getToken() );
+        assertEquals( 42, parser.getLeaseToken());
+        assertEquals( 60000, parser.getTtl());
+    }
+
+    @Test
+    public void commandLeasesMalformed() {
+
+        RequestParser parser = new RequestParser();
+
+        parser.parse( "+getlease key extra\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+addlease key value\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+addlease key value abc\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+addlease key value 42 0\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+
+        parser.parse( "+getleases key\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+    }
+
+    @Test
+    public void commandUse() {
+
+        RequestParser parser = new RequestParser();
+
+        parser.parse( "+use tenant\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_USE == parser.getToken() );
+        assertEquals( "tenant", parser.getNamespace());
+
+        parser.parse( "+use tenant extra\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
+        assertNull( parser.getNamespace());
+
+        parser.parse( "+use\r\n".getBytes() );
+        assertTrue(RequestParser.TOKEN_UNKNOWN == parser.getToken() );
     }
-}
\ No newline at end of file
+}
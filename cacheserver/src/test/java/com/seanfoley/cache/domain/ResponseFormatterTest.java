@@ -3,6 +3,8 @@ package com.seanfoley.cache.domain;
 import com.seanfoley.cache.interfaces.ICacheValue;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+
 import static org.junit.Assert.*;
 
 public class ResponseFormatterTest {
@@ -115,4 +117,102 @@ public class ResponseFormatterTest {
         // but successfully get a value?
         ResponseFormatter response = new ResponseFormatter(result,"error message");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void formatToBufferMatchesFormat() {
+
+        ResponseFormatter[] responses = {
+                new ResponseFormatter(ResponseFormatter.ServerResult.Ok),
+                new ResponseFormatter(ResponseFormatter.ServerResult.Err),
+                new ResponseFormatter(ResponseFormatter.ServerResult.Err, "key not found"),
+                new ResponseFormatter(ResponseFormatter.ServerResult.Ok, new CacheValue("some-value")),
+                new ResponseFormatter(ResponseFormatter.ServerResult.Ok, new CacheValue(42)),
+                new ResponseFormatter(ResponseFormatter.ServerResult.Ok, new CacheValue("caf\u00e9"))
+        };
+
+        for( ResponseFormatter response : responses ) {
+
+            byte[] expected = response.format().getBytes();
+
+            assertEquals(expected.length, response.encodedLength());
+            assertArrayEquals(expected, formatToBuffer(response));
+        }
+    }
+
+    @Test
+    public void formatToBufferByteArrayValue() {
+
+        ResponseFormatter response = new ResponseFormatter(
+                ResponseFormatter.ServerResult.Ok, new CacheValue((Object) "bytes".getBytes()));
+
+        assertEquals("+OK bytes\r\n", response.format());
+        assertArrayEquals("+OK bytes\r\n".getBytes(), formatToBuffer(response));
+    }
+
+    @Test
+    public void formatToBufferFollowsSetters() {
+
+        ResponseFormatter response = new ResponseFormatter(ResponseFormatter.ServerResult.Err, "first");
+        assertArrayEquals("-ERR first\r\n".getBytes(), formatToBuffer(response));
+
+        response.setErrorMessage("second");
+        assertArrayEquals("-ERR second\r\n".getBytes(), formatToBuffer(response));
+
+        response.setServerResult(ResponseFormatter.ServerResult.Ok);
+        response.setCacheValue(new CacheValue("one"));
+        assertArrayEquals("+OK one\r\n".getBytes(), formatToBuffer(response));
+
+        response.setCacheValue(new CacheValue("two"));
+        assertArrayEquals("+OK two\r\n".getBytes(), formatToBuffer(response));
+    }
+
+    @Test
+    public void formatWithRefresh() {
+
+        ResponseFormatter response = new ResponseFormatter(ResponseFormatter.ServerResult.Ok, new CacheValue("value"));
+        response.setRefresh(true);
+
+        assertEquals("+OK value refresh\r\n", response.format());
+        assertArrayEquals("+OK value refresh\r\n".getBytes(), formatToBuffer(response));
+
+        response.setRefresh(false);
+        assertArrayEquals("+OK value\r\n".getBytes(), formatToBuffer(response));
+    }
+
+    @Test
+    public void formatLeaseResponses() {
+
+        ResponseFormatter lease = new ResponseFormatter(ResponseFormatter.ServerResult.Lease, 42);
+        assertArrayEquals("+LEASE 42\r\n".getBytes(), formatToBuffer(lease));
+
+        lease.setLeaseToken(43);
+        assertArrayEquals("+LEASE 43\r\n".getBytes(), formatToBuffer(lease));
+
+        ResponseFormatter stale = new ResponseFormatter(ResponseFormatter.ServerResult.Stale, new CacheValue("old"));
+        assertEquals("+STALE old\r\n", stale.format());
+        assertArrayEquals("+STALE old\r\n".getBytes(), formatToBuffer(stale));
+
+        ResponseFormatter wait = new ResponseFormatter(ResponseFormatter.ServerResult.Wait);
+        assertArrayEquals("-WAIT\r\n".getBytes(), formatToBuffer(wait));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorLeaseTokenWithoutLease() {
+        new ResponseFormatter(ResponseFormatter.ServerResult.Ok, 42);
+    }
+
+    private byte[] formatToBuffer(ResponseFormatter response) {
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(response.encodedLength());
+        response.format(buffer);
+
+        // It should have filled the buffer exactly
+        assertFalse(buffer.hasRemaining());
+
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        return bytes;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheServer;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * A quick and dirty benchmark that runs the same workload against each
+ * of the network servers and prints the throughput and latency. It isn't
+ * a unit test (there's nothing to assert and it takes a while), so run it
+ * by hand:
+ *
+ * ./gradlew benchmark
+ *
+ * Every client holds one connection open and does a +get, waits for the
+ * response, then does the next one. The numbers are only useful for
+ * comparing the servers against each other on the same box.
+ *
+ * The reactor and partitioned servers have the same threading, but the
+ * reactor's event loops share one concurrent storage while each of the
+ * partitioned server's event loops owns a slice of the keys, so those
+ * two show what sharing the storage costs.
+ */
+public class ServerBenchmark {
+
+    private static final int CLIENTS = 64;
+    private static final int REQUESTS_PER_CLIENT = 5000;
+    private static final int WARMUP_REQUESTS_PER_CLIENT = 1000;
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, IntFunction<ICacheServer>> servers = new LinkedHashMap<>();
+        servers.put("async", TcpSocketServerAsync::new);
+        servers.put("reactor", port -> new TcpSocketServerReactor(port, Runtime.getRuntime().availableProcessors()));
+        servers.put("partitioned", port -> new TcpSocketServerPartitioned(port, Runtime.getRuntime().availableProcessors()));
+        servers.put("blocking", TcpSocketServerBlocking::new);
+
+        System.out.printf("%d clients x %d requests%n", CLIENTS, REQUESTS_PER_CLIENT);
+        System.out.printf("%-12s %12s %10s %10s %10s%n", "server", "req/s", "p50 us", "p99 us", "p999 us");
+
+        for( Map.Entry<String, IntFunction<ICacheServer>> entry : servers.entrySet() ) {
+
+            ICacheServer server = entry.getValue().apply(0);
+
+            try {
+                // Let the JIT settle down before we measure anything
+                run(server.getPort(), WARMUP_REQUESTS_PER_CLIENT);
+
+                long start = System.nanoTime();
+                long[] latencies = run(server.getPort(), REQUESTS_PER_CLIENT);
+                long elapsed = System.nanoTime() - start;
+
+                Arrays.sort(latencies);
+
+                System.out.printf("%-12s %12.0f %10.1f %10.1f %10.1f%n",
+                        entry.getKey(),
+                        latencies.length / (elapsed / 1e9),
+                        percentile(latencies, 0.50) / 1e3,
+                        percentile(latencies, 0.99) / 1e3,
+                        percentile(latencies, 0.999) / 1e3);
+            }
+            finally {
+                server.close();
+            }
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Runs the workload against a server
+     * @return the latency (in nanoseconds) of every request
+     */
+    private static long[] run(int port, int requests) throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+
+        try {
+            List<Future<long[]>> results = new ArrayList<>();
+
+            for( int i = 0; i < CLIENTS; i++ ) {
+
+                final String key = "benchmark:" + i;
+
+                results.add(executor.submit((Callable<long[]>) () -> client(port, key, requests)));
+            }
+
+            long[] latencies = new long[CLIENTS * requests];
+            int offset = 0;
+
+            for( Future<long[]> result : results ) {
+                long[] clientLatencies = result.get();
+                System.arraycopy(clientLatencies, 0, latencies, offset, clientLatencies.length);
+                offset += clientLatencies.length;
+            }
+
+            return latencies;
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long[] client(int port, String key, int requests) throws Exception {
+
+        long[] latencies = new long[requests];
+
+        try( Socket socket = new Socket("localhost", port) ) {
+
+            socket.setTcpNoDelay(true);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream writer = socket.getOutputStream();
+
+            // Get the greeting out of the way
+            reader.readLine();
+
+            writer.write(("+add " + key + " some-benchmark-value\r\n").getBytes());
+            reader.readLine();
+
+            byte[] get = ("+get " + key + "\r\n").getBytes();
+
+            for( int i = 0; i < requests; i++ ) {
+
+                long start = System.nanoTime();
+
+                writer.write(get);
+                if( null == reader.readLine() ) {
+                    throw new IllegalStateException("the server hung up");
+                }
+
+                latencies[i] = System.nanoTime() - start;
+            }
+        }
+
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(percentile * sorted.length))];
+    }
+}
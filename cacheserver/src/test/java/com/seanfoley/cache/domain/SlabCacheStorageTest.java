@@ -0,0 +1,218 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SlabCacheStorageTest {
+
+    private final int ITEM_CAPACITY = 1000;
+    private final long MAX_BYTES = 8 * SlabCacheStorage.SLAB_SIZE;
+
+    @Test
+    public void addGetRemove() {
+
+        ICacheStorage storage = new SlabCacheStorage(ITEM_CAPACITY, MAX_BYTES);
+
+        ICacheKey key = new CacheKey("key");
+
+        assertTrue(storage.add(key, new CacheValue("value")));
+        assertEquals(1, storage.count());
+        assertEquals("value", storage.get(new CacheKey("key")).getValue());
+
+        assertTrue(storage.remove(key));
+        assertFalse(storage.remove(key));
+        assertNull(storage.get(key));
+        assertEquals(0, storage.count());
+        assertEquals(0, storage.bytesUsed());
+    }
+
+    @Test
+    public void valueTypesSurviveTheRoundTrip() {
+
+        ICacheStorage storage = new SlabCacheStorage(ITEM_CAPACITY, MAX_BYTES);
+
+        storage.add(new CacheKey("string"), new CacheValue("caf\u00e9"));
+        storage.add(new CacheKey("bytes"), new CacheValue((Object) new byte[] { 1, 2, 3 }));
+        storage.add(new CacheKey("int"), new CacheValue(42));
+        storage.add(new CacheKey("long"), new CacheValue((Object) 42L));
+
+        assertEquals("caf\u00e9", storage.get(new CacheKey("string")).getValue());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) storage.get(new CacheKey("bytes")).getValue());
+        assertEquals(42, storage.get(new CacheKey("int")).getValue());
+        assertEquals(42L, storage.get(new CacheKey("long")).getValue());
+    }
+
+    @Test
+    public void unsupportedTypesAreRejected() {
+
+        ICacheStorage storage = new SlabCacheStorage(ITEM_CAPACITY, MAX_BYTES);
+
+        assertFalse(storage.add(new CacheKey("key"), new CacheValue(new Object())));
+        assertEquals(0, storage.count());
+    }
+
+    @Test
+    public void replaceValue() {
+
+        ICacheStorage storage = new SlabCacheStorage(ITEM_CAPACITY, MAX_BYTES);
+
+        ICacheKey key = new CacheKey("key");
+
+        storage.add(key, new CacheValue("small"));
+
+        // Same slab class, overwritten in place
+        storage.add(key, new CacheValue("other"));
+        assertEquals("other", storage.get(key).getValue());
+        assertEquals(1, storage.count());
+
+        // A different slab class, moved to a new chunk
+        char[] chars = new char[5000];
+        String big = new String(chars);
+
+        storage.add(key, new CacheValue(big));
+        assertEquals(big, storage.get(key).getValue());
+        assertEquals(1, storage.count());
+    }
+
+    @Test
+    public void itemCapacityEvictsLeastRecentlyUsed() {
+
+        ICacheStorage storage = new SlabCacheStorage(3, MAX_BYTES);
+
+        storage.add(new CacheKey("a"), new CacheValue("a"));
+        storage.add(new CacheKey("b"), new CacheValue("b"));
+        storage.add(new CacheKey("c"), new CacheValue("c"));
+
+        storage.get(new CacheKey("a"));
+
+        storage.add(new CacheKey("d"), new CacheValue("d"));
+
+        assertEquals(3, storage.count());
+        assertNull(storage.get(new CacheKey("b")));
+        assertNotNull(storage.get(new CacheKey("a")));
+        assertNotNull(storage.get(new CacheKey("c")));
+        assertNotNull(storage.get(new CacheKey("d")));
+    }
+
+    @Test
+    public void memoryBudgetEvictsWithinTheSlabClass() {
+
+        // One slab, and items that take 1/4 of it each
+        SlabCacheStorage storage = new SlabCacheStorage(ITEM_CAPACITY, SlabCacheStorage.SLAB_SIZE);
+
+        char[] chars = new char[SlabCacheStorage.SLAB_SIZE / 5];
+        String value = new String(chars);
+
+        for( int i = 0; i < 10; i++ ) {
+            assertTrue(storage.add(new CacheKey("key:" + i), new CacheValue(value)));
+        }
+
+        assertEquals(SlabCacheStorage.SLAB_SIZE, storage.slabBytes());
+        assertTrue(storage.count() < 10);
+        assertNotNull(storage.get(new CacheKey("key:9")));
+        assertNull(storage.get(new CacheKey("key:0")));
+
+        // The only slab belongs to another class, so a tiny item has nowhere to go
+        assertFalse(storage.add(new CacheKey("tiny"), new CacheValue("tiny")));
+    }
+
+    @Test
+    public void itemsBiggerThanASlabAreRejected() {
+
+        ICacheStorage storage = new SlabCacheStorage(ITEM_CAPACITY, MAX_BYTES);
+
+        char[] chars = new char[SlabCacheStorage.SLAB_SIZE];
+        assertFalse(storage.add(new CacheKey("huge"), new CacheValue(new String(chars))));
+    }
+
+    @Test
+    public void matchesAHashMap() {
+
+        final int KEYS = 5000;
+        final int OPERATIONS = 100000;
+
+        // Room for everything, so the storage should agree with a plain map
+        ICacheStorage storage = new SlabCacheStorage(KEYS, 64 * SlabCacheStorage.SLAB_SIZE);
+        Map<String, String> expected = new HashMap<>();
+
+        Random random = new Random(7);
+
+        for( int i = 0; i < OPERATIONS; i++ ) {
+
+            String key = "key:" + random.nextInt(KEYS);
+
+            switch( random.nextInt(3) ) {
+                case 0:
+                    String value = "value:" + i + (i % 10 == 0 ? new String(new char[random.nextInt(2000)]) : "");
+                    storage.add(new CacheKey(key), new CacheValue(value));
+                    expected.put(key, value);
+                    break;
+
+                case 1:
+                    ICacheValue found = storage.get(new CacheKey(key));
+                    assertEquals(expected.get(key), null == found ? null : found.getValue());
+                    break;
+
+                default:
+                    assertEquals(null != expected.remove(key), storage.remove(new CacheKey(key)));
+            }
+        }
+
+        assertEquals(expected.size(), storage.count());
+
+        for( Map.Entry<String, String> entry : expected.entrySet() ) {
+            assertEquals(entry.getValue(), storage.get(new CacheKey(entry.getKey())).getValue());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAtLeastOneSlab() {
+        new SlabCacheStorage(ITEM_CAPACITY, SlabCacheStorage.SLAB_SIZE - 1);
+    }
+
+    @Test
+    public void forEachVisitsEveryItem() {
+
+        // Enough items that the index is walked in a few batches
+        ICacheStorage storage = new SlabCacheStorage(10000, MAX_BYTES);
+
+        for( int i = 0; i < 10000; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        Map<Object, Object> visited = new HashMap<>();
+        storage.forEach((key, value) -> visited.put(key.getKey(), value.getValue()));
+
+        assertEquals(10000, visited.size());
+
+        for( int i = 0; i < 10000; i++ ) {
+            assertEquals("value:" + i, visited.get("key:" + i));
+        }
+    }
+}
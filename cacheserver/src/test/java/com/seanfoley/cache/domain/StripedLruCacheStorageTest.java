@@ -0,0 +1,193 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StripedLruCacheStorageTest {
+
+    private final int ITEM_CAPACITY = 100;
+    private final int SEGMENTS = 8;
+
+    @Test
+    public void addGetRemove() {
+
+        ICacheStorage storage = new StripedLruCacheStorage(ITEM_CAPACITY, SEGMENTS);
+
+        ICacheKey key = new CacheKey("key");
+        ICacheValue value = new CacheValue("value");
+
+        assertTrue(storage.add(key, value));
+        assertEquals(1, storage.count());
+
+        assertEquals("value", storage.get(new CacheKey("key")).getValue());
+
+        assertTrue(storage.remove(key));
+        assertFalse(storage.remove(key));
+        assertNull(storage.get(key));
+        assertEquals(0, storage.count());
+    }
+
+    @Test
+    public void segmentCountIsAPowerOfTwo() {
+
+        assertEquals(8, new StripedLruCacheStorage(ITEM_CAPACITY, 5).segmentCount());
+        assertEquals(1, new StripedLruCacheStorage(ITEM_CAPACITY, 1).segmentCount());
+
+        // Never more segments than items
+        assertEquals(2, new StripedLruCacheStorage(3, 16).segmentCount());
+    }
+
+    @Test
+    public void capacityIsSplitAcrossSegments() {
+
+        ICacheStorage storage = new StripedLruCacheStorage(ITEM_CAPACITY, SEGMENTS);
+
+        for( int i = 0; i < ITEM_CAPACITY * 10; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        // Every segment is full, and together they hold exactly the capacity
+        assertEquals(ITEM_CAPACITY, storage.count());
+    }
+
+    @Test
+    public void lruEvictionWithinASegment() {
+
+        // A single segment is a plain LRU
+        ICacheStorage storage = new StripedLruCacheStorage(3, 1);
+
+        storage.add(new CacheKey("a"), new CacheValue("a"));
+        storage.add(new CacheKey("b"), new CacheValue("b"));
+        storage.add(new CacheKey("c"), new CacheValue("c"));
+
+        // Touch a so b is the least recently used
+        storage.get(new CacheKey("a"));
+
+        storage.add(new CacheKey("d"), new CacheValue("d"));
+
+        assertNull(storage.get(new CacheKey("b")));
+        assertNotNull(storage.get(new CacheKey("a")));
+        assertNotNull(storage.get(new CacheKey("c")));
+        assertNotNull(storage.get(new CacheKey("d")));
+    }
+
+    @Test
+    public void concurrentAccess() throws InterruptedException {
+
+        final int THREADS = 8;
+        final int OPERATIONS = 20000;
+
+        ICacheStorage storage = new StripedLruCacheStorage(ITEM_CAPACITY, SEGMENTS);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for( int t = 0; t < THREADS; t++ ) {
+
+            final int id = t;
+
+            Thread thread = new Thread(() -> {
+                try {
+                    for( int i = 0; i < OPERATIONS; i++ ) {
+
+                        // More keys than capacity, so we evict as we go
+                        String name = "key:" + ((i * 31 + id) % (ITEM_CAPACITY * 2));
+
+                        storage.add(new CacheKey(name), new CacheValue(name));
+
+                        ICacheValue value = storage.get(new CacheKey(name));
+                        if( null != value ) {
+                            assertEquals(name, value.getValue());
+                        }
+
+                        if( i % 7 == 0 ) {
+                            storage.remove(new CacheKey(name));
+                        }
+                    }
+                }
+                catch (Throwable throwable) {
+                    failure.compareAndSet(null, throwable);
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertTrue(storage.count() <= ITEM_CAPACITY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new StripedLruCacheStorage(0, SEGMENTS);
+    }
+
+    @Test
+    public void byteBudgetIsSplitAcrossSegments() {
+
+        final long MAX_BYTES = 16 * 1024;
+
+        ICacheStorage storage = new StripedLruCacheStorage(ITEM_CAPACITY * 100, MAX_BYTES, SEGMENTS);
+
+        for( int i = 0; i < ITEM_CAPACITY * 10; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        // Bound by bytes long before the item count
+        assertTrue(storage.count() < ITEM_CAPACITY * 10);
+        assertTrue(storage.bytesUsed() <= MAX_BYTES);
+        assertTrue(storage.bytesUsed() > MAX_BYTES / 2);
+    }
+
+    @Test
+    public void forEachVisitsEverySegment() {
+
+        ICacheStorage storage = new StripedLruCacheStorage(ITEM_CAPACITY, SEGMENTS);
+
+        for( int i = 0; i < 50; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        Map<Object, Object> visited = new HashMap<>();
+        storage.forEach((key, value) -> visited.put(key.getKey(), value.getValue()));
+
+        assertEquals(50, visited.size());
+
+        for( int i = 0; i < 50; i++ ) {
+            assertEquals("value:" + i, visited.get("key:" + i));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheServer;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+public class TcpSocketServerBlockingTest extends AbstractCacheServerTest {
+
+    @Override
+    protected ICacheServer createServer(int port) {
+        return new TcpSocketServerBlocking(port);
+    }
+
+    /**
+     * Every idle client is a thread here, and before Java 21 that's a
+     * platform thread (with its stack), so keep it to a couple hundred
+     */
+    @Override
+    protected int idleConnections() {
+        return 200;
+    }
+
+    @Test
+    public void connectionsGiveTheirBuffersBack() throws Exception {
+
+        final int CONNECTIONS = 50;
+
+        ICacheServer server = createServer(0);
+
+        try {
+            long outstanding = BufferPool.Instance().getOutstanding();
+
+            // Warm up the shared pool
+            connectAndDisconnect(server, outstanding);
+
+            long misses = BufferPool.Instance().getMisses();
+
+            // Each connection's thread goes away (or back to the executor)
+            // when it's done, and the next one should find its buffers
+            for( int i = 0; i < CONNECTIONS; i++ ) {
+                connectAndDisconnect(server, outstanding);
+            }
+
+            assertEquals(misses, BufferPool.Instance().getMisses());
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    private void connectAndDisconnect(ICacheServer server, long outstanding) throws IOException, InterruptedException {
+
+        try( Socket socket = new Socket("localhost", server.getPort()) ) {
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            OutputStream writer = socket.getOutputStream();
+
+            reader.readLine();
+
+            writer.write("+add cycleKey cycleValue\r\n+get cycleKey\r\n".getBytes());
+            writer.flush();
+
+            assertEquals("+OK", reader.readLine());
+            assertEquals("+OK cycleValue", reader.readLine());
+        }
+
+        // The server notices the disconnect on its own thread
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while( BufferPool.Instance().getOutstanding() > outstanding ) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheServer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TcpSocketServerPartitionedTest extends AbstractCacheServerTest {
+
+    @Override
+    protected ICacheServer createServer(int port) {
+        return new TcpSocketServerPartitioned(port, 3);
+    }
+
+    @Test
+    public void keysSpreadAcrossThePartitions() {
+
+        final int PARTITIONS = 4;
+        final int KEYS = 10000;
+
+        int[] counts = new int[PARTITIONS];
+
+        for( int i = 0; i < KEYS; i++ ) {
+
+            byte[] key = ("user:" + i).getBytes();
+            int partition = TcpSocketServerPartitioned.partition(ByteBuffer.wrap(key), 0, key.length, PARTITIONS);
+
+            // Always the same one for the same key
+            assertEquals(partition, TcpSocketServerPartitioned.partition(ByteBuffer.wrap(key), 0, key.length, PARTITIONS));
+
+            counts[partition]++;
+        }
+
+        for( int count : counts ) {
+            assertTrue(count > KEYS / PARTITIONS / 2);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class TieredCacheStorageTest {
+
+    private final int HOT_CAPACITY = 4;
+    private final int COLD_CAPACITY = 100;
+    private final int SEGMENTS = 1;
+
+    private TieredCacheStorage newStorage() {
+        return new TieredCacheStorage(HOT_CAPACITY, Long.MAX_VALUE, SEGMENTS,
+                new LinkedHashMapCacheStorage(COLD_CAPACITY));
+    }
+
+    @Test
+    public void addGetRemove() {
+
+        ICacheStorage storage = newStorage();
+
+        ICacheKey key = new CacheKey("key");
+
+        assertTrue(storage.add(key, new CacheValue("value")));
+        assertEquals("value", storage.get(key).getValue());
+        assertEquals(1, storage.count());
+
+        assertTrue(storage.remove(key));
+        assertFalse(storage.remove(key));
+        assertNull(storage.get(key));
+        assertEquals(0, storage.count());
+    }
+
+    @Test
+    public void hotEvictionsAreDemoted() {
+
+        TieredCacheStorage storage = newStorage();
+
+        for( int i = 0; i < 10; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        assertEquals(HOT_CAPACITY, storage.hotCount());
+        assertEquals(10 - HOT_CAPACITY, storage.coldCount());
+        assertEquals(10, storage.count());
+
+        for( int i = 0; i < 10; i++ ) {
+            assertEquals("value:" + i, storage.get(new CacheKey("key:" + i)).getValue());
+        }
+    }
+
+    @Test
+    public void coldHitsArePromoted() {
+
+        TieredCacheStorage storage = newStorage();
+
+        for( int i = 0; i < 10; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        // key:0 was the first to be demoted
+        assertEquals("value:0", storage.get(new CacheKey("key:0")).getValue());
+
+        // It moved up, and pushed the hot tier's LRU item down
+        assertEquals(HOT_CAPACITY, storage.hotCount());
+        assertEquals(10 - HOT_CAPACITY, storage.coldCount());
+
+        // Filling the hot tier again demotes everything but key:0
+        storage.get(new CacheKey("key:0"));
+        for( int i = 10; i < 13; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        // Still hot, so still there when the cold tier is cleared out
+        for( int i = 1; i < 10; i++ ) {
+            storage.remove(new CacheKey("key:" + i));
+        }
+
+        assertEquals("value:0", storage.get(new CacheKey("key:0")).getValue());
+    }
+
+    @Test
+    public void addReplacesADemotedValue() {
+
+        TieredCacheStorage storage = newStorage();
+
+        for( int i = 0; i < 10; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        storage.add(new CacheKey("key:0"), new CacheValue("newer"));
+
+        assertEquals(10, storage.count());
+        assertEquals("newer", storage.get(new CacheKey("key:0")).getValue());
+    }
+
+    @Test
+    public void removeReachesTheColdTier() {
+
+        TieredCacheStorage storage = newStorage();
+
+        for( int i = 0; i < 10; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        assertTrue(storage.remove(new CacheKey("key:0")));
+        assertNull(storage.get(new CacheKey("key:0")));
+        assertEquals(9, storage.count());
+    }
+
+    @Test
+    public void coldTierEvictsForGood() {
+
+        TieredCacheStorage storage = new TieredCacheStorage(HOT_CAPACITY, Long.MAX_VALUE, SEGMENTS,
+                new LinkedHashMapCacheStorage(2));
+
+        for( int i = 0; i < 10; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        assertEquals(HOT_CAPACITY + 2, storage.count());
+        assertNull(storage.get(new CacheKey("key:0")));
+    }
+
+    @Test
+    public void worksWithTheSlabStorage() {
+
+        TieredCacheStorage storage = new TieredCacheStorage(HOT_CAPACITY, Long.MAX_VALUE, SEGMENTS,
+                new SlabCacheStorage(COLD_CAPACITY, SlabCacheStorage.SLAB_SIZE));
+
+        for( int i = 0; i < 10; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        assertEquals(10, storage.count());
+
+        for( int i = 0; i < 10; i++ ) {
+            assertEquals("value:" + i, storage.get(new CacheKey("key:" + i)).getValue());
+        }
+    }
+
+    @Test
+    public void concurrentReadersAndWriters() throws Exception {
+
+        final int THREADS = 4;
+        final int KEYS = 50;
+        final int OPERATIONS = 20000;
+
+        // Both tiers are thread-safe here
+        TieredCacheStorage storage = new TieredCacheStorage(8, Long.MAX_VALUE, 4,
+                new StripedLruCacheStorage(1000, 4));
+
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Thread> threads = new ArrayList<>();
+
+        for( int t = 0; t < THREADS; t++ ) {
+
+            final int THREAD = t;
+
+            threads.add(new Thread(() -> {
+                for( int i = 0; i < OPERATIONS; i++ ) {
+
+                    // Each thread has its own keys, so it knows what they hold
+                    String key = "key:" + THREAD + ":" + (i % KEYS);
+
+                    storage.add(new CacheKey(key), new CacheValue(key + i));
+
+                    ICacheValue value = storage.get(new CacheKey(key));
+
+                    if( null == value || !(key + i).equals(value.getValue()) ) {
+                        failed.set(true);
+                    }
+                }
+            }));
+        }
+
+        for( Thread thread : threads ) {
+            thread.start();
+        }
+
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+
+        assertFalse(failed.get());
+        assertEquals(THREADS * KEYS, storage.count());
+    }
+
+    @Test
+    public void forEachVisitsBothTiers() {
+
+        TieredCacheStorage storage = newStorage();
+
+        for( int i = 0; i < 50; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        Map<Object, Object> visited = new HashMap<>();
+        storage.forEach((key, value) -> visited.put(key.getKey(), value.getValue()));
+
+        assertEquals(50, visited.size());
+
+        for( int i = 0; i < 50; i++ ) {
+            assertEquals("value:" + i, visited.get("key:" + i));
+        }
+
+        // Some of them came from each tier
+        assertTrue(storage.hotCount() > 0);
+        assertTrue(storage.coldCount() > 0);
+    }
+}
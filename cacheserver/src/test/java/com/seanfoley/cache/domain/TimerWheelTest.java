@@ -0,0 +1,161 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private final long TICK_MILLIS = 10;
+
+    @Test
+    public void expiresOnTime() {
+
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 0);
+        wheel.schedule("key", 95);
+
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+
+        // Never early, even within the last tick
+        assertEquals(0, wheel.advance(94, 100, expired));
+
+        assertEquals(1, wheel.advance(100, 100, expired));
+        assertEquals("key", expired.get(0).getKey());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancelledTimersDontExpire() {
+
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 0);
+        TimerWheel.Timer timer = wheel.schedule("key", 50);
+
+        wheel.cancel(timer);
+        assertEquals(0, wheel.size());
+
+        // A second cancel does nothing
+        wheel.cancel(timer);
+
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+        assertEquals(0, wheel.advance(1000, 100, expired));
+    }
+
+    @Test
+    public void timersOnHigherLevelsCascadeDown() {
+
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 0);
+
+        // Seconds, minutes, hours and days out
+        long[] deadlines = { 5000, 10 * 60 * 1000, 5 * 3600 * 1000, 3L * 24 * 3600 * 1000 };
+
+        for( long deadline : deadlines ) {
+            wheel.schedule(deadline, deadline);
+        }
+
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+
+        for( long deadline : deadlines ) {
+
+            expired.clear();
+            wheel.advance(deadline - 1, 100, expired);
+            assertTrue(expired.isEmpty());
+
+            wheel.advance(deadline + TICK_MILLIS, 100, expired);
+            assertEquals(1, expired.size());
+            assertEquals(deadline, expired.get(0).getKey());
+        }
+    }
+
+    @Test
+    public void timersPastTheEndOfTheWheelAreParked() {
+
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 0);
+
+        // 2^30 ticks is the end of the wheel
+        long deadline = ((1L << 30) + 100) * TICK_MILLIS;
+        wheel.schedule("far", deadline);
+
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+
+        wheel.advance(deadline - TICK_MILLIS, Integer.MAX_VALUE, expired);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(deadline, Integer.MAX_VALUE, expired);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void deadlinesInThePastExpireOnTheNextTick() {
+
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 1000);
+        wheel.schedule("key", 500);
+
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+        assertEquals(1, wheel.advance(1000 + TICK_MILLIS, 100, expired));
+    }
+
+    @Test
+    public void expiresInBoundedBatches() {
+
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 0);
+
+        for( int i = 0; i < 25; i++ ) {
+            wheel.schedule(i, 50);
+        }
+
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+
+        assertEquals(10, wheel.advance(100, 10, expired));
+        assertEquals(10, wheel.advance(100, 10, expired));
+        assertEquals(5, wheel.advance(100, 10, expired));
+        assertEquals(0, wheel.advance(100, 10, expired));
+        assertEquals(25, expired.size());
+    }
+
+    @Test
+    public void randomDeadlinesExpireInOrder() {
+
+        TimerWheel wheel = new TimerWheel(TICK_MILLIS, 0);
+        Random random = new Random(7);
+
+        for( int i = 0; i < 10000; i++ ) {
+            long deadline = random.nextInt(10 * 3600 * 1000);
+            wheel.schedule(deadline, deadline);
+        }
+
+        List<TimerWheel.Timer> expired = new ArrayList<>();
+
+        // Move forward in uneven steps, checking nothing comes out early
+        // or more than a tick late
+        for( long now = 0; wheel.size() > 0; now += random.nextInt(60 * 1000) ) {
+
+            expired.clear();
+            wheel.advance(now, Integer.MAX_VALUE, expired);
+
+            for( TimerWheel.Timer timer : expired ) {
+                assertTrue(timer.getDeadlineMillis() <= now);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import com.seanfoley.cache.interfaces.ICacheKey;
+import com.seanfoley.cache.interfaces.ICacheStorage;
+import com.seanfoley.cache.interfaces.ICacheValue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TinyLfuCacheStorageTest {
+
+    private final int ITEM_CAPACITY = 1000;
+
+    @Test
+    public void addGetRemove() {
+
+        ICacheStorage storage = new TinyLfuCacheStorage(ITEM_CAPACITY);
+
+        ICacheKey key = new CacheKey("key");
+
+        assertTrue(storage.add(key, new CacheValue("value")));
+        assertEquals(1, storage.count());
+        assertEquals("value", storage.get(new CacheKey("key")).getValue());
+
+        assertTrue(storage.add(key, new CacheValue("other")));
+        assertEquals(1, storage.count());
+        assertEquals("other", storage.get(key).getValue());
+
+        assertTrue(storage.remove(key));
+        assertFalse(storage.remove(key));
+        assertNull(storage.get(key));
+        assertEquals(0, storage.count());
+    }
+
+    @Test
+    public void neverHoldsMoreThanCapacity() {
+
+        ICacheStorage storage = new TinyLfuCacheStorage(ITEM_CAPACITY);
+
+        for( int i = 0; i < ITEM_CAPACITY * 10; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+
+            // Touch some of them so items move between the regions
+            if( i % 3 == 0 ) {
+                storage.get(new CacheKey("key:" + (i / 2)));
+            }
+
+            assertTrue(storage.count() <= ITEM_CAPACITY);
+        }
+    }
+
+    @Test
+    public void tinyCapacity() {
+
+        ICacheStorage storage = new TinyLfuCacheStorage(1);
+
+        storage.add(new CacheKey("a"), new CacheValue("a"));
+        storage.add(new CacheKey("b"), new CacheValue("b"));
+
+        assertEquals(1, storage.count());
+        assertNotNull(storage.get(new CacheKey("b")));
+    }
+
+    @Test
+    public void scanDoesNotFlushTheHotSet() {
+
+        final int HOT_KEYS = ITEM_CAPACITY / 2;
+        final int SCAN_KEYS = ITEM_CAPACITY * 20;
+
+        ICacheStorage lru = new LinkedHashMapCacheStorage(ITEM_CAPACITY);
+        ICacheStorage tinyLfu = new TinyLfuCacheStorage(ITEM_CAPACITY);
+
+        for( ICacheStorage storage : new ICacheStorage[] { lru, tinyLfu } ) {
+
+            // Build up a hot set that is used over and over
+            for( int round = 0; round < 5; round++ ) {
+                for( int i = 0; i < HOT_KEYS; i++ ) {
+                    readThrough(storage, "hot:" + i);
+                }
+            }
+
+            // The nightly batch job: lots of keys, each used once
+            for( int i = 0; i < SCAN_KEYS; i++ ) {
+                readThrough(storage, "scan:" + i);
+            }
+        }
+
+        double lruRatio = hotHitRatio(lru, HOT_KEYS);
+        double tinyLfuRatio = hotHitRatio(tinyLfu, HOT_KEYS);
+
+        // LRU lost everything; W-TinyLFU kept nearly all of it
+        assertTrue("lru " + lruRatio, lruRatio < 0.05);
+        assertTrue("tinylfu " + tinyLfuRatio, tinyLfuRatio > 0.90);
+    }
+
+    @Test
+    public void tunables() {
+
+        TinyLfuCacheStorage storage = new TinyLfuCacheStorage(ITEM_CAPACITY, 4096, 500);
+
+        assertEquals(4096, storage.getSketchBytes());
+        assertEquals(500, storage.getAgingPeriod());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new TinyLfuCacheStorage(0);
+    }
+
+    private void readThrough(ICacheStorage storage, String name) {
+
+        ICacheKey key = new CacheKey(name);
+
+        if( null == storage.get(key) ) {
+            storage.add(key, new CacheValue(name));
+        }
+    }
+
+    private double hotHitRatio(ICacheStorage storage, int hotKeys) {
+
+        int hits = 0;
+
+        for( int i = 0; i < hotKeys; i++ ) {
+            if( null != storage.get(new CacheKey("hot:" + i)) ) {
+                hits++;
+            }
+        }
+
+        return (double) hits / hotKeys;
+    }
+
+    @Test
+    public void bytesUsed() {
+
+        ICacheStorage storage = new TinyLfuCacheStorage(10);
+
+        ICacheValue value = new CacheValue("value");
+
+        storage.add(new CacheKey("a"), value);
+        storage.add(new CacheKey("a"), new CacheValue("a longer value"));
+        storage.remove(new CacheKey("a"));
+        assertEquals(0, storage.bytesUsed());
+
+        // Evictions (and rejected candidates) are taken off too
+        for( int i = 0; i < 100; i++ ) {
+            storage.add(new CacheKey(Integer.toString(i + 10)), value);
+        }
+        assertEquals(10, storage.count());
+        assertEquals(CacheEntrySizer.sizeOf("10", value) * 10, storage.bytesUsed());
+    }
+
+    @Test
+    public void forEachVisitsEveryItem() {
+
+        ICacheStorage storage = new TinyLfuCacheStorage(ITEM_CAPACITY);
+
+        for( int i = 0; i < 50; i++ ) {
+            storage.add(new CacheKey("key:" + i), new CacheValue("value:" + i));
+        }
+
+        Map<Object, Object> visited = new HashMap<>();
+        storage.forEach((key, value) -> visited.put(key.getKey(), value.getValue()));
+
+        assertEquals(50, visited.size());
+
+        for( int i = 0; i < 50; i++ ) {
+            assertEquals("value:" + i, visited.get("key:" + i));
+        }
+    }
+}
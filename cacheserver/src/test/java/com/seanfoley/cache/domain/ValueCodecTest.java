@@ -0,0 +1,81 @@
+/*
+ *  Copyright (C) 2018 Sean Foley  All Rights Reserved.
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted.  Enjoy.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.seanfoley.cache.domain;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ValueCodecTest {
+
+    @Test
+    public void strings() {
+
+        byte[] bytes = ValueCodec.encode("caf\u00e9");
+
+        assertEquals(ValueCodec.STRING, ValueCodec.typeOf("caf\u00e9"));
+        assertEquals(5, bytes.length);
+        assertEquals("caf\u00e9", ValueCodec.decode(ValueCodec.STRING, bytes));
+    }
+
+    @Test
+    public void numbers() {
+
+        assertEquals(ValueCodec.INTEGER, ValueCodec.typeOf(7));
+        assertEquals(-7, ValueCodec.decode(ValueCodec.INTEGER, ValueCodec.encode(-7)));
+
+        assertEquals(ValueCodec.LONG, ValueCodec.typeOf(7L));
+        assertEquals(Long.MAX_VALUE, ValueCodec.decode(ValueCodec.LONG, ValueCodec.encode(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void byteArrays() {
+
+        byte[] bytes = { 0, 1, -1 };
+
+        assertEquals(ValueCodec.BYTES, ValueCodec.typeOf(bytes));
+        assertArrayEquals(bytes, (byte[]) ValueCodec.decode(ValueCodec.BYTES, ValueCodec.encode(bytes)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedType() {
+        ValueCodec.typeOf(new Object());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownTag() {
+        ValueCodec.decode((byte) 99, new byte[0]);
+    }
+
+    @Test
+    public void byteArrayKeys() {
+
+        ByteArrayKey key = new ByteArrayKey("key");
+
+        assertEquals(ValueCodec.KEY, ValueCodec.typeOf(key));
+        assertArrayEquals("key".getBytes(), ValueCodec.encode(key));
+        assertEquals(key, ValueCodec.decode(ValueCodec.KEY, ValueCodec.encode(key)));
+    }
+
+    @Test
+    public void byteArrayValuesComeBackImmutable() {
+
+        assertTrue(ValueCodec.decodeValue(ValueCodec.BYTES, "value".getBytes()) instanceof ByteArrayValue);
+        assertEquals("value", ValueCodec.decodeValue(ValueCodec.STRING, "value".getBytes()).getValue());
+    }
+}